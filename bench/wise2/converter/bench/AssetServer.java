@@ -0,0 +1,364 @@
+package wise2.converter.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for the wise 2 server that the image downloads can be
+ * pointed at with ConversionOptions.setAssetBaseUrl and setStampBaseUrl,
+ * so downloads can be tested and benchmarked without the network. It
+ * serves the files in a folder, e.g. GET /upload/31000/figure0.jpg returns
+ * root/upload/31000/figure0.jpg, and can be told to misbehave:
+ * 
+ * - latency, a delay before every response plus a random jitter
+ * - error rate, the fraction of requests answered with 500
+ * - reset rate, the fraction of requests where the connection is dropped
+ *   halfway through the body
+ * - slow drip, the body is sent a few bytes at a time with a pause between
+ * 
+ * The failures are drawn from a Random with a fixed seed so a run of
+ * requests in the same order misbehaves the same way every time. e.g.
+ * 
+ * AssetServer server = new AssetServer(imageFolder);
+ * server.setLatencyMillis(20);
+ * server.setErrorRate(0.05);
+ * server.start(0);
+ * options.setAssetBaseUrl(server.getBaseUrl() + "/upload/");
+ * ...
+ * server.stop();
+ */
+public class AssetServer {
+	
+	static {
+		/*
+		 * the built in server writes the headers and the body separately so
+		 * without this every keep-alive response waits about 40ms for the
+		 * client's delayed ack, which would swamp the latency being tested
+		 */
+		if(System.getProperty("sun.net.httpserver.nodelay") == null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+	}
+	
+	//the folder the files are served from
+	private File rootFolder;
+	
+	//the http server, null when stopped
+	private HttpServer server = null;
+	
+	//the threads that answer requests, one per request so slow responses do not hold up the others
+	private ExecutorService executor = null;
+	
+	//the delay before every response
+	private long latencyMillis = 0;
+	
+	//the most random delay added to the latency
+	private long latencyJitterMillis = 0;
+	
+	//the fraction of requests answered with 500
+	private double errorRate = 0;
+	
+	//the fraction of requests where the connection is dropped halfway through the body
+	private double resetRate = 0;
+	
+	//the number of bytes sent at a time when drip feeding, 0 sends the body at once
+	private int dripBytes = 0;
+	
+	//the pause between drip fed chunks
+	private long dripDelayMillis = 0;
+	
+	//decides the latency jitter and which requests fail
+	private Random random = new Random(1);
+	
+	//the counters for what the server did
+	private AtomicLong requests = new AtomicLong();
+	private AtomicLong notFound = new AtomicLong();
+	private AtomicLong errors = new AtomicLong();
+	private AtomicLong resets = new AtomicLong();
+	private AtomicLong bytesSent = new AtomicLong();
+	
+	/**
+	 * @param rootFolder the folder the files are served from
+	 */
+	public AssetServer(File rootFolder) {
+		this.rootFolder = rootFolder;
+	}
+	
+	/**
+	 * Start answering requests on localhost
+	 * @param port the port to listen on, 0 picks a free port
+	 * @throws IOException
+	 */
+	public void start(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", port), 128);
+		
+		executor = Executors.newCachedThreadPool();
+		server.setExecutor(executor);
+		
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					respond(exchange);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		
+		server.start();
+	}
+	
+	/**
+	 * Stop the server straight away, requests in progress are dropped
+	 */
+	public void stop() {
+		if(server != null) {
+			server.stop(0);
+			executor.shutdownNow();
+			server = null;
+		}
+	}
+	
+	/**
+	 * Get the port the server is listening on
+	 * @return the port
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+	
+	/**
+	 * Get the url of the server without a trailing slash
+	 * @return e.g. http://localhost:43712
+	 */
+	public String getBaseUrl() {
+		return "http://localhost:" + getPort();
+	}
+	
+	/**
+	 * Answer a request, misbehaving as configured
+	 * @param exchange the request and response
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void respond(HttpExchange exchange) throws IOException, InterruptedException {
+		requests.incrementAndGet();
+		
+		//decide everything up front so the random sequence only depends on the order of the requests
+		long delay;
+		boolean error;
+		boolean reset;
+		
+		synchronized(random) {
+			delay = latencyMillis + (latencyJitterMillis > 0 ? (long) (random.nextDouble() * latencyJitterMillis) : 0);
+			error = random.nextDouble() < errorRate;
+			reset = random.nextDouble() < resetRate;
+		}
+		
+		if(delay > 0) {
+			Thread.sleep(delay);
+		}
+		
+		String path = exchange.getRequestURI().getPath();
+		File file = new File(rootFolder, path);
+		
+		if(path.contains("..") || !file.isFile()) {
+			notFound.incrementAndGet();
+			exchange.sendResponseHeaders(404, -1);
+			return;
+		}
+		
+		if(error) {
+			errors.incrementAndGet();
+			exchange.sendResponseHeaders(500, -1);
+			return;
+		}
+		
+		byte[] content = FileUtils.readFileToByteArray(file);
+		exchange.getResponseHeaders().set("Content-Type", getContentType(file.getName()));
+		exchange.sendResponseHeaders(200, content.length);
+		
+		//when resetting only half the body is sent before the connection is dropped
+		int length = reset ? content.length / 2 : content.length;
+		int chunkSize = dripBytes > 0 ? dripBytes : Math.max(length, 1);
+		OutputStream out = exchange.getResponseBody();
+		
+		for(int offset=0; offset<length; offset+=chunkSize) {
+			int count = Math.min(chunkSize, length - offset);
+			out.write(content, offset, count);
+			bytesSent.addAndGet(count);
+			
+			if(dripBytes > 0) {
+				out.flush();
+				Thread.sleep(dripDelayMillis);
+			}
+		}
+		
+		if(reset) {
+			resets.incrementAndGet();
+			out.flush();
+			
+			//closing without the rest of the body makes the server drop the connection
+			return;
+		}
+		
+		out.close();
+	}
+	
+	/**
+	 * Get the content type for a file
+	 * @param fileName the file name
+	 * @return the mime type
+	 */
+	private static String getContentType(String fileName) {
+		String lowerCaseName = fileName.toLowerCase();
+		
+		if(lowerCaseName.endsWith(".png")) {
+			return "image/png";
+		} else if(lowerCaseName.endsWith(".jpg") || lowerCaseName.endsWith(".jpeg")) {
+			return "image/jpeg";
+		} else if(lowerCaseName.endsWith(".gif")) {
+			return "image/gif";
+		} else if(lowerCaseName.endsWith(".bmp")) {
+			return "image/bmp";
+		} else if(lowerCaseName.endsWith(".tiff")) {
+			return "image/tiff";
+		}
+		
+		return "application/octet-stream";
+	}
+	
+	/**
+	 * Set the delay before every response
+	 * @param latencyMillis the fixed delay
+	 * @param latencyJitterMillis the most random delay added to it
+	 */
+	public void setLatency(long latencyMillis, long latencyJitterMillis) {
+		this.latencyMillis = latencyMillis;
+		this.latencyJitterMillis = latencyJitterMillis;
+	}
+	
+	public void setLatencyMillis(long latencyMillis) {
+		this.latencyMillis = latencyMillis;
+	}
+
+	public void setErrorRate(double errorRate) {
+		this.errorRate = errorRate;
+	}
+
+	public void setResetRate(double resetRate) {
+		this.resetRate = resetRate;
+	}
+	
+	/**
+	 * Send the bodies a few bytes at a time
+	 * @param dripBytes the number of bytes sent at a time, 0 sends the body at once
+	 * @param dripDelayMillis the pause after each chunk
+	 */
+	public void setSlowDrip(int dripBytes, long dripDelayMillis) {
+		this.dripBytes = dripBytes;
+		this.dripDelayMillis = dripDelayMillis;
+	}
+	
+	/**
+	 * Set the seed that decides the jitter and which requests fail
+	 * @param seed
+	 */
+	public void setSeed(long seed) {
+		synchronized(random) {
+			random.setSeed(seed);
+		}
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	public long getNotFound() {
+		return notFound.get();
+	}
+
+	public long getErrors() {
+		return errors.get();
+	}
+
+	public long getResets() {
+		return resets.get();
+	}
+
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+	
+	/**
+	 * Serve a folder until the process is killed e.g.
+	 * 
+	 * java -cp bin:lib/* wise2.converter.bench.AssetServer -root images -port 8080 -latency 50 -jitter 20 -errors 0.02 -resets 0.01 -drip 512:10
+	 * 
+	 * then convert with the asset base url set to http://localhost:8080/upload/
+	 * @param args the settings
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		File rootFolder = new File(".");
+		int port = 8080;
+		long latency = 0;
+		long jitter = 0;
+		double errorRate = 0;
+		double resetRate = 0;
+		int dripBytes = 0;
+		long dripDelay = 0;
+		long seed = 1;
+		
+		for(int x=0; x<args.length; x+=2) {
+			String name = args[x];
+			String value = args[x + 1];
+			
+			if(name.equals("-root")) {
+				rootFolder = new File(value);
+			} else if(name.equals("-port")) {
+				port = Integer.parseInt(value);
+			} else if(name.equals("-latency")) {
+				latency = Long.parseLong(value);
+			} else if(name.equals("-jitter")) {
+				jitter = Long.parseLong(value);
+			} else if(name.equals("-errors")) {
+				errorRate = Double.parseDouble(value);
+			} else if(name.equals("-resets")) {
+				resetRate = Double.parseDouble(value);
+			} else if(name.equals("-drip")) {
+				String[] bytesAndDelay = value.split(":");
+				dripBytes = Integer.parseInt(bytesAndDelay[0]);
+				dripDelay = Long.parseLong(bytesAndDelay[1]);
+			} else if(name.equals("-seed")) {
+				seed = Long.parseLong(value);
+			} else {
+				throw new IllegalArgumentException("Unknown setting " + name);
+			}
+		}
+		
+		AssetServer server = new AssetServer(rootFolder);
+		server.setLatency(latency, jitter);
+		server.setErrorRate(errorRate);
+		server.setResetRate(resetRate);
+		server.setSlowDrip(dripBytes, dripDelay);
+		server.setSeed(seed);
+		server.start(port);
+		
+		System.out.println("Serving " + rootFolder.getAbsolutePath() + " at " + server.getBaseUrl());
+	}
+}
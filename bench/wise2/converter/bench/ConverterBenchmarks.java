@@ -0,0 +1,450 @@
+package wise2.converter.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.dom4j.Document;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Node;
+import org.dom4j.XPath;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import wise2.converter.ConversionOptions;
+import wise2.converter.ConversionResult;
+import wise2.converter.ProjectConverter;
+import wise2.converter.converters.Converter;
+import wise2.converter.converters.DisplayPageConverter;
+import wise2.converter.converters.SelfTestConverter;
+import wise2.converter.converters.Wisedraw2Converter;
+import wise2.converter.log.ConvertLog;
+import wise2.converter.progress.ConversionProgress;
+import wise2.converter.report.StepReport;
+
+/**
+ * JMH micro benchmarks for the converter hot paths:
+ * 
+ * - Converter.downloadImagesAndReplaceReferences on a large page with many image urls
+ * - downloading a page's images over http from a local AssetServer
+ * - AssessmentConverter.parseInteractions and generateAssessmentListJSON on a 40 item SelfTest
+ * - Converter.createStepFile serialization for a small DisplayPage and the 40 item SelfTest
+ * - Wisedraw2 step creation with stamps read from local files
+ * - parseStep dispatch, measured by converting small in-memory projects
+ * 
+ * Image downloads from the wise 2 server are replaced by returning fixed
+ * bytes so the numbers do not depend on the network. Each benchmark runs
+ * in forked JVMs and the gc profiler reports the allocation per operation.
+ * Compile the bench folder with the lib jars on the classpath so the JMH
+ * annotation processor generates the benchmark list, then run e.g.
+ * 
+ * java -cp bin:lib/* wise2.converter.bench.ConverterBenchmarks [-json results.json] [name filter]
+ * 
+ * or org.openjdk.jmh.Main with the usual JMH options.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ConverterBenchmarks {
+	
+	//the log that the converters write to, drained into nothing
+	private ConvertLog convertLog;
+	
+	//the large page with 60 image urls and the short page with none
+	private String largeHtml;
+	private String smallHtml;
+	
+	//a DisplayPage converter that returns fixed bytes for every image
+	private Converter offlineConverter;
+	
+	//the 40 item SelfTest step and its stages, parsed once so each stage can be measured on its own
+	private Node selfTestNode;
+	private BenchmarkSelfTestConverter selfTestStagesConverter;
+	private Document qtiDocument;
+	private List<Node> itemNodes;
+	private ArrayList<JSONObject> interactions;
+	private ArrayList<JSONObject> responses;
+	
+	//the steps whose files are written
+	private Node displayPageNode;
+	private Converter displayPageConverter;
+	private Converter selfTestConverter;
+	
+	//the Wisedraw2 step with stamps read from local files
+	private Node wisedraw2Node;
+	private Converter wisedraw2Converter;
+	
+	//small in-memory projects of common steps and of steps no converter handles
+	private byte[] mixedExport;
+	private byte[] unknownExport;
+	
+	//converts the in-memory projects on the benchmark thread so the allocation numbers are complete
+	private ProjectConverter projectConverter;
+	
+	/**
+	 * Build the fixtures once for each fork
+	 * @throws Exception
+	 */
+	@Setup
+	public void setUp() throws Exception {
+		convertLog = new ConvertLog(NullOutputStream.NULL_OUTPUT_STREAM, System.out, ConvertLog.Level.QUIET, 1024, 4096);
+		byte[] imageBytes = StepFixtures.toPng(StepFixtures.createImage(64, 64, 1));
+		
+		largeHtml = StepFixtures.largeHtml(400, 60);
+		smallHtml = StepFixtures.smallHtml();
+		offlineConverter = prepare(new OfflineDisplayPageConverter(imageBytes));
+		
+		selfTestNode = StepFixtures.parseStep(StepFixtures.assessment("SelfTest", "Quiz", StepFixtures.choiceTestQTI(40, 4, 0)));
+		selfTestStagesConverter = (BenchmarkSelfTestConverter) prepare(new BenchmarkSelfTestConverter());
+		qtiDocument = selfTestStagesConverter.parseQTI(selfTestNode);
+		itemNodes = selfTestStagesConverter.getItemNodes(qtiDocument);
+		interactions = selfTestStagesConverter.parseInteractions(itemNodes);
+		responses = selfTestStagesConverter.parseResponses(itemNodes);
+		
+		displayPageNode = StepFixtures.parseStep(StepFixtures.displayPage("Intro", StepFixtures.smallHtml()));
+		displayPageConverter = prepare(new DisplayPageConverter());
+		selfTestConverter = prepare(new SelfTestConverter());
+		
+		File stampFolder = new File(System.getProperty("java.io.tmpdir"), "wise-bench-stamps");
+		List<String> stampUrls = StepFixtures.writeStampImages(stampFolder, 8, 48);
+		wisedraw2Node = StepFixtures.parseStep(StepFixtures.wisedraw2("Draw", "<p>Draw the energy flow</p>", stampUrls, stampUrls.get(0)));
+		wisedraw2Converter = prepare(new Wisedraw2Converter());
+		
+		List<String> mixedSteps = new ArrayList<String>();
+		List<String> unknownSteps = new ArrayList<String>();
+		
+		for(int x=0; x<5; x++) {
+			mixedSteps.add(StepFixtures.displayPage("Page " + x, StepFixtures.smallHtml()));
+			mixedSteps.add(StepFixtures.assessment("Notes", "Notes " + x, StepFixtures.openResponseQTI("Explain what you saw")));
+			mixedSteps.add(StepFixtures.assessment("SelfTest", "Quiz " + x, StepFixtures.choiceTestQTI(3, 4, 0)));
+			mixedSteps.add(StepFixtures.step("Journal", "Journal " + x, "<prompt>What did you learn?</prompt>"));
+		}
+		
+		for(int x=0; x<20; x++) {
+			unknownSteps.add(StepFixtures.step("Mystery", "Unknown " + x, "<html>unknown</html>"));
+		}
+		
+		mixedExport = StepFixtures.exportZip(StepFixtures.projectXML("Mixed", Arrays.asList("Activity"), Arrays.asList(mixedSteps)), new HashMap<String, byte[]>());
+		unknownExport = StepFixtures.exportZip(StepFixtures.projectXML("Unknown", Arrays.asList("Activity"), Arrays.asList(unknownSteps)), new HashMap<String, byte[]>());
+		
+		ConversionOptions options = new ConversionOptions();
+		options.setOutputThreads(0);
+		options.setConsoleLevel(ConvertLog.Level.QUIET);
+		projectConverter = new ProjectConverter(options);
+	}
+	
+	/**
+	 * Stop the log thread
+	 */
+	@TearDown
+	public void tearDown() {
+		convertLog.close();
+	}
+	
+	@Benchmark
+	public String downloadImagesAndReplaceReferencesLargeHtml60Images() {
+		ConvertLog.Section section = openSection(offlineConverter);
+		
+		try {
+			return offlineConverter.downloadImagesAndReplaceReferences(largeHtml);
+		} finally {
+			section.close();
+		}
+	}
+	
+	@Benchmark
+	public String downloadImagesAndReplaceReferencesSmallHtmlNoImages() {
+		ConvertLog.Section section = openSection(offlineConverter);
+		
+		try {
+			return offlineConverter.downloadImagesAndReplaceReferences(smallHtml);
+		} finally {
+			section.close();
+		}
+	}
+	
+	/**
+	 * Download the images of a page over http from a local asset server
+	 * with a little latency, the way the converter fetches them from the
+	 * wise 2 server
+	 * @param assets the asset server and the page
+	 * @return the page with the references replaced
+	 */
+	@Benchmark
+	public String downloadImagesAndReplaceReferencesAssetServer20Images5msLatency(AssetServerState assets) {
+		ConvertLog.Section section = openSection(assets.converter);
+		
+		try {
+			return assets.converter.downloadImagesAndReplaceReferences(assets.html);
+		} finally {
+			section.close();
+		}
+	}
+	
+	@Benchmark
+	public Document assessmentQtiParseSelfTest40() {
+		return selfTestStagesConverter.parseQTI(selfTestNode);
+	}
+	
+	@Benchmark
+	public ArrayList<JSONObject> assessmentParseInteractionsSelfTest40() {
+		return selfTestStagesConverter.parseInteractions(itemNodes);
+	}
+	
+	@Benchmark
+	public JSONObject assessmentGenerateAssessmentListJSONSelfTest40() {
+		return selfTestStagesConverter.generateAssessmentList(qtiDocument, interactions, responses);
+	}
+	
+	@Benchmark
+	public JSONObject assessmentCreateStepSelfTest40() {
+		ConvertLog.Section section = openSection(selfTestStagesConverter);
+		
+		try {
+			return selfTestStagesConverter.createStep(selfTestNode, 0);
+		} finally {
+			section.close();
+		}
+	}
+	
+	/**
+	 * createStepFile returns nothing so the converter goes into the
+	 * blackhole to keep the work alive
+	 * @param blackhole consumes the converter
+	 */
+	@Benchmark
+	public void createStepFileDisplayPageSmall(Blackhole blackhole) {
+		ConvertLog.Section section = openSection(displayPageConverter);
+		
+		try {
+			displayPageConverter.createStepFile(displayPageNode, 0);
+			blackhole.consume(displayPageConverter);
+		} finally {
+			section.close();
+		}
+	}
+	
+	@Benchmark
+	public void createStepFileSelfTest40(Blackhole blackhole) {
+		ConvertLog.Section section = openSection(selfTestConverter);
+		
+		try {
+			selfTestConverter.createStepFile(selfTestNode, 0);
+			blackhole.consume(selfTestConverter);
+		} finally {
+			section.close();
+		}
+	}
+	
+	@Benchmark
+	public JSONObject wisedraw2CreateStep8LocalStamps() {
+		ConvertLog.Section section = openSection(wisedraw2Converter);
+		
+		try {
+			return wisedraw2Converter.createStep(wisedraw2Node, 0);
+		} finally {
+			section.close();
+		}
+	}
+	
+	/**
+	 * parseStep dispatch plus conversion for common step types
+	 * @return the result of the conversion
+	 * @throws Exception
+	 */
+	@Benchmark
+	public ConversionResult parseStepProject20MixedSteps() throws Exception {
+		return projectConverter.convert(new ByteArrayInputStream(mixedExport), "1", new DiscardOutputSink());
+	}
+	
+	/**
+	 * parseStep dispatch plus the failure path
+	 * @return the result of the conversion
+	 * @throws Exception
+	 */
+	@Benchmark
+	public ConversionResult parseStepProject20UnknownSteps() throws Exception {
+		return projectConverter.convert(new ByteArrayInputStream(unknownExport), "1", new DiscardOutputSink());
+	}
+	
+	/**
+	 * Give a converter everything the project converter normally gives it
+	 * @param converter the converter
+	 * @return the converter
+	 */
+	private static Converter prepare(Converter converter) {
+		converter.setOutputSink(new DiscardOutputSink());
+		converter.setStepReport(new StepReport("Benchmark"));
+		converter.setProgress(new ConversionProgress("benchmark"));
+		return converter;
+	}
+	
+	/**
+	 * Give the converter a new log section, just like each step gets in a real conversion
+	 * @param converter the converter being measured
+	 * @return the section, to be closed once the operation is done
+	 */
+	private ConvertLog.Section openSection(Converter converter) {
+		ConvertLog.Section section = convertLog.openSection();
+		converter.setConvertLog(section);
+		return section;
+	}
+	
+	/**
+	 * Run the benchmarks with the gc profiler
+	 * @param args [-json file] [name filter]
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		String filter = null;
+		String jsonFile = null;
+		
+		for(int x=0; x<args.length; x++) {
+			if(args[x].equals("-json")) {
+				jsonFile = args[++x];
+			} else {
+				filter = args[x];
+			}
+		}
+		
+		ChainedOptionsBuilder options = new OptionsBuilder()
+				.include(ConverterBenchmarks.class.getSimpleName() + "\\." + (filter == null ? "" : ".*" + filter))
+				.addProfiler(GCProfiler.class);
+		
+		if(jsonFile != null) {
+			options.resultFormat(ResultFormatType.JSON).result(jsonFile);
+		}
+		
+		new Runner(options.build()).run();
+	}
+	
+	/**
+	 * A local asset server serving the 20 images a page references, started
+	 * once for each fork of the benchmark that uses it
+	 */
+	@State(Scope.Thread)
+	public static class AssetServerState {
+		//the folder the images are served from
+		private File rootFolder;
+		
+		//serves the images
+		private AssetServer server;
+		
+		//the page that references the images
+		private String html;
+		
+		//downloads the images from the server
+		private Converter converter;
+		
+		@Setup
+		public void setUp() throws Exception {
+			byte[] imageBytes = StepFixtures.toPng(StepFixtures.createImage(64, 64, 1));
+			rootFolder = File.createTempFile("wise-assets", "");
+			rootFolder.delete();
+			
+			for(int x=0; x<20; x++) {
+				File imageFile = new File(rootFolder, "upload/" + (31000 + x % 7) + "/figure" + x + ".jpg");
+				FileUtils.writeByteArrayToFile(imageFile, imageBytes);
+			}
+			
+			server = new AssetServer(rootFolder);
+			server.setLatencyMillis(5);
+			server.start(0);
+			
+			html = StepFixtures.largeHtml(100, 20);
+			
+			ConversionOptions options = new ConversionOptions();
+			options.setAssetBaseUrl(server.getBaseUrl() + "/upload/");
+			
+			converter = prepare(new DisplayPageConverter());
+			converter.setOptions(options);
+		}
+		
+		@TearDown
+		public void tearDown() throws IOException {
+			server.stop();
+			FileUtils.deleteDirectory(rootFolder);
+		}
+	}
+	
+	/**
+	 * A DisplayPage converter that returns fixed bytes for every image
+	 * instead of fetching it from the wise 2 server
+	 */
+	static class OfflineDisplayPageConverter extends DisplayPageConverter {
+		//the bytes returned for every image
+		private byte[] imageBytes;
+		
+		OfflineDisplayPageConverter(byte[] imageBytes) {
+			this.imageBytes = imageBytes;
+		}
+		
+		protected byte[] downloadFile(URL url) {
+			return imageBytes;
+		}
+	}
+	
+	/**
+	 * Opens up the stages of the SelfTest conversion so they can be
+	 * measured separately
+	 */
+	static class BenchmarkSelfTestConverter extends SelfTestConverter {
+		//the path to the assessment items, the same one the converter uses
+		private XPath assessmentItemXPath;
+		
+		BenchmarkSelfTestConverter() {
+			Map<String, String> namespaces = new HashMap<String, String>();
+			namespaces.put("qti", "http://www.imsglobal.org/xsd/imsqti_v2p0");
+			assessmentItemXPath = DocumentHelper.createXPath("//qti:assessmentItem");
+			assessmentItemXPath.setNamespaceURIs(namespaces);
+		}
+		
+		Document parseQTI(Node stepNode) {
+			return getQtiDocument(stepNode);
+		}
+		
+		List<Node> getItemNodes(Document qtiDocument) {
+			return getAssessmentItemNodes(qtiDocument);
+		}
+		
+		protected ArrayList<JSONObject> parseInteractions(List<Node> itemNodes) {
+			return super.parseInteractions(itemNodes);
+		}
+		
+		protected ArrayList<JSONObject> parseResponses(List<Node> itemNodes) {
+			return super.parseResponses(itemNodes);
+		}
+		
+		JSONObject generateAssessmentList(Document qtiDocument, ArrayList<JSONObject> interactions, ArrayList<JSONObject> responses) {
+			return generateAssessmentListJSON(qtiDocument, assessmentItemXPath, interactions, responses);
+		}
+	}
+}
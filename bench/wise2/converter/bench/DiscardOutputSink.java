@@ -0,0 +1,29 @@
+package wise2.converter.bench;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import wise2.converter.output.OutputSink;
+
+/**
+ * An output sink that only counts what it is given, so benchmarks measure
+ * the conversion and not the disk
+ */
+public class DiscardOutputSink extends OutputSink {
+	
+	//the number of bytes handed to the sink
+	private AtomicLong bytesWritten = new AtomicLong();
+
+	/**
+	 * @see wise2.converter.output.OutputSink#write(java.lang.String, byte[])
+	 */
+	public void write(String path, byte[] content) {
+		bytesWritten.addAndGet(content.length);
+	}
+
+	/**
+	 * @see wise2.converter.output.OutputSink#getBytesWritten()
+	 */
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+}
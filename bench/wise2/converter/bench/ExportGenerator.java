@@ -0,0 +1,580 @@
+package wise2.converter.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes synthetic wise 2 project exports for load and scale testing so we
+ * do not need real student-facing projects. Everything is drawn from a
+ * Random seeded with the seed setting, and the zip entries get a fixed
+ * timestamp, so the same settings always produce byte-for-byte the same
+ * zip file and benchmark numbers stay comparable over time.
+ * 
+ * The settings are set through the setters, e.g.
+ * 
+ * ExportGenerator generator = new ExportGenerator();
+ * generator.setSeed(42);
+ * generator.setActivities(10);
+ * generator.setStepsPerActivity(20);
+ * generator.setStepMix("DisplayPage=4,SelfTest=1,Wisedraw2=1");
+ * File exportFile = generator.generate(outputFolder);
+ * 
+ * DisplayPages reference the upload folder images through the assets
+ * folder. Image references in assessment prompts point at the wise 2
+ * server and are downloaded by the converters so they are off by default. Wisedraw2 stamps are
+ * written into the output folder and referenced with file: urls so they
+ * can be read offline.
+ */
+public class ExportGenerator {
+	
+	//the step types the generator can write, in the order they are listed in the default mix
+	public static final String[] STEP_TYPES = {"DisplayPage", "Notes", "SelfTest", "ChallengeQuestion", "Wisedraw2", "Bookmarks", "OTrunk", "Journal"};
+	
+	//every zip entry gets this timestamp so the zip bytes only depend on the settings
+	private static final long ENTRY_TIME = 1252693454000L;
+	
+	//seeds all the random choices
+	private long seed = 1;
+	
+	//the wise 2 project id used in the file name
+	private int projectId = 10000;
+	
+	//the number of activities in the project
+	private int activities = 5;
+	
+	//the number of steps in each activity
+	private int stepsPerActivity = 10;
+	
+	//the relative weight of each step type
+	private Map<String, Integer> stepMix = new LinkedHashMap<String, Integer>();
+	
+	//the smallest html page in characters
+	private int minHtmlLength = 500;
+	
+	//the largest html page in characters
+	private int maxHtmlLength = 5000;
+	
+	//the number of references to upload folder images in each DisplayPage, these are not downloaded
+	private int pageImageReferences = 2;
+	
+	//the number of wise 2 server image references in each assessment prompt, these are downloaded when converting
+	private int promptImageReferences = 0;
+	
+	//the number of items in a SelfTest
+	private int selfTestItems = 10;
+	
+	//the number of stamps in a Wisedraw2 step
+	private int stampsPerDrawing = 4;
+	
+	//the number of files in the upload folder
+	private int uploadFiles = 20;
+	
+	//the total size of the upload folder
+	private long uploadBytes = 2 * 1024 * 1024;
+	
+	//how unevenly the upload folder is split between the files, 0 makes them all the same size
+	private double uploadSizeSpread = 0;
+	
+	/**
+	 * Create a generator with the default settings. The default step mix
+	 * weights every step type equally.
+	 */
+	public ExportGenerator() {
+		for(String stepType : STEP_TYPES) {
+			stepMix.put(stepType, 1);
+		}
+	}
+	
+	/**
+	 * Get the name wise 2 would give the export, with a timestamp derived from the seed
+	 * @return e.g. wiseProject-10000-090911_122414-wpe.zip
+	 */
+	public String getExportFileName() {
+		Random random = new Random(seed);
+		String timestamp = String.format("%02d%02d%02d_%02d%02d%02d", 8 + random.nextInt(3), 1 + random.nextInt(12), 1 + random.nextInt(28), random.nextInt(24), random.nextInt(60), random.nextInt(60));
+		return "wiseProject-" + projectId + "-" + timestamp + "-wpe.zip";
+	}
+	
+	/**
+	 * Write the export zip into a folder
+	 * @param outputFolder the folder to write the export to
+	 * @return the export zip file
+	 * @throws IOException
+	 */
+	public File generate(File outputFolder) throws IOException {
+		outputFolder.mkdirs();
+		File exportFile = new File(outputFolder, getExportFileName());
+		
+		//the stamps are shared by every project generated into the folder
+		List<String> stampUrls = StepFixtures.writeStampImages(new File(outputFolder, "stamps"), Math.max(stampsPerDrawing, 1), 48);
+		
+		OutputStream out = new FileOutputStream(exportFile);
+		
+		try {
+			generate(out, stampUrls);
+		} finally {
+			out.close();
+		}
+		
+		return exportFile;
+	}
+	
+	/**
+	 * Write the export zip to a stream
+	 * @param out the stream to write the zip to, it is not closed
+	 * @param stampUrls the urls of the images used as Wisedraw2 stamps
+	 * @throws IOException
+	 */
+	public void generate(OutputStream out, List<String> stampUrls) throws IOException {
+		Random random = new Random(seed);
+		
+		//decide the upload files first so the pages can reference them
+		List<String> uploadNames = new ArrayList<String>();
+		List<Long> uploadSizes = new ArrayList<Long>();
+		
+		for(int x=0; x<uploadFiles; x++) {
+			boolean image = random.nextInt(5) != 0;
+			uploadNames.add(image ? "image" + x + ".jpg" : "handout" + x + ".txt");
+			uploadSizes.add(uploadFiles == 0 ? 0 : uploadBytes / uploadFiles + (x < uploadBytes % uploadFiles ? 1 : 0));
+		}
+		
+		if(uploadSizeSpread > 0) {
+			spreadUploadSizes(random, uploadSizes);
+		}
+		
+		List<String> activityTitles = new ArrayList<String>();
+		List<List<String>> activitySteps = new ArrayList<List<String>>();
+		
+		for(int x=0; x<activities; x++) {
+			activityTitles.add("Activity " + (x + 1));
+			
+			List<String> steps = new ArrayList<String>();
+			
+			for(int y=0; y<stepsPerActivity; y++) {
+				steps.add(createStep(random, pickStepType(random), "Step " + (x + 1) + "." + (y + 1), uploadNames, stampUrls));
+			}
+			
+			activitySteps.add(steps);
+		}
+		
+		String projectXML = StepFixtures.projectXML("Synthetic Project " + projectId, activityTitles, activitySteps);
+		
+		ZipOutputStream zip = new ZipOutputStream(new NonClosingOutputStream(out));
+		putEntry(zip, "wise-project.xml", projectXML.getBytes("UTF-8"));
+		
+		for(int x=0; x<uploadNames.size(); x++) {
+			String name = uploadNames.get(x);
+			byte[] content = new byte[(int) (long) uploadSizes.get(x)];
+			
+			if(name.endsWith(".jpg")) {
+				//images do not compress so random bytes behave like the real thing
+				random.nextBytes(content);
+			} else {
+				fillText(random, content);
+			}
+			
+			putEntry(zip, "upload/" + name, content);
+		}
+		
+		zip.close();
+	}
+	
+	/**
+	 * Split the upload folder between the files with log-normal weights so
+	 * there are many small files and a few large ones, the way real upload
+	 * folders look. The total size does not change.
+	 * @param random the random source
+	 * @param uploadSizes the sizes to replace
+	 */
+	private void spreadUploadSizes(Random random, List<Long> uploadSizes) {
+		double[] weights = new double[uploadSizes.size()];
+		double totalWeight = 0;
+		
+		for(int x=0; x<weights.length; x++) {
+			weights[x] = Math.exp(uploadSizeSpread * random.nextGaussian());
+			totalWeight += weights[x];
+		}
+		
+		long assigned = 0;
+		
+		for(int x=0; x<weights.length; x++) {
+			long size = (long) (uploadBytes * weights[x] / totalWeight);
+			uploadSizes.set(x, size);
+			assigned += size;
+		}
+		
+		//give the bytes lost to rounding to the first file
+		if(!uploadSizes.isEmpty()) {
+			uploadSizes.set(0, uploadSizes.get(0) + uploadBytes - assigned);
+		}
+	}
+	
+	/**
+	 * Choose a step type according to the weights in the step mix
+	 * @param random the random source
+	 * @return the step type
+	 */
+	private String pickStepType(Random random) {
+		int totalWeight = 0;
+		
+		for(int weight : stepMix.values()) {
+			totalWeight += weight;
+		}
+		
+		int pick = random.nextInt(totalWeight);
+		
+		for(Map.Entry<String, Integer> entry : stepMix.entrySet()) {
+			pick -= entry.getValue();
+			
+			if(pick < 0) {
+				return entry.getKey();
+			}
+		}
+		
+		return STEP_TYPES[0];
+	}
+	
+	/**
+	 * Create the xml for a step of the given type
+	 * @param random the random source
+	 * @param stepType the step type
+	 * @param title the step title
+	 * @param uploadNames the files in the upload folder that pages can reference
+	 * @param stampUrls the urls of the images used as Wisedraw2 stamps
+	 * @return the step xml
+	 */
+	private String createStep(Random random, String stepType, String title, List<String> uploadNames, List<String> stampUrls) {
+		if(stepType.equals("DisplayPage")) {
+			int length = minHtmlLength + random.nextInt(Math.max(1, maxHtmlLength - minHtmlLength + 1));
+			return StepFixtures.displayPage(title, createHtml(random, length, pageImageReferences, uploadNames));
+		} else if(stepType.equals("Notes")) {
+			return StepFixtures.assessment("Notes", title, StepFixtures.openResponseQTI(createPrompt(random, uploadNames)));
+		} else if(stepType.equals("SelfTest")) {
+			StringBuffer qti = new StringBuffer("<assessmentTest xmlns=\"http://www.imsglobal.org/xsd/imsqti_v2p0\">");
+			
+			for(int x=0; x<selfTestItems; x++) {
+				qti.append(StepFixtures.choiceItemQTI("item" + x, "response" + x, createPrompt(random, uploadNames), 2 + random.nextInt(4)));
+			}
+			
+			return StepFixtures.assessment("SelfTest", title, qti.append("</assessmentTest>").toString());
+		} else if(stepType.equals("ChallengeQuestion")) {
+			return StepFixtures.assessment("ChallengeQuestion", title, StepFixtures.challengeQuestionQTI(createPrompt(random, uploadNames), 2 + random.nextInt(4)));
+		} else if(stepType.equals("Wisedraw2")) {
+			List<String> stamps = new ArrayList<String>();
+			
+			for(int x=0; x<stampsPerDrawing; x++) {
+				stamps.add(stampUrls.get(x % stampUrls.size()));
+			}
+			
+			return StepFixtures.wisedraw2(title, "<p>" + createSentence(random) + "</p>", stamps, null);
+		} else if(stepType.equals("Bookmarks")) {
+			//the bookmark html is stored in a php serialized array so it cannot contain ; or "
+			return StepFixtures.bookmarks(title, "<p>" + createSentence(random) + "</p>", "www.example.org/page" + random.nextInt(1000));
+		} else if(stepType.equals("OTrunk")) {
+			return StepFixtures.otrunk(title, "http://www.example.org/models/model" + random.nextInt(1000) + ".jnlp");
+		} else if(stepType.equals("Journal")) {
+			List<String> prompts = new ArrayList<String>();
+			
+			for(int x=0, count=1 + random.nextInt(3); x<count; x++) {
+				prompts.add(createSentence(random));
+			}
+			
+			return StepFixtures.journal(title, prompts);
+		}
+		
+		throw new IllegalArgumentException("Unknown step type " + stepType);
+	}
+	
+	/**
+	 * Create an html page
+	 * @param random the random source
+	 * @param length the approximate length of the page in characters
+	 * @param images the number of upload folder images to put in the page
+	 * @param uploadNames the files in the upload folder
+	 * @return the html
+	 */
+	private String createHtml(Random random, int length, int images, List<String> uploadNames) {
+		StringBuffer html = new StringBuffer("<h2>" + createSentence(random) + "</h2>");
+		int imagesAdded = 0;
+		
+		while(html.length() < length || imagesAdded < images) {
+			html.append("<p>").append(createSentence(random)).append(" ").append(createSentence(random)).append("</p>");
+			
+			if(imagesAdded < images && (html.length() >= length || random.nextInt(3) == 0)) {
+				html.append("<img src=\"assets/").append(pickImageName(random, uploadNames)).append("\">");
+				imagesAdded++;
+			}
+		}
+		
+		return html.toString();
+	}
+	
+	/**
+	 * Create an assessment prompt with the configured number of image references
+	 * @param random the random source
+	 * @param uploadNames the files in the upload folder that images can reference
+	 * @return the prompt html
+	 */
+	private String createPrompt(Random random, List<String> uploadNames) {
+		StringBuffer prompt = new StringBuffer(createSentence(random));
+		
+		for(int x=0; x<promptImageReferences; x++) {
+			prompt.append(" <img src=\"").append(createImageUrl(random, uploadNames)).append("\">");
+		}
+		
+		return prompt.toString();
+	}
+	
+	/**
+	 * Create the url of an image on the wise 2 server
+	 * @param random the random source
+	 * @param uploadNames the files in the upload folder
+	 * @return the url
+	 */
+	private String createImageUrl(Random random, List<String> uploadNames) {
+		return StepFixtures.imageUrl(projectId, pickImageName(random, uploadNames));
+	}
+	
+	/**
+	 * Choose the name of an image in the upload folder
+	 * @param random the random source
+	 * @param uploadNames the files in the upload folder, image files are preferred
+	 * @return the image file name
+	 */
+	private String pickImageName(Random random, List<String> uploadNames) {
+		String fileName = "image.jpg";
+		
+		if(!uploadNames.isEmpty()) {
+			fileName = uploadNames.get(random.nextInt(uploadNames.size()));
+		}
+		
+		if(!fileName.endsWith(".jpg")) {
+			fileName = fileName.substring(0, fileName.lastIndexOf('.')) + ".jpg";
+		}
+		
+		return fileName;
+	}
+	
+	//the words sentences are made of
+	private static final String[] WORDS = {"plants", "energy", "light", "cells", "water", "carbon", "dioxide", "glucose", "oxygen", "leaf",
+		"students", "observe", "measure", "compare", "the", "a", "of", "and", "with", "during", "model", "system", "heat", "temperature"};
+	
+	/**
+	 * Create a sentence of random words
+	 * @param random the random source
+	 * @return the sentence
+	 */
+	private static String createSentence(Random random) {
+		StringBuffer sentence = new StringBuffer();
+		
+		for(int x=0, count=6 + random.nextInt(10); x<count; x++) {
+			if(x > 0) {
+				sentence.append(' ');
+			}
+			
+			sentence.append(WORDS[random.nextInt(WORDS.length)]);
+		}
+		
+		sentence.setCharAt(0, Character.toUpperCase(sentence.charAt(0)));
+		return sentence.append('.').toString();
+	}
+	
+	/**
+	 * Fill a buffer with lines of random sentences
+	 * @param random the random source
+	 * @param content the buffer to fill
+	 */
+	private static void fillText(Random random, byte[] content) {
+		int position = 0;
+		
+		while(position < content.length) {
+			byte[] line = (createSentence(random) + "\n").getBytes();
+			int length = Math.min(line.length, content.length - position);
+			System.arraycopy(line, 0, content, position, length);
+			position += length;
+		}
+	}
+	
+	/**
+	 * Add an entry with the fixed timestamp
+	 * @param zip the zip stream
+	 * @param name the entry name
+	 * @param content the entry contents
+	 * @throws IOException
+	 */
+	private static void putEntry(ZipOutputStream zip, String name, byte[] content) throws IOException {
+		ZipEntry entry = new ZipEntry(name);
+		entry.setTime(ENTRY_TIME);
+		zip.putNextEntry(entry);
+		zip.write(content);
+		zip.closeEntry();
+	}
+	
+	/**
+	 * Set the step mix from a string like DisplayPage=4,SelfTest=1. Step
+	 * types that are not listed are not generated.
+	 * @param mix the weights of the step types
+	 */
+	public void setStepMix(String mix) {
+		Map<String, Integer> newMix = new LinkedHashMap<String, Integer>();
+		
+		for(String part : mix.split(",")) {
+			String[] typeAndWeight = part.trim().split("=");
+			String stepType = typeAndWeight[0].trim();
+			
+			if(!java.util.Arrays.asList(STEP_TYPES).contains(stepType)) {
+				throw new IllegalArgumentException("Unknown step type " + stepType);
+			}
+			
+			newMix.put(stepType, typeAndWeight.length > 1 ? Integer.parseInt(typeAndWeight[1].trim()) : 1);
+		}
+		
+		stepMix = newMix;
+	}
+	
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	public void setProjectId(int projectId) {
+		this.projectId = projectId;
+	}
+
+	public void setActivities(int activities) {
+		this.activities = activities;
+	}
+
+	public void setStepsPerActivity(int stepsPerActivity) {
+		this.stepsPerActivity = stepsPerActivity;
+	}
+
+	public void setHtmlLength(int minHtmlLength, int maxHtmlLength) {
+		this.minHtmlLength = minHtmlLength;
+		this.maxHtmlLength = maxHtmlLength;
+	}
+
+	public void setPageImageReferences(int pageImageReferences) {
+		this.pageImageReferences = pageImageReferences;
+	}
+
+	public void setPromptImageReferences(int promptImageReferences) {
+		this.promptImageReferences = promptImageReferences;
+	}
+
+	public void setSelfTestItems(int selfTestItems) {
+		this.selfTestItems = selfTestItems;
+	}
+
+	public void setStampsPerDrawing(int stampsPerDrawing) {
+		this.stampsPerDrawing = stampsPerDrawing;
+	}
+
+	public void setUploadFiles(int uploadFiles) {
+		this.uploadFiles = uploadFiles;
+	}
+
+	public void setUploadBytes(long uploadBytes) {
+		this.uploadBytes = uploadBytes;
+	}
+	
+	/**
+	 * Set how unevenly the upload folder is split between the files
+	 * @param uploadSizeSpread the sigma of the log-normal file size weights,
+	 * 0 makes every file the same size and 2 gives a few files most of the bytes
+	 */
+	public void setUploadSizeSpread(double uploadSizeSpread) {
+		this.uploadSizeSpread = uploadSizeSpread;
+	}
+	
+	/**
+	 * Generate one or more exports from the command line e.g.
+	 * 
+	 * java -cp bin:lib/* wise2.converter.bench.ExportGenerator -out exports -count 10 -seed 42 -activities 8 -steps 25
+	 *     -mix DisplayPage=4,Notes=2,SelfTest=1,Wisedraw2=1 -html 500-20000 -pageImages 3 -promptImages 0
+	 *     -selfTestItems 40 -stamps 6 -uploadFiles 50 -uploadBytes 20000000 -uploadSpread 1.5
+	 * 
+	 * Each project gets the next project id and seed so a run of -count 10
+	 * writes ten different but repeatable exports.
+	 * @param args the settings
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		ExportGenerator generator = new ExportGenerator();
+		File outputFolder = new File("exports");
+		int count = 1;
+		long seed = generator.seed;
+		int projectId = generator.projectId;
+		
+		for(int x=0; x<args.length; x+=2) {
+			String name = args[x];
+			String value = args[x + 1];
+			
+			if(name.equals("-out")) {
+				outputFolder = new File(value);
+			} else if(name.equals("-count")) {
+				count = Integer.parseInt(value);
+			} else if(name.equals("-seed")) {
+				seed = Long.parseLong(value);
+			} else if(name.equals("-id")) {
+				projectId = Integer.parseInt(value);
+			} else if(name.equals("-activities")) {
+				generator.setActivities(Integer.parseInt(value));
+			} else if(name.equals("-steps")) {
+				generator.setStepsPerActivity(Integer.parseInt(value));
+			} else if(name.equals("-mix")) {
+				generator.setStepMix(value);
+			} else if(name.equals("-html")) {
+				String[] range = value.split("-");
+				generator.setHtmlLength(Integer.parseInt(range[0]), Integer.parseInt(range[range.length - 1]));
+			} else if(name.equals("-pageImages")) {
+				generator.setPageImageReferences(Integer.parseInt(value));
+			} else if(name.equals("-promptImages")) {
+				generator.setPromptImageReferences(Integer.parseInt(value));
+			} else if(name.equals("-selfTestItems")) {
+				generator.setSelfTestItems(Integer.parseInt(value));
+			} else if(name.equals("-stamps")) {
+				generator.setStampsPerDrawing(Integer.parseInt(value));
+			} else if(name.equals("-uploadFiles")) {
+				generator.setUploadFiles(Integer.parseInt(value));
+			} else if(name.equals("-uploadBytes")) {
+				generator.setUploadBytes(Long.parseLong(value));
+			} else if(name.equals("-uploadSpread")) {
+				generator.setUploadSizeSpread(Double.parseDouble(value));
+			} else {
+				throw new IllegalArgumentException("Unknown setting " + name);
+			}
+		}
+		
+		for(int x=0; x<count; x++) {
+			generator.setSeed(seed + x);
+			generator.setProjectId(projectId + x);
+			System.out.println(generator.generate(outputFolder).getPath());
+		}
+	}
+	
+	/**
+	 * Lets the zip stream be closed to finish the zip without closing the caller's stream
+	 */
+	private static class NonClosingOutputStream extends java.io.FilterOutputStream {
+		NonClosingOutputStream(OutputStream out) {
+			super(out);
+		}
+		
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			out.write(bytes, offset, length);
+		}
+		
+		public void close() throws IOException {
+			flush();
+		}
+	}
+}
@@ -0,0 +1,575 @@
+package wise2.converter.bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import wise2.converter.output.FileSystemOutputSink;
+import wise2.converter.output.OutputSink;
+import wise2.converter.output.WriteBehindOutputSink;
+
+/**
+ * Measures the two big I/O costs of a conversion, copying the upload
+ * files out of the export zip into assets and writing the step files, so
+ * the defaults can be picked from data. Every combination of
+ * 
+ * - target folder, e.g. a tmpfs, a local disk and a mounted NFS path
+ * - upload file size distribution of the generated export
+ * - strategy
+ * - read buffer size
+ * - number of output threads
+ * 
+ * is run a few times and the median throughput is reported. The
+ * extraction strategies are
+ * 
+ * - sink, what the converter does: read each entry from a ZipInputStream
+ *   into a byte array and hand it to a FileSystemOutputSink, behind a
+ *   WriteBehindOutputSink when there are output threads
+ * - streamCopy, copy each entry from the ZipInputStream straight into the
+ *   file through a buffer without holding the whole entry
+ * - channel, open the zip with ZipFile and let each thread copy its share
+ *   of the entries with FileChannel.transferFrom
+ * 
+ * The step file strategies write generated json sized text through a
+ * FileSystemOutputSink (behind a WriteBehindOutputSink when there are
+ * output threads), through a BufferedOutputStream or through a FileChannel.
+ * 
+ * Nothing is synced so small runs on a real disk mostly measure the page
+ * cache, use a total size larger than the dirty page limits to see the
+ * disk. e.g.
+ * 
+ * java -cp bin:lib/* wise2.converter.bench.IOBenchmark -targets /dev/shm/io,/var/tmp/io,/mnt/nfs/io -buffers 8,64,256,1024 -threads 0,1,2,4 -mb 128 -json io.json
+ */
+public class IOBenchmark {
+	
+	//the upload size distributions, the name and the number of files and spread given to ExportGenerator
+	private static final Object[][] DISTRIBUTIONS = {{"manySmall", 2000, 0.5}, {"even", 200, 0.0}, {"skewed", 200, 2.0}, {"fewLarge", 8, 0.0}};
+	
+	//the folders the files are written into, each is emptied between runs
+	private List<File> targets;
+	
+	//the read buffer sizes to try in bytes
+	private List<Integer> bufferSizes;
+	
+	//the output thread counts to try, 0 writes on the reading thread
+	private List<Integer> threadCounts;
+	
+	//the total size of the upload files and of the step files in bytes
+	private long totalBytes;
+	
+	//the number of times each combination is run
+	private int repeats;
+	
+	//the measurements so far
+	private JSONArray measurements = new JSONArray();
+	
+	public IOBenchmark(List<File> targets, List<Integer> bufferSizes, List<Integer> threadCounts, long totalBytes, int repeats) {
+		this.targets = targets;
+		this.bufferSizes = bufferSizes;
+		this.threadCounts = threadCounts;
+		this.totalBytes = totalBytes;
+		this.repeats = repeats;
+	}
+	
+	/**
+	 * Run every combination
+	 * @param workFolder the folder the exports are generated in
+	 * @param distributionFilter only distributions whose name contains this are run, null runs all
+	 * @throws Exception
+	 */
+	public void runAll(File workFolder, String distributionFilter) throws Exception {
+		System.out.println(String.format(Locale.ENGLISH, "%-8s %-24s %-10s %-11s %7s %7s %10s %10s", "phase", "target", "files", "strategy", "buffer", "threads", "MB/s", "files/s"));
+		
+		for(Object[] distribution : DISTRIBUTIONS) {
+			String name = (String) distribution[0];
+			
+			if(distributionFilter != null && !name.contains(distributionFilter)) {
+				continue;
+			}
+			
+			ExportGenerator generator = new ExportGenerator();
+			generator.setProjectId(30000 + measurements.length());
+			generator.setActivities(1);
+			generator.setStepsPerActivity(1);
+			generator.setUploadFiles((Integer) distribution[1]);
+			generator.setUploadSizeSpread((Double) distribution[2]);
+			generator.setUploadBytes(totalBytes);
+			File exportFile = generator.generate(workFolder);
+			
+			for(File target : targets) {
+				benchmarkExtraction(exportFile, name, target);
+			}
+			
+			exportFile.delete();
+		}
+		
+		List<byte[]> stepFiles = createStepFiles(totalBytes / 8);
+		
+		for(File target : targets) {
+			benchmarkStepFiles(stepFiles, target);
+		}
+	}
+	
+	/**
+	 * Measure copying the upload files out of an export with every strategy
+	 * @param exportFile the export zip
+	 * @param distribution the name of its upload size distribution
+	 * @param target the folder to copy into
+	 * @throws Exception
+	 */
+	private void benchmarkExtraction(final File exportFile, String distribution, final File target) throws Exception {
+		for(final int bufferSize : bufferSizes) {
+			for(final int threads : threadCounts) {
+				measure("extract", target, distribution, "sink", bufferSize, threads, new Callable<Integer>() {
+					public Integer call() throws Exception {
+						return extractToSink(exportFile, target, bufferSize, threads);
+					}
+				});
+				
+				measure("extract", target, distribution, "channel", bufferSize, threads, new Callable<Integer>() {
+					public Integer call() throws Exception {
+						return extractWithChannels(exportFile, target, threads);
+					}
+				});
+			}
+			
+			//streaming straight into the files can only happen on the reading thread
+			measure("extract", target, distribution, "streamCopy", bufferSize, 0, new Callable<Integer>() {
+				public Integer call() throws Exception {
+					return extractWithStreamCopy(exportFile, target, bufferSize);
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Measure writing the step files with every strategy
+	 * @param stepFiles the contents of the step files
+	 * @param target the folder to write into
+	 * @throws Exception
+	 */
+	private void benchmarkStepFiles(final List<byte[]> stepFiles, final File target) throws Exception {
+		for(final int threads : threadCounts) {
+			measure("steps", target, "steps", "sink", 0, threads, new Callable<Integer>() {
+				public Integer call() throws Exception {
+					OutputSink sink = createSink(target, threads);
+					
+					for(int x=0; x<stepFiles.size(); x++) {
+						sink.write("node_" + x + ".json", stepFiles.get(x));
+					}
+					
+					sink.close();
+					return stepFiles.size();
+				}
+			});
+			
+			for(final int bufferSize : bufferSizes) {
+				measure("steps", target, "steps", "stream", bufferSize, threads, new Callable<Integer>() {
+					public Integer call() throws Exception {
+						return writeInParallel(stepFiles, target, threads, bufferSize, false);
+					}
+				});
+			}
+			
+			measure("steps", target, "steps", "channel", 0, threads, new Callable<Integer>() {
+				public Integer call() throws Exception {
+					return writeInParallel(stepFiles, target, threads, 0, true);
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Run a combination a few times and record the median
+	 * @param run copies or writes the files and returns how many
+	 */
+	private void measure(String phase, File target, String files, String strategy, int bufferSize, int threads, Callable<Integer> run) throws Exception {
+		List<Long> nanos = new ArrayList<Long>();
+		int fileCount = 0;
+		long bytes = 0;
+		
+		for(int x=0; x<repeats; x++) {
+			FileUtils.deleteDirectory(target);
+			target.mkdirs();
+			
+			long startTime = System.nanoTime();
+			fileCount = run.call();
+			nanos.add(System.nanoTime() - startTime);
+			
+			bytes = FileUtils.sizeOfDirectory(target);
+		}
+		
+		FileUtils.deleteDirectory(target);
+		
+		Collections.sort(nanos);
+		double seconds = nanos.get(nanos.size() / 2) / 1e9;
+		double megabytesPerSecond = bytes / (1024.0 * 1024.0) / seconds;
+		double filesPerSecond = fileCount / seconds;
+		
+		System.out.println(String.format(Locale.ENGLISH, "%-8s %-24s %-10s %-11s %6dK %7d %10.1f %10.0f", phase, abbreviate(target.getPath(), 24), files, strategy, bufferSize / 1024, threads, megabytesPerSecond, filesPerSecond));
+		
+		JSONObject measurement = new JSONObject();
+		measurement.put("phase", phase);
+		measurement.put("target", target.getAbsolutePath());
+		measurement.put("files", files);
+		measurement.put("strategy", strategy);
+		measurement.put("bufferBytes", bufferSize);
+		measurement.put("threads", threads);
+		measurement.put("fileCount", fileCount);
+		measurement.put("bytes", bytes);
+		measurement.put("medianSeconds", Math.round(seconds * 10000) / 10000.0);
+		measurement.put("mbPerSec", Math.round(megabytesPerSecond * 10) / 10.0);
+		measurement.put("filesPerSec", Math.round(filesPerSecond));
+		measurements.put(measurement);
+	}
+	
+	/**
+	 * Copy the upload files the way the converter does
+	 * @return the number of files copied
+	 */
+	static int extractToSink(File exportFile, File target, int bufferSize, int threads) throws IOException {
+		OutputSink sink = createSink(target, threads);
+		ZipInputStream zipStream = new ZipInputStream(new BufferedInputStream(new FileInputStream(exportFile), bufferSize));
+		int files = 0;
+		
+		try {
+			ZipEntry entry = null;
+			
+			while((entry = zipStream.getNextEntry()) != null) {
+				if(!entry.isDirectory() && !entry.getName().equals("wise-project.xml")) {
+					sink.write(entry.getName(), IOUtils.toByteArray(zipStream));
+					files++;
+				}
+			}
+		} finally {
+			zipStream.close();
+			sink.close();
+		}
+		
+		return files;
+	}
+	
+	/**
+	 * Copy the upload files straight from the zip stream into the files
+	 * @return the number of files copied
+	 */
+	static int extractWithStreamCopy(File exportFile, File target, int bufferSize) throws IOException {
+		ZipInputStream zipStream = new ZipInputStream(new BufferedInputStream(new FileInputStream(exportFile), bufferSize));
+		byte[] buffer = new byte[bufferSize];
+		int files = 0;
+		
+		try {
+			ZipEntry entry = null;
+			
+			while((entry = zipStream.getNextEntry()) != null) {
+				if(!entry.isDirectory() && !entry.getName().equals("wise-project.xml")) {
+					File file = new File(target, entry.getName());
+					file.getParentFile().mkdirs();
+					
+					OutputStream out = new FileOutputStream(file);
+					
+					try {
+						IOUtils.copyLarge(zipStream, out, buffer);
+					} finally {
+						out.close();
+					}
+					
+					files++;
+				}
+			}
+		} finally {
+			zipStream.close();
+		}
+		
+		return files;
+	}
+	
+	/**
+	 * Copy the upload files with random access to the zip, each thread
+	 * taking every nth entry
+	 * @return the number of files copied
+	 */
+	static int extractWithChannels(File exportFile, final File target, int threads) throws Exception {
+		final ZipFile zipFile = new ZipFile(exportFile);
+		final List<ZipEntry> entries = new ArrayList<ZipEntry>();
+		
+		Enumeration<? extends ZipEntry> enumeration = zipFile.entries();
+		
+		while(enumeration.hasMoreElements()) {
+			ZipEntry entry = enumeration.nextElement();
+			
+			if(!entry.isDirectory() && !entry.getName().equals("wise-project.xml")) {
+				entries.add(entry);
+				
+				//create the folders up front so the threads do not race to create them
+				new File(target, entry.getName()).getParentFile().mkdirs();
+			}
+		}
+		
+		final int workers = Math.max(threads, 1);
+		ExecutorService executor = Executors.newFixedThreadPool(workers);
+		List<Future<Object>> futures = new ArrayList<Future<Object>>();
+		
+		try {
+			for(int x=0; x<workers; x++) {
+				final int first = x;
+				
+				futures.add(executor.submit(new Callable<Object>() {
+					public Object call() throws IOException {
+						for(int y=first; y<entries.size(); y+=workers) {
+							ZipEntry entry = entries.get(y);
+							ReadableByteChannel in = Channels.newChannel(zipFile.getInputStream(entry));
+							FileChannel out = new FileOutputStream(new File(target, entry.getName())).getChannel();
+							
+							try {
+								long position = 0;
+								long transferred = 0;
+								
+								while((transferred = out.transferFrom(in, position, 1024 * 1024)) > 0) {
+									position += transferred;
+								}
+							} finally {
+								out.close();
+								in.close();
+							}
+						}
+						
+						return null;
+					}
+				}));
+			}
+			
+			for(Future<Object> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+			zipFile.close();
+		}
+		
+		return entries.size();
+	}
+	
+	/**
+	 * Write files spread over a number of threads
+	 * @param useChannel whether to write with a FileChannel or a BufferedOutputStream
+	 * @return the number of files written
+	 */
+	static int writeInParallel(final List<byte[]> contents, final File target, int threads, final int bufferSize, final boolean useChannel) throws Exception {
+		final int workers = Math.max(threads, 1);
+		ExecutorService executor = Executors.newFixedThreadPool(workers);
+		List<Future<Object>> futures = new ArrayList<Future<Object>>();
+		
+		try {
+			for(int x=0; x<workers; x++) {
+				final int first = x;
+				
+				futures.add(executor.submit(new Callable<Object>() {
+					public Object call() throws IOException {
+						for(int y=first; y<contents.size(); y+=workers) {
+							File file = new File(target, "node_" + y + ".json");
+							
+							if(useChannel) {
+								FileChannel channel = new FileOutputStream(file).getChannel();
+								
+								try {
+									ByteBuffer buffer = ByteBuffer.wrap(contents.get(y));
+									
+									while(buffer.hasRemaining()) {
+										channel.write(buffer);
+									}
+								} finally {
+									channel.close();
+								}
+							} else {
+								OutputStream out = new BufferedOutputStream(new FileOutputStream(file), bufferSize);
+								
+								try {
+									//write in small pieces the way a writer flushing its encoder would
+									byte[] content = contents.get(y);
+									
+									for(int offset=0; offset<content.length; offset+=4096) {
+										out.write(content, offset, Math.min(4096, content.length - offset));
+									}
+								} finally {
+									out.close();
+								}
+							}
+						}
+						
+						return null;
+					}
+				}));
+			}
+			
+			for(Future<Object> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		
+		return contents.size();
+	}
+	
+	/**
+	 * Create the sink the converter would write through
+	 * @param target the folder to write into
+	 * @param threads the number of output threads, 0 writes on the calling thread
+	 * @return the sink, closing it waits for the writes
+	 */
+	private static OutputSink createSink(File target, int threads) {
+		OutputSink sink = new FileSystemOutputSink(target);
+		
+		if(threads > 0) {
+			sink = new WriteBehindOutputSink(sink, threads, 64);
+		}
+		
+		return sink;
+	}
+	
+	/**
+	 * Create step file contents between 1 and 30KB, about the size of the
+	 * pretty printed json the converters write
+	 * @param totalBytes the total size of the step files
+	 * @return the contents
+	 */
+	private static List<byte[]> createStepFiles(long totalBytes) {
+		Random random = new Random(1);
+		List<byte[]> stepFiles = new ArrayList<byte[]>();
+		long total = 0;
+		
+		while(total < totalBytes) {
+			byte[] content = new byte[1024 + random.nextInt(29 * 1024)];
+			
+			for(int x=0; x<content.length; x++) {
+				content[x] = (byte) (' ' + random.nextInt(95));
+			}
+			
+			stepFiles.add(content);
+			total += content.length;
+		}
+		
+		return stepFiles;
+	}
+	
+	private static String abbreviate(String text, int length) {
+		return text.length() <= length ? text : "..." + text.substring(text.length() - length + 3);
+	}
+	
+	/**
+	 * Write the measurements as JSON
+	 * @param file the file to write to
+	 * @throws IOException
+	 * @throws JSONException
+	 */
+	public void writeResults(File file) throws IOException, JSONException {
+		JSONObject resultsJSON = new JSONObject();
+		resultsJSON.put("javaVersion", System.getProperty("java.version"));
+		resultsJSON.put("availableProcessors", Runtime.getRuntime().availableProcessors());
+		resultsJSON.put("totalBytes", totalBytes);
+		resultsJSON.put("measurements", measurements);
+		
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		
+		try {
+			writer.write(resultsJSON.toString(3));
+		} finally {
+			writer.close();
+		}
+	}
+	
+	/**
+	 * Parse a comma separated list of numbers
+	 * @param list e.g. 8,64,256
+	 * @param multiplier what to multiply each number by
+	 * @return the numbers
+	 */
+	private static List<Integer> parseNumbers(String list, int multiplier) {
+		List<Integer> numbers = new ArrayList<Integer>();
+		
+		for(String number : list.split(",")) {
+			numbers.add(Integer.parseInt(number.trim()) * multiplier);
+		}
+		
+		return numbers;
+	}
+	
+	/**
+	 * Run the benchmark
+	 * @param args [-targets folder,folder,..] [-buffers kb,kb,..] [-threads n,n,..] [-mb total] [-repeats n] [-distribution name] [-json file]
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		Map<String, String> settings = new LinkedHashMap<String, String>();
+		String defaultTargets = new File(System.getProperty("java.io.tmpdir"), "wise-io").getPath();
+		
+		if(new File("/dev/shm").isDirectory()) {
+			defaultTargets = "/dev/shm/wise-io," + defaultTargets;
+		}
+		
+		settings.put("-targets", defaultTargets);
+		settings.put("-buffers", "8,64,256,1024");
+		settings.put("-threads", "0,1,2,4");
+		settings.put("-mb", "32");
+		settings.put("-repeats", "3");
+		
+		for(int x=0; x<args.length; x+=2) {
+			settings.put(args[x], args[x + 1]);
+		}
+		
+		List<File> targets = new ArrayList<File>();
+		
+		for(String target : settings.get("-targets").split(",")) {
+			targets.add(new File(target.trim()));
+		}
+		
+		IOBenchmark benchmark = new IOBenchmark(targets, parseNumbers(settings.get("-buffers"), 1024), parseNumbers(settings.get("-threads"), 1),
+				Long.parseLong(settings.get("-mb")) * 1024 * 1024, Integer.parseInt(settings.get("-repeats")));
+		
+		File workFolder = File.createTempFile("wise-io-exports", "");
+		workFolder.delete();
+		
+		try {
+			benchmark.runAll(workFolder, settings.get("-distribution"));
+		} finally {
+			FileUtils.deleteDirectory(workFolder);
+		}
+		
+		if(settings.containsKey("-json")) {
+			benchmark.writeResults(new File(settings.get("-json")));
+		}
+	}
+}
@@ -0,0 +1,320 @@
+package wise2.converter.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import wise2.converter.ConversionOptions;
+import wise2.converter.ConversionResult;
+import wise2.converter.ProjectConverter;
+import wise2.converter.log.ConvertLog;
+import wise2.converter.memory.WorkingSetEstimate;
+
+/**
+ * Measures how much heap converting one project holds, as a function of
+ * the number of steps and the size of the html pages, and compares it
+ * with the WorkingSetEstimate worked out from the export zip.
+ * 
+ * For each project size the export is generated with ExportGenerator and
+ * converted into a DiscardOutputSink while a sampler thread repeatedly
+ * collects garbage and reads the used heap. The most heap in use after a
+ * collection, less what was in use before the conversion, is the peak
+ * live heap, the number the estimate has to cover. Also reported are
+ * 
+ * - the peak heap the memory pools saw, garbage included, which depends on
+ *   the collector and the heap size
+ * - the retained heap, what is still in use after the conversion while the
+ *   ConversionResult is kept
+ * 
+ * The collections slow the conversion down a lot so the timings of this
+ * benchmark mean nothing. Run it with a fixed heap and a simple collector
+ * for steadier numbers e.g.
+ * 
+ * java -Xmx1g -XX:+UseSerialGC -cp bin:lib/* wise2.converter.bench.MemoryBenchmark -steps 25,100,400 -html 1000,10000,50000 -json memory.json
+ */
+public class MemoryBenchmark {
+	
+	//how often the sampler collects garbage and reads the heap
+	private long sampleIntervalMillis;
+	
+	//converts the projects
+	private ProjectConverter converter;
+	
+	//the settings the projects are converted with, also used for the estimate
+	private ConversionOptions options;
+	
+	//the folder the exports are generated in
+	private File workFolder;
+	
+	/**
+	 * @param sampleIntervalMillis how often the sampler collects garbage and reads the heap
+	 * @param workFolder the folder the exports are generated in
+	 */
+	public MemoryBenchmark(long sampleIntervalMillis, File workFolder) {
+		this.sampleIntervalMillis = sampleIntervalMillis;
+		this.workFolder = workFolder;
+		
+		options = new ConversionOptions();
+		options.setConsoleLevel(ConvertLog.Level.QUIET);
+		converter = new ProjectConverter(options);
+	}
+	
+	/**
+	 * Generate and convert one project and measure its heap
+	 * @param steps the number of steps in the project
+	 * @param htmlLength the length of each html page
+	 * @return the measurements
+	 * @throws Exception
+	 */
+	public JSONObject measure(int steps, int htmlLength) throws Exception {
+		//mostly pages so the html size matters, with some assessments for the QTI documents
+		ExportGenerator generator = new ExportGenerator();
+		generator.setProjectId(20000 + steps);
+		generator.setActivities(Math.max(1, steps / 25));
+		generator.setStepsPerActivity(Math.min(steps, 25));
+		generator.setStepMix("DisplayPage=6,Notes=1,SelfTest=1,ChallengeQuestion=1,Journal=1");
+		generator.setHtmlLength(htmlLength, htmlLength);
+		generator.setUploadFiles(10);
+		generator.setUploadBytes(1024 * 1024);
+		File exportFile = generator.generate(workFolder);
+		
+		WorkingSetEstimate estimate = WorkingSetEstimate.estimate(exportFile, options);
+		
+		long baseline = collectAndGetUsedHeap();
+		resetPeakUsage();
+		
+		HeapSampler sampler = new HeapSampler(sampleIntervalMillis);
+		sampler.start();
+		
+		ConversionResult result = null;
+		
+		try {
+			result = converter.convert(exportFile, new DiscardOutputSink());
+		} finally {
+			sampler.finish();
+		}
+		
+		long peakHeap = getPeakUsage();
+		long retained = collectAndGetUsedHeap() - baseline;
+		
+		JSONObject measurement = new JSONObject();
+		measurement.put("steps", result.getStepsConverted() + result.getStepsFailed());
+		measurement.put("htmlLength", htmlLength);
+		measurement.put("projectXMLBytes", estimate.getProjectXMLBytes());
+		measurement.put("peakLiveMB", toMegabytes(sampler.getPeakUsed() - baseline));
+		measurement.put("peakHeapMB", toMegabytes(peakHeap - baseline));
+		measurement.put("retainedMB", toMegabytes(retained));
+		measurement.put("estimateMB", toMegabytes(estimate.getEstimatedBytes()));
+		measurement.put("samples", sampler.getSamples());
+		
+		exportFile.delete();
+		
+		//keep the result alive until the retained heap has been read
+		measurement.put("projectTitle", result.getProjectTitle());
+		
+		return measurement;
+	}
+	
+	/**
+	 * Collect garbage until the used heap stops shrinking
+	 * @return the used heap in bytes
+	 */
+	static long collectAndGetUsedHeap() {
+		long used = Long.MAX_VALUE;
+		
+		for(int x=0; x<5; x++) {
+			System.gc();
+			long nowUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+			
+			if(nowUsed >= used) {
+				break;
+			}
+			
+			used = nowUsed;
+		}
+		
+		return used;
+	}
+	
+	/**
+	 * Reset the peak usage of the heap memory pools
+	 */
+	private static void resetPeakUsage() {
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if(pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+			}
+		}
+	}
+	
+	/**
+	 * Get the peak usage of the heap memory pools since they were reset.
+	 * The pools peak at different times so this is an upper bound.
+	 * @return the sum of the peaks in bytes
+	 */
+	private static long getPeakUsage() {
+		long peak = 0;
+		
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if(pool.getType() == MemoryType.HEAP) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		
+		return peak;
+	}
+	
+	private static double toMegabytes(long bytes) {
+		return Math.round(bytes / (1024.0 * 1024.0) * 100) / 100.0;
+	}
+	
+	/**
+	 * Run the benchmark
+	 * @param args [-steps n,n,..] [-html n,n,..] [-interval millis] [-json file]
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		Map<String, String> settings = new LinkedHashMap<String, String>();
+		settings.put("-steps", "25,100,400");
+		settings.put("-html", "1000,10000,50000");
+		settings.put("-interval", "10");
+		
+		for(int x=0; x<args.length; x+=2) {
+			settings.put(args[x], args[x + 1]);
+		}
+		
+		File workFolder = File.createTempFile("wise-memory", "");
+		workFolder.delete();
+		
+		MemoryBenchmark benchmark = new MemoryBenchmark(Long.parseLong(settings.get("-interval")), workFolder);
+		JSONArray measurements = new JSONArray();
+		
+		try {
+			//convert a small project first so the classes are loaded before measuring
+			benchmark.measure(10, 1000);
+			
+			System.out.println(String.format(Locale.ENGLISH, "%6s %8s %12s %12s %12s %12s %12s", "steps", "html", "xml bytes", "peak live MB", "peak heap MB", "retained MB", "estimate MB"));
+			
+			for(String steps : settings.get("-steps").split(",")) {
+				for(String html : settings.get("-html").split(",")) {
+					JSONObject measurement = benchmark.measure(Integer.parseInt(steps.trim()), Integer.parseInt(html.trim()));
+					measurements.put(measurement);
+					
+					System.out.println(String.format(Locale.ENGLISH, "%6d %8d %12d %12.2f %12.2f %12.2f %12.2f", measurement.getInt("steps"), measurement.getInt("htmlLength"), measurement.getLong("projectXMLBytes"),
+							measurement.getDouble("peakLiveMB"), measurement.getDouble("peakHeapMB"), measurement.getDouble("retainedMB"), measurement.getDouble("estimateMB")));
+				}
+			}
+		} finally {
+			FileUtils.deleteDirectory(workFolder);
+		}
+		
+		if(settings.containsKey("-json")) {
+			writeResults(new File(settings.get("-json")), measurements);
+		}
+	}
+	
+	/**
+	 * Write the measurements as JSON
+	 * @param file the file to write to
+	 * @param measurements the measurements
+	 * @throws IOException
+	 * @throws JSONException
+	 */
+	private static void writeResults(File file, JSONArray measurements) throws IOException, JSONException {
+		JSONObject resultsJSON = new JSONObject();
+		List<String> arguments = new ArrayList<String>(ManagementFactory.getRuntimeMXBean().getInputArguments());
+		
+		resultsJSON.put("javaVersion", System.getProperty("java.version"));
+		resultsJSON.put("jvmArguments", arguments);
+		resultsJSON.put("maxHeapMB", toMegabytes(Runtime.getRuntime().maxMemory()));
+		resultsJSON.put("measurements", measurements);
+		
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		
+		try {
+			writer.write(resultsJSON.toString(3));
+		} finally {
+			writer.close();
+		}
+	}
+	
+	/**
+	 * Collects garbage and reads the used heap over and over on its own
+	 * thread, keeping the highest reading
+	 */
+	static class HeapSampler extends Thread {
+		//how often to sample
+		private long intervalMillis;
+		
+		//the highest used heap seen after a collection
+		private volatile long peakUsed = 0;
+		
+		//the number of samples taken
+		private volatile int samples = 0;
+		
+		//set to stop sampling
+		private volatile boolean finished = false;
+		
+		HeapSampler(long intervalMillis) {
+			super("wise-heap-sampler");
+			this.intervalMillis = intervalMillis;
+			setDaemon(true);
+		}
+		
+		public void run() {
+			while(!finished) {
+				sample();
+				
+				try {
+					Thread.sleep(intervalMillis);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}
+		
+		private void sample() {
+			System.gc();
+			long used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+			
+			if(used > peakUsed) {
+				peakUsed = used;
+			}
+			
+			samples++;
+		}
+		
+		/**
+		 * Stop sampling and wait for the thread to end
+		 * @throws InterruptedException
+		 */
+		void finish() throws InterruptedException {
+			finished = true;
+			interrupt();
+			join();
+		}
+		
+		long getPeakUsed() {
+			return peakUsed;
+		}
+		
+		int getSamples() {
+			return samples;
+		}
+	}
+}
@@ -0,0 +1,372 @@
+package wise2.converter.bench;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.imageio.ImageIO;
+
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+
+/**
+ * Builds wise 2 step xml, project xml and export zips in the shapes the
+ * converters read, so the benchmarks do not depend on real projects
+ */
+public class StepFixtures {
+	
+	//the namespace of the qti embedded in assessment steps
+	private static final String QTI_NAMESPACE = "http://www.imsglobal.org/xsd/imsqti_v2p0";
+	
+	/**
+	 * Create the xml for a step
+	 * @param type the step type e.g. DisplayPage
+	 * @param title the step title
+	 * @param parameters the xml inside the parameters element
+	 * @return the step xml
+	 */
+	public static String step(String type, String title, String parameters) {
+		return "<step><type>" + type + "</type><title>" + escape(title) + "</title><parameters>" + parameters + "</parameters></step>";
+	}
+	
+	/**
+	 * Create a DisplayPage step
+	 * @param title the step title
+	 * @param html the html of the page
+	 * @return the step xml
+	 */
+	public static String displayPage(String title, String html) {
+		return step("DisplayPage", title, "<html>" + escape(html) + "</html>");
+	}
+	
+	/**
+	 * Create a short html page like most DisplayPage steps
+	 * @return the html
+	 */
+	public static String smallHtml() {
+		return "<h2>Welcome</h2><p>In this activity you will look at how plants use <b>sunlight</b> to make food.</p><img src=\"assets/sunlight.jpg\">";
+	}
+	
+	/**
+	 * Create a long html page that references many images on the wise 2 server
+	 * @param paragraphs the number of paragraphs
+	 * @param images the number of image references, spread through the paragraphs
+	 * @return the html
+	 */
+	public static String largeHtml(int paragraphs, int images) {
+		StringBuffer html = new StringBuffer();
+		int imageCounter = 0;
+		
+		for(int x=0; x<paragraphs; x++) {
+			html.append("<p>Paragraph ").append(x).append(": plants capture light energy with chlorophyll and store it as chemical energy in glucose. ");
+			html.append("Students should compare the energy going in with the energy coming out of the system.</p>");
+			
+			//spread the images evenly through the page
+			while(imageCounter < images && imageCounter * paragraphs <= x * images) {
+				html.append("<img src=\"").append(imageUrl(31000 + imageCounter % 7, "figure" + imageCounter + ".jpg")).append("\">");
+				imageCounter++;
+			}
+		}
+		
+		return html.toString();
+	}
+	
+	/**
+	 * Get the url of an image on the wise 2 server that the converters rewrite
+	 * @param folder the upload folder number
+	 * @param fileName the image file name
+	 * @return the url
+	 */
+	public static String imageUrl(int folder, String fileName) {
+		return "http://wise.berkeley.edu/upload/" + folder + "/" + fileName;
+	}
+	
+	/**
+	 * Create a Bookmarks step. The html and url are stored the way wise 2
+	 * stored them, as a php serialized array in otherData, so they must not
+	 * contain ';' or '"'.
+	 * @param title the step title
+	 * @param html the html shown above the bookmarks
+	 * @param url the bookmarked url
+	 * @return the step xml
+	 */
+	public static String bookmarks(String title, String html, String url) {
+		String otherData = "a:2:{s:4:\"html\";s:" + html.length() + ":\"" + html + "\";s:3:\"url\";s:" + url.length() + ":\"" + url + "\";}";
+		return "<step><type>Bookmarks</type><title>" + escape(title) + "</title><parameters/><otherData>" + escape(otherData) + "</otherData></step>";
+	}
+	
+	/**
+	 * Create an OTrunk step
+	 * @param title the step title
+	 * @param jnlpHref the url of the model jnlp
+	 * @return the step xml
+	 */
+	public static String otrunk(String title, String jnlpHref) {
+		return step("OTrunk", title, "<jnlpHref>" + escape(jnlpHref) + "</jnlpHref>");
+	}
+	
+	/**
+	 * Create a Journal step
+	 * @param title the step title
+	 * @param prompts the journal prompts
+	 * @return the step xml
+	 */
+	public static String journal(String title, List<String> prompts) {
+		StringBuffer parameters = new StringBuffer();
+		
+		for(String prompt : prompts) {
+			parameters.append("<prompt>").append(escape(prompt)).append("</prompt>");
+		}
+		
+		return step("Journal", title, parameters.toString());
+	}
+	
+	/**
+	 * Create an assessment step that contains qti
+	 * @param type the step type e.g. SelfTest, Notes or ChallengeQuestion
+	 * @param title the step title
+	 * @param qti the qti xml
+	 * @return the step xml
+	 */
+	public static String assessment(String type, String title, String qti) {
+		return step(type, title, "<asQTI>" + escape(qti) + "</asQTI>");
+	}
+	
+	/**
+	 * Create the qti for a self test with multiple choice items
+	 * @param items the number of items
+	 * @param choices the number of choices in each item
+	 * @param promptImages the number of items whose prompt references an image on the wise 2 server
+	 * @return the qti xml
+	 */
+	public static String choiceTestQTI(int items, int choices, int promptImages) {
+		StringBuffer qti = new StringBuffer("<assessmentTest xmlns=\"" + QTI_NAMESPACE + "\">");
+		
+		for(int x=0; x<items; x++) {
+			String prompt = "Question " + x + ": which of these is needed for photosynthesis?";
+			
+			if(x < promptImages) {
+				prompt += " <img src=\"" + imageUrl(32000, "question" + x + ".png") + "\">";
+			}
+			
+			qti.append(choiceItemQTI("item" + x, "response" + x, prompt, choices));
+		}
+		
+		return qti.append("</assessmentTest>").toString();
+	}
+	
+	/**
+	 * Create the qti for one multiple choice assessment item
+	 * @param identifier the item identifier
+	 * @param responseIdentifier the response identifier
+	 * @param prompt the prompt html
+	 * @param choices the number of choices
+	 * @return the qti xml of the item
+	 */
+	public static String choiceItemQTI(String identifier, String responseIdentifier, String prompt, int choices) {
+		StringBuffer qti = new StringBuffer();
+		qti.append("<assessmentItem identifier=\"").append(identifier).append("\" adaptive=\"false\" timeDependent=\"false\">");
+		qti.append("<responseDeclaration identifier=\"").append(responseIdentifier).append("\" cardinality=\"single\" baseType=\"identifier\">");
+		qti.append("<correctResponse><value>choice0</value></correctResponse></responseDeclaration>");
+		qti.append("<itemBody><choiceInteraction responseIdentifier=\"").append(responseIdentifier).append("\" shuffle=\"false\" maxChoices=\"1\">");
+		qti.append("<prompt>").append(escape(prompt)).append("</prompt>");
+		
+		for(int y=0; y<choices; y++) {
+			qti.append("<simpleChoice identifier=\"choice").append(y).append("\">Choice ").append(y);
+			qti.append("<feedbackInline>").append(y == 0 ? "Correct" : "Try again").append("</feedbackInline></simpleChoice>");
+		}
+		
+		return qti.append("</choiceInteraction></itemBody></assessmentItem>").toString();
+	}
+	
+	/**
+	 * Create the qti for a single open response item as used by Notes steps
+	 * @param prompt the prompt html
+	 * @return the qti xml
+	 */
+	public static String openResponseQTI(String prompt) {
+		return "<assessmentItem xmlns=\"" + QTI_NAMESPACE + "\" identifier=\"notes\" adaptive=\"false\" timeDependent=\"false\">"
+			+ "<responseDeclaration identifier=\"notesResponse\" cardinality=\"single\" baseType=\"string\"/>"
+			+ "<itemBody><extendedTextInteraction responseIdentifier=\"notesResponse\" placeholderText=\"\" expectedLines=\"5\">"
+			+ "<prompt>" + escape(prompt) + "</prompt></extendedTextInteraction></itemBody></assessmentItem>";
+	}
+	
+	/**
+	 * Create the qti for a challenge question, which has exactly one item
+	 * @param prompt the prompt html
+	 * @param choices the number of choices
+	 * @return the qti xml
+	 */
+	public static String challengeQuestionQTI(String prompt, int choices) {
+		return "<assessmentTest xmlns=\"" + QTI_NAMESPACE + "\">" + choiceItemQTI("challenge", "challengeResponse", prompt, choices) + "</assessmentTest>";
+	}
+	
+	/**
+	 * Create a Wisedraw2 step
+	 * @param title the step title
+	 * @param prompt the prompt html
+	 * @param stampUrls the urls of the stamp images
+	 * @param backgroundUrl the url of the background image or null for no background
+	 * @return the step xml
+	 */
+	public static String wisedraw2(String title, String prompt, List<String> stampUrls, String backgroundUrl) {
+		StringBuffer parameters = new StringBuffer("<html>" + escape(prompt) + "</html>");
+		
+		for(String stampUrl : stampUrls) {
+			parameters.append("<stamps><XML_Serializer_Tag>").append(escape(stampUrl)).append("</XML_Serializer_Tag></stamps>");
+		}
+		
+		if(backgroundUrl != null) {
+			parameters.append("<backgrounds><grid>").append(escape(backgroundUrl)).append("</grid></backgrounds>");
+		}
+		
+		return step("Wisedraw2", title, parameters.toString());
+	}
+	
+	/**
+	 * Write png images into a folder so that Wisedraw2 stamps can be read from
+	 * file: urls instead of the wise 2 server
+	 * @param folder the folder to write the images to
+	 * @param count the number of images
+	 * @param size the width and height of each image
+	 * @return the file: urls of the images
+	 * @throws IOException
+	 */
+	public static List<String> writeStampImages(File folder, int count, int size) throws IOException {
+		folder.mkdirs();
+		
+		List<String> urls = new ArrayList<String>();
+		
+		for(int x=0; x<count; x++) {
+			File imageFile = new File(folder, "stamp" + x + ".png");
+			ImageIO.write(createImage(size, size, x), "png", imageFile);
+			urls.add(imageFile.toURI().toURL().toString());
+		}
+		
+		return urls;
+	}
+	
+	/**
+	 * Draw a simple image
+	 * @param width the image width
+	 * @param height the image height
+	 * @param seed changes the colors so images differ
+	 * @return the image
+	 */
+	public static BufferedImage createImage(int width, int height, int seed) {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = image.createGraphics();
+		graphics.setColor(new Color((seed * 40) % 256, (seed * 90) % 256, (seed * 150) % 256));
+		graphics.fillRect(0, 0, width, height);
+		graphics.setColor(Color.WHITE);
+		graphics.drawOval(width / 4, height / 4, width / 2, height / 2);
+		graphics.dispose();
+		return image;
+	}
+	
+	/**
+	 * Encode an image as png bytes
+	 * @param image the image
+	 * @return the png bytes
+	 * @throws IOException
+	 */
+	public static byte[] toPng(BufferedImage image) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, "png", out);
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Create the xml for a whole project
+	 * @param title the project title
+	 * @param activityTitles the title of each activity
+	 * @param activitySteps the step xml for each activity
+	 * @return the wise-project.xml contents
+	 */
+	public static String projectXML(String title, List<String> activityTitles, List<List<String>> activitySteps) {
+		StringBuffer xml = new StringBuffer("<?xml version=\"1.0\" encoding=\"UTF-8\"?><project><title>" + escape(title) + "</title>");
+		
+		for(int x=0; x<activityTitles.size(); x++) {
+			xml.append("<activity><title>").append(escape(activityTitles.get(x))).append("</title>");
+			
+			for(String step : activitySteps.get(x)) {
+				xml.append(step);
+			}
+			
+			xml.append("</activity>");
+		}
+		
+		return xml.append("</project>").toString();
+	}
+	
+	/**
+	 * Create a wise 2 export zip
+	 * @param projectXML the wise-project.xml contents
+	 * @param uploads the upload folder files, keyed by the path inside the upload folder
+	 * @return the bytes of the zip
+	 * @throws IOException
+	 */
+	public static byte[] exportZip(String projectXML, Map<String, byte[]> uploads) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream(bytes);
+		
+		zip.putNextEntry(new ZipEntry("wise-project.xml"));
+		zip.write(projectXML.getBytes("UTF-8"));
+		zip.closeEntry();
+		
+		for(Map.Entry<String, byte[]> upload : uploads.entrySet()) {
+			zip.putNextEntry(new ZipEntry("upload/" + upload.getKey()));
+			zip.write(upload.getValue());
+			zip.closeEntry();
+		}
+		
+		zip.close();
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * Parse step xml into the node the converters are given
+	 * @param stepXML the step xml
+	 * @return the step element
+	 * @throws DocumentException
+	 */
+	public static Element parseStep(String stepXML) throws DocumentException {
+		return DocumentHelper.parseText(stepXML).getRootElement();
+	}
+	
+	/**
+	 * Escape text so it can be placed inside an xml element
+	 * @param text the text
+	 * @return the escaped text
+	 */
+	public static String escape(String text) {
+		StringBuffer escaped = new StringBuffer(text.length() + 16);
+		
+		for(int x=0; x<text.length(); x++) {
+			char c = text.charAt(x);
+			
+			if(c == '<') {
+				escaped.append("&lt;");
+			} else if(c == '>') {
+				escaped.append("&gt;");
+			} else if(c == '&') {
+				escaped.append("&amp;");
+			} else if(c == '"') {
+				escaped.append("&quot;");
+			} else {
+				escaped.append(c);
+			}
+		}
+		
+		return escaped.toString();
+	}
+}
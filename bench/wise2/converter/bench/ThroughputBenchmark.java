@@ -0,0 +1,428 @@
+package wise2.converter.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import wise2.converter.ConversionOptions;
+import wise2.converter.ConversionResult;
+import wise2.converter.ProjectConverter;
+import wise2.converter.log.ConvertLog;
+import wise2.converter.output.FileSystemOutputSink;
+
+/**
+ * Macro benchmark that converts a whole corpus of wise 2 exports through
+ * ProjectConverter, the same path the command line and the portal use,
+ * and reports
+ * 
+ * - projects per second and steps per second
+ * - megabytes per second of upload files copied into assets
+ * - the p50, p95 and p99 time to convert one project
+ * - the peak resident set size of the process
+ * 
+ * The corpus is either a folder of existing exports or is generated with
+ * ExportGenerator. The projects are converted by a pool of threads into an
+ * output folder, put it on tmpfs (e.g. /dev/shm) to leave the disk out of
+ * the numbers or on a real disk to include it.
+ * 
+ * The results are written as JSON. Passing the JSON from an earlier run as
+ * the baseline compares the two and exits with status 1 if any number got
+ * worse by more than the threshold, so the benchmark can gate a build e.g.
+ * 
+ * java -cp bin:lib/* wise2.converter.bench.ThroughputBenchmark -generate 40 -parallelism 4 -output /dev/shm/wise-bench -json after.json -baseline before.json -threshold 10
+ */
+public class ThroughputBenchmark {
+	
+	//the numbers where a higher value is better, everything else in the comparison is better lower
+	private static final List<String> HIGHER_IS_BETTER = Arrays.asList("projectsPerSec", "stepsPerSec", "assetMBPerSec");
+	
+	//the numbers compared against the baseline
+	private static final List<String> COMPARED = Arrays.asList("projectsPerSec", "stepsPerSec", "assetMBPerSec", "p50Millis", "p95Millis", "p99Millis", "peakRssMB");
+	
+	//the exports to convert
+	private List<File> corpus;
+	
+	//the folder the projects are converted into
+	private File outputFolder;
+	
+	//the number of projects converted at the same time
+	private int parallelism;
+	
+	/**
+	 * @param corpus the exports to convert
+	 * @param outputFolder the folder the projects are converted into, it is emptied after each round
+	 * @param parallelism the number of projects converted at the same time
+	 */
+	public ThroughputBenchmark(List<File> corpus, File outputFolder, int parallelism) {
+		this.corpus = corpus;
+		this.outputFolder = outputFolder;
+		this.parallelism = parallelism;
+	}
+	
+	/**
+	 * Convert every project in the corpus once
+	 * @param round the number of the round, used to name its output folder
+	 * @return the measurements of the round
+	 * @throws Exception
+	 */
+	public Round runRound(int round) throws Exception {
+		//the same settings as the command line except that nothing is printed
+		ConversionOptions options = new ConversionOptions();
+		options.setConsoleLevel(ConvertLog.Level.QUIET);
+		final ProjectConverter converter = new ProjectConverter(options);
+		
+		final File roundFolder = new File(outputFolder, "round" + round);
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+		List<Future<ProjectTiming>> futures = new ArrayList<Future<ProjectTiming>>();
+		
+		long startTime = System.nanoTime();
+		
+		for(final File exportFile : corpus) {
+			futures.add(executor.submit(new Callable<ProjectTiming>() {
+				public ProjectTiming call() throws Exception {
+					String folderName = exportFile.getName().replaceAll("\\.zip$", "");
+					FileSystemOutputSink outputSink = new FileSystemOutputSink(new File(roundFolder, folderName));
+					
+					long projectStartTime = System.nanoTime();
+					
+					try {
+						ConversionResult result = converter.convert(exportFile, outputSink);
+						long nanos = System.nanoTime() - projectStartTime;
+						return new ProjectTiming(nanos, result.getStepsConverted() + result.getStepsFailed(), result.getReport().getAssetBytesCopied());
+					} finally {
+						outputSink.close();
+					}
+				}
+			}));
+		}
+		
+		Round result = new Round();
+		
+		try {
+			for(Future<ProjectTiming> future : futures) {
+				result.add(future.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+		
+		result.wallNanos = System.nanoTime() - startTime;
+		
+		//do not let the output of one round fill the disk or skew the next one
+		FileUtils.deleteDirectory(roundFolder);
+		
+		return result;
+	}
+	
+	/**
+	 * Get the peak resident set size of this process from /proc. This is
+	 * only available on linux.
+	 * @return the peak resident set size in megabytes or -1 if it is not available
+	 */
+	public static double getPeakRssMegabytes() {
+		File status = new File("/proc/self/status");
+		
+		if(!status.exists()) {
+			return -1;
+		}
+		
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(status));
+			
+			try {
+				String line = null;
+				
+				while((line = reader.readLine()) != null) {
+					if(line.startsWith("VmHWM:")) {
+						//e.g. VmHWM:	  123456 kB
+						String kilobytes = line.substring("VmHWM:".length()).replace("kB", "").trim();
+						return Long.parseLong(kilobytes) / 1024.0;
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * Get the value at a percentile using the nearest rank
+	 * @param sortedValues the values in ascending order
+	 * @param percentile the percentile e.g. 95
+	 * @return the value at the percentile
+	 */
+	static long percentile(List<Long> sortedValues, double percentile) {
+		if(sortedValues.isEmpty()) {
+			return 0;
+		}
+		
+		int rank = (int) Math.ceil(percentile / 100.0 * sortedValues.size());
+		return sortedValues.get(Math.max(rank, 1) - 1);
+	}
+	
+	/**
+	 * Compare results with the results of an earlier run
+	 * @param results the results of this run
+	 * @param baseline the results of the earlier run
+	 * @param thresholdPercent how much worse a number can get before it counts as a regression
+	 * @return the numbers that regressed, empty if none did
+	 * @throws JSONException
+	 */
+	static List<String> compare(JSONObject results, JSONObject baseline, double thresholdPercent) throws JSONException {
+		List<String> regressions = new ArrayList<String>();
+		
+		for(String name : COMPARED) {
+			if(!results.has(name) || !baseline.has(name)) {
+				continue;
+			}
+			
+			double value = results.getDouble(name);
+			double baselineValue = baseline.getDouble(name);
+			
+			if(value < 0 || baselineValue <= 0) {
+				//not measured on this platform
+				continue;
+			}
+			
+			//positive when the number got worse
+			double changePercent = (value - baselineValue) / baselineValue * 100;
+			
+			if(HIGHER_IS_BETTER.contains(name)) {
+				changePercent = -changePercent;
+			}
+			
+			boolean regressed = changePercent > thresholdPercent;
+			System.out.println(String.format(Locale.ENGLISH, "%-16s %12.2f -> %12.2f  %6.1f%% %s%s", name, baselineValue, value, Math.abs(changePercent), changePercent > 0 ? "worse" : "better", regressed ? "  REGRESSION" : ""));
+			
+			if(regressed) {
+				regressions.add(name);
+			}
+		}
+		
+		return regressions;
+	}
+	
+	/**
+	 * Find the exports in a folder
+	 * @param corpusFolder the folder to look in
+	 * @return the wise 2 export zip files sorted by name
+	 */
+	static List<File> findExports(File corpusFolder) {
+		List<File> exports = new ArrayList<File>();
+		File[] files = corpusFolder.listFiles();
+		
+		if(files != null) {
+			for(File file : files) {
+				if(file.getName().startsWith("wiseProject-") && file.getName().endsWith(".zip")) {
+					exports.add(file);
+				}
+			}
+		}
+		
+		Collections.sort(exports);
+		return exports;
+	}
+	
+	/**
+	 * Run the benchmark
+	 * @param args [-corpus folder | -generate count] [-seed n] [-parallelism n] [-output folder] [-warmup rounds] [-rounds rounds] [-json file] [-baseline file] [-threshold percent]
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		Map<String, String> settings = new LinkedHashMap<String, String>();
+		settings.put("-generate", "20");
+		settings.put("-seed", "1");
+		settings.put("-parallelism", String.valueOf(Runtime.getRuntime().availableProcessors()));
+		settings.put("-output", new File(System.getProperty("java.io.tmpdir"), "wise-throughput").getPath());
+		settings.put("-warmup", "1");
+		settings.put("-rounds", "3");
+		settings.put("-threshold", "5");
+		
+		for(int x=0; x<args.length; x+=2) {
+			settings.put(args[x], args[x + 1]);
+		}
+		
+		File outputFolder = new File(settings.get("-output"));
+		List<File> corpus = null;
+		
+		if(settings.containsKey("-corpus")) {
+			corpus = findExports(new File(settings.get("-corpus")));
+		} else {
+			//generate a repeatable corpus of mid sized projects next to the output
+			File corpusFolder = new File(outputFolder, "corpus");
+			ExportGenerator generator = new ExportGenerator();
+			generator.setActivities(6);
+			generator.setStepsPerActivity(15);
+			generator.setUploadFiles(30);
+			generator.setUploadBytes(5 * 1024 * 1024);
+			
+			corpus = new ArrayList<File>();
+			long seed = Long.parseLong(settings.get("-seed"));
+			
+			for(int x=0, count=Integer.parseInt(settings.get("-generate")); x<count; x++) {
+				generator.setSeed(seed + x);
+				generator.setProjectId(10000 + x);
+				corpus.add(generator.generate(corpusFolder));
+			}
+		}
+		
+		if(corpus.isEmpty()) {
+			System.err.println("No wise 2 exports to convert");
+			System.exit(2);
+		}
+		
+		int parallelism = Integer.parseInt(settings.get("-parallelism"));
+		ThroughputBenchmark benchmark = new ThroughputBenchmark(corpus, outputFolder, parallelism);
+		
+		for(int x=0, warmup=Integer.parseInt(settings.get("-warmup")); x<warmup; x++) {
+			System.out.println("warmup " + benchmark.runRound(x));
+		}
+		
+		//the measured rounds are combined into one set of numbers
+		Round total = new Round();
+		
+		for(int x=0, rounds=Integer.parseInt(settings.get("-rounds")); x<rounds; x++) {
+			Round round = benchmark.runRound(x);
+			System.out.println("round  " + round);
+			total.add(round);
+		}
+		
+		JSONObject results = total.toJSON();
+		results.put("corpusProjects", corpus.size());
+		results.put("parallelism", parallelism);
+		results.put("outputFolder", outputFolder.getAbsolutePath());
+		results.put("peakRssMB", Math.round(getPeakRssMegabytes() * 10) / 10.0);
+		results.put("javaVersion", System.getProperty("java.version"));
+		results.put("availableProcessors", Runtime.getRuntime().availableProcessors());
+		
+		System.out.println("total  " + total + String.format(Locale.ENGLISH, ", peak rss %.1f MB", getPeakRssMegabytes()));
+		
+		if(settings.containsKey("-json")) {
+			Writer writer = new OutputStreamWriter(new FileOutputStream(settings.get("-json")), "UTF-8");
+			
+			try {
+				writer.write(results.toString(3));
+			} finally {
+				writer.close();
+			}
+		}
+		
+		if(settings.containsKey("-baseline")) {
+			JSONObject baseline = new JSONObject(FileUtils.readFileToString(new File(settings.get("-baseline")), "UTF-8"));
+			List<String> regressions = compare(results, baseline, Double.parseDouble(settings.get("-threshold")));
+			
+			if(!regressions.isEmpty()) {
+				System.out.println("Regressed by more than " + settings.get("-threshold") + "%: " + regressions);
+				System.exit(1);
+			}
+		}
+	}
+	
+	/**
+	 * The time it took to convert one project
+	 */
+	static class ProjectTiming {
+		//the time from starting to read the export to the last file being written
+		long nanos;
+		
+		//the number of steps in the project
+		int steps;
+		
+		//the size of the upload files copied into assets
+		long assetBytes;
+		
+		ProjectTiming(long nanos, int steps, long assetBytes) {
+			this.nanos = nanos;
+			this.steps = steps;
+			this.assetBytes = assetBytes;
+		}
+	}
+	
+	/**
+	 * The measurements of converting the corpus one or more times
+	 */
+	static class Round {
+		//the time from submitting the first project to finishing the last one
+		long wallNanos = 0;
+		
+		//the time each project took
+		List<Long> projectNanos = new ArrayList<Long>();
+		
+		//the number of steps converted
+		long steps = 0;
+		
+		//the size of the upload files copied into assets
+		long assetBytes = 0;
+		
+		void add(ProjectTiming timing) {
+			projectNanos.add(timing.nanos);
+			steps += timing.steps;
+			assetBytes += timing.assetBytes;
+		}
+		
+		void add(Round round) {
+			wallNanos += round.wallNanos;
+			projectNanos.addAll(round.projectNanos);
+			steps += round.steps;
+			assetBytes += round.assetBytes;
+		}
+		
+		double getSeconds() {
+			return wallNanos / 1e9;
+		}
+		
+		double getPercentileMillis(double percentile) {
+			List<Long> sorted = new ArrayList<Long>(projectNanos);
+			Collections.sort(sorted);
+			return ThroughputBenchmark.percentile(sorted, percentile) / 1e6;
+		}
+		
+		JSONObject toJSON() throws JSONException {
+			JSONObject roundJSON = new JSONObject();
+			roundJSON.put("projects", projectNanos.size());
+			roundJSON.put("steps", steps);
+			roundJSON.put("assetBytes", assetBytes);
+			roundJSON.put("seconds", round(getSeconds()));
+			roundJSON.put("projectsPerSec", round(projectNanos.size() / getSeconds()));
+			roundJSON.put("stepsPerSec", round(steps / getSeconds()));
+			roundJSON.put("assetMBPerSec", round(assetBytes / (1024.0 * 1024.0) / getSeconds()));
+			roundJSON.put("p50Millis", round(getPercentileMillis(50)));
+			roundJSON.put("p95Millis", round(getPercentileMillis(95)));
+			roundJSON.put("p99Millis", round(getPercentileMillis(99)));
+			return roundJSON;
+		}
+		
+		private static double round(double value) {
+			return Math.round(value * 100) / 100.0;
+		}
+		
+		public String toString() {
+			return String.format(Locale.ENGLISH, "%d projects in %.2f s: %.2f projects/s, %.1f steps/s, %.2f MB/s assets, p50 %.1f ms, p95 %.1f ms, p99 %.1f ms",
+					projectNanos.size(), getSeconds(), projectNanos.size() / getSeconds(), steps / getSeconds(), assetBytes / (1024.0 * 1024.0) / getSeconds(),
+					getPercentileMillis(50), getPercentileMillis(95), getPercentileMillis(99));
+		}
+	}
+}
@@ -0,0 +1,513 @@
+package wise2.converter;
+
+import java.io.File;
+
+import wise2.converter.log.ConvertLog;
+
+/**
+ * The settings for converting wise 2 projects. A ProjectConverter takes
+ * a copy of the options when it is created so changing an options object
+ * afterwards does not affect conversions that are already set up.
+ */
+public class ConversionOptions {
+	
+	//the number of threads that write the project files, 0 writes on the conversion thread
+	private int outputThreads = 2;
+	
+	//the number of writes that may wait for an output thread before conversion blocks
+	private int outputQueueCapacity = 64;
+	
+	//the lowest level of convert log line that is printed to the console
+	private ConvertLog.Level consoleLevel = ConvertLog.Level.DETAILS;
+	
+	//the number of convert log lines that may wait for the log thread before conversion blocks
+	private int logQueueCapacity = 1024;
+	
+	//the longest failed step xml that is written to the convert log before it is truncated
+	private int maxLoggedXMLLength = 4096;
+	
+	//whether to write conversion_report.json into the wise 4 project
+	private boolean writeReport = true;
+	
+	//how often to print the progress of running conversions, 0 turns progress reporting off
+	private long progressIntervalMillis = 0;
+	
+	//how long a conversion may go without progress before it is reported as stalled
+	private long stallThresholdMillis = 60000;
+	
+	//where the images referenced from the wise 2 upload folder are downloaded from
+	private String assetBaseUrl = "https://wise2.berkeley.edu/upload/";
+	
+	//the host the Wisedraw2 stamps are downloaded from instead of their own host, null uses their own host
+	private String stampBaseUrl = null;
+	
+	//how long to wait for a connection when downloading an image
+	private int downloadConnectTimeoutMillis = 10000;
+	
+	//how long to wait for data when downloading an image
+	private int downloadReadTimeoutMillis = 10000;
+	
+	//whether to keep the files of steps that have not changed since the last conversion into the same place
+	private boolean incremental = false;
+	
+	//whether to leave files alone when they already have the same contents
+	private boolean writeIfChanged = false;
+	
+	//whether to skip the assets that the last conversion into the same place already copied
+	private boolean skipUnchangedAssets = false;
+	
+	//whether the manifest and asset index of the last conversion into the same place are read
+	private boolean readLastConversion = true;
+	
+	//the folder to keep the parsed project xml trees in, null to always parse the xml
+	private File parseCacheFolder = null;
+	
+	//whether steps with the same xml as an earlier step in the project are copied instead of converted
+	private boolean copyDuplicateSteps = true;
+	
+	//the folder to keep converted projects in, null to always convert
+	private File resultCacheFolder = null;
+	
+	//the most bytes the converted projects in the result cache can take up
+	private long resultCacheMaxBytes = 1024L * 1024 * 1024;
+	
+	//the estimated heap that the conversions running at the same time may hold between them, 0 is no limit
+	private long heapBudgetBytes = 0;
+	
+	/**
+	 * Create options with the default settings
+	 */
+	public ConversionOptions() {
+	}
+	
+	/**
+	 * Create a copy of the given options
+	 * @param options the options to copy
+	 */
+	public ConversionOptions(ConversionOptions options) {
+		outputThreads = options.outputThreads;
+		outputQueueCapacity = options.outputQueueCapacity;
+		consoleLevel = options.consoleLevel;
+		logQueueCapacity = options.logQueueCapacity;
+		maxLoggedXMLLength = options.maxLoggedXMLLength;
+		writeReport = options.writeReport;
+		progressIntervalMillis = options.progressIntervalMillis;
+		stallThresholdMillis = options.stallThresholdMillis;
+		assetBaseUrl = options.assetBaseUrl;
+		stampBaseUrl = options.stampBaseUrl;
+		downloadConnectTimeoutMillis = options.downloadConnectTimeoutMillis;
+		downloadReadTimeoutMillis = options.downloadReadTimeoutMillis;
+		heapBudgetBytes = options.heapBudgetBytes;
+		incremental = options.incremental;
+		writeIfChanged = options.writeIfChanged;
+		skipUnchangedAssets = options.skipUnchangedAssets;
+		readLastConversion = options.readLastConversion;
+		parseCacheFolder = options.parseCacheFolder;
+		copyDuplicateSteps = options.copyDuplicateSteps;
+		resultCacheFolder = options.resultCacheFolder;
+		resultCacheMaxBytes = options.resultCacheMaxBytes;
+	}
+
+	/**
+	 * Get the number of threads that write the project files
+	 * @return the number of output threads
+	 */
+	public int getOutputThreads() {
+		return outputThreads;
+	}
+
+	/**
+	 * Set the number of threads that write the project files. If this
+	 * is 0 the files are written on the conversion thread.
+	 * @param outputThreads
+	 */
+	public void setOutputThreads(int outputThreads) {
+		this.outputThreads = outputThreads;
+	}
+
+	/**
+	 * Get the number of writes that may wait for an output thread
+	 * @return the output queue capacity
+	 */
+	public int getOutputQueueCapacity() {
+		return outputQueueCapacity;
+	}
+
+	/**
+	 * Set the number of writes that may wait for an output thread
+	 * before the conversion blocks
+	 * @param outputQueueCapacity
+	 */
+	public void setOutputQueueCapacity(int outputQueueCapacity) {
+		this.outputQueueCapacity = outputQueueCapacity;
+	}
+
+	/**
+	 * Get the lowest level of convert log line that is printed to the console
+	 * @return the console level
+	 */
+	public ConvertLog.Level getConsoleLevel() {
+		return consoleLevel;
+	}
+
+	/**
+	 * Set the lowest level of convert log line that is printed to the console.
+	 * The convert log file always gets every line. QUIET prints nothing.
+	 * @param consoleLevel
+	 */
+	public void setConsoleLevel(ConvertLog.Level consoleLevel) {
+		this.consoleLevel = consoleLevel;
+	}
+
+	/**
+	 * Get the number of convert log lines that may wait for the log thread
+	 * @return the log queue capacity
+	 */
+	public int getLogQueueCapacity() {
+		return logQueueCapacity;
+	}
+
+	/**
+	 * Set the number of convert log lines that may wait for the log thread
+	 * before the conversion blocks
+	 * @param logQueueCapacity
+	 */
+	public void setLogQueueCapacity(int logQueueCapacity) {
+		this.logQueueCapacity = logQueueCapacity;
+	}
+
+	/**
+	 * Get the longest failed step xml that is written to the convert log
+	 * @return the maximum number of characters
+	 */
+	public int getMaxLoggedXMLLength() {
+		return maxLoggedXMLLength;
+	}
+
+	/**
+	 * Set the longest failed step xml that is written to the convert log.
+	 * Longer xml is truncated.
+	 * @param maxLoggedXMLLength
+	 */
+	public void setMaxLoggedXMLLength(int maxLoggedXMLLength) {
+		this.maxLoggedXMLLength = maxLoggedXMLLength;
+	}
+
+	/**
+	 * Get whether conversion_report.json is written into the wise 4 project
+	 * @return whether the report is written
+	 */
+	public boolean isWriteReport() {
+		return writeReport;
+	}
+
+	/**
+	 * Set whether conversion_report.json is written into the wise 4 project.
+	 * The report is always available from the ConversionResult.
+	 * @param writeReport
+	 */
+	public void setWriteReport(boolean writeReport) {
+		this.writeReport = writeReport;
+	}
+
+	/**
+	 * Get how often the progress of running conversions is printed
+	 * @return the interval in milliseconds, 0 if progress reporting is off
+	 */
+	public long getProgressIntervalMillis() {
+		return progressIntervalMillis;
+	}
+
+	/**
+	 * Set how often the progress of running conversions is printed
+	 * @param progressIntervalMillis the interval in milliseconds, 0 turns progress reporting off
+	 */
+	public void setProgressIntervalMillis(long progressIntervalMillis) {
+		this.progressIntervalMillis = progressIntervalMillis;
+	}
+
+	/**
+	 * Get how long a conversion may go without progress before it is
+	 * reported as stalled
+	 * @return the threshold in milliseconds
+	 */
+	public long getStallThresholdMillis() {
+		return stallThresholdMillis;
+	}
+
+	/**
+	 * Set how long a conversion may go without progress before it is
+	 * reported as stalled
+	 * @param stallThresholdMillis the threshold in milliseconds
+	 */
+	public void setStallThresholdMillis(long stallThresholdMillis) {
+		this.stallThresholdMillis = stallThresholdMillis;
+	}
+
+	/**
+	 * Get where the images referenced from the wise 2 upload folder are
+	 * downloaded from
+	 * @return the url that the path after /upload/ is appended to
+	 */
+	public String getAssetBaseUrl() {
+		return assetBaseUrl;
+	}
+
+	/**
+	 * Set where the images referenced from the wise 2 upload folder are
+	 * downloaded from, for example a mirror or a local test server. The
+	 * references in the wise 4 steps still point at the assets folder.
+	 * @param assetBaseUrl the url that the path after /upload/ is appended
+	 * to e.g. http://localhost:8080/upload/
+	 */
+	public void setAssetBaseUrl(String assetBaseUrl) {
+		if(!assetBaseUrl.endsWith("/")) {
+			assetBaseUrl += "/";
+		}
+		
+		this.assetBaseUrl = assetBaseUrl;
+	}
+
+	/**
+	 * Get the host the Wisedraw2 stamps are downloaded from
+	 * @return the scheme, host and port e.g. http://localhost:8080 or null
+	 * if the stamps are downloaded from their own host
+	 */
+	public String getStampBaseUrl() {
+		return stampBaseUrl;
+	}
+
+	/**
+	 * Set the host the Wisedraw2 stamps are downloaded from instead of the
+	 * host in their url. The path of the stamp url is kept and the stamp
+	 * uri in the wise 4 step is not changed. Only http and https stamps
+	 * are redirected.
+	 * @param stampBaseUrl the scheme, host and port e.g. http://localhost:8080
+	 * or null to download the stamps from their own host
+	 */
+	public void setStampBaseUrl(String stampBaseUrl) {
+		if(stampBaseUrl != null && stampBaseUrl.endsWith("/")) {
+			stampBaseUrl = stampBaseUrl.substring(0, stampBaseUrl.length() - 1);
+		}
+		
+		this.stampBaseUrl = stampBaseUrl;
+	}
+
+	/**
+	 * Get how long to wait for a connection when downloading an image
+	 * @return the timeout in milliseconds
+	 */
+	public int getDownloadConnectTimeoutMillis() {
+		return downloadConnectTimeoutMillis;
+	}
+
+	/**
+	 * Set how long to wait for a connection when downloading an image
+	 * @param downloadConnectTimeoutMillis the timeout in milliseconds, 0 waits forever
+	 */
+	public void setDownloadConnectTimeoutMillis(int downloadConnectTimeoutMillis) {
+		this.downloadConnectTimeoutMillis = downloadConnectTimeoutMillis;
+	}
+
+	/**
+	 * Get how long to wait for data when downloading an image
+	 * @return the timeout in milliseconds
+	 */
+	public int getDownloadReadTimeoutMillis() {
+		return downloadReadTimeoutMillis;
+	}
+
+	/**
+	 * Set how long to wait for data when downloading an image. This is
+	 * the longest gap between two reads, not the time for the whole image.
+	 * @param downloadReadTimeoutMillis the timeout in milliseconds, 0 waits forever
+	 */
+	public void setDownloadReadTimeoutMillis(int downloadReadTimeoutMillis) {
+		this.downloadReadTimeoutMillis = downloadReadTimeoutMillis;
+	}
+
+	/**
+	 * Get the estimated heap that the conversions running at the same time
+	 * may hold between them
+	 * @return the budget in bytes, 0 if there is no limit
+	 */
+	public long getHeapBudgetBytes() {
+		return heapBudgetBytes;
+	}
+
+	/**
+	 * Set the estimated heap that the conversions running at the same time
+	 * may hold between them. Before an export file is converted its working
+	 * set is estimated from the zip, see WorkingSetEstimate. If it does not
+	 * fit next to the conversions already running it waits for them, and if
+	 * it is larger than the whole budget it is refused with a
+	 * WorkingSetExceededException. Exports converted from a stream cannot be
+	 * estimated and are always admitted.
+	 * @param heapBudgetBytes the budget in bytes, 0 for no limit
+	 */
+	public void setHeapBudgetBytes(long heapBudgetBytes) {
+		this.heapBudgetBytes = heapBudgetBytes;
+	}
+
+	/**
+	 * Determine whether steps that have not changed since the last
+	 * conversion into the same place are skipped
+	 * @return whether conversions are incremental
+	 */
+	public boolean isIncremental() {
+		return incremental;
+	}
+
+	/**
+	 * Set whether steps that have not changed since the last conversion
+	 * into the same place are skipped. When this is on the conversion
+	 * records what each step was made from and what it wrote in
+	 * conversion_manifest.json, and if the output sink can read the manifest
+	 * of the last conversion back, a
+	 * step whose xml, position and converter version are the same and whose
+	 * files are still there unchanged is not converted again, and
+	 * wise4.project.json is only rewritten if it changed. The upload files
+	 * are always copied.
+	 * @param incremental whether conversions are incremental
+	 */
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+	}
+
+	/**
+	 * Determine whether files that already have the same contents are left alone
+	 * @return whether only changed files are written
+	 */
+	public boolean isWriteIfChanged() {
+		return writeIfChanged;
+	}
+
+	/**
+	 * Set whether files that already have the same contents are left
+	 * alone, so their modified times do not change and tools that sync or
+	 * back up the output only see the files that changed. Each file is
+	 * compared with the existing file by size and then by contents. This
+	 * only helps sinks that can read files back e.g. a folder on disk.
+	 * @param writeIfChanged whether only changed files are written
+	 */
+	public void setWriteIfChanged(boolean writeIfChanged) {
+		this.writeIfChanged = writeIfChanged;
+	}
+
+	/**
+	 * Determine whether assets already copied by the last conversion into the same place are skipped
+	 * @return whether unchanged assets are skipped
+	 */
+	public boolean isSkipUnchangedAssets() {
+		return skipUnchangedAssets;
+	}
+
+	/**
+	 * Set whether the CRC32 and size of every asset are recorded in
+	 * asset_index.json so the next conversion into the same place can skip
+	 * the upload files whose zip entry has the same CRC32 and size and whose
+	 * file is still there with that size. When converting an export file
+	 * the skipped entries are not even inflated. Off by default.
+	 * @param skipUnchangedAssets whether unchanged assets are skipped
+	 */
+	public void setSkipUnchangedAssets(boolean skipUnchangedAssets) {
+		this.skipUnchangedAssets = skipUnchangedAssets;
+	}
+	
+	/**
+	 * Determine whether the manifest and asset index of the last conversion into the same place are read
+	 * @return whether the last conversion is read
+	 */
+	public boolean isReadLastConversion() {
+		return readLastConversion;
+	}
+	
+	/**
+	 * Set whether incremental conversions and skipping unchanged assets
+	 * read the manifest and asset index of the last conversion into the same
+	 * place. When this is off every file is written but the manifest and
+	 * asset index are still recorded for the next conversion. On by default.
+	 * @param readLastConversion whether the last conversion is read
+	 */
+	public void setReadLastConversion(boolean readLastConversion) {
+		this.readLastConversion = readLastConversion;
+	}
+
+	/**
+	 * Get the folder the parsed project xml trees are kept in
+	 * @return the folder or null if the xml is always parsed
+	 */
+	public File getParseCacheFolder() {
+		return parseCacheFolder;
+	}
+
+	/**
+	 * Set a folder to keep a compact binary copy of each parsed
+	 * wise-project.xml in, named by the SHA-256 hash of the xml. Converting
+	 * the same project again, e.g. after changing a converter, loads the
+	 * tree from there instead of parsing the xml. The folder can be shared
+	 * by several converters and is never cleaned up by the converter.
+	 * @param parseCacheFolder the folder or null to always parse the xml
+	 */
+	public void setParseCacheFolder(File parseCacheFolder) {
+		this.parseCacheFolder = parseCacheFolder;
+	}
+
+	/**
+	 * Determine whether duplicate steps are copied instead of converted
+	 * @return whether duplicate steps are copied
+	 */
+	public boolean isCopyDuplicateSteps() {
+		return copyDuplicateSteps;
+	}
+
+	/**
+	 * Set whether a step whose xml is exactly the same as an earlier step in
+	 * the same project is written out as a copy of the earlier step's files
+	 * under its own node number instead of being converted again, which also
+	 * skips downloading its images again. Only the steps whose xml appears
+	 * more than once have their files kept in memory. On by default.
+	 * @param copyDuplicateSteps whether duplicate steps are copied
+	 */
+	public void setCopyDuplicateSteps(boolean copyDuplicateSteps) {
+		this.copyDuplicateSteps = copyDuplicateSteps;
+	}
+
+	/**
+	 * Get the folder converted projects are kept in
+	 * @return the folder or null if projects are always converted
+	 */
+	public File getResultCacheFolder() {
+		return resultCacheFolder;
+	}
+
+	/**
+	 * Set a folder to keep converted projects in. Converting an export file
+	 * whose SHA-256 hash, project id, converter versions and output settings
+	 * match an earlier conversion copies the earlier project files into the
+	 * output sink instead of converting the export again. The convert log and
+	 * report in the copy are the ones from the earlier conversion. Only
+	 * conversions of export files use the cache, streams are always converted.
+	 * @param resultCacheFolder the folder or null to always convert
+	 */
+	public void setResultCacheFolder(File resultCacheFolder) {
+		this.resultCacheFolder = resultCacheFolder;
+	}
+
+	/**
+	 * Get the most bytes the converted projects in the result cache can take up
+	 * @return the size budget in bytes
+	 */
+	public long getResultCacheMaxBytes() {
+		return resultCacheMaxBytes;
+	}
+
+	/**
+	 * Set the most bytes the converted projects in the result cache can take
+	 * up. The least recently used projects are deleted to stay under it.
+	 * @param resultCacheMaxBytes the size budget in bytes, 1GB by default
+	 */
+	public void setResultCacheMaxBytes(long resultCacheMaxBytes) {
+		this.resultCacheMaxBytes = resultCacheMaxBytes;
+	}
+}
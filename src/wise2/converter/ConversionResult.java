@@ -0,0 +1,296 @@
+package wise2.converter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import wise2.converter.report.ConversionReport;
+
+/**
+ * The outcome of converting one wise 2 project
+ */
+public class ConversionResult {
+	
+	//the wise 2 project id
+	private String projectId = "";
+	
+	//the title of the project
+	private String projectTitle = "";
+	
+	//the number of steps that were converted
+	private int stepsConverted = 0;
+	
+	//the number of converted steps whose files were kept from an earlier conversion
+	private int stepsReused = 0;
+	
+	//the number of converted steps that were copied from an identical earlier step
+	private int stepsCopied = 0;
+	
+	//the steps that we failed to convert
+	private List<StepFailure> failedSteps = new ArrayList<StepFailure>();
+	
+	//the number of bytes written to the output sink
+	private long bytesWritten = 0;
+	
+	//the number of files left alone because they already had the same contents
+	private int filesUnchanged = 0;
+	
+	//the number of images the converted steps failed to download
+	private int downloadFailures = 0;
+	
+	//whether the project was copied out of the result cache instead of being converted
+	private boolean fromCache = false;
+	
+	//the time spent on the whole conversion
+	private long totalTimeNanos = 0;
+	
+	//the time spent copying the upload files into the assets folder
+	private long extractTimeNanos = 0;
+	
+	//the time spent parsing the project xml
+	private long parseTimeNanos = 0;
+	
+	//the time spent converting the steps
+	private long convertTimeNanos = 0;
+	
+	//the detailed timings and counters for the conversion
+	private ConversionReport report = null;
+
+	/**
+	 * Get the wise 2 project id
+	 * @return the project id
+	 */
+	public String getProjectId() {
+		return projectId;
+	}
+
+	void setProjectId(String projectId) {
+		this.projectId = projectId;
+	}
+
+	/**
+	 * Get the title of the project
+	 * @return the project title
+	 */
+	public String getProjectTitle() {
+		return projectTitle;
+	}
+
+	void setProjectTitle(String projectTitle) {
+		this.projectTitle = projectTitle;
+	}
+
+	/**
+	 * Get the number of steps that were converted
+	 * @return the number of converted steps
+	 */
+	public int getStepsConverted() {
+		return stepsConverted;
+	}
+
+	void setStepsConverted(int stepsConverted) {
+		this.stepsConverted = stepsConverted;
+	}
+	
+	/**
+	 * Get the number of converted steps whose files were kept from an
+	 * earlier conversion into the same place because nothing had changed.
+	 * These are included in the steps converted.
+	 * @return the number of reused steps
+	 */
+	public int getStepsReused() {
+		return stepsReused;
+	}
+
+	void setStepsReused(int stepsReused) {
+		this.stepsReused = stepsReused;
+	}
+	
+	/**
+	 * Get the number of converted steps that were written as copies of an
+	 * earlier step in the project with exactly the same xml. These are
+	 * included in the steps converted.
+	 * @return the number of copied steps
+	 */
+	public int getStepsCopied() {
+		return stepsCopied;
+	}
+
+	void setStepsCopied(int stepsCopied) {
+		this.stepsCopied = stepsCopied;
+	}
+	
+	/**
+	 * Get the number of steps that we failed to convert
+	 * @return the number of failed steps
+	 */
+	public int getStepsFailed() {
+		return failedSteps.size();
+	}
+
+	/**
+	 * Get the steps that we failed to convert
+	 * @return a list of the failed steps in the order they appear in the project
+	 */
+	public List<StepFailure> getFailedSteps() {
+		return Collections.unmodifiableList(failedSteps);
+	}
+
+	void addFailedStep(StepFailure failedStep) {
+		failedSteps.add(failedStep);
+	}
+	
+	/**
+	 * Determine whether every step was converted
+	 * @return whether no steps failed
+	 */
+	public boolean isSuccessful() {
+		return failedSteps.isEmpty();
+	}
+
+	/**
+	 * Get the number of bytes written to the output sink
+	 * @return the number of bytes
+	 */
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	void setBytesWritten(long bytesWritten) {
+		this.bytesWritten = bytesWritten;
+	}
+
+	/**
+	 * Get the number of files that were not written because they already
+	 * had the same contents, only counted when writing if changed
+	 * @return the number of files
+	 */
+	public int getFilesUnchanged() {
+		return filesUnchanged;
+	}
+
+	void setFilesUnchanged(int filesUnchanged) {
+		this.filesUnchanged = filesUnchanged;
+	}
+	
+	/**
+	 * Get the number of images the steps converted this time failed to
+	 * download. The references to them were left pointing at the wise 2
+	 * server.
+	 * @return the number of failed downloads
+	 */
+	public int getDownloadFailures() {
+		return downloadFailures;
+	}
+	
+	void setDownloadFailures(int downloadFailures) {
+		this.downloadFailures = downloadFailures;
+	}
+
+	/**
+	 * Determine whether the project was copied out of the result cache
+	 * instead of being converted. The step counts and failures are the ones
+	 * from the conversion that filled the cache and the stage timings are 0.
+	 * @return whether the result came from the cache
+	 */
+	public boolean isFromCache() {
+		return fromCache;
+	}
+
+	void setFromCache(boolean fromCache) {
+		this.fromCache = fromCache;
+	}
+
+	/**
+	 * Get the time spent on the whole conversion
+	 * @return the time in nanoseconds
+	 */
+	public long getTotalTimeNanos() {
+		return totalTimeNanos;
+	}
+
+	void setTotalTimeNanos(long totalTimeNanos) {
+		this.totalTimeNanos = totalTimeNanos;
+	}
+
+	/**
+	 * Get the time spent copying the upload files into the assets folder
+	 * @return the time in nanoseconds
+	 */
+	public long getExtractTimeNanos() {
+		return extractTimeNanos;
+	}
+
+	void setExtractTimeNanos(long extractTimeNanos) {
+		this.extractTimeNanos = extractTimeNanos;
+	}
+
+	/**
+	 * Get the time spent parsing the project xml
+	 * @return the time in nanoseconds
+	 */
+	public long getParseTimeNanos() {
+		return parseTimeNanos;
+	}
+
+	void setParseTimeNanos(long parseTimeNanos) {
+		this.parseTimeNanos = parseTimeNanos;
+	}
+
+	/**
+	 * Get the time spent converting the steps
+	 * @return the time in nanoseconds
+	 */
+	public long getConvertTimeNanos() {
+		return convertTimeNanos;
+	}
+
+	void setConvertTimeNanos(long convertTimeNanos) {
+		this.convertTimeNanos = convertTimeNanos;
+	}
+	
+	/**
+	 * Get the detailed timings and counters for the conversion. This is
+	 * the same information that is written to conversion_report.json.
+	 * @return the conversion report
+	 */
+	public ConversionReport getReport() {
+		return report;
+	}
+
+	void setReport(ConversionReport report) {
+		this.report = report;
+	}
+	
+	/**
+	 * A step that we were not able to convert
+	 */
+	public static class StepFailure {
+		//the type of the step e.g. DisplayPage
+		private String stepType;
+		
+		//the title of the step
+		private String title;
+		
+		//why the step could not be converted
+		private String reason;
+		
+		StepFailure(String stepType, String title, String reason) {
+			this.stepType = stepType;
+			this.title = title;
+			this.reason = reason;
+		}
+
+		public String getStepType() {
+			return stepType;
+		}
+
+		public String getTitle() {
+			return title;
+		}
+
+		public String getReason() {
+			return reason;
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package wise2.converter;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import wise2.converter.output.OutputSink;
+
+/**
+ * The files and project node that converting a step produced, kept so a
+ * later step in the same project with exactly the same xml can be written
+ * out again under its own node number instead of being converted again.
+ * 
+ * The only thing that differs between the copies is the node number in the
+ * step file names e.g. node_3.ht and node_3.html, and in the places the
+ * step refers to its own files, such as the src of a .ht file and the
+ * identifier and ref of the project node. Steps whose xml mentions node_
+ * are never memoized, so every file name found in the contents was put
+ * there by the converter.
+ */
+class MemoizedStep {
+	
+	//the number of the step that was converted
+	private int stepNumber;
+	
+	//the step's entry in the nodes array of wise4.project.json
+	private JSONObject projectNode;
+	
+	//the contents of the step files the converter wrote e.g. node_3.ht, by path
+	private Map<String, byte[]> stepFiles = new LinkedHashMap<String, byte[]>();
+	
+	//the hashes of the other files the converter wrote e.g. downloaded images, by path
+	private Map<String, String> sharedFileHashes = new LinkedHashMap<String, String>();
+	
+	/**
+	 * @param stepNumber the number of the step that was converted
+	 * @param projectNode the project node the converter returned
+	 * @param contents the contents of every file the converter wrote
+	 * @param hashes the hash of every file the converter wrote
+	 */
+	MemoizedStep(int stepNumber, JSONObject projectNode, Map<String, byte[]> contents, Map<String, String> hashes) {
+		this.stepNumber = stepNumber;
+		this.projectNode = projectNode;
+		
+		String stepFilePrefix = getStepFilePrefix(stepNumber);
+		
+		for(Map.Entry<String, byte[]> file : contents.entrySet()) {
+			if(file.getKey().startsWith(stepFilePrefix)) {
+				stepFiles.put(file.getKey(), file.getValue());
+			} else {
+				//files outside the step are the same for every copy and are already written
+				sharedFileHashes.put(file.getKey(), hashes.get(file.getKey()));
+			}
+		}
+	}
+	
+	/**
+	 * Write the step files again for a copy of the step
+	 * @param outputSink the sink to write the step files to
+	 * @param newStepNumber the number of the copy
+	 * @return the project node for the copy
+	 * @throws IOException
+	 * @throws JSONException
+	 */
+	JSONObject copyTo(OutputSink outputSink, int newStepNumber) throws IOException, JSONException {
+		//the name each step file has in the copy e.g. node_3.html becomes node_7.html
+		Map<String, String> newNames = new LinkedHashMap<String, String>();
+		int prefixLength = getStepFilePrefix(stepNumber).length();
+		
+		for(String path : stepFiles.keySet()) {
+			newNames.put(path, getStepFilePrefix(newStepNumber) + path.substring(prefixLength));
+		}
+		
+		for(Map.Entry<String, byte[]> file : stepFiles.entrySet()) {
+			String content = new String(file.getValue(), OutputSink.UTF_8);
+			
+			//the step files refer to each other by name
+			for(Map.Entry<String, String> newName : newNames.entrySet()) {
+				content = content.replace(newName.getKey(), newName.getValue());
+			}
+			
+			outputSink.write(newNames.get(file.getKey()), content.getBytes(OutputSink.UTF_8));
+		}
+		
+		//copy the project node so the original is not changed
+		JSONObject newProjectNode = new JSONObject(projectNode.toString());
+		renameField(newProjectNode, "identifier", newNames);
+		renameField(newProjectNode, "ref", newNames);
+		
+		return newProjectNode;
+	}
+	
+	/**
+	 * Change a field of the project node that holds a step file name
+	 * @param node the project node of the copy
+	 * @param field the name of the field
+	 * @param newNames the name each step file has in the copy
+	 * @throws JSONException
+	 */
+	private void renameField(JSONObject node, String field, Map<String, String> newNames) throws JSONException {
+		String newName = newNames.get(node.optString(field));
+		
+		if(newName != null) {
+			node.put(field, newName);
+		}
+	}
+	
+	/**
+	 * Get the start of the names of the files of a step
+	 * @param stepNumber the number of the step
+	 * @return e.g. node_3.
+	 */
+	private static String getStepFilePrefix(int stepNumber) {
+		return "node_" + stepNumber + ".";
+	}
+	
+	/**
+	 * Get the identifier of the step that was converted e.g. node_3.ht
+	 * @return the identifier
+	 */
+	String getIdentifier() {
+		return projectNode.optString("identifier");
+	}
+	
+	/**
+	 * Get the hashes of the files the step wrote outside its step files,
+	 * which every copy shares
+	 * @return a copy of the map from path to hex SHA-256 hash
+	 */
+	Map<String, String> getSharedFileHashes() {
+		return new LinkedHashMap<String, String>(sharedFileHashes);
+	}
+}
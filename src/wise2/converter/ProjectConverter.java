@@ -0,0 +1,567 @@
+package wise2.converter;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Enumeration;
+import java.util.concurrent.Executor;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.dom4j.DocumentException;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import wise2.converter.cache.ConversionResultCache;
+import wise2.converter.cache.ParsedProjectCache;
+import wise2.converter.manifest.AssetIndex;
+import wise2.converter.memory.HeapBudget;
+import wise2.converter.memory.WorkingSetEstimate;
+import wise2.converter.memory.WorkingSetExceededException;
+import wise2.converter.output.OutputSink;
+import wise2.converter.output.TeeOutputSink;
+import wise2.converter.output.WriteBehindOutputSink;
+import wise2.converter.output.WriteIfChangedOutputSink;
+import wise2.converter.output.ZipOutputSink;
+import wise2.converter.progress.ConversionProgress;
+import wise2.converter.progress.ProgressReporter;
+import wise2.converter.report.ConversionReport;
+
+/**
+ * Converts wise 2 project exports into wise 4 projects from other code.
+ * A ProjectConverter does not hold any state from one conversion to the
+ * next so one instance can be shared and called from several threads at
+ * the same time.
+ * 
+ * e.g.
+ * ProjectConverter converter = new ProjectConverter(new ConversionOptions());
+ * InMemoryOutputSink sink = new InMemoryOutputSink();
+ * ConversionResult result = converter.convert(exportFile, sink);
+ */
+public class ProjectConverter {
+	
+	//the settings used for every conversion
+	private ConversionOptions options;
+	
+	//prints the progress of all the conversions run by this converter, null if progress reporting is off
+	private ProgressReporter progressReporter = null;
+	
+	//admits conversions of export files while their estimated heap fits, null if there is no limit
+	private HeapBudget heapBudget = null;
+	
+	//keeps the parsed project xml between conversions, null if the xml is always parsed
+	private ParsedProjectCache parsedProjectCache = null;
+	
+	//keeps converted projects so the same export is only converted once, null if projects are always converted
+	private ConversionResultCache resultCache = null;
+	
+	//runs extra threads that help inflate the upload files, null to inflate them on the converting thread
+	private Executor extractHelpers = null;
+	
+	/**
+	 * Create a converter with the default settings
+	 */
+	public ProjectConverter() {
+		this(new ConversionOptions());
+	}
+	
+	/**
+	 * Create a converter
+	 * @param options the settings to use, a copy is taken
+	 */
+	public ProjectConverter(ConversionOptions options) {
+		this.options = new ConversionOptions(options);
+		
+		if(this.options.getProgressIntervalMillis() > 0) {
+			progressReporter = new ProgressReporter(this.options.getProgressIntervalMillis(), this.options.getStallThresholdMillis());
+		}
+		
+		if(this.options.getHeapBudgetBytes() > 0) {
+			heapBudget = new HeapBudget(this.options.getHeapBudgetBytes());
+		}
+		
+		if(this.options.getParseCacheFolder() != null) {
+			parsedProjectCache = new ParsedProjectCache(this.options.getParseCacheFolder());
+		}
+		
+		if(this.options.getResultCacheFolder() != null) {
+			resultCache = new ConversionResultCache(this.options.getResultCacheFolder(), this.options.getResultCacheMaxBytes());
+		}
+	}
+	
+	/**
+	 * Convert a wise 2 export zip file. The project id is obtained from the 
+	 * file name e.g. wiseProject-31202-090911_122414-wpe.zip
+	 * @param exportFile the wise 2 export zip file
+	 * @param outputSink the sink to write the wise 4 project files to. the
+	 * sink is flushed but not closed.
+	 * @return the result of the conversion
+	 * @throws IOException
+	 * @throws DocumentException if the project xml could not be parsed
+	 */
+	public ConversionResult convert(File exportFile, OutputSink outputSink) throws IOException, DocumentException {
+		return convert(exportFile, parseProjectId(exportFile), outputSink);
+	}
+	
+	/**
+	 * Convert a wise 2 export zip file
+	 * @param exportFile the wise 2 export zip file
+	 * @param projectId the wise 2 project id
+	 * @param outputSink the sink to write the wise 4 project files to. the
+	 * sink is flushed but not closed.
+	 * @return the result of the conversion
+	 * @throws IOException
+	 * @throws WorkingSetExceededException if a heap budget is set and the
+	 * project is estimated to need more than all of it
+	 * @throws DocumentException if the project xml could not be parsed
+	 */
+	public ConversionResult convert(File exportFile, String projectId, OutputSink outputSink) throws IOException, DocumentException {
+		long startTime = System.nanoTime();
+		
+		//the settings for this conversion
+		ConversionOptions conversionOptions = getConversionOptions(outputSink);
+		
+		//records the converted project into the result cache, null if we are not caching it
+		ConversionResultCache.Recording recording = null;
+		
+		if(resultCache != null) {
+			//the same export converted the same way gives the same files
+			String cacheKey = ConversionResultCache.createKey(exportFile, getCacheSettings(projectId, conversionOptions));
+			ConversionResultCache.Entry entry = resultCache.get(cacheKey);
+			
+			if(entry != null) {
+				ConversionResult cachedResult = copyCachedProject(entry, outputSink, startTime);
+				
+				if(cachedResult != null) {
+					return cachedResult;
+				}
+			}
+			
+			recording = resultCache.startRecording(cacheKey);
+			
+			/*
+			 * the cache needs every file so nothing can be kept from an earlier
+			 * conversion into the caller's sink. the manifest and asset index
+			 * are still recorded.
+			 */
+			conversionOptions = new ConversionOptions(conversionOptions);
+			conversionOptions.setReadLastConversion(false);
+		}
+		
+		try {
+			ConversionResult result = convert(exportFile, projectId, outputSink, conversionOptions, recording);
+			
+			if(recording != null && result.getDownloadFailures() == 0) {
+				recording.commit(createCacheSummary(result));
+				recording = null;
+			}
+			
+			return result;
+		} finally {
+			if(recording != null) {
+				//the conversion failed or some images could not be downloaded so do not keep what it wrote
+				recording.abort();
+			}
+		}
+	}
+	
+	/**
+	 * Convert a wise 2 export zip file once the result cache has been checked
+	 * @param exportFile the wise 2 export zip file
+	 * @param projectId the wise 2 project id
+	 * @param outputSink the sink to write the wise 4 project files to
+	 * @param conversionOptions the settings for this conversion
+	 * @param recording records a copy of the files for the result cache, null if the result is not cached
+	 * @return the result of the conversion
+	 * @throws IOException
+	 * @throws DocumentException
+	 */
+	private ConversionResult convert(File exportFile, String projectId, OutputSink outputSink, ConversionOptions conversionOptions, ConversionResultCache.Recording recording) throws IOException, DocumentException {
+		ConversionProgress progress = new ConversionProgress(projectId);
+		
+		if(progressReporter != null) {
+			//the central directory tells us how much there is to extract before we start
+			readZipTotals(exportFile, progress);
+		}
+		
+		WorkingSetEstimate estimate = null;
+		
+		if(heapBudget != null) {
+			//wait until the project fits next to the conversions that are running
+			estimate = estimateWorkingSet(exportFile);
+			
+			try {
+				heapBudget.reserve(estimate);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for heap to convert " + exportFile.getName());
+			}
+		}
+		
+		try {
+			if(extractHelpers != null || (conversionOptions.isSkipUnchangedAssets() && outputSink.getSize(AssetIndex.INDEX_FILE_NAME) >= 0)) {
+				/*
+				 * the last conversion into the same place left its asset index so
+				 * read the zip in place and only inflate the assets that changed.
+				 * the helpers also need the zip in place to inflate the assets
+				 * side by side.
+				 */
+				ZipFile exportZip = new ZipFile(exportFile);
+				
+				try {
+					return convert(null, exportZip, projectId, outputSink, conversionOptions, recording, progress);
+				} finally {
+					exportZip.close();
+				}
+			}
+			
+			InputStream exportStream = new BufferedInputStream(new FileInputStream(exportFile), 64 * 1024);
+			
+			try {
+				return convert(exportStream, null, projectId, outputSink, conversionOptions, recording, progress);
+			} finally {
+				exportStream.close();
+			}
+		} finally {
+			if(estimate != null) {
+				heapBudget.release(estimate);
+			}
+		}
+	}
+	
+	/**
+	 * Estimate the most heap converting an export file will hold at a time
+	 * with this converter's settings, from the central directory of the zip
+	 * @param exportFile the wise 2 export zip file
+	 * @return the estimate
+	 * @throws IOException if the zip file could not be read
+	 */
+	public WorkingSetEstimate estimateWorkingSet(File exportFile) throws IOException {
+		return WorkingSetEstimate.estimate(exportFile, options);
+	}
+	
+	/**
+	 * Convert a wise 2 export zip while it is being read from a stream, for
+	 * example while it is still being uploaded. The upload files are copied
+	 * as soon as they arrive and nothing is spooled to disk. The stream is
+	 * not closed.
+	 * @param exportStream the contents of the wise 2 export zip file
+	 * @param projectId the wise 2 project id
+	 * @param outputSink the sink to write the wise 4 project files to. the
+	 * sink is flushed but not closed.
+	 * @return the result of the conversion
+	 * @throws IOException
+	 * @throws DocumentException if the project xml could not be parsed
+	 */
+	public ConversionResult convert(InputStream exportStream, String projectId, OutputSink outputSink) throws IOException, DocumentException {
+		return convert(exportStream, null, projectId, outputSink, getConversionOptions(outputSink), null, new ConversionProgress(projectId));
+	}
+	
+	/**
+	 * Get the settings for a conversion into a sink
+	 * @param outputSink the sink the wise 4 project files are written to
+	 * @return the options, with incremental conversion and skipping unchanged
+	 * assets turned off if the sink writes a zip file
+	 */
+	private ConversionOptions getConversionOptions(OutputSink outputSink) {
+		if(outputSink instanceof ZipOutputSink && (options.isIncremental() || options.isSkipUnchangedAssets())) {
+			//a zip file cannot be read back so there is no point recording the manifest or asset index in it
+			ConversionOptions zipOptions = new ConversionOptions(options);
+			zipOptions.setIncremental(false);
+			zipOptions.setSkipUnchangedAssets(false);
+			return zipOptions;
+		}
+		
+		return options;
+	}
+	
+	/**
+	 * Convert a wise 2 export zip from a stream or a zip file while reporting its progress
+	 * @param exportStream the contents of the wise 2 export zip file or null
+	 * @param exportZip the wise 2 export zip file or null
+	 * @param projectId the wise 2 project id
+	 * @param outputSink the sink to write the wise 4 project files to
+	 * @param conversionOptions the settings for this conversion
+	 * @param recording records a copy of the files for the result cache, null if the result is not cached
+	 * @param progress the progress of the conversion
+	 * @return the result of the conversion
+	 * @throws IOException
+	 * @throws DocumentException if the project xml could not be parsed
+	 */
+	private ConversionResult convert(InputStream exportStream, ZipFile exportZip, String projectId, OutputSink outputSink, ConversionOptions conversionOptions, ConversionResultCache.Recording recording, ConversionProgress progress) throws IOException, DocumentException {
+		WriteBehindOutputSink writeBehindSink = null;
+		WriteIfChangedOutputSink writeIfChangedSink = null;
+		
+		if(conversionOptions.isWriteIfChanged()) {
+			//compare on the output threads so the conversion does not wait for the reads
+			writeIfChangedSink = new WriteIfChangedOutputSink(outputSink);
+			outputSink = writeIfChangedSink;
+		}
+		
+		if(recording != null) {
+			//keep a copy of every file for the result cache, also on the output threads
+			outputSink = new TeeOutputSink(outputSink, recording.getOutputSink());
+		}
+		
+		if(conversionOptions.getOutputThreads() > 0) {
+			//write the files on separate threads while we continue converting
+			writeBehindSink = new WriteBehindOutputSink(outputSink, conversionOptions.getOutputThreads(), conversionOptions.getOutputQueueCapacity());
+			outputSink = writeBehindSink;
+		}
+		
+		if(progressReporter != null) {
+			progressReporter.register(progress);
+		}
+		
+		try {
+			//each conversion gets its own converter so no state is shared
+			Wise2To4ProjectConverter projectConverter = new Wise2To4ProjectConverter(projectId, outputSink, conversionOptions);
+			projectConverter.setProgress(progress);
+			projectConverter.setParsedProjectCache(parsedProjectCache);
+			
+			if(exportZip != null) {
+				projectConverter.setExtractHelpers(extractHelpers);
+			}
+			
+			ConversionResult result = null;
+			
+			if(exportZip != null) {
+				result = projectConverter.convert(exportZip);
+			} else {
+				result = projectConverter.convert(exportStream);
+			}
+			
+			if(writeIfChangedSink != null) {
+				//the conversion has flushed so every file has been compared
+				result.setFilesUnchanged(writeIfChangedSink.getFilesUnchanged());
+			}
+			
+			return result;
+		} finally {
+			if(progressReporter != null) {
+				progressReporter.unregister(progress);
+			}
+			
+			if(writeBehindSink != null) {
+				//wait for the writes and stop the output threads but leave the caller's sink open
+				writeBehindSink.shutdown();
+			}
+		}
+	}
+	
+	/**
+	 * Get everything besides the export itself that decides the files a
+	 * conversion writes, for the result cache key
+	 * @param projectId the wise 2 project id
+	 * @param conversionOptions the options the conversion actually runs with,
+	 * which depend on the sink
+	 * @return the settings as text
+	 */
+	private String getCacheSettings(String projectId, ConversionOptions conversionOptions) {
+		StringBuffer settings = new StringBuffer();
+		settings.append("projectId=").append(projectId).append('\n');
+		settings.append("converters=").append(Wise2To4ProjectConverter.getConverterVersions()).append('\n');
+		settings.append("assetBaseUrl=").append(conversionOptions.getAssetBaseUrl()).append('\n');
+		settings.append("stampBaseUrl=").append(conversionOptions.getStampBaseUrl()).append('\n');
+		settings.append("writeReport=").append(conversionOptions.isWriteReport()).append('\n');
+		settings.append("maxLoggedXMLLength=").append(conversionOptions.getMaxLoggedXMLLength()).append('\n');
+		settings.append("incremental=").append(conversionOptions.isIncremental()).append('\n');
+		settings.append("skipUnchangedAssets=").append(conversionOptions.isSkipUnchangedAssets()).append('\n');
+		return settings.toString();
+	}
+	
+	/**
+	 * Get what the result cache needs to describe a conversion result again
+	 * @param result the result of the conversion
+	 * @return the summary
+	 */
+	private JSONObject createCacheSummary(ConversionResult result) {
+		JSONObject summary = new JSONObject();
+		
+		try {
+			summary.put("projectId", result.getProjectId());
+			summary.put("projectTitle", result.getProjectTitle());
+			summary.put("stepsConverted", result.getStepsConverted());
+			summary.put("stepsCopied", result.getStepsCopied());
+			summary.put("bytesWritten", result.getBytesWritten());
+			
+			JSONArray failedStepsJSON = new JSONArray();
+			
+			for(ConversionResult.StepFailure failedStep : result.getFailedSteps()) {
+				JSONObject failedStepJSON = new JSONObject();
+				failedStepJSON.put("stepType", failedStep.getStepType());
+				failedStepJSON.put("title", failedStep.getTitle());
+				failedStepJSON.put("reason", failedStep.getReason());
+				failedStepsJSON.put(failedStepJSON);
+			}
+			
+			summary.put("failedSteps", failedStepsJSON);
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+		
+		return summary;
+	}
+	
+	/**
+	 * Copy a project out of the result cache into the caller's sink
+	 * @param entry the project in the cache
+	 * @param outputSink the sink to write the wise 4 project files to
+	 * @param startTime when the call started
+	 * @return the result or null if the project could not be copied, in
+	 * which case the export has to be converted
+	 */
+	private ConversionResult copyCachedProject(ConversionResultCache.Entry entry, OutputSink outputSink, long startTime) {
+		WriteIfChangedOutputSink writeIfChangedSink = null;
+		
+		if(options.isWriteIfChanged()) {
+			//copying the cached files should not touch the ones that are already the same either
+			writeIfChangedSink = new WriteIfChangedOutputSink(outputSink);
+			outputSink = writeIfChangedSink;
+		}
+		
+		try {
+			entry.copyTo(outputSink);
+			outputSink.flush();
+			
+			JSONObject summary = entry.getSummary();
+			ConversionResult result = new ConversionResult();
+			result.setFromCache(true);
+			result.setProjectId(summary.getString("projectId"));
+			result.setProjectTitle(summary.getString("projectTitle"));
+			result.setStepsConverted(summary.getInt("stepsConverted"));
+			result.setStepsCopied(summary.getInt("stepsCopied"));
+			result.setBytesWritten(summary.getLong("bytesWritten"));
+			
+			JSONArray failedStepsJSON = summary.getJSONArray("failedSteps");
+			
+			for(int x=0; x<failedStepsJSON.length(); x++) {
+				JSONObject failedStepJSON = failedStepsJSON.getJSONObject(x);
+				result.addFailedStep(new ConversionResult.StepFailure(failedStepJSON.getString("stepType"), failedStepJSON.getString("title"), failedStepJSON.getString("reason")));
+			}
+			
+			if(writeIfChangedSink != null) {
+				result.setFilesUnchanged(writeIfChangedSink.getFilesUnchanged());
+			}
+			
+			result.setTotalTimeNanos(System.nanoTime() - startTime);
+			
+			//the detailed report is in the copied conversion_report.json, this one only has the totals
+			ConversionReport report = new ConversionReport();
+			report.setProjectId(result.getProjectId());
+			report.setProjectTitle(result.getProjectTitle());
+			report.setTotalNanos(result.getTotalTimeNanos());
+			result.setReport(report);
+			
+			return result;
+		} catch (IOException e) {
+			//the entry was evicted while we copied it
+			e.printStackTrace();
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Get the result cache e.g. to read its hit and miss counters
+	 * @return the cache or null if projects are always converted
+	 */
+	public ConversionResultCache getResultCache() {
+		return resultCache;
+	}
+	
+	/**
+	 * Read the number of entries and their uncompressed size from the
+	 * central directory at the end of the export zip
+	 * @param exportFile the wise 2 export zip file
+	 * @param progress the progress to set the totals in
+	 * @throws IOException
+	 */
+	private void readZipTotals(File exportFile, ConversionProgress progress) throws IOException {
+		ZipFile zipFile = new ZipFile(exportFile);
+		
+		try {
+			long totalBytes = 0;
+			
+			Enumeration<? extends ZipEntry> entries = zipFile.entries();
+			
+			while(entries.hasMoreElements()) {
+				long size = entries.nextElement().getSize();
+				
+				if(size > 0) {
+					totalBytes += size;
+				}
+			}
+			
+			progress.setZipTotals(zipFile.size(), totalBytes);
+		} finally {
+			zipFile.close();
+		}
+	}
+	
+	/**
+	 * Set where to ask for help inflating the upload files of an export
+	 * file. The converting thread always takes part and inflates whatever
+	 * the helpers have not picked up, so an executor that only runs the
+	 * helpers when it has nothing better to do is fine. The threads of a
+	 * batch can help the big projects this way once there are no more
+	 * projects to start.
+	 * @param extractHelpers the executor to run the helpers on or null to
+	 * inflate the upload files on the converting thread
+	 */
+	public void setExtractHelpers(Executor extractHelpers) {
+		this.extractHelpers = extractHelpers;
+	}
+	
+	/**
+	 * Get the executor the helpers that inflate the upload files run on
+	 * @return the executor or null if the upload files are inflated on the converting thread
+	 */
+	public Executor getExtractHelpers() {
+		return extractHelpers;
+	}
+	
+	/**
+	 * Get a copy of the settings this converter uses
+	 * @return the conversion options
+	 */
+	public ConversionOptions getOptions() {
+		return new ConversionOptions(options);
+	}
+	
+	/**
+	 * Obtain the project id from the name of the wise 2 export zip file
+	 * @param exportFile the wise 2 export zip file
+	 * @return the project id
+	 */
+	public static String parseProjectId(File exportFile) {
+		String filePath = exportFile.getPath();
+		
+		/*
+		 * obtain the name of the zip file, this is assuming the zip file
+		 * was obtained from wise2 and is in a format like this example
+		 * wiseProject-31202-090911_122414-wpe.zip
+		 */
+		
+		//obtain everything starting at the wiseProject-
+		String archiveFileName = filePath.substring(filePath.indexOf("wiseProject-"));
+		
+		//find the first dash
+		int firstDash = archiveFileName.indexOf("-");
+		
+		//find the second dash
+		int secondDash = archiveFileName.indexOf("-", firstDash + 1);
+		
+		/*
+		 * obtain the numbers inbetween the first two dashes which should be
+		 * the project id. from the example above it would be 31202
+		 */
+		return archiveFileName.substring(firstDash + 1, secondDash);
+	}
+}
@@ -1,24 +1,38 @@
 package wise2.converter;
 
-import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
+import java.util.zip.CRC32;
 import java.util.zip.ZipInputStream;
 
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
 import org.dom4j.Document;
 import org.dom4j.DocumentException;
 import org.dom4j.Element;
@@ -28,6 +42,7 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import wise2.converter.cache.ParsedProjectCache;
 import wise2.converter.converters.AlertsConverter;
 import wise2.converter.converters.BookmarksConverter;
 import wise2.converter.converters.ChallengeQuestionConverter;
@@ -45,25 +60,42 @@ import wise2.converter.converters.SensemakerConverter;
 import wise2.converter.converters.StudentAssessmentConverter;
 import wise2.converter.converters.TableConverter;
 import wise2.converter.converters.Wisedraw2Converter;
+import wise2.converter.jfr.ProjectConversionEvent;
+import wise2.converter.jfr.StepConversionEvent;
+import wise2.converter.jfr.ZipEntryExtractionEvent;
+import wise2.converter.log.ConvertLog;
+import wise2.converter.manifest.AssetIndex;
+import wise2.converter.manifest.ConversionManifest;
+import wise2.converter.output.HashingOutputSink;
+import wise2.converter.output.MeteredOutputSink;
+import wise2.converter.output.OutputSink;
+import wise2.converter.output.StagedFolderOutputSink;
+import wise2.converter.output.WriteBehindOutputSink;
+import wise2.converter.output.ZipOutputSink;
+import wise2.converter.progress.ConversionProgress;
+import wise2.converter.report.ConversionReport;
+import wise2.converter.report.StepReport;
 
+/**
+ * Converts one wise 2 project export into a wise 4 project. A new instance
+ * is used for every conversion. Other code should convert projects through
+ * ProjectConverter.
+ */
 public class Wise2To4ProjectConverter {
+	//the step types that have a converter, in the order createConverter checks them
+	private static final String[] STEP_TYPES = {"DisplayPage", "Evidence", "Notes", "StudentAssessment", "SelfTest", "Journal", "Discussion", "DiscussionForum", "Wisedraw2", "ChallengeQuestion", "Bookmarks", "Alerts", "Sensemaker", "ConcordModelSaveJar", "DataGrid", "OTrunk", "Otrunk", "OutsideUrl", "Table", "Brainstorm"};
+	
 	//the wise 2 xml document
 	protected Document document;
 	
 	//the project id
 	private String projectId = "";
 	
-	//the project folder that the wise 4 project files will be created in
-	private File projectFolder;
-
-	//the folder that contains all the upload files for the wise 2 project
-	private File uploadFolder;
-	
-	//will contain the output log when we convert
-	private StringBuffer convertLogStringBuffer = new StringBuffer();
+	//the settings for this conversion
+	private ConversionOptions options;
 	
-	//the file we will write the output log to
-	private File convertLogFile = null;
+	//streams the output log to the console and the convert log file as we convert
+	private ConvertLog convertLog;
 	
 	//the name of the output log
 	private String convertLogFileName = "convert_log.txt";
@@ -77,33 +109,251 @@ public class Wise2To4ProjectConverter {
 	//a counter that keeps count of the number of steps that we failed to convert
 	private int numberOfStepsFailedToConvert = 0;
 	
-	//will contain the output text when copying images for a step
-	private StringBuffer copyImageFileStringBuffer = new StringBuffer();
+	//the sink that all the wise 4 project files are written through
+	private OutputSink outputSink;
+	
+	//measures the writes to the output sink for the conversion report
+	private MeteredOutputSink meteredOutputSink;
+	
+	//the timings and counters for the conversion report
+	private ConversionReport report = new ConversionReport();
+	
+	//how far along the conversion is, read by the progress reporter
+	private ConversionProgress progress;
+	
+	//the time the conversion started
+	private long conversionStartTime;
+	
+	//the result that we will return to the caller
+	private ConversionResult result = new ConversionResult();
+	
+	//records what each step was made from and wrote, for the next incremental conversion
+	private ConversionManifest manifest;
+	
+	//the manifest left by the last conversion into the same place, null if we are not converting incrementally
+	private ConversionManifest previousManifest = null;
+	
+	//the number of steps whose files were kept from the last conversion
+	private int stepsReused = 0;
+	
+	//records the CRC32 and size of every asset, for the next conversion into the same place
+	private AssetIndex assetIndex = new AssetIndex();
+	
+	//the asset index left by the last conversion into the same place, null if there is none
+	private AssetIndex previousAssetIndex = null;
+	
+	//keeps the parsed project xml between conversions, null if the xml is always parsed
+	private ParsedProjectCache parsedProjectCache = null;
+	
+	//the hash of each step's xml, worked out before converting so we know which steps appear more than once
+	private Map<Node, String> stepSourceHashes = new IdentityHashMap<Node, String>();
+	
+	//the number of steps with each xml hash, steps that cannot be copied are not counted
+	private Map<String, Integer> stepSourceCounts = new HashMap<String, Integer>();
+	
+	//the converted steps whose xml appears again later in the project
+	private Map<String, MemoizedStep> memoizedSteps = new HashMap<String, MemoizedStep>();
+	
+	//the number of steps that were copied from an identical earlier step
+	private int stepsCopied = 0;
+	
+	//the number of images the converted steps failed to download
+	private int downloadFailures = 0;
+	
+	//runs extra threads that help inflate the upload files from a zip file, null to inflate them all on the conversion thread
+	private Executor extractHelpers = null;
+	
+	/**
+	 * Create a converter for one project
+	 * @param projectId the wise 2 project id
+	 * @param outputSink the sink to write the wise 4 project files to
+	 * @param options the settings for the conversion
+	 */
+	Wise2To4ProjectConverter(String projectId, OutputSink outputSink, ConversionOptions options) {
+		this.projectId = projectId;
+		this.outputSink = outputSink;
+		this.meteredOutputSink = new MeteredOutputSink(outputSink);
+		this.options = options;
+		this.progress = new ConversionProgress(projectId);
+		this.manifest = new ConversionManifest(projectId);
+	}
+	
+	/**
+	 * Set the progress object that the conversion updates
+	 * @param progress the progress of the conversion
+	 */
+	void setProgress(ConversionProgress progress) {
+		this.progress = progress;
+	}
+	
+	/**
+	 * Set the cache to load the parsed project xml from instead of parsing it
+	 * @param parsedProjectCache the cache or null to always parse the xml
+	 */
+	void setParsedProjectCache(ParsedProjectCache parsedProjectCache) {
+		this.parsedProjectCache = parsedProjectCache;
+	}
+	
+	/**
+	 * Set where to ask for help inflating the upload files when converting
+	 * from a zip file. The helpers are only asked, the conversion thread
+	 * inflates whatever they have not picked up so it never waits for an
+	 * executor that is busy with something else.
+	 * @param extractHelpers the executor to run the helpers on or null to
+	 * inflate every upload file on the conversion thread
+	 */
+	void setExtractHelpers(Executor extractHelpers) {
+		this.extractHelpers = extractHelpers;
+	}
+	
+	/**
+	 * Converts the wise 2 project zip from a stream and writes the wise 4
+	 * project files into the output sink. The zip is read in one pass so
+	 * the upload files are copied as soon as they arrive. The stream is
+	 * not closed and the sink is flushed but not closed.
+	 * @param exportStream the contents of the wise 2 export zip file
+	 * @return the result of the conversion
+	 * @throws DocumentException
+	 * @throws IOException
+	 * @throws ZipException if the stream does not contain a wise 2 project
+	 */
+	ConversionResult convert(InputStream exportStream) throws DocumentException, IOException, ZipException {
+		return convert(exportStream, null);
+	}
+	
+	/**
+	 * Converts the wise 2 project zip from a file that allows random access.
+	 * Only the entries that are needed are inflated, so assets that are
+	 * already in the output sink from the last conversion are not read at
+	 * all. The zip file is not closed and the sink is flushed but not closed.
+	 * @param exportZip the wise 2 export zip file
+	 * @return the result of the conversion
+	 * @throws DocumentException
+	 * @throws IOException
+	 * @throws ZipException if the zip does not contain a wise 2 project
+	 */
+	ConversionResult convert(ZipFile exportZip) throws DocumentException, IOException, ZipException {
+		return convert(null, exportZip);
+	}
+	
+	/**
+	 * Converts the wise 2 project zip from whichever source was given
+	 * @param exportStream the contents of the wise 2 export zip file or null
+	 * @param exportZip the wise 2 export zip file or null
+	 * @return the result of the conversion
+	 * @throws DocumentException
+	 * @throws IOException
+	 * @throws ZipException if the zip does not contain a wise 2 project
+	 */
+	private ConversionResult convert(InputStream exportStream, ZipFile exportZip) throws DocumentException, IOException, ZipException {
+		conversionStartTime = System.nanoTime();
+		
+		//label the whole conversion in flight recordings
+		ProjectConversionEvent event = new ProjectConversionEvent();
+		event.begin();
+		
+		result.setProjectId(projectId);
+		result.setReport(report);
+		report.setProjectId(projectId);
+		
+		//start streaming the output log into the convert log file
+		createConvertLog();
+		
+		try {
+			convertProject(exportStream, exportZip);
+		} finally {
+			//write out the rest of the output log and close the convert log file
+			convertLog.close();
+		}
+		
+		//wait for the remaining writes, the caller owns the sink so we do not close it
+		outputSink.flush();
+		
+		result.setStepsConverted(stepCounter);
+		result.setStepsReused(stepsReused);
+		result.setStepsCopied(stepsCopied);
+		result.setDownloadFailures(downloadFailures);
+		result.setBytesWritten(outputSink.getBytesWritten());
+		result.setTotalTimeNanos(System.nanoTime() - conversionStartTime);
+		progress.setPhase(ConversionProgress.Phase.DONE);
+		
+		event.end();
+		
+		if(event.shouldCommit()) {
+			event.projectId = projectId;
+			event.projectTitle = result.getProjectTitle();
+			event.stepsConverted = result.getStepsConverted();
+			event.stepsFailed = result.getStepsFailed();
+			event.bytesWritten = result.getBytesWritten();
+			event.commit();
+		}
+		
+		return result;
+	}
 	
 	/**
-	 * Converts the wise 2 project zip file into a wise 4 project folder
-	 * @param selectedFile
+	 * Converts the project once the convert log has been opened
+	 * @param exportStream the contents of the wise 2 export zip file or null
+	 * @param exportZip the wise 2 export zip file or null
 	 * @throws DocumentException
 	 * @throws IOException
-	 * @throws NullPointerException
-	 * @throws ZipException
+	 * @throws ZipException if the stream does not contain a wise 2 project
 	 */
-	private Wise2To4ProjectConverter(File selectedFile) throws DocumentException, IOException, NullPointerException, ZipException {
-		//create a handle for the zip file
-		ZipFile projectArchiveFile = new ZipFile(selectedFile);
+	private void convertProject(InputStream exportStream, ZipFile exportZip) throws DocumentException, IOException, ZipException {
+		long extractStartTime = System.nanoTime();
+		
+		if(options.isSkipUnchangedAssets() && options.isReadLastConversion()) {
+			//find out which assets the last conversion into the same place copied
+			previousAssetIndex = AssetIndex.read(outputSink);
+		}
+		
+		/*
+		 * copy the upload files into the assets folder and obtain the 
+		 * project xml file from the zip
+		 */
+		byte[] projectXML = null;
+		
+		if(exportZip != null) {
+			projectXML = readProjectArchive(exportZip);
+		} else {
+			projectXML = readProjectArchive(exportStream);
+		}
+		
+		if(projectXML == null) {
+			throw new ZipException("wise-project.xml was not found in the wise 2 project zip");
+		}
 		
-		//create the project folder that will contain the wise 4 project files
-		createProjectFolder(selectedFile);
+		progress.setPhase(ConversionProgress.Phase.PARSING);
 		
-		//create the upload folder that will contain the upload files from the wise 2 project
-		extractUploadFolder(selectedFile);
+		long parseStartTime = System.nanoTime();
+		result.setExtractTimeNanos(parseStartTime - extractStartTime);
+		report.setAssetExtractionNanos(parseStartTime - extractStartTime);
 		
-		//obtain the project xml file from the zip file
-		ZipEntry entry = projectArchiveFile.getEntry("wise-project.xml");
-		InputStream is = projectArchiveFile.getInputStream(entry);
-		InputStreamReader xmlInput = new InputStreamReader(is, "UTF-8");
-		SAXReader reader = new SAXReader();
-		document = reader.read(xmlInput);
+		String projectXMLHash = null;
+		
+		if(parsedProjectCache != null) {
+			//load the tree parsed from the same xml by an earlier conversion
+			projectXMLHash = ConversionManifest.sha256(projectXML);
+			document = parsedProjectCache.load(projectXMLHash);
+			report.setParsedFromCache(document != null);
+		}
+		
+		if(document == null) {
+			//parse the project xml
+			InputStreamReader xmlInput = new InputStreamReader(new ByteArrayInputStream(projectXML), "UTF-8");
+			SAXReader reader = new SAXReader();
+			document = reader.read(xmlInput);
+			
+			if(parsedProjectCache != null) {
+				//keep the tree for the next conversion of the same xml
+				parsedProjectCache.save(projectXMLHash, document);
+			}
+		} else {
+			writeToConvertLog(ConvertLog.Level.DETAILS, "Loaded the parsed project xml from " + parsedProjectCache.getCacheFile(projectXMLHash).getName());
+		}
+		
+		result.setParseTimeNanos(System.nanoTime() - parseStartTime);
+		report.setXmlParseNanos(result.getParseTimeNanos());
 		
 		//obtain the root element of the xml file
 		Element rootElement = document.getRootElement();
@@ -111,6 +361,22 @@ public class Wise2To4ProjectConverter {
 		//obtain the project title
 		Node projectTitleNode = rootElement.selectSingleNode("title");
 		String projectTitle = projectTitleNode.getText();
+		result.setProjectTitle(projectTitle);
+		report.setProjectTitle(projectTitle);
+		
+		//now that we have the xml we know how many steps there are to convert
+		List<Node> allStepNodes = rootElement.selectNodes("activity/step");
+		progress.setTotalSteps(allStepNodes.size());
+		
+		if(options.isCopyDuplicateSteps()) {
+			//find the steps that appear more than once so only their files are kept for copying
+			countDuplicateSteps(allStepNodes);
+		}
+		
+		if(options.isIncremental() && options.isReadLastConversion()) {
+			//find out what the last conversion into the same place was made from
+			previousManifest = ConversionManifest.read(outputSink, projectId);
+		}
 		
 		//the root project JSON object
 		JSONObject projectJSON = new JSONObject();
@@ -128,7 +394,12 @@ public class Wise2To4ProjectConverter {
 		 * parse all the activities which will also parse and create all the 
 		 * steps within the activities.
 		 */
+		long convertStartTime = System.nanoTime();
+		progress.setPhase(ConversionProgress.Phase.CONVERTING);
 		JSONArray projectActivitySequences = parseActivities(rootElement);
+		progress.setPhase(ConversionProgress.Phase.FINISHING);
+		result.setConvertTimeNanos(System.nanoTime() - convertStartTime);
+		report.setStepConversionNanos(result.getConvertTimeNanos());
 		
 		//an array that will contain all the activity identifiers
 		JSONArray refs = new JSONArray();
@@ -177,40 +448,32 @@ public class Wise2To4ProjectConverter {
 			e.printStackTrace();
 		}
 
-		//create the project.json file
-		File projectFile = new File(projectFolder, "wise4.project.json");
-		
 		try {
-			//write the .project.json contents to the actual file
-			BufferedWriter out = new BufferedWriter(new FileWriter(projectFile));
-
 			/*
-			 * toString(3) makes the toString() function output 3 spaces as indenting
+			 * write the .project.json contents to the project file. toString(3) 
+			 * makes the toString() function output 3 spaces as indenting
 			 * to make the .json file easy to read 
 			 */
-			out.write(projectJSON.toString(3));
+			byte[] projectFile = projectJSON.toString(3).getBytes(OutputSink.UTF_8);
+			String projectFileHash = ConversionManifest.sha256(projectFile);
+			manifest.setProjectFileHash(projectFileHash);
 			
-			out.close();
+			if(previousManifest != null && projectFileHash.equals(previousManifest.getProjectFileHash()) && isUnchanged("wise4.project.json", projectFileHash)) {
+				//leave the project file alone so its modified time shows when it last changed
+				writeToConvertLog(ConvertLog.Level.DETAILS, "wise4.project.json is unchanged");
+			} else {
+				meteredOutputSink.write("wise4.project.json", projectFile);
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		} catch (JSONException e) {
 			e.printStackTrace();
 		}
 		
-		try {
-			//create and write the project file to disk
-			projectFile.createNewFile();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		
-		//output the details of copying image files and saving them to the assets folder
-		writeToConvertLog(copyImageFileStringBuffer.toString());
-		
-		writeToConvertLog("====================\n");
+		writeToConvertLog(ConvertLog.Level.SUMMARY, "====================\n");
 		
 		//output the confirmation that we are done converting the project
-		writeToConvertLog("Converted project " + projectId);
+		writeToConvertLog(ConvertLog.Level.SUMMARY, "Converted project " + projectId);
 		
 		if(numberOfStepsFailedToConvert > 0) {
 			//there were some steps we failed to convert
@@ -221,14 +484,128 @@ public class Wise2To4ProjectConverter {
 			}
 		
 			//output the number of steps we failed to convert
-			writeToConvertLog("Failed to convert " + numberOfStepsFailedToConvert + " " + stepString);
+			writeToConvertLog(ConvertLog.Level.SUMMARY, "Failed to convert " + numberOfStepsFailedToConvert + " " + stepString);
 		} else {
 			//we converted all the steps
-			writeToConvertLog("Successfully converted all steps");
+			writeToConvertLog(ConvertLog.Level.SUMMARY, "Successfully converted all steps");
 		}
 		
-		//create and write the output log
-		createConvertLog();
+		if(previousManifest != null) {
+			//output how much of the last conversion we were able to keep
+			writeToConvertLog(ConvertLog.Level.SUMMARY, "Kept " + stepsReused + " unchanged steps from the last conversion");
+		}
+		
+		if(stepsCopied > 0) {
+			//output how many steps did not need converting because an earlier step was the same
+			writeToConvertLog(ConvertLog.Level.SUMMARY, "Copied " + stepsCopied + " duplicate steps");
+		}
+		
+		try {
+			//wait for the step files to reach the disk so we can report the totals
+			meteredOutputSink.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		if(options.isIncremental()) {
+			//record what the steps were made from for the next incremental conversion
+			createConversionManifest();
+		}
+		
+		if(options.isSkipUnchangedAssets()) {
+			//record the assets so the next conversion into the same place can keep them
+			createAssetIndex();
+		}
+		
+		if(options.isWriteReport()) {
+			//write the timings and counters next to the project file
+			createConversionReport();
+		}
+	}
+	
+	/**
+	 * Write the CRC32 and size of every asset to the asset index file
+	 */
+	private void createAssetIndex() {
+		try {
+			outputSink.writeText(AssetIndex.INDEX_FILE_NAME, assetIndex.toJSON().toString(3));
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Write what each step was made from and what it wrote to the
+	 * conversion manifest file
+	 */
+	private void createConversionManifest() {
+		try {
+			outputSink.writeText(ConversionManifest.MANIFEST_FILE_NAME, manifest.toJSON().toString(3));
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Determine whether a file from the last conversion is still in the
+	 * output sink with the given hash
+	 * @param path the path relative to the project root
+	 * @param hash the hex SHA-256 hash the file should have
+	 * @return whether the file is there with that hash
+	 * @throws IOException
+	 */
+	private boolean isUnchanged(String path, String hash) throws IOException {
+		byte[] content = outputSink.read(path);
+		return content != null && ConversionManifest.sha256(content).equals(hash);
+	}
+	
+	/**
+	 * Write the timings and counters for this conversion to the conversion
+	 * report file
+	 */
+	private void createConversionReport() {
+		report.setWriteNanos(meteredOutputSink.getWriteNanos());
+		report.setTotalNanos(System.nanoTime() - conversionStartTime);
+		
+		if(outputSink instanceof WriteBehindOutputSink) {
+			/*
+			 * how far the output threads fell behind varies from run to run so it
+			 * goes in the report with the timings and not in the convert log,
+			 * which stays the same when the project has not changed
+			 */
+			report.setMaxWriteQueueDepth(((WriteBehindOutputSink) outputSink).getMaxQueueDepth());
+		}
+		
+		try {
+			outputSink.writeText(ConversionReport.REPORT_FILE_NAME, report.toJSON().toString(3));
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Hash the xml of every step and count how many steps have each hash.
+	 * Steps whose xml mentions node_ are left out because their files could
+	 * not be told apart from the node numbers when copying them.
+	 * @param stepNodes all the step xml nodes in the project
+	 */
+	private void countDuplicateSteps(List<Node> stepNodes) {
+		for(Node stepNode : stepNodes) {
+			String stepXML = stepNode.asXML();
+			String sourceHash = ConversionManifest.sha256(stepXML.getBytes(OutputSink.UTF_8));
+			stepSourceHashes.put(stepNode, sourceHash);
+			
+			if(!stepXML.contains("node_")) {
+				Integer count = stepSourceCounts.get(sourceHash);
+				stepSourceCounts.put(sourceHash, count == null ? 1 : count + 1);
+			}
+		}
 	}
 	
 	/**
@@ -253,7 +630,7 @@ public class Wise2To4ProjectConverter {
 			String activityTitle = activityTitleNode.getText();
 			
 			//output to the log to specify that we have started to convert this sequence
-			writeToConvertLog("[Activity " + (sequenceCounter + 1) + ": " + activityTitle + "]");
+			writeToConvertLog(ConvertLog.Level.SUMMARY, "[Activity " + (sequenceCounter + 1) + ": " + activityTitle + "]");
 			
 			//parses and creates all the steps in the activity
 			JSONArray projectStepNodesInActivity = parseSteps(activityNode);
@@ -281,7 +658,7 @@ public class Wise2To4ProjectConverter {
 			}
 			
 			//create a new line in the output log
-			writeToConvertLog("");
+			writeToConvertLog(ConvertLog.Level.SUMMARY, "");
 			
 			//create the activity sequence JSON object
 			JSONObject projectSequence = new JSONObject();
@@ -419,66 +796,139 @@ public class Wise2To4ProjectConverter {
 		
 		Converter converter = null;
 		
+		//the lines for this step are kept together and in step order in the output log
+		ConvertLog.Section stepLog = convertLog.openSection();
+		
+		//the measurements for this step in the conversion report
+		StepReport stepReport = new StepReport(stepType);
+		long stepStartTime = System.nanoTime();
+		
+		//counts what this step writes
+		MeteredOutputSink stepOutputSink = new MeteredOutputSink(meteredOutputSink);
+		
+		//label this step in flight recordings
+		StepConversionEvent event = new StepConversionEvent();
+		event.begin();
+		
+		//why the step could not be converted if it fails
+		String failureReason = "No converter for step type " + stepType;
+		
 		//obtain the correct converter for the current step type we need to convert
-		if(stepType.equals("DisplayPage")) {
-			converter = new DisplayPageConverter();
-		} else if(stepType.equals("Evidence")) {
-			converter = new EvidenceConverter();
-		} else if(stepType.equals("Notes")) {
-			converter = new NotesConverter();
-		} else if(stepType.equals("StudentAssessment")) {
-			converter = new StudentAssessmentConverter();
-		} else if(stepType.equals("SelfTest")) {
-			converter = new SelfTestConverter();
-		} else if(stepType.equals("Journal")) {
-			converter = new JournalConverter();
-		} else if(stepType.equals("Discussion") || stepType.equals("DiscussionForum")) {
-			converter = new DiscussionConverter();
-		} else if(stepType.equals("Wisedraw2")) {
-			converter = new Wisedraw2Converter();
-		} else if(stepType.equals("ChallengeQuestion")) {
-			converter = new ChallengeQuestionConverter();
-		} else if(stepType.equals("Bookmarks")) {
-			converter = new BookmarksConverter();
-		} else if(stepType.equals("Alerts")) {
-			converter = new AlertsConverter();
-		} else if(stepType.equals("Sensemaker")) {
-			converter = new SensemakerConverter();
-		} else if(stepType.equals("ConcordModelSaveJar")) {
-			converter = new ConcordModelSaveJarConverter();
+		converter = createConverter(stepType);
+		
+		if(converter instanceof ConcordModelSaveJarConverter) {
 			((ConcordModelSaveJarConverter) converter).setProjectId(projectId);
-		} else if(stepType.equals("DataGrid")) {
-			converter = new TableConverter();
-		} else if(stepType.equals("OTrunk") || stepType.equals("Otrunk")) {
-			converter = new OTrunkConverter();
-		} else if(stepType.equals("OutsideUrl")) {
-			converter = new OutsideUrlConverter();
-		} else if(stepType.equals("Table")) {
-			converter = new TableConverter();
-		} else if(stepType.equals("Brainstorm")) {
-			converter = new DiscussionConverter();
 		}
 		
+		//the step that the last conversion made from the same xml with the same converter
+		ConversionManifest.StepEntry previousStep = null;
+		
+		//what the step is made from, recorded in the manifest
+		String sourceHash = null;
+		String converterVersion = null;
+		
+		//the key the step's files are kept under if the same xml appears more than once, null if it does not
+		String memoKey = null;
+		MemoizedStep memoizedStep = null;
+		
 		if(converter != null) {
+			sourceHash = stepSourceHashes.get(stepNode);
+			
+			if(sourceHash == null) {
+				sourceHash = ConversionManifest.sha256(stepNode.asXML().getBytes(OutputSink.UTF_8));
+			}
+			
+			converterVersion = converter.getFullVersion();
+			
+			Integer sourceCount = stepSourceCounts.get(sourceHash);
+			
+			if(sourceCount != null && sourceCount > 1) {
+				//an earlier copy of this step may already have been converted
+				memoKey = sourceHash + " " + converter.getClass().getName() + " " + converterVersion;
+				memoizedStep = memoizedSteps.get(memoKey);
+			}
+			
+			if(previousManifest != null) {
+				//the step keeps its number if every step before it was converted again
+				previousStep = previousManifest.getStep(stepCounter);
+				
+				if(previousStep != null && !(previousStep.matches(sourceHash, converter.getClass().getName(), converterVersion) && ConversionManifest.outputsUnchanged(previousStep, outputSink))) {
+					previousStep = null;
+				}
+			}
+		}
+		
+		if(previousStep != null) {
+			//nothing has changed since the last conversion so keep its files
+			projectStepNode = previousStep.getProjectNode();
+			manifest.addStep(previousStep);
+			
+			stepReport.setConverterName(converter.getClass().getSimpleName());
+			stepReport.setReused(true);
+			stepsReused++;
+			stepCounter++;
+		} else if(memoizedStep != null) {
 			try {
+				//write the files of the identical step again under this step's number
+				HashingOutputSink hashingOutputSink = new HashingOutputSink(stepOutputSink);
+				projectStepNode = memoizedStep.copyTo(hashingOutputSink, stepCounter);
+				
+				//the copy depends on the same images as the step it was copied from
+				Map<String, String> outputs = hashingOutputSink.getHashes();
+				outputs.putAll(memoizedStep.getSharedFileHashes());
+				manifest.addStep(new ConversionManifest.StepEntry(sourceHash, converter.getClass().getName(), converterVersion, projectStepNode, outputs));
+				
+				stepReport.setConverterName(converter.getClass().getSimpleName());
+				stepReport.setCopiedFrom(memoizedStep.getIdentifier());
+				stepsCopied++;
+				stepCounter++;
+			} catch(Exception e) {
+				e.printStackTrace();
+				failureReason = e.toString();
+			}
+		} else if(converter != null) {
+			try {
+				//remember what the converter writes for the manifest, and the files themselves if the step appears again
+				HashingOutputSink hashingOutputSink = new HashingOutputSink(stepOutputSink, memoKey != null);
+				
 				/*
-				 * set the project folder into the converter so that
-				 * it can save image files into the assets folder
+				 * set the sink that the converter will write the step files through
+				 * and save image files into the assets folder with
 				 */
-				converter.setProjectFolder(projectFolder);
+				converter.setOutputSink(hashingOutputSink);
+				
+				//set the settings that decide where images are downloaded from
+				converter.setOptions(options);
+				
+				//set the report that the image fetches for this step are recorded in
+				converter.setStepReport(stepReport);
+				converter.setProgress(progress);
+				stepReport.setConverterName(converter.getClass().getSimpleName());
 				
 				/*
-				 * set this string buffer to record the details of copying
+				 * set the log section to record the details of copying
 				 * image files into the assets folder
 				 */
-				converter.setCopyImageFileStringBuffer(copyImageFileStringBuffer);
+				converter.setConvertLog(stepLog);
 				
 				//create the step JSON
-				projectStepNode = converter.createStep(stepNode, projectFolder, stepCounter);
+				projectStepNode = converter.createStep(stepNode, stepCounter);
+				
+				//record the failed downloads so the step is converted again next time
+				ConversionManifest.StepEntry stepEntry = new ConversionManifest.StepEntry(sourceHash, converter.getClass().getName(), converterVersion, projectStepNode, hashingOutputSink.getHashes());
+				stepEntry.setDownloadFailures(stepReport.getImageFetchFailures());
+				manifest.addStep(stepEntry);
+				downloadFailures += stepReport.getImageFetchFailures();
+				
+				if(memoKey != null && projectStepNode != null && stepReport.getImageFetchFailures() == 0) {
+					//keep the files so the later copies of this step can be written without converting them, unless a download failed and should be tried again
+					memoizedSteps.put(memoKey, new MemoizedStep(stepCounter, projectStepNode, hashingOutputSink.getContents(), hashingOutputSink.getHashes()));
+				}
 				
 				stepCounter++;				
 			} catch(Exception e) {
 				e.printStackTrace();
+				failureReason = e.toString();
 			}
 		}
 		
@@ -491,11 +941,18 @@ public class Wise2To4ProjectConverter {
 				String stepId = projectStepNode.getString("identifier");
 				String stepTitle = projectStepNode.getString("title");
 				
+				stepReport.setConverted(true);
+				stepReport.setIdentifier(stepId);
+				stepReport.setTitle(stepTitle);
+				
 				/*
 				 * output a line to the output log to show that this step was successfully converted
 				 * [x] means it was successfully converter
+				 * [=] means it was unchanged so the files from the last conversion were kept
 				 */
-				writeToConvertLog("[x] " + stepType + " - " + stepId + " - " + stepTitle);
+				String marker = stepReport.isReused() ? "[=] " : "[x] ";
+				String copiedFrom = stepReport.getCopiedFrom().length() > 0 ? " (same as " + stepReport.getCopiedFrom() + ")" : "";
+				stepLog.write(ConvertLog.Level.STEPS, marker + stepType + " - " + stepId + " - " + stepTitle + copiedFrom);
 			} catch (JSONException e) {
 				e.printStackTrace();
 			}
@@ -504,186 +961,449 @@ public class Wise2To4ProjectConverter {
 			 * we do not have a converter for step type
 			 * [!] means we failed to convert this step
 			 */
-			writeToConvertLog("[!] Could not create " + stepType);
+			stepLog.write(ConvertLog.Level.STEPS, "[!] Could not create " + stepType);
 			
 			//output the xml for the step to the output log so we can easily see what failed to convert
-			writeToConvertLog(stepNode.asXML());
+			stepLog.writeXML(stepNode.asXML());
 			
 			//increment the failed number counter
 			numberOfStepsFailedToConvert++;
+			
+			//remember the failure so we can report it to the caller
+			Node titleNode = stepNode.selectSingleNode("title");
+			String title = titleNode == null ? "" : titleNode.getText();
+			result.addFailedStep(new ConversionResult.StepFailure(stepType, title, failureReason));
+			stepReport.setTitle(title);
+		}
+		
+		//record what the step cost
+		stepReport.setTimeNanos(System.nanoTime() - stepStartTime);
+		stepReport.setBytesWritten(stepOutputSink.getBytesWritten());
+		stepReport.setFilesWritten(stepOutputSink.getFilesWritten());
+		report.addStep(stepReport);
+		progress.stepDone();
+		
+		event.end();
+		
+		if(event.shouldCommit()) {
+			event.stepType = stepType;
+			event.nodeId = stepReport.getIdentifier();
+			event.converter = stepReport.getConverterName();
+			event.converted = stepReport.isConverted();
+			event.commit();
 		}
 		
+		//the step is done so its lines can be written
+		stepLog.close();
+		
 		return projectStepNode;
 	}
 	
 	/**
-	 * Create the project folder that we will put all the wise 4 project files into
-	 * @param selectedFile the wise 2 export zip file
+	 * Create the converter for a step type
+	 * @param stepType the type of the step e.g. DisplayPage
+	 * @return a new converter or null if we cannot convert the step type
 	 */
-	private void createProjectFolder(File selectedFile) {
-		String filePath = selectedFile.getPath();
-		String parentFolder = selectedFile.getParent();
+	static Converter createConverter(String stepType) {
+		Converter converter = null;
 		
-		/*
-		 * obtain the name of the zip file, this is assuming the zip file
-		 * was obtained from wise2 and is in a format like this example
-		 * wiseProject-31202-090911_122414-wpe.zip
-		 */
+		if(stepType.equals("DisplayPage")) {
+			converter = new DisplayPageConverter();
+		} else if(stepType.equals("Evidence")) {
+			converter = new EvidenceConverter();
+		} else if(stepType.equals("Notes")) {
+			converter = new NotesConverter();
+		} else if(stepType.equals("StudentAssessment")) {
+			converter = new StudentAssessmentConverter();
+		} else if(stepType.equals("SelfTest")) {
+			converter = new SelfTestConverter();
+		} else if(stepType.equals("Journal")) {
+			converter = new JournalConverter();
+		} else if(stepType.equals("Discussion") || stepType.equals("DiscussionForum")) {
+			converter = new DiscussionConverter();
+		} else if(stepType.equals("Wisedraw2")) {
+			converter = new Wisedraw2Converter();
+		} else if(stepType.equals("ChallengeQuestion")) {
+			converter = new ChallengeQuestionConverter();
+		} else if(stepType.equals("Bookmarks")) {
+			converter = new BookmarksConverter();
+		} else if(stepType.equals("Alerts")) {
+			converter = new AlertsConverter();
+		} else if(stepType.equals("Sensemaker")) {
+			converter = new SensemakerConverter();
+		} else if(stepType.equals("ConcordModelSaveJar")) {
+			converter = new ConcordModelSaveJarConverter();
+		} else if(stepType.equals("DataGrid")) {
+			converter = new TableConverter();
+		} else if(stepType.equals("OTrunk") || stepType.equals("Otrunk")) {
+			converter = new OTrunkConverter();
+		} else if(stepType.equals("OutsideUrl")) {
+			converter = new OutsideUrlConverter();
+		} else if(stepType.equals("Table")) {
+			converter = new TableConverter();
+		} else if(stepType.equals("Brainstorm")) {
+			converter = new DiscussionConverter();
+		}
 		
-		//obtain everything starting at the wiseProject-
-		String archiveFileName = filePath.substring(filePath.indexOf("wiseProject-"));
+		return converter;
+	}
+	
+	/**
+	 * Get the versions of all the converters, which change whenever the
+	 * output of any step type could change
+	 * @return the step types and converter versions e.g. DisplayPage=1.1;Evidence=1.1;...
+	 */
+	static String getConverterVersions() {
+		StringBuffer versions = new StringBuffer();
 		
-		//find the first dash
-		int firstDash = archiveFileName.indexOf("-");
+		for(String stepType : STEP_TYPES) {
+			versions.append(stepType).append('=').append(createConverter(stepType).getFullVersion()).append(';');
+		}
 		
-		//find the second dash
-		int secondDash = archiveFileName.indexOf("-", firstDash + 1);
+		return versions.toString();
+	}
+	
+	/**
+	 * Read through the wise 2 export zip once, copying all the upload folder
+	 * files into the assets folder and keeping the project xml file in memory
+	 * @param exportStream the contents of the wise 2 export zip file
+	 * @return the bytes of wise-project.xml or null if the zip does not contain it
+	 * @throws IOException
+	 */
+	private byte[] readProjectArchive(InputStream exportStream) throws IOException {
+		byte[] projectXML = null;
 		
-		/*
-		 * obtain the numbers inbetween the first two dashes which should be
-		 * the project id. from the example above it would be 31202
-		 */
-		projectId = archiveFileName.substring(firstDash + 1, secondDash);
+		//the caller owns the stream so closing the zip stream must not close it
+		ZipInputStream zipinputstream = new ZipInputStream(new CloseShieldInputStream(exportStream));
 		
-		/*
-		 * the folder name will be the project id and it will be placed in the
-		 * same folder the wise 2 export zip file is in
-		 */
-		String projectFolderPath = parentFolder + File.separator + projectId;
-
-		//create the folder
-		projectFolder = new File(projectFolderPath);
-		projectFolder.mkdir();
+		try {
+			//create an assets folder in the wise 4 project
+			meteredOutputSink.createFolder("assets");
+			
+			long zipOpenStartTime = System.nanoTime();
+			ZipEntry zipentry = zipinputstream.getNextEntry();
+			report.setZipOpenNanos(System.nanoTime() - zipOpenStartTime);
+			
+			//loop through all the files in the wise 2 export zip file
+			while (zipentry != null) {
+				//get the name of the file
+				String entryName = zipentry.getName();
+				
+				ZipEntryExtractionEvent event = new ZipEntryExtractionEvent();
+				event.begin();
+				
+				//the number of bytes in the entry
+				long entryBytes = 0;
+				
+				if(entryName.equals("wise-project.xml")) {
+					//keep the project xml so we can parse it once we have read the whole zip
+					projectXML = IOUtils.toByteArray(zipinputstream);
+					entryBytes = projectXML.length;
+				} else if(!zipentry.isDirectory()) {
+					/*
+					 * get assets folder name e.g.
+					 * if the entryName in the zip file is upload/sunlight.jpg
+					 * the assetsEntryName will be assets/sunlight.jpg
+					 */
+					String assetsEntryName = entryName.replace("upload", "assets");
+					
+					/*
+					 * the local header only has the CRC32 and size when the zip was not
+					 * written with a data descriptor. closing the entry still inflates it
+					 * to get to the next one but nothing is buffered or written.
+					 */
+					if(keepAsset(entryName, assetsEntryName, zipentry.getCrc(), zipentry.getSize())) {
+						entryBytes = zipentry.getSize();
+					} else {
+						//write to the output log that we are copying the file from the zip file
+						writeToConvertLog(ConvertLog.Level.DETAILS, "copying: " + entryName + " to " + assetsEntryName);
+						
+						//read the contents of the file and hand them to the output threads
+						byte[] assetContent = IOUtils.toByteArray(zipinputstream);
+						meteredOutputSink.write(assetsEntryName, assetContent);
+						report.recordAssetCopied(assetContent.length);
+						entryBytes = assetContent.length;
+						
+						//the data descriptor has been read by now if the local header did not have the CRC32
+						recordAsset(assetsEntryName, zipentry.getCrc(), assetContent);
+					}
+				}
+				
+				//close the zip entry
+				zipinputstream.closeEntry();
+				
+				event.end();
+				
+				progress.entryExtracted(entryBytes);
+				
+				if(event.shouldCommit()) {
+					event.entryName = entryName;
+					event.bytes = entryBytes;
+					event.commit();
+				}
+				
+				//move on to the next file in the zip file
+				zipentry = zipinputstream.getNextEntry(); 
+			}
+		} finally {
+			//close the zip stream handle
+			zipinputstream.close();
+		}
+		
+		//create a new line in the console output
+		writeToConvertLog(ConvertLog.Level.SUMMARY, "");
+		
+		return projectXML;
 	}
 	
 	/**
-	 * Extract all the upload folder files 
-	 * @param zipFile the wise 2 export zip file
+	 * Go through the entries of the wise 2 export zip in the order they
+	 * appear in the central directory, copying the upload folder files that
+	 * are not already in the assets folder and reading the project xml file
+	 * into memory. The assets that are already there are not inflated.
+	 * With extract helpers the other assets are inflated after going
+	 * through the central directory, on several threads at once.
+	 * @param exportZip the wise 2 export zip file
+	 * @return the bytes of wise-project.xml or null if the zip does not contain it
+	 * @throws IOException
 	 */
-	private void extractUploadFolder(File zipFile) {
-        try {
-    		byte[] buf = new byte[1024];
-            ZipInputStream zipinputstream = null;
-            ZipEntry zipentry;
-			zipinputstream = new ZipInputStream(new FileInputStream(zipFile));
+	private byte[] readProjectArchive(ZipFile exportZip) throws IOException {
+		byte[] projectXML = null;
+		
+		//create an assets folder in the wise 4 project
+		meteredOutputSink.createFolder("assets");
+		
+		long zipOpenStartTime = System.nanoTime();
+		Enumeration<? extends ZipEntry> zipEntries = exportZip.entries();
+		report.setZipOpenNanos(System.nanoTime() - zipOpenStartTime);
+		
+		//the upload files that are inflated together once we have gone through the central directory
+		List<ZipEntry> deferredAssets = new ArrayList<ZipEntry>();
+		
+		//loop through all the files in the wise 2 export zip file
+		while(zipEntries.hasMoreElements()) {
+			ZipEntry zipentry = zipEntries.nextElement();
 			
-			//get the wise 4 project folder
-			String projectFolderPath = projectFolder.getAbsolutePath();
+			//get the name of the file
+			String entryName = zipentry.getName();
 			
-			//create an assets folder in the wise 4 project folder
-			File uploadFolder = new File(projectFolderPath + File.separator + "assets");
-			uploadFolder.mkdir();
+			ZipEntryExtractionEvent event = new ZipEntryExtractionEvent();
+			event.begin();
 			
-			zipentry = zipinputstream.getNextEntry();
+			//the number of bytes in the entry
+			long entryBytes = 0;
 			
-			//loop through all the files in the wise 2 export zip file
-            while (zipentry != null) {
-            	//get the name of the file
-            	String entryName = zipentry.getName();
-            	
-            	/*
-            	 * get assets folder name e.g.
-            	 * if the entryName in the zip file is upload/sunlight.jpg
-            	 * the assetsEntryName will be assets/sunlight.jpg
-            	 */
-            	String assetsEntryName = entryName.replace("upload", "assets");
-            	
-            	//copy all files except wise-project.xml
-            	if(!entryName.equals("wise-project.xml")) {
-                    
-                    FileOutputStream fileoutputstream;
-                    
-                    //create a new file handle for the file we are going to copy
-                    File newFile = new File(projectFolderPath, assetsEntryName);
-                    
-                    //write to the output log that we are copying the file from the zip file
-                    writeToConvertLog("copying: " + entryName + " to " + newFile.getAbsolutePath());
-                    
-                    //get the parent directory
-                    String directory = newFile.getParent();
-                    
-                    //not sure what this is for
-                    if(directory == null) {
-                        if(newFile.isDirectory()) {
-                            break;
-                        }
-                    }
-                    
-                    //obtain a file output handle that we will use to write the contents to the file
-                    fileoutputstream = new FileOutputStream(projectFolderPath + File.separator + assetsEntryName);             
-
-                    //write the contents to the file
-                    int n;
-                    while ((n = zipinputstream.read(buf, 0, 1024)) > -1) {
-                        fileoutputstream.write(buf, 0, n);
-                    }
-
-                    //close the file handle
-                    fileoutputstream.close();
-                    
-                    //close the zip entry
-                    zipinputstream.closeEntry();
-            	}
-            	
-            	//move on to the next file in the zip file
-            	zipentry = zipinputstream.getNextEntry(); 
-            }
-            
-            //close the zip file handle
-            zipinputstream.close();
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
+			if(entryName.equals("wise-project.xml")) {
+				//keep the project xml so we can parse it once we have gone through the whole zip
+				projectXML = readEntry(exportZip, zipentry);
+				entryBytes = projectXML.length;
+			} else if(!zipentry.isDirectory()) {
+				//the assets folder name e.g. upload/sunlight.jpg becomes assets/sunlight.jpg
+				String assetsEntryName = entryName.replace("upload", "assets");
+				
+				//the central directory always has the CRC32 and size
+				if(keepAsset(entryName, assetsEntryName, zipentry.getCrc(), zipentry.getSize())) {
+					entryBytes = zipentry.getSize();
+				} else {
+					//write to the output log that we are copying the file from the zip file
+					writeToConvertLog(ConvertLog.Level.DETAILS, "copying: " + entryName + " to " + assetsEntryName);
+					
+					if(extractHelpers != null) {
+						//the central directory has the size so it can be counted now, the rest is recorded when it is inflated
+						report.recordAssetCopied(zipentry.getSize());
+						deferredAssets.add(zipentry);
+						continue;
+					}
+					
+					//read the contents of the file and hand them to the output threads
+					byte[] assetContent = readEntry(exportZip, zipentry);
+					meteredOutputSink.write(assetsEntryName, assetContent);
+					report.recordAssetCopied(assetContent.length);
+					entryBytes = assetContent.length;
+					
+					recordAsset(assetsEntryName, zipentry.getCrc(), assetContent);
+				}
+			}
+			
+			event.end();
+			
+			progress.entryExtracted(entryBytes);
+			
+			if(event.shouldCommit()) {
+				event.entryName = entryName;
+				event.bytes = entryBytes;
+				event.commit();
+			}
+		}
+		
+		if(!deferredAssets.isEmpty()) {
+			extractAssets(exportZip, deferredAssets);
 		}
 		
 		//create a new line in the console output
-		writeToConvertLog("");
+		writeToConvertLog(ConvertLog.Level.SUMMARY, "");
+		
+		return projectXML;
 	}
 	
 	/**
-	 * Output convert log information to System.out and also to the
-	 * convert log string buffer that we will later write to a text
-	 * file.
-	 * @param string
+	 * Inflate upload files and hand them to the output sink, on this thread
+	 * and on any helpers the extract helpers executor starts while we are
+	 * still going. Each thread takes the next file that nobody has taken
+	 * yet so a helper that starts late just finds less to do.
+	 * @param exportZip the wise 2 export zip file, which can be read by several threads at once
+	 * @param entries the upload files to copy
+	 * @throws IOException if any of the upload files could not be copied
 	 */
-	private void writeToConvertLog(String string) {
-		//output the string to the console
-		System.out.println(string);
+	private void extractAssets(final ZipFile exportZip, List<ZipEntry> entries) throws IOException {
+		final Queue<ZipEntry> remainingEntries = new ConcurrentLinkedQueue<ZipEntry>(entries);
+		final CountDownLatch entriesDone = new CountDownLatch(entries.size());
+		final AtomicReference<IOException> failure = new AtomicReference<IOException>();
 		
-		//output the string to the output log
-		convertLogStringBuffer.append(string + "\n");
+		Runnable extractor = new Runnable() {
+			public void run() {
+				ZipEntry zipentry = null;
+				
+				while((zipentry = remainingEntries.poll()) != null) {
+					try {
+						if(failure.get() == null) {
+							extractAsset(exportZip, zipentry);
+						}
+					} catch (IOException e) {
+						failure.compareAndSet(null, e);
+					} finally {
+						entriesDone.countDown();
+					}
+				}
+			}
+		};
+		
+		//there is no point in more helpers than there are files or cores
+		int helpers = Math.min(entries.size(), Runtime.getRuntime().availableProcessors()) - 1;
+		
+		for(int x=0; x<helpers; x++) {
+			try {
+				extractHelpers.execute(extractor);
+			} catch (RejectedExecutionException e) {
+				//nobody can help so we do it all here
+				break;
+			}
+		}
+		
+		extractor.run();
+		
+		try {
+			//wait for the files the helpers are still inflating
+			entriesDone.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for the upload files of " + projectId);
+		}
+		
+		if(failure.get() != null) {
+			throw failure.get();
+		}
 	}
 	
 	/**
-	 * Create the convert log text file and write the convert
-	 * log text into the file.
+	 * Inflate one upload file and hand it to the output sink. This may run
+	 * on several threads at once.
+	 * @param exportZip the wise 2 export zip file
+	 * @param zipentry the upload file
+	 * @throws IOException
 	 */
-	private void createConvertLog() {
-		if(convertLogFile == null) {
-			//create the file if it does not already exist
-			convertLogFile = new File(projectFolder, convertLogFileName);
+	private void extractAsset(ZipFile exportZip, ZipEntry zipentry) throws IOException {
+		ZipEntryExtractionEvent event = new ZipEntryExtractionEvent();
+		event.begin();
+		
+		String assetsEntryName = zipentry.getName().replace("upload", "assets");
+		byte[] assetContent = readEntry(exportZip, zipentry);
+		meteredOutputSink.write(assetsEntryName, assetContent);
+		recordAsset(assetsEntryName, zipentry.getCrc(), assetContent);
+		
+		event.end();
+		
+		progress.entryExtracted(assetContent.length);
+		
+		if(event.shouldCommit()) {
+			event.entryName = zipentry.getName();
+			event.bytes = assetContent.length;
+			event.commit();
 		}
+	}
+	
+	/**
+	 * Inflate one entry of the wise 2 export zip
+	 * @param exportZip the wise 2 export zip file
+	 * @param zipentry the entry to read
+	 * @return the contents of the entry
+	 * @throws IOException
+	 */
+	private byte[] readEntry(ZipFile exportZip, ZipEntry zipentry) throws IOException {
+		InputStream entryStream = exportZip.getInputStream(zipentry);
 		
 		try {
-			BufferedWriter out = new BufferedWriter(new FileWriter(convertLogFile));
-			
-			//write the convert log text that we have accumulated to the convert log
-			out.write(convertLogStringBuffer.toString());
-			
-			out.close();
-		} catch (IOException e) {
-			e.printStackTrace();
+			return IOUtils.toByteArray(entryStream);
+		} finally {
+			entryStream.close();
+		}
+	}
+	
+	/**
+	 * Determine whether an upload file is already in the assets folder from
+	 * the last conversion into the same place. If it is, it is recorded in
+	 * the new asset index and does not need to be copied.
+	 * @param entryName the name of the upload file in the zip e.g. upload/sunlight.jpg
+	 * @param assetsEntryName the path of the asset e.g. assets/sunlight.jpg
+	 * @param crc the CRC32 of the zip entry, -1 if it is not known yet
+	 * @param size the uncompressed size of the zip entry, -1 if it is not known yet
+	 * @return whether the asset can be kept
+	 */
+	private boolean keepAsset(String entryName, String assetsEntryName, long crc, long size) {
+		if(previousAssetIndex == null || !previousAssetIndex.isUnchanged(assetsEntryName, crc, size, outputSink)) {
+			return false;
 		}
+		
+		writeToConvertLog(ConvertLog.Level.DETAILS, "keeping: " + assetsEntryName + " is the same as " + entryName);
+		assetIndex.addAsset(assetsEntryName, crc, size);
+		report.recordAssetKept(size);
+		return true;
 	}
 	
 	/**
-	 * Get the wise 4 project folder that we are creating the wise 4
-	 * projects file in.
-	 * @return the projectFolder
+	 * Record an asset that was copied in the new asset index
+	 * @param assetsEntryName the path of the asset e.g. assets/sunlight.jpg
+	 * @param crc the CRC32 from the zip entry, -1 if the zip did not give one
+	 * @param assetContent the contents of the asset
 	 */
-	public File getProjectFolder() {
-		return projectFolder;
+	private void recordAsset(String assetsEntryName, long crc, byte[] assetContent) {
+		if(crc == -1) {
+			CRC32 checksum = new CRC32();
+			checksum.update(assetContent);
+			crc = checksum.getValue();
+		}
+		
+		assetIndex.addAsset(assetsEntryName, crc, assetContent.length);
+	}
+	
+	/**
+	 * Output convert log information. The log thread prints it to System.out
+	 * if the level is shown on the console and writes it to the convert log
+	 * text file.
+	 * @param level how important the line is
+	 * @param string
+	 */
+	private void writeToConvertLog(ConvertLog.Level level, String string) {
+		convertLog.write(level, string);
+	}
+	
+	/**
+	 * Create the convert log text file and start the log thread that
+	 * streams the convert log text into the file
+	 * @throws IOException
+	 */
+	private void createConvertLog() throws IOException {
+		convertLog = new ConvertLog(outputSink.openStream(convertLogFileName), System.out, options.getConsoleLevel(), options.getLogQueueCapacity(), options.getMaxLoggedXMLLength());
 	}
 	
 	/**
@@ -691,18 +1411,46 @@ public class Wise2To4ProjectConverter {
 	 * wiseProject-31015-080410_111406-wpe.zip
 	 * and converts the old Wise 2.0 project into a Wise 4.0 project
 	 * 
-	 * @param args args[0] is an optional argument that is the path to a wise 2 zip file
+	 * @param args args[0] is an optional argument that is the path to a wise 2 zip file.
+	 * the path may be preceded by -zip to write a wise 4 project zip file instead of a folder
+	 * and by -incremental to keep the steps that have not changed since the last conversion
+	 * and by -writeIfChanged to leave the files that already have the same contents alone.
 	 * @throws Exception
 	 */
 	public static void main(String[] args) throws Exception {
 		File selectedFile = null;
 		
+		//whether to write a wise 4 project zip file instead of a folder
+		boolean zipOutput = false;
+		
 		//panel used to display the file chooser dialog
 		JPanel panel = new JPanel();
 		
-		if(args.length > 0) {
+		//whether to keep the steps that have not changed since the last conversion
+		boolean incremental = false;
+		
+		//whether to leave the files that already have the same contents alone
+		boolean writeIfChanged = false;
+		
+		//the index of the argument that contains the wise 2 zip file path
+		int fileArgIndex = 0;
+		
+		//the flags come before the wise 2 zip file path
+		while(args.length > fileArgIndex && args[fileArgIndex].startsWith("-")) {
+			if(args[fileArgIndex].equals("-zip")) {
+				zipOutput = true;
+			} else if(args[fileArgIndex].equals("-incremental")) {
+				incremental = true;
+			} else if(args[fileArgIndex].equals("-writeIfChanged")) {
+				writeIfChanged = true;
+			}
+			
+			fileArgIndex++;
+		}
+		
+		if(args.length > fileArgIndex) {
 			//an argument wise 2 zip file path has been passed in as an argument 
-			selectedFile = new File(args[0]);	
+			selectedFile = new File(args[fileArgIndex]);	
 		} else {
 			/*
 			 * no argument has been provided so we will display the file chooser
@@ -719,11 +1467,71 @@ public class Wise2To4ProjectConverter {
 		
 		if(selectedFile != null) {
 			try{
-				//convert the wise 2 project into a wise 4 project
-				Wise2To4ProjectConverter projectConverter = new Wise2To4ProjectConverter(selectedFile);
+				//make sure the file is a zip file before we create anything
+				new ZipFile(selectedFile).close();
+				
+				//obtain the project id from the zip file name
+				String projectId = ProjectConverter.parseProjectId(selectedFile);
+				
+				//the folder or zip file the wise 4 project will be written to
+				File outputFile = null;
+				OutputSink outputSink = null;
+				
+				//puts the project folder in place once the whole project has been converted
+				StagedFolderOutputSink stagedSink = null;
+				
+				//the threads that deflate large files when we are writing a zip file
+				ExecutorService deflateExecutor = null;
+				
+				if(zipOutput) {
+					/*
+					 * the wise 4 project zip file will be named after the project id and
+					 * placed in the same folder the wise 2 export zip file is in. the files
+					 * are placed in a folder named after the project id inside the zip file.
+					 */
+					outputFile = new File(selectedFile.getParent(), projectId + ".zip");
+					deflateExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+					outputSink = new ZipOutputSink(new FileOutputStream(outputFile), projectId, deflateExecutor);
+				} else {
+					/*
+					 * the folder name will be the project id and it will be placed in the
+					 * same folder the wise 2 export zip file is in. the files are written
+					 * into a staging folder next to it so a failed conversion does not
+					 * leave a half written project folder behind.
+					 */
+					outputFile = new File(selectedFile.getParent(), projectId);
+					stagedSink = new StagedFolderOutputSink(outputFile);
+					
+					if(stagedSink.isRestored()) {
+						System.out.println("Restored " + outputFile.getPath() + " from an unfinished conversion");
+					}
+					
+					outputSink = stagedSink;
+				}
+				
+				try {
+					//print the progress every few seconds for large projects
+					ConversionOptions options = new ConversionOptions();
+					options.setProgressIntervalMillis(2000);
+					options.setIncremental(incremental);
+					options.setWriteIfChanged(writeIfChanged);
+					
+					//convert the wise 2 project into a wise 4 project
+					new ProjectConverter(options).convert(selectedFile, projectId, outputSink);
+					
+					if(stagedSink != null) {
+						stagedSink.commit();
+					}
+				} finally {
+					outputSink.close();
+					
+					if(deflateExecutor != null) {
+						deflateExecutor.shutdown();
+					}
+				}
 				
 				//project was converted successfully
-				JOptionPane.showMessageDialog(panel, "Project successfully converted to\n" + projectConverter.getProjectFolder().getAbsolutePath());	
+				JOptionPane.showMessageDialog(panel, "Project successfully converted to\n" + outputFile.getAbsolutePath());	
 			} catch (ZipException e) {
 				//project was not converted, we were unable to open the zip file or the file chosen was not a zip file
 				JOptionPane.showMessageDialog(panel, "Unable to open selected file\n" + selectedFile.getAbsolutePath(), "Error converting project", JOptionPane.ERROR_MESSAGE);
@@ -0,0 +1,586 @@
+package wise2.converter.batch;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import wise2.converter.ConversionOptions;
+import wise2.converter.ConversionResult;
+import wise2.converter.ProjectConverter;
+import wise2.converter.log.ConvertLog;
+import wise2.converter.manifest.AssetIndex;
+import wise2.converter.manifest.ConversionManifest;
+import wise2.converter.output.FileSystemOutputSink;
+import wise2.converter.output.StagedFolderOutputSink;
+import wise2.converter.report.ConversionReport;
+
+/**
+ * Converts a whole folder of wise 2 exports. An archive usually holds
+ * several dated exports of the same project e.g.
+ * wiseProject-31202-090911_122414-wpe.zip and
+ * wiseProject-31202-100204_093000-wpe.zip, which would all be converted
+ * into the same 31202 folder one after the other. The exports are grouped
+ * by project id and sorted by the date in their name, and then either
+ *
+ * - LATEST converts only the newest export of each project into
+ *   outputFolder/projectId
+ * - VERSIONED converts every export into its own folder named by its date
+ *   e.g. outputFolder/31202/090911_122414, oldest first
+ *
+ * Each project is converted incrementally. A new version folder starts as
+ * hard links to the files of the previous version, so the steps and assets
+ * that did not change between the exports are kept instead of converted
+ * again, and the files the newer export no longer has are removed
+ * afterwards. Converting the same batch again only converts what changed.
+ *
+ * Every export is converted into a staging folder that replaces its folder
+ * only when the export converted, so a failed or interrupted batch never
+ * leaves half written project folders behind and can simply be run again.
+ *
+ * A journal of the exports that were started, completed and failed is kept
+ * in the output folder. Running the batch again after a crash skips the
+ * exports that were completed, converts the ones that were in flight and
+ * reports the ones that failed without converting them again.
+ *
+ * The projects are converted on a pool of threads, the ones that are
+ * estimated to take the longest first (see ExportCost). The exports of one
+ * project are always converted one at a time in date order, and two
+ * batches writing into the same folder wait for each other. Once there are
+ * no projects left to start, the idle threads help the projects that are
+ * still going inflate their upload files.
+ *
+ * e.g.
+ * java -cp bin:lib/* wise2.converter.batch.BatchConverter -input /archive -output /converted -mode versioned -threads 4
+ */
+public class BatchConverter {
+	
+	/**
+	 * What to do with several exports of the same project
+	 */
+	public enum Mode {
+		//only convert the newest export
+		LATEST,
+		
+		//convert every export into a folder named by its date
+		VERSIONED
+	}
+	
+	//the file name of a wise 2 export e.g. wiseProject-31202-090911_122414-wpe.zip
+	private static final Pattern EXPORT_FILE_NAME = Pattern.compile("wiseProject-(\\d+)-(\\d{6}_\\d{6})-wpe\\.zip");
+	
+	//the files the conversion writes besides the step files and assets
+	private static final String[] PROJECT_FILES = {"wise4.project.json", "convert_log.txt", ConversionReport.REPORT_FILE_NAME, ConversionManifest.MANIFEST_FILE_NAME, AssetIndex.INDEX_FILE_NAME};
+	
+	//converts the exports, shared by all the threads
+	private ProjectConverter projectConverter;
+	
+	//what to do with several exports of the same project
+	private Mode mode = Mode.LATEST;
+	
+	//the number of projects converted at the same time
+	private int threads = 1;
+	
+	//records which exports are done so a stopped batch can carry on, null if the batch is not journaled
+	private BatchJournal journal = null;
+	
+	//whether to convert the exports the journal says failed again instead of reporting the recorded failure
+	private boolean retryFailed = false;
+	
+	/**
+	 * Create a batch converter
+	 * @param options the settings for converting each export. incremental
+	 * conversion and skipping unchanged assets are always turned on.
+	 */
+	public BatchConverter(ConversionOptions options) {
+		ConversionOptions batchOptions = new ConversionOptions(options);
+		
+		//keeping the unchanged steps and assets is how the exports share their work
+		batchOptions.setIncremental(true);
+		batchOptions.setSkipUnchangedAssets(true);
+		
+		projectConverter = new ProjectConverter(batchOptions);
+	}
+	
+	/**
+	 * Convert a batch of exports
+	 * @param exportFiles the wise 2 export zip files, in any order
+	 * @param outputFolder the folder to create the project folders in
+	 * @return the totals for the batch
+	 * @throws InterruptedException if we were interrupted while waiting for the projects
+	 */
+	public BatchResult convert(List<File> exportFiles, final File outputFolder) throws InterruptedException {
+		final BatchResult result = new BatchResult();
+		Map<String, List<File>> exportsByProject = groupExports(exportFiles);
+		
+		//start the most expensive projects first so the cheap ones fill in around them at the end
+		List<Map.Entry<String, List<File>>> projects = orderByCost(exportsByProject);
+		
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		final CountDownLatch projectsDone = new CountDownLatch(projects.size());
+		
+		if(threads > 1) {
+			/*
+			 * the helpers a conversion asks for join the end of the queue, so they
+			 * only run on a thread that has no project left to start and then help
+			 * inflate the upload files of the projects that are still going
+			 */
+			projectConverter.setExtractHelpers(executor);
+		}
+		
+		try {
+			for(final Map.Entry<String, List<File>> project : projects) {
+				result.addProject(project.getValue().size());
+				
+				executor.execute(new Runnable() {
+					public void run() {
+						try {
+							convertProject(project.getKey(), project.getValue(), outputFolder, result);
+						} finally {
+							projectsDone.countDown();
+						}
+					}
+				});
+			}
+			
+			//the queue stays open for helpers until the last project is done
+			projectsDone.await();
+		} finally {
+			executor.shutdown();
+			projectConverter.setExtractHelpers(null);
+		}
+		
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		
+		return result;
+	}
+	
+	/**
+	 * Sort the projects by their estimated cost, most expensive first. The
+	 * projects that cost the same stay in project id order.
+	 * @param exportsByProject the exports of each project oldest first, by project id
+	 * @return the projects in the order to start them
+	 */
+	private List<Map.Entry<String, List<File>>> orderByCost(Map<String, List<File>> exportsByProject) {
+		final Map<String, Long> costs = new HashMap<String, Long>();
+		
+		for(Map.Entry<String, List<File>> project : exportsByProject.entrySet()) {
+			List<File> exports = project.getValue();
+			long cost = 0;
+			
+			if(mode == Mode.LATEST) {
+				//only the newest export is converted
+				cost = estimateCost(exports.get(exports.size() - 1));
+			} else {
+				for(File exportFile : exports) {
+					cost += estimateCost(exportFile);
+				}
+			}
+			
+			costs.put(project.getKey(), cost);
+		}
+		
+		List<Map.Entry<String, List<File>>> projects = new ArrayList<Map.Entry<String, List<File>>>(exportsByProject.entrySet());
+		
+		Collections.sort(projects, new Comparator<Map.Entry<String, List<File>>>() {
+			public int compare(Map.Entry<String, List<File>> project1, Map.Entry<String, List<File>> project2) {
+				return costs.get(project2.getKey()).compareTo(costs.get(project1.getKey()));
+			}
+		});
+		
+		return projects;
+	}
+	
+	/**
+	 * Estimate the time taken to convert an export
+	 * @param exportFile the wise 2 export zip file
+	 * @return the estimated time in nanoseconds
+	 */
+	private long estimateCost(File exportFile) {
+		try {
+			return ExportCost.estimate(exportFile).getEstimatedNanos();
+		} catch (IOException e) {
+			//the conversion will report the broken zip, until then go by the size of the file
+			return exportFile.length() * ExportCost.UPLOAD_NANOS_PER_BYTE;
+		}
+	}
+	
+	/**
+	 * Convert the exports of one project
+	 * @param projectId the wise 2 project id
+	 * @param exports the exports of the project, oldest first
+	 * @param outputFolder the folder to create the project folder in
+	 * @param result the totals for the batch
+	 */
+	private void convertProject(String projectId, List<File> exports, File outputFolder, BatchResult result) {
+		if(mode == Mode.LATEST) {
+			//the older exports would only be overwritten
+			result.addSkipped(exports.size() - 1);
+			convertExport(exports.get(exports.size() - 1), projectId, outputFolder, projectId, null, result);
+		} else {
+			//the last version that was converted, the next one starts from a copy of it
+			File previousFolder = null;
+			
+			for(File exportFile : exports) {
+				String versionFolderName = projectId + "/" + parseExportTime(exportFile);
+				
+				if(convertExport(exportFile, projectId, outputFolder, versionFolderName, previousFolder, result)) {
+					previousFolder = new File(outputFolder, versionFolderName);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Convert one export into a folder
+	 * @param exportFile the wise 2 export zip file
+	 * @param projectId the wise 2 project id
+	 * @param outputFolder the folder the project folders are in
+	 * @param folderName the path of the folder to convert the project into
+	 * in the output folder e.g. 31202 or 31202/090911_122414
+	 * @param seedFolder the folder of an earlier export of the project to
+	 * start from if the folder does not exist yet, null to start empty
+	 * @param result the totals for the batch
+	 * @return whether the export was converted, now or by an earlier run of the batch
+	 */
+	private boolean convertExport(File exportFile, String projectId, File outputFolder, String folderName, File seedFolder, BatchResult result) {
+		File folder = new File(outputFolder, folderName);
+		
+		if(journal != null) {
+			if(journal.isCompleted(exportFile, folderName, folder)) {
+				result.addResumed();
+				System.out.println("Skipping " + exportFile.getName() + ", an earlier run already converted it into " + folder.getPath());
+				return true;
+			}
+			
+			String failure = retryFailed ? null : journal.getFailure(exportFile, folderName);
+			
+			if(failure != null) {
+				//converting it again would most likely fail the same way
+				System.out.println("Failed to convert " + exportFile.getName() + " in an earlier run: " + failure);
+				result.addFailed(exportFile);
+				return false;
+			}
+		}
+		
+		try {
+			if(journal != null) {
+				journal.started(exportFile, folderName);
+			}
+			
+			/*
+			 * write into a staging folder that starts out linked to the current files, or to the
+			 * earlier export so its unchanged steps and assets are kept. the folder is only
+			 * replaced once the export is fully converted.
+			 */
+			StagedFolderOutputSink outputSink = new StagedFolderOutputSink(folder, seedFolder);
+			ConversionResult conversionResult = null;
+			
+			if(outputSink.isRestored()) {
+				System.out.println("Restored " + folder.getPath() + " from an unfinished conversion");
+			}
+			int staleFilesRemoved = 0;
+			
+			try {
+				conversionResult = projectConverter.convert(exportFile, projectId, outputSink);
+				staleFilesRemoved = removeStaleFiles(outputSink.getRootFolder(), projectId);
+				outputSink.commit();
+			} finally {
+				//throws the staging folder away if we did not get to commit
+				outputSink.close();
+			}
+			
+			if(journal != null) {
+				journal.completed(exportFile, folderName, folder, conversionResult);
+			}
+			
+			result.addConverted(conversionResult);
+			result.addStaleFilesRemoved(staleFilesRemoved);
+			
+			System.out.println("Converted " + exportFile.getName() + " into " + folder.getPath() + ": " + conversionResult.getStepsConverted() + " steps, "
+					+ conversionResult.getStepsReused() + " kept, " + conversionResult.getStepsFailed() + " failed, " + staleFilesRemoved + " stale files removed");
+			
+			return true;
+		} catch (Exception e) {
+			//one broken export should not stop the rest of the batch
+			e.printStackTrace();
+			System.out.println("Failed to convert " + exportFile.getName() + ": " + e);
+			result.addFailed(exportFile);
+			
+			if(journal != null) {
+				try {
+					journal.failed(exportFile, folderName, e.toString());
+				} catch (IOException journalException) {
+					journalException.printStackTrace();
+				}
+			}
+			
+			return false;
+		}
+	}
+	
+	/**
+	 * Delete the files in a project folder that the last conversion did not
+	 * write or keep, e.g. the step files and assets of an earlier export
+	 * that the newer export no longer has. The conversion manifest and the
+	 * asset index list everything that belongs to the project.
+	 * @param folder the project folder
+	 * @param projectId the wise 2 project id
+	 * @return the number of files deleted
+	 */
+	private int removeStaleFiles(File folder, String projectId) {
+		FileSystemOutputSink folderSink = new FileSystemOutputSink(folder);
+		ConversionManifest manifest = ConversionManifest.read(folderSink, projectId);
+		AssetIndex assetIndex = AssetIndex.read(folderSink);
+		
+		if(manifest == null || assetIndex == null) {
+			//without both we do not know everything that belongs to the project
+			return 0;
+		}
+		
+		Set<String> projectPaths = new HashSet<String>();
+		Collections.addAll(projectPaths, PROJECT_FILES);
+		projectPaths.addAll(assetIndex.getPaths());
+		
+		for(int x=0; x<manifest.getStepCount(); x++) {
+			projectPaths.addAll(manifest.getStep(x).getOutputs().keySet());
+		}
+		
+		return removeFilesNotIn(folder, "", projectPaths);
+	}
+	
+	/**
+	 * Delete the files in a folder and its sub folders that are not in a set of paths
+	 * @param folder the folder
+	 * @param path the path of the folder in the project, empty for the project root
+	 * @param projectPaths the paths of the files to keep
+	 * @return the number of files deleted
+	 */
+	private int removeFilesNotIn(File folder, String path, Set<String> projectPaths) {
+		int filesRemoved = 0;
+		File[] files = folder.listFiles();
+		
+		if(files != null) {
+			for(File file : files) {
+				String filePath = path + file.getName();
+				
+				if(file.isDirectory()) {
+					filesRemoved += removeFilesNotIn(file, filePath + "/", projectPaths);
+				} else if(!projectPaths.contains(filePath) && file.delete()) {
+					filesRemoved++;
+				}
+			}
+		}
+		
+		return filesRemoved;
+	}
+	
+	/**
+	 * Group exports by project id
+	 * @param exportFiles the wise 2 export zip files
+	 * @return the exports of each project oldest first, by project id.
+	 * files that are not named like a wise 2 export are left out.
+	 */
+	public static Map<String, List<File>> groupExports(List<File> exportFiles) {
+		Map<String, List<File>> exportsByProject = new TreeMap<String, List<File>>();
+		
+		for(File exportFile : exportFiles) {
+			Matcher matcher = EXPORT_FILE_NAME.matcher(exportFile.getName());
+			
+			if(!matcher.matches()) {
+				System.out.println("Skipping " + exportFile.getName() + ", it is not named like a wise 2 export");
+				continue;
+			}
+			
+			List<File> exports = exportsByProject.get(matcher.group(1));
+			
+			if(exports == null) {
+				exports = new ArrayList<File>();
+				exportsByProject.put(matcher.group(1), exports);
+			}
+			
+			exports.add(exportFile);
+		}
+		
+		for(List<File> exports : exportsByProject.values()) {
+			//yyMMdd_HHmmss sorts by date as text
+			Collections.sort(exports, new Comparator<File>() {
+				public int compare(File file1, File file2) {
+					return parseExportTime(file1).compareTo(parseExportTime(file2));
+				}
+			});
+		}
+		
+		return exportsByProject;
+	}
+	
+	/**
+	 * Obtain the time of an export from its file name
+	 * @param exportFile the wise 2 export zip file e.g. wiseProject-31202-090911_122414-wpe.zip
+	 * @return the time as yyMMdd_HHmmss e.g. 090911_122414
+	 */
+	public static String parseExportTime(File exportFile) {
+		Matcher matcher = EXPORT_FILE_NAME.matcher(exportFile.getName());
+		
+		if(!matcher.matches()) {
+			throw new IllegalArgumentException(exportFile.getName() + " is not named like a wise 2 export");
+		}
+		
+		return matcher.group(2);
+	}
+	
+	public Mode getMode() {
+		return mode;
+	}
+	
+	/**
+	 * Set what to do with several exports of the same project
+	 * @param mode LATEST to only convert the newest, VERSIONED to convert each into its own folder
+	 */
+	public void setMode(Mode mode) {
+		this.mode = mode;
+	}
+	
+	public int getThreads() {
+		return threads;
+	}
+	
+	/**
+	 * Set the number of projects converted at the same time
+	 * @param threads the number of threads
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+	
+	public BatchJournal getJournal() {
+		return journal;
+	}
+	
+	/**
+	 * Set the journal that records which exports are done. Exports the
+	 * journal says an earlier run completed are skipped, so a batch that was
+	 * stopped carries on where it left off.
+	 * @param journal the journal or null to convert every export
+	 */
+	public void setJournal(BatchJournal journal) {
+		this.journal = journal;
+	}
+	
+	public boolean isRetryFailed() {
+		return retryFailed;
+	}
+	
+	/**
+	 * Set whether to convert the exports the journal says failed again. By
+	 * default they are reported as failed with the recorded error.
+	 * @param retryFailed whether to retry the failed exports
+	 */
+	public void setRetryFailed(boolean retryFailed) {
+		this.retryFailed = retryFailed;
+	}
+	
+	/**
+	 * Convert a folder of wise 2 exports
+	 * @param args -input the folder of exports, -output the folder to
+	 * create the project folders in, -mode latest or versioned, -threads
+	 * the number of projects converted at the same time, -parseCache a
+	 * folder to keep the parsed project xml in, -journal the journal file
+	 * which is batch_journal.jsonl in the output folder by default and
+	 * -retryFailed true to convert the exports that failed in an earlier run again
+	 * @throws InterruptedException
+	 * @throws IOException if the journal could not be opened
+	 */
+	public static void main(String[] args) throws InterruptedException, IOException {
+		File inputFolder = null;
+		File outputFolder = null;
+		File journalFile = null;
+		boolean retryFailed = false;
+		Mode mode = Mode.LATEST;
+		int threads = Runtime.getRuntime().availableProcessors();
+		
+		ConversionOptions options = new ConversionOptions();
+		options.setConsoleLevel(ConvertLog.Level.QUIET);
+		
+		for(int x=0; x + 1<args.length; x+=2) {
+			String name = args[x];
+			String value = args[x + 1];
+			
+			if(name.equals("-input")) {
+				inputFolder = new File(value);
+			} else if(name.equals("-output")) {
+				outputFolder = new File(value);
+			} else if(name.equals("-mode")) {
+				mode = Mode.valueOf(value.toUpperCase());
+			} else if(name.equals("-threads")) {
+				threads = Integer.parseInt(value);
+			} else if(name.equals("-parseCache")) {
+				options.setParseCacheFolder(new File(value));
+			} else if(name.equals("-journal")) {
+				journalFile = new File(value);
+			} else if(name.equals("-retryFailed")) {
+				retryFailed = Boolean.parseBoolean(value);
+			} else {
+				System.out.println("Unknown argument " + name);
+			}
+		}
+		
+		if(inputFolder == null || outputFolder == null || !inputFolder.isDirectory()) {
+			System.out.println("usage: BatchConverter -input exportFolder -output outputFolder [-mode latest|versioned] [-threads n] [-parseCache folder] [-journal file] [-retryFailed true]");
+			System.exit(1);
+		}
+		
+		List<File> exportFiles = new ArrayList<File>();
+		File[] files = inputFolder.listFiles();
+		
+		for(File file : files) {
+			if(file.isFile() && file.getName().endsWith(".zip")) {
+				exportFiles.add(file);
+			}
+		}
+		
+		if(journalFile == null) {
+			journalFile = new File(outputFolder, BatchJournal.JOURNAL_FILE_NAME);
+		}
+		
+		BatchJournal journal = new BatchJournal(journalFile);
+		
+		if(journal.getCompletedCount() + journal.getFailedCount() + journal.getInFlightCount() > 0) {
+			System.out.println("Resuming from " + journalFile.getPath() + ": " + journal.getCompletedCount() + " exports completed, "
+					+ journal.getFailedCount() + " failed, " + journal.getInFlightCount() + " in flight");
+		}
+		
+		BatchConverter batchConverter = new BatchConverter(options);
+		batchConverter.setMode(mode);
+		batchConverter.setThreads(threads);
+		batchConverter.setJournal(journal);
+		batchConverter.setRetryFailed(retryFailed);
+		
+		long startTime = System.currentTimeMillis();
+		BatchResult result = null;
+		
+		try {
+			result = batchConverter.convert(exportFiles, outputFolder);
+		} finally {
+			journal.close();
+		}
+		
+		System.out.println(result);
+		System.out.println("Took " + (System.currentTimeMillis() - startTime) + " ms");
+		
+		System.exit(result.getExportsFailed().isEmpty() ? 0 : 1);
+	}
+}
@@ -0,0 +1,372 @@
+package wise2.converter.batch;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import wise2.converter.ConversionResult;
+import wise2.converter.manifest.AssetIndex;
+import wise2.converter.manifest.ConversionManifest;
+import wise2.converter.output.FileSystemOutputSink;
+import wise2.converter.output.OutputSink;
+
+/**
+ * An append only journal of the exports a batch has started, completed and
+ * failed to convert, so a batch that crashed or was stopped can carry on
+ * where it left off instead of starting again from the first export.
+ *
+ * Each line is one JSON record e.g.
+ * {"export":"wiseProject-31202-090911_122414-wpe.zip","size":48213,"modified":1253125454000,"folder":"31202","state":"completed","outputHash":"9f2c...","steps":42,"stepsFailed":0,"time":1262304000000}
+ *
+ * The last record for an export wins. When the batch is run again
+ *
+ * - completed exports are skipped if the export file has the same size and
+ *   modified time and the project folder still has the same output hash
+ * - started exports with no later record were in flight when the batch
+ *   stopped and are converted again. the staging folder makes sure they did
+ *   not leave anything half written in the project folder.
+ * - failed exports are reported as failed again with the recorded error
+ *   without converting them, unless failed exports are retried
+ *
+ * The completed and failed records are forced to disk before the batch
+ * moves on, so a record is never lost once the project folder it describes
+ * is in place. A line cut short by a crash is ignored when reading.
+ */
+public class BatchJournal {
+	
+	//the name of the journal file in the output folder
+	public static final String JOURNAL_FILE_NAME = "batch_journal.jsonl";
+	
+	//the states an export can be in
+	public static final String STARTED = "started";
+	public static final String COMPLETED = "completed";
+	public static final String FAILED = "failed";
+	
+	//the journal file
+	private File journalFile;
+	
+	//the last record for each export, by export file name and folder
+	private Map<String, JSONObject> lastRecords = new HashMap<String, JSONObject>();
+	
+	//appends the new records to the journal file
+	private FileOutputStream output;
+	
+	//the number of exports that were completed, failed and in flight when the journal was opened
+	private int completedCount = 0;
+	private int failedCount = 0;
+	private int inFlightCount = 0;
+	
+	/**
+	 * Open a journal, reading the records of earlier runs if the file exists
+	 * @param journalFile the journal file
+	 * @throws IOException
+	 */
+	public BatchJournal(File journalFile) throws IOException {
+		this.journalFile = journalFile;
+		
+		if(journalFile.isFile()) {
+			readRecords();
+		}
+		
+		if(journalFile.getParentFile() != null) {
+			journalFile.getParentFile().mkdirs();
+		}
+		
+		boolean endsWithPartialLine = endsWithPartialLine();
+		output = new FileOutputStream(journalFile, true);
+		
+		if(endsWithPartialLine) {
+			//start a new line so the next record is not joined to the unreadable one
+			output.write('\n');
+		}
+	}
+	
+	/**
+	 * Determine whether the journal file ends part of the way through a line
+	 * @return whether the last line has no line break
+	 * @throws IOException
+	 */
+	private boolean endsWithPartialLine() throws IOException {
+		if(journalFile.length() == 0) {
+			return false;
+		}
+		
+		RandomAccessFile file = new RandomAccessFile(journalFile, "r");
+		
+		try {
+			file.seek(file.length() - 1);
+			return file.read() != '\n';
+		} finally {
+			file.close();
+		}
+	}
+	
+	/**
+	 * Read the records written by earlier runs
+	 * @throws IOException
+	 */
+	private void readRecords() throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), OutputSink.UTF_8));
+		
+		try {
+			String line = null;
+			
+			while((line = reader.readLine()) != null) {
+				try {
+					JSONObject record = new JSONObject(line);
+					lastRecords.put(getKey(record.getString("export"), record.getString("folder")), record);
+				} catch (JSONException e) {
+					//the last line of a journal that was being written when we crashed
+					System.out.println("Ignoring an unreadable line in " + journalFile.getName());
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		
+		for(JSONObject record : lastRecords.values()) {
+			String state = record.optString("state");
+			
+			if(state.equals(COMPLETED)) {
+				completedCount++;
+			} else if(state.equals(FAILED)) {
+				failedCount++;
+			} else {
+				inFlightCount++;
+			}
+		}
+	}
+	
+	/**
+	 * Determine whether an export was completed by an earlier run and its
+	 * project folder has not changed since
+	 * @param exportFile the wise 2 export zip file
+	 * @param folderName the path of the project folder in the output folder
+	 * @param folder the project folder
+	 * @return whether the export can be skipped
+	 */
+	public boolean isCompleted(File exportFile, String folderName, File folder) {
+		JSONObject record = getLastRecord(exportFile, folderName);
+		
+		if(record == null || !record.optString("state").equals(COMPLETED)) {
+			return false;
+		}
+		
+		String outputHash = computeOutputHash(folder);
+		return outputHash != null && outputHash.equals(record.optString("outputHash"));
+	}
+	
+	/**
+	 * Get the error an earlier run recorded when the export failed
+	 * @param exportFile the wise 2 export zip file
+	 * @param folderName the path of the project folder in the output folder
+	 * @return the error or null if the last run of this export did not fail
+	 */
+	public String getFailure(File exportFile, String folderName) {
+		JSONObject record = getLastRecord(exportFile, folderName);
+		
+		if(record == null || !record.optString("state").equals(FAILED)) {
+			return null;
+		}
+		
+		return record.optString("error");
+	}
+	
+	/**
+	 * Get the last record of an export, as long as the export file is still
+	 * the same one the record was written for
+	 * @param exportFile the wise 2 export zip file
+	 * @param folderName the path of the project folder in the output folder
+	 * @return the record or null if there is none or the export file has changed
+	 */
+	private synchronized JSONObject getLastRecord(File exportFile, String folderName) {
+		JSONObject record = lastRecords.get(getKey(exportFile.getName(), folderName));
+		
+		if(record == null || record.optLong("size") != exportFile.length() || record.optLong("modified") != exportFile.lastModified()) {
+			return null;
+		}
+		
+		return record;
+	}
+	
+	/**
+	 * Record that we are about to convert an export
+	 * @param exportFile the wise 2 export zip file
+	 * @param folderName the path of the project folder in the output folder
+	 * @throws IOException
+	 */
+	public void started(File exportFile, String folderName) throws IOException {
+		//no need to force it to disk, an export with no record is converted anyway
+		append(createRecord(exportFile, folderName, STARTED), false);
+	}
+	
+	/**
+	 * Record that an export was converted and its project folder is in place
+	 * @param exportFile the wise 2 export zip file
+	 * @param folderName the path of the project folder in the output folder
+	 * @param folder the project folder
+	 * @param result the result of the conversion
+	 * @throws IOException
+	 */
+	public void completed(File exportFile, String folderName, File folder, ConversionResult result) throws IOException {
+		JSONObject record = createRecord(exportFile, folderName, COMPLETED);
+		
+		try {
+			record.put("outputHash", computeOutputHash(folder));
+			record.put("steps", result.getStepsConverted());
+			record.put("stepsFailed", result.getStepsFailed());
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+		
+		append(record, true);
+	}
+	
+	/**
+	 * Record that an export could not be converted
+	 * @param exportFile the wise 2 export zip file
+	 * @param folderName the path of the project folder in the output folder
+	 * @param error why the export could not be converted
+	 * @throws IOException
+	 */
+	public void failed(File exportFile, String folderName, String error) throws IOException {
+		JSONObject record = createRecord(exportFile, folderName, FAILED);
+		
+		try {
+			record.put("error", error);
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+		
+		append(record, true);
+	}
+	
+	/**
+	 * Create a record with the fields every record has
+	 * @param exportFile the wise 2 export zip file
+	 * @param folderName the path of the project folder in the output folder
+	 * @param state the state of the export
+	 * @return the record
+	 */
+	private JSONObject createRecord(File exportFile, String folderName, String state) {
+		JSONObject record = new JSONObject();
+		
+		try {
+			record.put("export", exportFile.getName());
+			record.put("size", exportFile.length());
+			record.put("modified", exportFile.lastModified());
+			record.put("folder", folderName);
+			record.put("state", state);
+			record.put("time", System.currentTimeMillis());
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+		
+		return record;
+	}
+	
+	/**
+	 * Add a record to the end of the journal
+	 * @param record the record
+	 * @param sync whether to force the record to disk before returning
+	 * @throws IOException
+	 */
+	private synchronized void append(JSONObject record, boolean sync) throws IOException {
+		output.write((record.toString() + "\n").getBytes(OutputSink.UTF_8));
+		
+		if(sync) {
+			output.getFD().sync();
+		}
+		
+		try {
+			lastRecords.put(getKey(record.getString("export"), record.getString("folder")), record);
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Work out a hash of everything a conversion put in a project folder.
+	 * The conversion manifest has the hash of every file the steps wrote
+	 * and the asset index has the checksum of every asset, so hashing
+	 * those two files is enough to notice when the folder was replaced.
+	 * @param folder the project folder
+	 * @return the hex SHA-256 hash or null if the folder has no manifest
+	 */
+	public static String computeOutputHash(File folder) {
+		try {
+			FileSystemOutputSink folderSink = new FileSystemOutputSink(folder);
+			byte[] manifest = folderSink.read(ConversionManifest.MANIFEST_FILE_NAME);
+			byte[] assetIndex = folderSink.read(AssetIndex.INDEX_FILE_NAME);
+			
+			if(manifest == null) {
+				return null;
+			}
+			
+			String hashes = ConversionManifest.sha256(manifest) + " " + (assetIndex == null ? "" : ConversionManifest.sha256(assetIndex));
+			return ConversionManifest.sha256(hashes.getBytes(OutputSink.UTF_8));
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	/**
+	 * Get the key of the records for an export
+	 * @param exportName the name of the wise 2 export zip file
+	 * @param folderName the path of the project folder in the output folder
+	 * @return the key
+	 */
+	private static String getKey(String exportName, String folderName) {
+		return exportName + " " + folderName;
+	}
+	
+	/**
+	 * Close the journal file
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		output.close();
+	}
+	
+	/**
+	 * Get the journal file
+	 * @return the file the records are appended to
+	 */
+	public File getJournalFile() {
+		return journalFile;
+	}
+	
+	/**
+	 * Get the number of exports the earlier runs completed
+	 * @return the number of exports
+	 */
+	public int getCompletedCount() {
+		return completedCount;
+	}
+	
+	/**
+	 * Get the number of exports the earlier runs failed to convert
+	 * @return the number of exports
+	 */
+	public int getFailedCount() {
+		return failedCount;
+	}
+	
+	/**
+	 * Get the number of exports that were being converted when an earlier run stopped
+	 * @return the number of exports
+	 */
+	public int getInFlightCount() {
+		return inFlightCount;
+	}
+}
@@ -0,0 +1,121 @@
+package wise2.converter.batch;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import wise2.converter.ConversionResult;
+
+/**
+ * The totals for converting a batch of wise 2 exports. The projects are
+ * converted on several threads so every method is synchronized.
+ */
+public class BatchResult {
+	
+	//the number of distinct project ids in the batch
+	private int projects = 0;
+	
+	//the number of exports in the batch
+	private int exports = 0;
+	
+	//the number of exports that were converted
+	private int exportsConverted = 0;
+	
+	//the number of older exports that were left out because a newer export of the project was converted
+	private int exportsSkipped = 0;
+	
+	//the number of exports that an earlier run of the batch already converted
+	private int exportsResumed = 0;
+	
+	//the exports that could not be converted at all
+	private List<File> exportsFailed = new ArrayList<File>();
+	
+	//the number of steps converted in all the exports
+	private int stepsConverted = 0;
+	
+	//the number of steps whose files were kept from an earlier export or run
+	private int stepsReused = 0;
+	
+	//the number of steps that failed to convert
+	private int stepsFailed = 0;
+	
+	//the number of files removed because the newer export no longer has them
+	private int staleFilesRemoved = 0;
+	
+	synchronized void addProject(int exportCount) {
+		projects++;
+		exports += exportCount;
+	}
+	
+	synchronized void addConverted(ConversionResult result) {
+		exportsConverted++;
+		stepsConverted += result.getStepsConverted();
+		stepsReused += result.getStepsReused();
+		stepsFailed += result.getStepsFailed();
+	}
+	
+	synchronized void addSkipped(int count) {
+		exportsSkipped += count;
+	}
+	
+	synchronized void addResumed() {
+		exportsResumed++;
+	}
+	
+	synchronized void addFailed(File exportFile) {
+		exportsFailed.add(exportFile);
+	}
+	
+	synchronized void addStaleFilesRemoved(int count) {
+		staleFilesRemoved += count;
+	}
+
+	public synchronized int getProjects() {
+		return projects;
+	}
+
+	public synchronized int getExports() {
+		return exports;
+	}
+
+	public synchronized int getExportsConverted() {
+		return exportsConverted;
+	}
+
+	public synchronized int getExportsSkipped() {
+		return exportsSkipped;
+	}
+
+	public synchronized int getExportsResumed() {
+		return exportsResumed;
+	}
+
+	public synchronized List<File> getExportsFailed() {
+		return Collections.unmodifiableList(new ArrayList<File>(exportsFailed));
+	}
+
+	public synchronized int getStepsConverted() {
+		return stepsConverted;
+	}
+
+	public synchronized int getStepsReused() {
+		return stepsReused;
+	}
+
+	public synchronized int getStepsFailed() {
+		return stepsFailed;
+	}
+
+	public synchronized int getStaleFilesRemoved() {
+		return staleFilesRemoved;
+	}
+	
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	public synchronized String toString() {
+		return projects + " projects in " + exports + " exports, converted " + exportsConverted + ", already converted " + exportsResumed + ", skipped " + exportsSkipped + ", failed " + exportsFailed.size()
+				+ ". " + stepsConverted + " steps converted, " + stepsReused + " kept from earlier exports, " + stepsFailed + " failed. " + staleFilesRemoved + " stale files removed.";
+	}
+}
@@ -0,0 +1,122 @@
+package wise2.converter.batch;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * An estimate of how long converting an export takes, worked out from the
+ * central directory of the export zip before anything is converted. The
+ * batch starts the most expensive projects first so a huge project is not
+ * left to run on its own at the end while the other threads sit idle.
+ *
+ * The time grows with the size of wise-project.xml, since every step is
+ * parsed and converted from it, with the bytes of the upload files that
+ * are inflated and written, and with the number of files created. The
+ * factors were measured on a batch of synthetic exports. Only how they
+ * compare to each other matters for the order.
+ */
+public class ExportCost {
+	
+	//the time taken for each byte of wise-project.xml
+	public static final long PROJECT_XML_NANOS_PER_BYTE = 1600;
+	
+	//the time taken for each byte of the upload files
+	public static final long UPLOAD_NANOS_PER_BYTE = 12;
+	
+	//the time taken to create each file
+	public static final long ENTRY_NANOS = 400000;
+	
+	//the size of wise-project.xml
+	private long projectXMLBytes = 0;
+	
+	//the size of the upload files
+	private long uploadBytes = 0;
+	
+	//the number of files in the zip
+	private int entryCount = 0;
+	
+	//the estimated time
+	private long estimatedNanos = 0;
+	
+	/**
+	 * Estimate the time taken to convert an export
+	 * @param exportFile the wise 2 export zip file
+	 * @return the estimate
+	 * @throws IOException if the zip file could not be read
+	 */
+	public static ExportCost estimate(File exportFile) throws IOException {
+		ExportCost cost = new ExportCost();
+		ZipFile zipFile = new ZipFile(exportFile);
+		
+		try {
+			Enumeration<? extends ZipEntry> entries = zipFile.entries();
+			
+			while(entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+				
+				if(entry.isDirectory()) {
+					continue;
+				}
+				
+				//the size is normally in the central directory, if not assume it did not compress
+				long size = entry.getSize() >= 0 ? entry.getSize() : entry.getCompressedSize();
+				
+				if(entry.getName().equals("wise-project.xml")) {
+					cost.projectXMLBytes = size;
+				} else {
+					cost.uploadBytes += size;
+				}
+				
+				cost.entryCount++;
+			}
+		} finally {
+			zipFile.close();
+		}
+		
+		cost.estimatedNanos = cost.projectXMLBytes * PROJECT_XML_NANOS_PER_BYTE + cost.uploadBytes * UPLOAD_NANOS_PER_BYTE + cost.entryCount * ENTRY_NANOS;
+		
+		return cost;
+	}
+	
+	/**
+	 * Get the size of wise-project.xml
+	 * @return the number of bytes
+	 */
+	public long getProjectXMLBytes() {
+		return projectXMLBytes;
+	}
+	
+	/**
+	 * Get the size of the upload files
+	 * @return the number of bytes
+	 */
+	public long getUploadBytes() {
+		return uploadBytes;
+	}
+	
+	/**
+	 * Get the number of files in the zip
+	 * @return the number of files
+	 */
+	public int getEntryCount() {
+		return entryCount;
+	}
+	
+	/**
+	 * Get the estimated time taken to convert the export
+	 * @return the time in nanoseconds
+	 */
+	public long getEstimatedNanos() {
+		return estimatedNanos;
+	}
+	
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		return String.format("%.1f s (project xml %d bytes, %d upload bytes, %d files)", estimatedNanos / 1000000000.0, projectXMLBytes, uploadBytes, entryCount);
+	}
+}
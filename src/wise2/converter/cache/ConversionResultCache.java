@@ -0,0 +1,527 @@
+package wise2.converter.cache;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import wise2.converter.manifest.ConversionManifest;
+import wise2.converter.output.FileSystemOutputSink;
+import wise2.converter.output.OutputSink;
+
+/**
+ * Keeps the converted wise 4 projects on disk so the same export converted
+ * again with the same converters and settings can be copied out of the
+ * cache instead of being converted. Each entry is a folder holding the
+ * project files and a summary file next to it holding what the caller
+ * needs to describe the result.
+ * 
+ * Entries are named by a key the caller builds with createKey from the
+ * SHA-256 hash of the export and everything else that decides the output.
+ * The least recently used entries are deleted once the entries take up
+ * more than the size budget. The last time an entry was used is kept as
+ * the modified time of its summary file so the order survives restarts.
+ * 
+ * One cache can be used by several conversions at the same time, also in
+ * different processes. New entries are recorded into a temporary folder
+ * with a unique name and renamed into place. Recordings left behind by a
+ * process that died are deleted once they are old enough that no
+ * conversion can still be writing them.
+ */
+public class ConversionResultCache {
+	
+	//the extension of the summary file next to each entry folder
+	private static final String SUMMARY_EXTENSION = ".json";
+	
+	//the extension of the folders that entries are recorded into
+	private static final String RECORDING_EXTENSION = ".recording";
+	
+	//how long a recording must have been left alone before it is deleted as abandoned
+	private static final long ABANDONED_RECORDING_MILLIS = 24L * 60 * 60 * 1000;
+	
+	//the folder the entries are kept in
+	private File cacheFolder;
+	
+	//the most bytes the entries can take up
+	private long maxBytes;
+	
+	//the size of each entry by key, least recently used first
+	private LinkedHashMap<String, Long> entrySizes = new LinkedHashMap<String, Long>(16, 0.75f, true);
+	
+	//the number of bytes the entries take up
+	private long totalBytes = 0;
+	
+	//the number of lookups that found an entry
+	private long hits = 0;
+	
+	//the number of lookups that did not
+	private long misses = 0;
+	
+	//the number of entries added
+	private long stores = 0;
+	
+	//the number of entries deleted to stay within the size budget
+	private long evictions = 0;
+	
+	/**
+	 * Open a cache folder, picking up the entries already in it
+	 * @param cacheFolder the folder to keep the entries in, it is created if it does not exist
+	 * @param maxBytes the most bytes the entries can take up
+	 */
+	public ConversionResultCache(File cacheFolder, long maxBytes) {
+		this.cacheFolder = cacheFolder;
+		this.maxBytes = maxBytes;
+		
+		cacheFolder.mkdirs();
+		loadEntries();
+	}
+	
+	/**
+	 * Work out the key for converting an export
+	 * @param exportFile the wise 2 export zip file
+	 * @param settings everything else that decides the output e.g. the
+	 * project id, the converter versions and the options that change the files
+	 * @return the key, 64 hex digits
+	 * @throws IOException if the export could not be read
+	 */
+	public static String createKey(File exportFile, String settings) throws IOException {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			InputStream exportStream = new BufferedInputStream(new FileInputStream(exportFile), 64 * 1024);
+			
+			try {
+				byte[] buffer = new byte[64 * 1024];
+				int bytesRead = 0;
+				
+				while((bytesRead = exportStream.read(buffer)) != -1) {
+					digest.update(buffer, 0, bytesRead);
+				}
+			} finally {
+				exportStream.close();
+			}
+			
+			//hash the export hash with the settings so the key has a fixed length
+			StringBuffer keySource = new StringBuffer();
+			
+			for(byte b : digest.digest()) {
+				keySource.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			
+			keySource.append('\n').append(settings);
+			return ConversionManifest.sha256(keySource.toString().getBytes(OutputSink.UTF_8));
+		} catch (NoSuchAlgorithmException e) {
+			//every java platform has SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Look up an entry and mark it as the most recently used
+	 * @param key the key from createKey
+	 * @return the entry or null if there is none
+	 */
+	public Entry get(String key) {
+		synchronized(this) {
+			if(entrySizes.get(key) == null) {
+				misses++;
+				return null;
+			}
+			
+			hits++;
+		}
+		
+		File summaryFile = getSummaryFile(key);
+		
+		try {
+			JSONObject summary = new JSONObject(FileUtils.readFileToString(summaryFile, "UTF-8"));
+			
+			//remember the use for the next time the cache is opened
+			summaryFile.setLastModified(System.currentTimeMillis());
+			
+			return new Entry(getEntryFolder(key), summary);
+		} catch (IOException e) {
+			//another conversion evicted it after we looked it up
+			e.printStackTrace();
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+		
+		synchronized(this) {
+			//count it as a miss since the caller has to convert after all
+			hits--;
+			misses++;
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Start recording a new entry
+	 * @param key the key from createKey
+	 * @return the recording to write the project files into
+	 */
+	public Recording startRecording(String key) {
+		//a unique name so two conversions of the same export, in any process, do not share one
+		File recordingFolder = new File(cacheFolder, key + "." + UUID.randomUUID() + RECORDING_EXTENSION);
+		recordingFolder.mkdirs();
+		return new Recording(key, recordingFolder);
+	}
+	
+	/**
+	 * Add a recorded entry and delete the least recently used entries until
+	 * the entries fit in the size budget again
+	 * @param recording the recording
+	 * @param summary what the caller needs to describe the result
+	 * @return whether the entry was added, it is not if it is bigger than the whole budget
+	 */
+	private boolean store(Recording recording, JSONObject summary) {
+		String key = recording.key;
+		long size = FileUtils.sizeOfDirectory(recording.folder);
+		
+		if(size > maxBytes) {
+			FileUtils.deleteQuietly(recording.folder);
+			return false;
+		}
+		
+		List<String> evictedKeys = null;
+		
+		synchronized(this) {
+			if(entrySizes.containsKey(key)) {
+				//another conversion of the same export got here first
+				FileUtils.deleteQuietly(recording.folder);
+				return true;
+			}
+			
+			try {
+				FileUtils.writeStringToFile(getSummaryFile(key), summary.toString(), "UTF-8");
+			} catch (IOException e) {
+				e.printStackTrace();
+				FileUtils.deleteQuietly(recording.folder);
+				return false;
+			}
+			
+			if(!recording.folder.renameTo(getEntryFolder(key))) {
+				getSummaryFile(key).delete();
+				FileUtils.deleteQuietly(recording.folder);
+				return false;
+			}
+			
+			entrySizes.put(key, size);
+			totalBytes += size;
+			stores++;
+			
+			evictedKeys = evictToFit(key);
+		}
+		
+		//delete the evicted files outside the lock, no one can look them up any more
+		deleteEntries(evictedKeys);
+		
+		return true;
+	}
+	
+	/**
+	 * Take the least recently used entries out of the index until the
+	 * entries fit in the size budget. The caller must hold the lock.
+	 * @param keep the key of an entry that must stay, null if any entry can go
+	 * @return the keys of the entries taken out, whose files still have to be deleted
+	 */
+	private List<String> evictToFit(String keep) {
+		List<String> evictedKeys = new ArrayList<String>();
+		
+		//the map is in least recently used order
+		Iterator<Map.Entry<String, Long>> entries = entrySizes.entrySet().iterator();
+		
+		while(totalBytes > maxBytes && entries.hasNext()) {
+			Map.Entry<String, Long> eldest = entries.next();
+			
+			if(!eldest.getKey().equals(keep)) {
+				entries.remove();
+				totalBytes -= eldest.getValue();
+				evictions++;
+				evictedKeys.add(eldest.getKey());
+			}
+		}
+		
+		return evictedKeys;
+	}
+	
+	/**
+	 * Delete the files of entries that have been taken out of the index
+	 * @param keys the keys of the entries
+	 */
+	private void deleteEntries(List<String> keys) {
+		for(String key : keys) {
+			getSummaryFile(key).delete();
+			FileUtils.deleteQuietly(getEntryFolder(key));
+		}
+	}
+	
+	/**
+	 * Pick up the entries that are already in the cache folder in the order
+	 * they were last used, and clear out recordings that were abandoned.
+	 * Newer recordings may belong to a conversion in another process so
+	 * they are left alone.
+	 */
+	private void loadEntries() {
+		File[] files = cacheFolder.listFiles();
+		
+		if(files == null) {
+			return;
+		}
+		
+		List<File> summaryFiles = new ArrayList<File>();
+		long abandonedTime = System.currentTimeMillis() - ABANDONED_RECORDING_MILLIS;
+		
+		for(File file : files) {
+			if(file.getName().endsWith(RECORDING_EXTENSION)) {
+				if(file.lastModified() < abandonedTime) {
+					FileUtils.deleteQuietly(file);
+				}
+			} else if(file.getName().endsWith(SUMMARY_EXTENSION)) {
+				summaryFiles.add(file);
+			}
+		}
+		
+		//least recently used first
+		File[] sortedSummaryFiles = summaryFiles.toArray(new File[summaryFiles.size()]);
+		Arrays.sort(sortedSummaryFiles, new Comparator<File>() {
+			public int compare(File file1, File file2) {
+				long difference = file1.lastModified() - file2.lastModified();
+				return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+			}
+		});
+		
+		for(File summaryFile : sortedSummaryFiles) {
+			String key = summaryFile.getName().substring(0, summaryFile.getName().length() - SUMMARY_EXTENSION.length());
+			File entryFolder = getEntryFolder(key);
+			
+			if(entryFolder.isDirectory()) {
+				long size = FileUtils.sizeOfDirectory(entryFolder);
+				entrySizes.put(key, size);
+				totalBytes += size;
+			} else {
+				summaryFile.delete();
+			}
+		}
+		
+		//the budget may have been lowered since the entries were added
+		deleteEntries(evictToFit(null));
+	}
+	
+	/**
+	 * Get the folder holding the project files of an entry
+	 * @param key the key from createKey
+	 * @return the entry folder
+	 */
+	private File getEntryFolder(String key) {
+		return new File(cacheFolder, key);
+	}
+	
+	/**
+	 * Get the summary file next to an entry folder
+	 * @param key the key from createKey
+	 * @return the summary file
+	 */
+	private File getSummaryFile(String key) {
+		return new File(cacheFolder, key + SUMMARY_EXTENSION);
+	}
+	
+	/**
+	 * Get the number of lookups that found an entry
+	 * @return the number of hits
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+	
+	/**
+	 * Get the number of lookups that did not find an entry
+	 * @return the number of misses
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+	
+	/**
+	 * Get the number of entries added
+	 * @return the number of entries
+	 */
+	public synchronized long getStores() {
+		return stores;
+	}
+	
+	/**
+	 * Get the number of entries deleted to stay within the size budget
+	 * @return the number of entries
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+	
+	/**
+	 * Get the number of entries in the cache
+	 * @return the number of entries
+	 */
+	public synchronized int getEntryCount() {
+		return entrySizes.size();
+	}
+	
+	/**
+	 * Get the number of bytes the entries take up
+	 * @return the number of bytes
+	 */
+	public synchronized long getTotalBytes() {
+		return totalBytes;
+	}
+	
+	/**
+	 * Get the most bytes the entries can take up
+	 * @return the size budget in bytes
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+	
+	/**
+	 * Get the counters as JSON e.g. for a status page
+	 * @return the hits, misses, stores, evictions, entries and bytes
+	 */
+	public synchronized JSONObject getMetrics() {
+		JSONObject metricsJSON = new JSONObject();
+		
+		try {
+			metricsJSON.put("hits", hits);
+			metricsJSON.put("misses", misses);
+			metricsJSON.put("stores", stores);
+			metricsJSON.put("evictions", evictions);
+			metricsJSON.put("entries", entrySizes.size());
+			metricsJSON.put("bytes", totalBytes);
+			metricsJSON.put("maxBytes", maxBytes);
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+		
+		return metricsJSON;
+	}
+	
+	/**
+	 * A converted project in the cache
+	 */
+	public static class Entry {
+		//the folder holding the project files
+		private File folder;
+		
+		//what the caller needs to describe the result
+		private JSONObject summary;
+		
+		Entry(File folder, JSONObject summary) {
+			this.folder = folder;
+			this.summary = summary;
+		}
+		
+		/**
+		 * Copy the project files and folders into a sink
+		 * @param outputSink the sink to copy to
+		 * @throws IOException if the entry was evicted while copying or could not be read
+		 */
+		public void copyTo(OutputSink outputSink) throws IOException {
+			copyFolder(folder, "", outputSink);
+		}
+		
+		/**
+		 * Copy the files and folders in a folder of the entry
+		 * @param sourceFolder the folder in the entry
+		 * @param path the path of the folder in the project, empty for the project root
+		 * @param outputSink the sink to copy to
+		 * @throws IOException
+		 */
+		private void copyFolder(File sourceFolder, String path, OutputSink outputSink) throws IOException {
+			File[] files = sourceFolder.listFiles();
+			
+			if(files == null) {
+				throw new IOException("Cached project folder " + sourceFolder + " is missing");
+			}
+			
+			//copy in name order so the sink sees the same order every time
+			Arrays.sort(files);
+			
+			for(File file : files) {
+				String filePath = path + file.getName();
+				
+				if(file.isDirectory()) {
+					outputSink.createFolder(filePath);
+					copyFolder(file, filePath + "/", outputSink);
+				} else {
+					outputSink.write(filePath, FileUtils.readFileToByteArray(file));
+				}
+			}
+		}
+		
+		/**
+		 * Get what the caller needs to describe the result
+		 * @return the summary
+		 */
+		public JSONObject getSummary() {
+			return summary;
+		}
+	}
+	
+	/**
+	 * A new entry being recorded while a project is converted
+	 */
+	public class Recording {
+		//the key of the new entry
+		private String key;
+		
+		//the temporary folder the project files are written into
+		private File folder;
+		
+		//writes the project files into the temporary folder
+		private OutputSink outputSink;
+		
+		Recording(String key, File folder) {
+			this.key = key;
+			this.folder = folder;
+			this.outputSink = new FileSystemOutputSink(folder);
+		}
+		
+		/**
+		 * Get the sink to write a copy of the project files into
+		 * @return the sink
+		 */
+		public OutputSink getOutputSink() {
+			return outputSink;
+		}
+		
+		/**
+		 * Add the recorded project to the cache
+		 * @param summary what the caller needs to describe the result
+		 * @return whether the entry was added
+		 */
+		public boolean commit(JSONObject summary) {
+			return store(this, summary);
+		}
+		
+		/**
+		 * Throw the recording away e.g. because the conversion failed
+		 */
+		public void abort() {
+			FileUtils.deleteQuietly(folder);
+		}
+	}
+}
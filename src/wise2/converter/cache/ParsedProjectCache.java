@@ -0,0 +1,455 @@
+package wise2.converter.cache;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.dom4j.Attribute;
+import org.dom4j.CDATA;
+import org.dom4j.Comment;
+import org.dom4j.Document;
+import org.dom4j.DocumentFactory;
+import org.dom4j.Element;
+import org.dom4j.Namespace;
+import org.dom4j.Node;
+import org.dom4j.ProcessingInstruction;
+import org.dom4j.QName;
+
+import wise2.converter.output.OutputSink;
+
+/**
+ * Keeps the parsed wise-project.xml of each project in a compact binary
+ * form in a cache folder, so converting the same project again after only
+ * the converters have changed does not have to parse the xml. The cache
+ * files are named by the SHA-256 hash of the xml so a changed project
+ * never loads an old tree.
+ * 
+ * The file holds the whole document tree with its elements, attributes,
+ * text, CDATA, comments and processing instructions in document order, so
+ * the loaded document gives the converters exactly what the xml would
+ * have. Element and attribute names are written once and then referred to
+ * by number. Documents with a DOCTYPE or entity references are not cached.
+ * 
+ * One cache can be shared by conversions running at the same time. Files
+ * are written to a temporary name and renamed into place so a reader never
+ * sees half a file.
+ */
+public class ParsedProjectCache {
+	
+	//the start of every cache file, the last byte is the format version
+	private static final byte[] MAGIC = {'W', '2', 'D', 'T', 1};
+	
+	//the extension of the cache files
+	private static final String FILE_EXTENSION = ".tree";
+	
+	//the kinds of node in a cache file
+	private static final int ELEMENT = 1;
+	private static final int TEXT = 2;
+	private static final int CDATA_SECTION = 3;
+	private static final int COMMENT = 4;
+	private static final int PROCESSING_INSTRUCTION = 5;
+	
+	//the folder the cache files are kept in
+	private File cacheFolder;
+	
+	//builds the nodes of the loaded documents
+	private DocumentFactory documentFactory = DocumentFactory.getInstance();
+	
+	/**
+	 * @param cacheFolder the folder to keep the cache files in, it is created if it does not exist
+	 */
+	public ParsedProjectCache(File cacheFolder) {
+		this.cacheFolder = cacheFolder;
+	}
+	
+	/**
+	 * Load the document parsed from an earlier copy of the same xml
+	 * @param xmlHash the SHA-256 hash of wise-project.xml
+	 * @return the document or null if it is not in the cache or the cache file could not be read
+	 */
+	public Document load(String xmlHash) {
+		File cacheFile = getCacheFile(xmlHash);
+		
+		if(!cacheFile.isFile()) {
+			return null;
+		}
+		
+		try {
+			//reading the whole file at once is much faster than reading it an int at a time through a stream
+			ByteBuffer input = ByteBuffer.wrap(FileUtils.readFileToByteArray(cacheFile));
+			
+			for(int x=0; x<MAGIC.length; x++) {
+				if(input.get() != MAGIC[x]) {
+					//written by another version of the cache
+					return null;
+				}
+			}
+			
+			Document document = documentFactory.createDocument();
+			String xmlEncoding = readString(input);
+			
+			if(xmlEncoding != null) {
+				document.setXMLEncoding(xmlEncoding);
+			}
+			
+			List<String> names = new ArrayList<String>();
+			int nodeCount = input.getInt();
+			
+			for(int x=0; x<nodeCount; x++) {
+				readNode(input, document, null, names);
+			}
+			
+			return document;
+		} catch (FileNotFoundException e) {
+			//another conversion removed it between the check and the read
+			return null;
+		} catch (RuntimeException e) {
+			/*
+			 * a damaged file runs off the end of the buffer or reads a bad
+			 * length or name number. it just means the xml is parsed again
+			 * so delete it and let this conversion save a good one.
+			 */
+			e.printStackTrace();
+			cacheFile.delete();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Save a parsed document so the next conversion of the same xml can load it
+	 * @param xmlHash the SHA-256 hash of wise-project.xml
+	 * @param document the parsed document
+	 * @return whether the document was saved, documents with a DOCTYPE or
+	 * entity references are not
+	 */
+	public boolean save(String xmlHash, Document document) {
+		if(document.getDocType() != null) {
+			return false;
+		}
+		
+		cacheFolder.mkdirs();
+		File cacheFile = getCacheFile(xmlHash);
+		File tempFile = null;
+		
+		try {
+			//a unique name so conversions in other processes saving the same xml do not write into it
+			tempFile = File.createTempFile(xmlHash + ".", ".tmp", cacheFolder);
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 64 * 1024));
+			boolean written = false;
+			
+			try {
+				output.write(MAGIC);
+				writeString(output, document.getXMLEncoding());
+				
+				Map<String, Integer> names = new HashMap<String, Integer>();
+				List<?> nodes = document.content();
+				output.writeInt(nodes.size());
+				
+				for(Object node : nodes) {
+					if(!writeNode(output, (Node) node, names)) {
+						return false;
+					}
+				}
+				
+				written = true;
+			} finally {
+				output.close();
+				
+				if(!written) {
+					tempFile.delete();
+				}
+			}
+			
+			//replace the file in one step so no one reads half of it
+			if(!tempFile.renameTo(cacheFile)) {
+				cacheFile.delete();
+				
+				if(!tempFile.renameTo(cacheFile)) {
+					tempFile.delete();
+					return false;
+				}
+			}
+			
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			
+			if(tempFile != null) {
+				tempFile.delete();
+			}
+			
+			return false;
+		}
+	}
+	
+	/**
+	 * Get the cache file for some xml
+	 * @param xmlHash the SHA-256 hash of wise-project.xml
+	 * @return the cache file
+	 */
+	public File getCacheFile(String xmlHash) {
+		return new File(cacheFolder, xmlHash + FILE_EXTENSION);
+	}
+	
+	/**
+	 * Write a node and everything in it
+	 * @param output the cache file
+	 * @param node the node
+	 * @param names the number of each name that has been written so far
+	 * @return false if the node cannot be cached
+	 * @throws IOException
+	 */
+	private boolean writeNode(DataOutputStream output, Node node, Map<String, Integer> names) throws IOException {
+		switch(node.getNodeType()) {
+		case Node.ELEMENT_NODE:
+			Element element = (Element) node;
+			output.writeByte(ELEMENT);
+			writeQName(output, element.getQName(), names);
+			
+			//the namespaces declared on the element that are not its own
+			List<?> declaredNamespaces = element.declaredNamespaces();
+			List<Namespace> additionalNamespaces = new ArrayList<Namespace>();
+			
+			for(Object namespace : declaredNamespaces) {
+				if(!namespace.equals(element.getNamespace())) {
+					additionalNamespaces.add((Namespace) namespace);
+				}
+			}
+			
+			output.writeInt(additionalNamespaces.size());
+			
+			for(Namespace namespace : additionalNamespaces) {
+				writeName(output, namespace.getPrefix(), names);
+				writeName(output, namespace.getURI(), names);
+			}
+			
+			List<?> attributes = element.attributes();
+			output.writeInt(attributes.size());
+			
+			for(Object attribute : attributes) {
+				writeQName(output, ((Attribute) attribute).getQName(), names);
+				writeString(output, ((Attribute) attribute).getValue());
+			}
+			
+			List<?> content = element.content();
+			output.writeInt(content.size());
+			
+			for(Object child : content) {
+				if(!writeNode(output, (Node) child, names)) {
+					return false;
+				}
+			}
+			
+			return true;
+		case Node.TEXT_NODE:
+			output.writeByte(TEXT);
+			writeString(output, node.getText());
+			return true;
+		case Node.CDATA_SECTION_NODE:
+			output.writeByte(CDATA_SECTION);
+			writeString(output, node.getText());
+			return true;
+		case Node.COMMENT_NODE:
+			output.writeByte(COMMENT);
+			writeString(output, node.getText());
+			return true;
+		case Node.PROCESSING_INSTRUCTION_NODE:
+			output.writeByte(PROCESSING_INSTRUCTION);
+			writeString(output, ((ProcessingInstruction) node).getTarget());
+			writeString(output, node.getText());
+			return true;
+		default:
+			//entity references and the like are rare enough to always parse
+			return false;
+		}
+	}
+	
+	/**
+	 * Read a node and everything in it and add it to its parent
+	 * @param input the cache file
+	 * @param document the document being loaded
+	 * @param parent the element to add the node to or null to add it to the document
+	 * @param names the names that have been read so far
+	 * @throws IOException
+	 */
+	private void readNode(ByteBuffer input, Document document, Element parent, List<String> names) throws IOException {
+		int nodeType = input.get();
+		Node node = null;
+		
+		switch(nodeType) {
+		case ELEMENT:
+			Element element = documentFactory.createElement(readQName(input, names));
+			
+			int namespaceCount = input.getInt();
+			
+			for(int x=0; x<namespaceCount; x++) {
+				String prefix = readName(input, names);
+				element.add(documentFactory.createNamespace(prefix, readName(input, names)));
+			}
+			
+			int attributeCount = input.getInt();
+			
+			for(int x=0; x<attributeCount; x++) {
+				QName attributeName = readQName(input, names);
+				element.add(documentFactory.createAttribute(element, attributeName, readString(input)));
+			}
+			
+			//add the element before its children so they can find its namespaces
+			addNode(document, parent, element);
+			
+			int childCount = input.getInt();
+			
+			for(int x=0; x<childCount; x++) {
+				readNode(input, document, element, names);
+			}
+			
+			return;
+		case TEXT:
+			node = documentFactory.createText(readString(input));
+			break;
+		case CDATA_SECTION:
+			node = documentFactory.createCDATA(readString(input));
+			break;
+		case COMMENT:
+			node = documentFactory.createComment(readString(input));
+			break;
+		case PROCESSING_INSTRUCTION:
+			String target = readString(input);
+			node = documentFactory.createProcessingInstruction(target, readString(input));
+			break;
+		default:
+			throw new IOException("Unknown node type " + nodeType + " in parsed project cache file");
+		}
+		
+		addNode(document, parent, node);
+	}
+	
+	/**
+	 * Add a loaded node to the document or to its parent element
+	 * @param document the document being loaded
+	 * @param parent the parent element or null for the document itself
+	 * @param node the node
+	 */
+	private void addNode(Document document, Element parent, Node node) {
+		if(parent == null) {
+			document.add(node);
+		} else {
+			parent.add(node);
+		}
+	}
+	
+	/**
+	 * Write the name and namespace of an element or attribute
+	 * @param output the cache file
+	 * @param qName the name
+	 * @param names the number of each name that has been written so far
+	 * @throws IOException
+	 */
+	private void writeQName(DataOutputStream output, QName qName, Map<String, Integer> names) throws IOException {
+		writeName(output, qName.getName(), names);
+		writeName(output, qName.getNamespacePrefix(), names);
+		writeName(output, qName.getNamespaceURI(), names);
+	}
+	
+	/**
+	 * Read the name and namespace of an element or attribute
+	 * @param input the cache file
+	 * @param names the names that have been read so far
+	 * @return the name
+	 * @throws IOException
+	 */
+	private QName readQName(ByteBuffer input, List<String> names) throws IOException {
+		String name = readName(input, names);
+		String prefix = readName(input, names);
+		String uri = readName(input, names);
+		
+		if(uri.length() == 0) {
+			return documentFactory.createQName(name);
+		}
+		
+		return documentFactory.createQName(name, documentFactory.createNamespace(prefix, uri));
+	}
+	
+	/**
+	 * Write a name the first time it is seen and its number after that
+	 * @param output the cache file
+	 * @param name the name
+	 * @param names the number of each name that has been written so far
+	 * @throws IOException
+	 */
+	private void writeName(DataOutputStream output, String name, Map<String, Integer> names) throws IOException {
+		Integer number = names.get(name);
+		
+		if(number != null) {
+			output.writeInt(number.intValue());
+		} else {
+			names.put(name, names.size());
+			output.writeInt(-1);
+			writeString(output, name);
+		}
+	}
+	
+	/**
+	 * Read a name written by writeName
+	 * @param input the cache file
+	 * @param names the names that have been read so far
+	 * @return the name
+	 * @throws IOException
+	 */
+	private String readName(ByteBuffer input, List<String> names) throws IOException {
+		int number = input.getInt();
+		
+		if(number >= 0) {
+			return names.get(number);
+		}
+		
+		String name = readString(input);
+		names.add(name);
+		return name;
+	}
+	
+	/**
+	 * Write a string of any length, writeUTF only takes 64K
+	 * @param output the cache file
+	 * @param value the string or null
+	 * @throws IOException
+	 */
+	private void writeString(DataOutputStream output, String value) throws IOException {
+		if(value == null) {
+			output.writeInt(-1);
+		} else {
+			byte[] bytes = value.getBytes(OutputSink.UTF_8);
+			output.writeInt(bytes.length);
+			output.write(bytes);
+		}
+	}
+	
+	/**
+	 * Read a string written by writeString
+	 * @param input the cache file
+	 * @return the string or null
+	 */
+	private String readString(ByteBuffer input) {
+		int length = input.getInt();
+		
+		if(length < 0) {
+			return null;
+		}
+		
+		String value = new String(input.array(), input.position(), length, OutputSink.UTF_8);
+		input.position(input.position() + length);
+		return value;
+	}
+}
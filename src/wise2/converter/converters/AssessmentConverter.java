@@ -1,7 +1,6 @@
 package wise2.converter.converters;
 
 import java.io.BufferedWriter;
-import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Reader;
@@ -24,6 +23,8 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import wise2.converter.jfr.QTIParseEvent;
+
 /**
  * This is the parent for several steps that convert a Wise 2 Assessment step
  * into various Wise 4 steps such as MultipleChoice, Notes, OpenResponse, and
@@ -80,6 +81,9 @@ abstract class AssessmentConverter extends Converter {
 		Reader in = new StringReader(qtiString);
 		Document document = null;
 		
+		QTIParseEvent event = new QTIParseEvent();
+		event.begin();
+		
 		try {
 			//write the qti string to the document
 			document = reader.read(in);
@@ -87,6 +91,13 @@ abstract class AssessmentConverter extends Converter {
 			e.printStackTrace();
 		}
 		
+		event.end();
+		
+		if(event.shouldCommit()) {
+			event.qtiLength = qtiString.length();
+			event.commit();
+		}
+		
 		return document;
 	}
 	
@@ -211,7 +222,7 @@ abstract class AssessmentConverter extends Converter {
 		 * download all the images and change all the references to point
 		 * to the image in the assets folder
 		 */
-		prompt = downloadImagesAndReplaceReferences(getProjectFolder(), prompt);
+		prompt = downloadImagesAndReplaceReferences(prompt);
 		
 		try {
 			//set the attributes into our interaction JSONObject
@@ -255,7 +266,7 @@ abstract class AssessmentConverter extends Converter {
 		 * download all the images and change all the references to point
 		 * to the image in the assets folder
 		 */
-		prompt = downloadImagesAndReplaceReferences(getProjectFolder(), prompt);
+		prompt = downloadImagesAndReplaceReferences(prompt);
 		
 		//get the choices
 		JSONArray choices = getChoices(itemBodyChild);
@@ -1,10 +1,5 @@
 package wise2.converter.converters;
 
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-
 import org.dom4j.Node;
 import org.json.JSONObject;
 
@@ -17,13 +12,9 @@ public class BookmarksConverter extends HtmlPageConverter {
 	/**
 	 * Create the html file for the step
 	 * @param stepNode the xml step node
-	 * @param projectFolder the folder we are creating the wise 4 project in
 	 * @param stepCounter the global counter for all the steps in the project 
 	 */
-	protected void createStepHtmlFile(Node stepNode, File projectFolder, int stepCounter) {
-		//create the file handle
-		File stepHtmlFile = new File(projectFolder, getStepHtmlFileName(stepCounter));
-		
+	protected void createStepHtmlFile(Node stepNode, int stepCounter) {
 		/*
 		 * get the other data
 		 * e.g.
@@ -88,21 +79,8 @@ public class BookmarksConverter extends HtmlPageConverter {
 		//wrap the html in html tags and make a link to the url at the bottom
 		html = "<html><head></head>" + html + "<br><a href='" + url + "'>" + url + "</a><html>";
 		
-		try {
-			//write the .project contents to the actual file
-			BufferedWriter out = new BufferedWriter(new FileWriter(stepHtmlFile));
-			out.write(html);
-			out.close();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		
-		try {
-			//make the file on disk
-			stepHtmlFile.createNewFile();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		//write the html to the file
+		writeStepFile(getStepHtmlFileName(stepCounter), html);
 	}
 	
 	/**
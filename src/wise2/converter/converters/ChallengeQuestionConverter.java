@@ -90,7 +90,7 @@ public class ChallengeQuestionConverter extends AssessmentConverter {
 		 * download all the images and change all the references to point
 		 * to the image in the assets folder
 		 */
-		prompt = downloadImagesAndReplaceReferences(getProjectFolder(), prompt);
+		prompt = downloadImagesAndReplaceReferences(prompt);
 		
 		JSONArray choices = getChoices(itemBodyChild);
 		
@@ -1,10 +1,5 @@
 package wise2.converter.converters;
 
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-
 import org.dom4j.Node;
 import org.json.JSONObject;
 
@@ -20,13 +15,9 @@ public class ConcordModelSaveJarConverter extends HtmlPageConverter {
 	/**
 	 * Create the html file
 	 * @param stepNode the xml step node
-	 * @param projectFolder the wise 4 project folder
 	 * @param stepCounter the global step counter
 	 */
-	protected void createStepHtmlFile(Node stepNode, File projectFolder, int stepCounter) {
-		//create the file we will write the html to
-		File stepHtmlFile = new File(projectFolder, getStepHtmlFileName(stepCounter));
-		
+	protected void createStepHtmlFile(Node stepNode, int stepCounter) {
 		StringBuffer html = new StringBuffer();
 		
 		//get the attributes from the xml
@@ -66,21 +57,8 @@ public class ConcordModelSaveJarConverter extends HtmlPageConverter {
 		html.append("</body>");
 		html.append("</html>");
 
-		try {
-			//write the .project contents to the actual file
-			BufferedWriter out = new BufferedWriter(new FileWriter(stepHtmlFile));
-			out.write(html.toString());
-			out.close();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		
-		try {
-			//write the file to disk
-			stepHtmlFile.createNewFile();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		//write the html to the file
+		writeStepFile(getStepHtmlFileName(stepCounter), html.toString());
 	}
 	
 	/**
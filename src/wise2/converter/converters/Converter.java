@@ -1,48 +1,77 @@
 package wise2.converter.converters;
 
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import org.apache.commons.io.FileUtils;
+import javax.imageio.ImageIO;
+
+import org.apache.commons.io.IOUtils;
 import org.dom4j.Element;
 import org.dom4j.Node;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import wise2.converter.ConversionOptions;
+import wise2.converter.jfr.ImageDownloadEvent;
+import wise2.converter.jfr.StepFileWriteEvent;
+import wise2.converter.log.ConvertLog;
+import wise2.converter.report.StepReport;
+import wise2.converter.output.OutputSink;
+import wise2.converter.progress.ConversionProgress;
+
 /**
  * The parent class for converters that convert Wise 2 steps to Wise 4 steps
  * @author geoffreykwan
  */
 public abstract class Converter {
 	
-	//the project folder that the wise 4 project files will be created in
-	private File projectFolder = null;
+	/*
+	 * the version of the code in this class. increase it when a change here
+	 * makes every converter write different files for the same step so
+	 * incremental conversions convert every step again
+	 */
+	public static final int BASE_VERSION = 1;
+	
+	//the convert log section for this step, records the details of copying images
+	private ConvertLog.Section convertLog = null;
+	
+	//the sink that all the step files are written to
+	private OutputSink outputSink = null;
+	
+	//records the image fetches for the conversion report
+	private StepReport stepReport = null;
 	
-	//will contain the output text when copying images for a step
-	private StringBuffer copyImageFileStringBuffer = null;
+	//the progress of the conversion, counts the downloads in flight
+	private ConversionProgress progress = null;
+	
+	//the settings for the conversion, used for where and how images are downloaded
+	private ConversionOptions options = new ConversionOptions();
+	
+	//the prefix of the image urls on the wise 2 server
+	private static final String WISE2_UPLOAD_URL = "http://wise.berkeley.edu/upload/";
 	
 	/**
 	 * Create the step object that we will put into the "nodes" JSONArray within
 	 * the .project.json file
 	 * @param stepNode the xml step node
-	 * @param projectFolder the wise 4 project folder
 	 * @param stepCounter the global step counter
 	 * @return a JSONObject containing step attributes that we will put in
 	 * the "nodes" JSONArray within the .project.json file 
 	 */
-	public JSONObject createStep(Node stepNode, File projectFolder, int stepCounter) {
+	public JSONObject createStep(Node stepNode, int stepCounter) {
 		//create the step file
-		createStepFile(stepNode, projectFolder, stepCounter);
+		createStepFile(stepNode, stepCounter);
 		
 		Node titleNode = stepNode.selectSingleNode("title");
 		
@@ -98,10 +127,9 @@ public abstract class Converter {
 	/**
 	 * Create the step file
 	 * @param stepNode the xml step node
-	 * @param projectFolder the wise 4 project folder
 	 * @param stepCounter the global step counter
 	 */
-	public void createStepFile(Node stepNode, File projectFolder, int stepCounter) {
+	public void createStepFile(Node stepNode, int stepCounter) {
 		//the JSONObject that we will write into the step file
 		JSONObject stepJSON = parseStepNode(stepNode);
 		
@@ -111,13 +139,7 @@ public abstract class Converter {
 		//get the step file name
 		String stepFileName = getStepFileName(stepCounter);
 		
-		//create the step file
-		File stepFile = new File(projectFolder, stepFileName);
-		
 		try {
-			//write the step contents to the actual file
-			BufferedWriter out = new BufferedWriter(new FileWriter(stepFile));
-
 			//indent the JSON by passing in the argument 3 (for 3 spaces per indent)
 			String stepJSONString = stepJSON.toString(3);
 			
@@ -129,20 +151,36 @@ public abstract class Converter {
 			stepJSONString = stepJSONString.replaceAll("\\\\/", "/");
 			
 			//write the step JSON to the step file
-			out.write(stepJSONString);
-			out.close();
-		} catch (IOException e) {
-			e.printStackTrace();
+			writeStepFile(stepFileName, stepJSONString);
 		} catch (JSONException e) {
 			e.printStackTrace();
 		}
+	}
+	
+	/**
+	 * Write the contents of a step file to the output sink
+	 * @param stepFileName the name of the file e.g. node_0.html
+	 * @param content the text to write into the file
+	 */
+	protected void writeStepFile(String stepFileName, String content) {
+		StepFileWriteEvent event = new StepFileWriteEvent();
+		event.begin();
+		
+		byte[] bytes = content.getBytes(OutputSink.UTF_8);
 		
 		try {
-			//create the step file
-			stepFile.createNewFile();
+			getOutputSink().write(stepFileName, bytes);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		
+		event.end();
+		
+		if(event.shouldCommit()) {
+			event.path = stepFileName;
+			event.bytes = bytes.length;
+			event.commit();
+		}
 	}
 	
 	/**
@@ -216,11 +254,10 @@ public abstract class Converter {
 	 * Download references to images on the wise2 server and save them
 	 * into the assets folder. Then change the reference in the content
 	 * to point to the assets folder instead of the wise2 server.
-	 * @param projectFolder the project folder
 	 * @param content the content for the step
 	 * @return
 	 */
-	public String downloadImagesAndReplaceReferences(File projectFolder, String content) {
+	public String downloadImagesAndReplaceReferences(String content) {
 		
 		/*
 		 * Find all references to images on the wise2 server.
@@ -232,9 +269,6 @@ public abstract class Converter {
 		Pattern p = Pattern.compile("http://wise.berkeley.edu/upload/.+?/(.+?\\.([jJ][pP][gG]|[jJ][pP][eE][gG]|[gG][iI][fF]|[pP][nN][gG]|[tT][iI][fF][fF]|[bB][mM][pP]))");
 		Matcher m = p.matcher(content);
 		
-		//create the reference to the assets folder in the project folder
-		File assetsFolder = new File(projectFolder, "assets");
-		
 		//loop through all the matches 
 		while(m.find()) {
 			try {
@@ -242,20 +276,11 @@ public abstract class Converter {
 				String originalMatch = m.group(0);
 				
 				/*
-				 * replace the http with https in the url
-				 * 
-				 * before=http://wise.berkeley.edu/upload/32809/plantcell.jpg
-				 * after=https://wise.berkeley.edu/upload/32809/plantcell.jpg
-				 */
-				String modifiedMatch = originalMatch.replace("http", "https");
-				
-				/*
-				 * replace the host to point to wise2.berkeley.edu because
-				 * wise.berkeley.edu points to wise4
-				 * wise2.berkeley.edu points to wise2
-				 * the references in the step content still work because
-				 * we have set up a redirect from wise.berkeley.edu to 
-				 * wise2.berkeley.edu for images. unfortunately when we
+				 * download the image from the asset base url. by default this
+				 * is https on wise2.berkeley.edu because wise.berkeley.edu
+				 * points to wise4. the references in the step content still
+				 * work because we have set up a redirect from wise.berkeley.edu
+				 * to wise2.berkeley.edu for images. unfortunately when we
 				 * try to retrieve the file from the url, it will not
 				 * perform the redirect so we must manually change the
 				 * host from wise.berkeley.edu to wise2.berkeley.edu
@@ -263,7 +288,7 @@ public abstract class Converter {
 				 * before=http://wise.berkeley.edu/upload/32809/plantcell.jpg
 				 * after=https://wise2.berkeley.edu/upload/32809/plantcell.jpg
 				 */
-				modifiedMatch = modifiedMatch.replace("wise.berkeley.edu", "wise2.berkeley.edu");
+				String modifiedMatch = options.getAssetBaseUrl() + originalMatch.substring(WISE2_UPLOAD_URL.length());
 				//System.out.println("urlString=" + modifiedMatch);
 				
 				//get the file name that we have captured
@@ -275,17 +300,12 @@ public abstract class Converter {
 				URL imageUrl = new URL(modifiedMatch);
 				
 
-				/*
-				 * make a reference to where we will save the image file which
-				 * will be in the project assets folder
-				 */
-				File fileLocation = new File(assetsFolder, fileName);
-				//System.out.println("fileLocation=" + fileLocation.getAbsolutePath());
+				//the path of the image file which will be in the project assets folder
+				String assetPath = "assets/" + fileName;
 				
 				//copy the file from the URL and save it into the assets folder
-				FileUtils.copyURLToFile(imageUrl, fileLocation, 10000, 10000);
-				//System.out.println("copying: " + modifiedMatch + " to " + fileLocation.getAbsolutePath());
-				copyImageFileStringBuffer.append("copying: " + modifiedMatch + " to " + fileLocation.getAbsolutePath() + "\n");
+				getOutputSink().write(assetPath, fetchImage(imageUrl));
+				convertLog.write(ConvertLog.Level.DETAILS, "copying: " + modifiedMatch + " to " + assetPath);
 				
 				/*
 				 * replace all references in the content with a reference to the
@@ -306,35 +326,165 @@ public abstract class Converter {
 	}
 	
 	/**
-	 * Get the project folder
+	 * Retrieve an image from a URL and record how long it took in the
+	 * step report
+	 * @param url the URL of the image
+	 * @return the bytes of the image
+	 * @throws IOException
+	 */
+	protected byte[] fetchImage(URL url) throws IOException {
+		ImageDownloadEvent event = new ImageDownloadEvent();
+		event.begin();
+		
+		long startTime = System.nanoTime();
+		boolean succeeded = false;
+		long bytes = 0;
+		
+		progress.downloadStarted();
+		
+		try {
+			byte[] image = downloadFile(url);
+			succeeded = true;
+			bytes = image.length;
+			return image;
+		} finally {
+			stepReport.recordImageFetch(System.nanoTime() - startTime, bytes, succeeded);
+			progress.downloadFinished();
+			
+			event.end();
+			
+			if(event.shouldCommit()) {
+				event.url = url.toString();
+				event.bytes = bytes;
+				event.succeeded = succeeded;
+				event.commit();
+			}
+		}
+	}
+	
+	/**
+	 * Retrieve an image from a URL and decode it
+	 * @param url the URL of the image
+	 * @return the image or null if it is not in a format we can read
+	 * @throws IOException
+	 */
+	protected BufferedImage readImage(URL url) throws IOException {
+		return ImageIO.read(new ByteArrayInputStream(fetchImage(url)));
+	}
+	
+	/**
+	 * Retrieve the contents of a file from a URL
+	 * @param url the URL of the file
+	 * @return the bytes of the file
+	 * @throws IOException
+	 */
+	protected byte[] downloadFile(URL url) throws IOException {
+		URLConnection connection = url.openConnection();
+		connection.setConnectTimeout(options.getDownloadConnectTimeoutMillis());
+		connection.setReadTimeout(options.getDownloadReadTimeoutMillis());
+		
+		InputStream in = connection.getInputStream();
+		
+		try {
+			byte[] file = IOUtils.toByteArray(in);
+			
+			/*
+			 * if the connection is dropped part way through the body the
+			 * stream just ends so we must check we got everything the
+			 * server said it would send
+			 */
+			long contentLength = connection.getContentLengthLong();
+			
+			if(contentLength >= 0 && file.length != contentLength) {
+				throw new IOException("Received " + file.length + " of " + contentLength + " bytes from " + url);
+			}
+			
+			return file;
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Get the output sink
 	 * @return
 	 */
-	public File getProjectFolder() {
-		return projectFolder;
+	public OutputSink getOutputSink() {
+		return outputSink;
 	}
 
 	/**
-	 * Set the project folder
-	 * @param projectFolder
+	 * Set the output sink that the step files will be written to
+	 * @param outputSink
 	 */
-	public void setProjectFolder(File projectFolder) {
-		this.projectFolder = projectFolder;
+	public void setOutputSink(OutputSink outputSink) {
+		this.outputSink = outputSink;
 	}
 	
 	/**
-	 * Get the copy image file string buffer
+	 * Get the settings for the conversion
 	 * @return
 	 */
-	public StringBuffer getCopyImageFileStringBuffer() {
-		return copyImageFileStringBuffer;
+	public ConversionOptions getOptions() {
+		return options;
 	}
 
 	/**
-	 * Set the copy image file string buffer
-	 * @param copyFileStringBuffer
+	 * Set the settings for the conversion, these decide where images are
+	 * downloaded from and how long to wait for them
+	 * @param options
 	 */
-	public void setCopyImageFileStringBuffer(StringBuffer copyFileStringBuffer) {
-		this.copyImageFileStringBuffer = copyFileStringBuffer;
+	public void setOptions(ConversionOptions options) {
+		this.options = options;
+	}
+	
+	/**
+	 * Get the step report that image fetches are recorded in
+	 * @return
+	 */
+	public StepReport getStepReport() {
+		return stepReport;
+	}
+
+	/**
+	 * Set the step report that image fetches are recorded in
+	 * @param stepReport
+	 */
+	public void setStepReport(StepReport stepReport) {
+		this.stepReport = stepReport;
+	}
+	
+	/**
+	 * Get the progress of the conversion
+	 * @return
+	 */
+	public ConversionProgress getProgress() {
+		return progress;
+	}
+
+	/**
+	 * Set the progress of the conversion that image downloads are counted in
+	 * @param progress
+	 */
+	public void setProgress(ConversionProgress progress) {
+		this.progress = progress;
+	}
+	
+	/**
+	 * Get the convert log section for this step
+	 * @return
+	 */
+	public ConvertLog.Section getConvertLog() {
+		return convertLog;
+	}
+
+	/**
+	 * Set the convert log section that the details of copying
+	 * image files are written to
+	 * @param convertLog
+	 */
+	public void setConvertLog(ConvertLog.Section convertLog) {
+		this.convertLog = convertLog;
 	}
 	
 	/**
@@ -385,6 +535,25 @@ public abstract class Converter {
 		}
 	}
 	
+	/**
+	 * Get the version of this converter. Override this and increase it
+	 * when a change makes the converter write different files for the same
+	 * step so incremental conversions convert those steps again.
+	 * @return the version of the converter
+	 */
+	public int getVersion() {
+		return 1;
+	}
+	
+	/**
+	 * Get the version recorded in the conversion manifest, which includes
+	 * the version of the code shared by all the converters
+	 * @return the version e.g. 1.1
+	 */
+	public String getFullVersion() {
+		return BASE_VERSION + "." + getVersion();
+	}
+	
 	/**
 	 * Parse the xml step node to create a step JSONObject
 	 * @return the JSONObject for the step
@@ -1,10 +1,5 @@
 package wise2.converter.converters;
 
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-
 import org.dom4j.Node;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -22,13 +17,12 @@ abstract class HtmlPageConverter extends Converter {
 	 * the parent createStep() function because html files use the .ht file name
 	 * for the ref.
 	 * @param stepNode the xml step node
-	 * @param projectFolder the wise 4 project folder
 	 * @param stepCounter the global step counter
 	 * @return the JSONObject for the step
 	 */
-	public JSONObject createStep(Node stepNode, File projectFolder, int stepCounter) {
+	public JSONObject createStep(Node stepNode, int stepCounter) {
 		//create the step file
-		createStepFile(stepNode, projectFolder, stepCounter);
+		createStepFile(stepNode, stepCounter);
 		
 		Node titleNode = stepNode.selectSingleNode("title");
 		
@@ -53,24 +47,19 @@ abstract class HtmlPageConverter extends Converter {
 	/**
 	 * Create the .html file and the .ht file
 	 * @param stepNode the xml step node
-	 * @param projectFolder the wise 4 project folder
 	 * @param stepCounter the global step counter
 	 */
-	public void createStepFile(Node stepNode, File projectFolder, int stepCounter) {
-		createStepHtmlFile(stepNode, projectFolder, stepCounter);
-		createStepHtFile(stepNode, projectFolder, stepCounter);
+	public void createStepFile(Node stepNode, int stepCounter) {
+		createStepHtmlFile(stepNode, stepCounter);
+		createStepHtFile(stepNode, stepCounter);
 	}
 	
 	/**
 	 * Create the .html file
 	 * @param stepNode the xml step node
-	 * @param projectFolder the wise 4 project folder
 	 * @param stepCounter the global step counter
 	 */
-	protected void createStepHtmlFile(Node stepNode, File projectFolder, int stepCounter) {
-		//create the file
-		File stepHtmlFile = new File(projectFolder, getStepHtmlFileName(stepCounter));
-		
+	protected void createStepHtmlFile(Node stepNode, int stepCounter) {
 		//get the html from the xml node
 		String html = stepNode.selectSingleNode(getHtmlTextXMLPath()).getText();
 
@@ -78,38 +67,21 @@ abstract class HtmlPageConverter extends Converter {
 		 * download all the images and change all the references to point
 		 * to the image in the assets folder
 		 */
-		html = downloadImagesAndReplaceReferences(projectFolder, html);
+		html = downloadImagesAndReplaceReferences(html);
 		
-		try {
-			//write the html contents to the actual file
-			BufferedWriter out = new BufferedWriter(new FileWriter(stepHtmlFile));
-			out.write(html);
-			out.close();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		
-		try {
-			//create the file on disk
-			stepHtmlFile.createNewFile();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		//write the html contents to the file
+		writeStepFile(getStepHtmlFileName(stepCounter), html);
 	}
 	
 	/**
 	 * Create the .ht file
 	 * @param stepNode the xml step node
-	 * @param projectFolder the wise 4 project folder
 	 * @param stepCounter the global step counter
 	 */
-	private void createStepHtFile(Node stepNode, File projectFolder, int stepCounter) {
+	private void createStepHtFile(Node stepNode, int stepCounter) {
 		String stepHtFileName = getStepHtFileName(stepCounter);
 		String stepHtmlFileName = getStepHtmlFileName(stepCounter);
 		
-		//create the file
-		File stepHtFile = new File(projectFolder, stepHtFileName);
-		
 		JSONObject stepJSON = new JSONObject();
 		
 		try {
@@ -124,22 +96,11 @@ abstract class HtmlPageConverter extends Converter {
 		}
 		
 		try {
-			//write the contents to the actual file
-			BufferedWriter out = new BufferedWriter(new FileWriter(stepHtFile));
-			out.write(stepJSON.toString(3));
-			out.close();
-		} catch (IOException e) {
-			System.out.println("Exception ");
+			//write the contents to the file
+			writeStepFile(stepHtFileName, stepJSON.toString(3));
 		} catch (JSONException e) {
 			e.printStackTrace();
 		}
-		
-		try {
-			//create the file on disk
-			stepHtFile.createNewFile();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
 	}
 	
 	/**
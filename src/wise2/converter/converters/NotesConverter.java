@@ -1,7 +1,6 @@
 package wise2.converter.converters;
 
 import java.io.BufferedWriter;
-import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Reader;
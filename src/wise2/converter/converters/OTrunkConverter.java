@@ -1,10 +1,5 @@
 package wise2.converter.converters;
 
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-
 import org.dom4j.Node;
 
 /**
@@ -16,13 +11,9 @@ public class OTrunkConverter extends HtmlPageConverter {
 	/**
 	 * Create the .html file
 	 * @param stepNode the xml step node
-	 * @param projectFolder the wise 4 project folder
 	 * @param stepCounter the global step counter
 	 */
-	protected void createStepHtmlFile(Node stepNode, File projectFolder, int stepCounter) {
-		//create the file
-		File stepHtmlFile = new File(projectFolder, getStepHtmlFileName(stepCounter));
-		
+	protected void createStepHtmlFile(Node stepNode, int stepCounter) {
 		//get the jnlp url
 		String launchUrl = stepNode.selectSingleNode("parameters/jnlpHref").getText();
 
@@ -47,21 +38,8 @@ public class OTrunkConverter extends HtmlPageConverter {
 		html.append("</body>");
 		html.append("</html>");
 		
-		try {
-			//write the html to the actual file
-			BufferedWriter out = new BufferedWriter(new FileWriter(stepHtmlFile));
-			out.write(html.toString());
-			out.close();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		
-		try {
-			//create the file on disk
-			stepHtmlFile.createNewFile();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		//write the html to the file
+		writeStepFile(getStepHtmlFileName(stepCounter), html.toString());
 	}
 	
 	/**
@@ -9,7 +9,6 @@ import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import javax.imageio.ImageIO;
 import javax.swing.JLabel;
 
 import org.dom4j.Node;
@@ -56,8 +55,8 @@ public class Wisedraw2Converter extends Converter {
 				URL url;
 				try {
 					//retrieve the image from the url path
-					url = new URL(stampPath);
-					image = ImageIO.read(url);
+					url = getStampDownloadUrl(stampPath);
+					image = readImage(url);
 					
 					//create a JLabel so we can find the dimensions of the stamp
 					JLabel jLabel = new JLabel();
@@ -122,8 +121,8 @@ public class Wisedraw2Converter extends Converter {
 			URL url;
 			try {
 				//grab the image so we can determine the dimensions
-				url = new URL(backgroundPath);
-				image = ImageIO.read(url);
+				url = getStampDownloadUrl(backgroundPath);
+				image = readImage(url);
 				
 				/*
 				 * set where to place the image (2, 2) will be in the upper left with a little bit
@@ -162,6 +161,34 @@ public class Wisedraw2Converter extends Converter {
 		return stepNodeJSONObject;
 	}
 	
+	/**
+	 * Get the url to download a stamp or background image from. If a stamp
+	 * base url is set the host of http and https urls is replaced with it
+	 * so the images can be served from a mirror or a local test server.
+	 * e.g.
+	 * before=http://wise.berkeley.edu/upload/16965/star.gif
+	 * after=http://localhost:8080/upload/16965/star.gif
+	 * @param imagePath the url of the image in the wise 2 step
+	 * @return the url to download the image from
+	 * @throws MalformedURLException
+	 */
+	protected URL getStampDownloadUrl(String imagePath) throws MalformedURLException {
+		URL url = new URL(imagePath);
+		String stampBaseUrl = getOptions().getStampBaseUrl();
+		
+		if(stampBaseUrl != null && (url.getProtocol().equals("http") || url.getProtocol().equals("https"))) {
+			String file = url.getFile();
+			
+			if(!file.startsWith("/")) {
+				file = "/" + file;
+			}
+			
+			url = new URL(stampBaseUrl + file);
+		}
+		
+		return url;
+	}
+	
 	/**
 	 * Determines the icon type for the step
 	 */
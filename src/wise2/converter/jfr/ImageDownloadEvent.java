@@ -0,0 +1,28 @@
+package wise2.converter.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for fetching one image referenced by a step
+ */
+@Name("wise2.converter.ImageDownload")
+@Label("Image Download")
+@Category("WISE Converter")
+@Description("Fetching an image referenced by a step from its url")
+public final class ImageDownloadEvent extends Event {
+	
+	@Label("URL")
+	public String url;
+	
+	@Label("Bytes")
+	@DataAmount
+	public long bytes;
+	
+	@Label("Succeeded")
+	public boolean succeeded;
+}
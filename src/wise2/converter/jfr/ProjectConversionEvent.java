@@ -0,0 +1,37 @@
+package wise2.converter.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event that covers the conversion of one whole project.
+ * Like the other converter events it is enabled and given a threshold
+ * through the usual JFR settings e.g. a .jfc file, and begin() and
+ * commit() do nothing when no recording has it enabled.
+ */
+@Name("wise2.converter.ProjectConversion")
+@Label("Project Conversion")
+@Category("WISE Converter")
+@Description("Converting one wise 2 project export into a wise 4 project")
+public final class ProjectConversionEvent extends Event {
+	
+	@Label("Project Id")
+	public String projectId;
+	
+	@Label("Project Title")
+	public String projectTitle;
+	
+	@Label("Steps Converted")
+	public int stepsConverted;
+	
+	@Label("Steps Failed")
+	public int stepsFailed;
+	
+	@Label("Bytes Written")
+	@DataAmount
+	public long bytesWritten;
+}
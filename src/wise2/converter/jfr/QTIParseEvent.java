@@ -0,0 +1,21 @@
+package wise2.converter.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for parsing the qti of an assessment step
+ */
+@Name("wise2.converter.QTIParse")
+@Label("QTI Parse")
+@Category("WISE Converter")
+@Description("Parsing the qti xml embedded in an assessment step")
+public final class QTIParseEvent extends Event {
+	
+	@Label("QTI Length")
+	@Description("The number of characters in the qti xml")
+	public int qtiLength;
+}
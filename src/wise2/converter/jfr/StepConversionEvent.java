@@ -0,0 +1,30 @@
+package wise2.converter.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for converting one step
+ */
+@Name("wise2.converter.StepConversion")
+@Label("Step Conversion")
+@Category("WISE Converter")
+@Description("Converting one wise 2 step into a wise 4 node")
+public final class StepConversionEvent extends Event {
+	
+	@Label("Step Type")
+	public String stepType;
+	
+	@Label("Node Id")
+	@Description("The wise 4 node identifier e.g. node_0.ht, empty if the step failed")
+	public String nodeId;
+	
+	@Label("Converter")
+	public String converter;
+	
+	@Label("Converted")
+	public boolean converted;
+}
@@ -0,0 +1,29 @@
+package wise2.converter.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for handing a step file to the output sink. With
+ * write-behind output this covers the time the step was held up, not the
+ * time the disk took.
+ */
+@Name("wise2.converter.StepFileWrite")
+@Label("Step File Write")
+@Category("WISE Converter")
+@Description("Writing a step content file to the output sink")
+@StackTrace(false)
+public final class StepFileWriteEvent extends Event {
+	
+	@Label("Path")
+	public String path;
+	
+	@Label("Bytes")
+	@DataAmount
+	public long bytes;
+}
@@ -0,0 +1,28 @@
+package wise2.converter.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for reading one entry out of the export zip and
+ * handing it to the output sink
+ */
+@Name("wise2.converter.ZipEntryExtraction")
+@Label("Zip Entry Extraction")
+@Category("WISE Converter")
+@Description("Reading one entry of the wise 2 export zip")
+@StackTrace(false)
+public final class ZipEntryExtractionEvent extends Event {
+	
+	@Label("Entry Name")
+	public String entryName;
+	
+	@Label("Bytes")
+	@DataAmount
+	public long bytes;
+}
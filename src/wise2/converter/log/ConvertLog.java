@@ -0,0 +1,326 @@
+package wise2.converter.log;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The convert log for one project. Lines are handed to a background thread
+ * that streams them into the convert log file and prints them to the
+ * console, so the conversion never waits on console or file I/O unless
+ * the bounded queue is full.
+ * 
+ * Lines that belong to a step are written into a Section. Sections are
+ * opened in step order and their lines are released in that order once
+ * they are closed, so the log reads the same when steps are converted
+ * in parallel.
+ */
+public class ConvertLog {
+	
+	/**
+	 * How important a line is. The console only shows lines at or above
+	 * the console level while the log file always gets every line.
+	 */
+	public enum Level {
+		//nothing is printed to the console
+		QUIET,
+		
+		//activity headers and the summary at the end
+		SUMMARY,
+		
+		//one line for each converted or failed step
+		STEPS,
+		
+		//copied files and the xml of failed steps
+		DETAILS
+	}
+	
+	//marks the end of the lines in the queue
+	private static final LogLine END = new LogLine(Level.SUMMARY, null);
+	
+	//the lines waiting for the background thread
+	private BlockingQueue<LogLine> queue;
+	
+	//the sections that are waiting for an earlier section to be closed
+	private LinkedList<Section> pendingSections = new LinkedList<Section>();
+	
+	//where the log file is written
+	private Writer fileWriter;
+	
+	//where the console lines are printed
+	private PrintStream console;
+	
+	//the lowest level of line that is printed to the console
+	private Level consoleLevel;
+	
+	//the longest xml dump that is written before it is truncated
+	private int maxXMLLength;
+	
+	//the thread that writes the lines
+	private Thread writerThread;
+	
+	//whether close() has been called
+	private boolean closed = false;
+	
+	//set when the background thread has stopped taking lines so nobody waits for room in the queue
+	private volatile boolean writerStopped = false;
+	
+	/**
+	 * Create the log and start its background thread
+	 * @param logStream the stream to write the log file to, closed when the log is closed
+	 * @param console where to print the console lines
+	 * @param consoleLevel the lowest level of line to print to the console
+	 * @param queueCapacity the number of lines that may wait for the background thread
+	 * @param maxXMLLength the longest xml dump to write before truncating it
+	 */
+	public ConvertLog(OutputStream logStream, PrintStream console, Level consoleLevel, int queueCapacity, int maxXMLLength) {
+		this.fileWriter = new BufferedWriter(new OutputStreamWriter(logStream, Charset.forName("UTF-8")), 16 * 1024);
+		this.console = console;
+		this.consoleLevel = consoleLevel;
+		this.maxXMLLength = maxXMLLength;
+		this.queue = new ArrayBlockingQueue<LogLine>(queueCapacity);
+		
+		writerThread = new Thread(new Runnable() {
+			public void run() {
+				writeLines();
+			}
+		}, "wise-convert-log");
+		
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+	
+	/**
+	 * Write a line that does not belong to a step. It is written after
+	 * all the sections that have already been opened.
+	 * @param level how important the line is
+	 * @param line the text of the line
+	 */
+	public void write(Level level, String line) {
+		Section section = openSection();
+		section.write(level, line);
+		section.close();
+	}
+	
+	/**
+	 * Open a section for the lines of one step. Sections are released in
+	 * the order they are opened so they must be opened in step order.
+	 * @return the new section
+	 */
+	public Section openSection() {
+		Section section = new Section();
+		
+		synchronized(pendingSections) {
+			pendingSections.add(section);
+		}
+		
+		return section;
+	}
+	
+	/**
+	 * Write out any sections that are still open, wait for the background
+	 * thread to write all the lines and close the log file
+	 */
+	public void close() {
+		synchronized(pendingSections) {
+			if(closed) {
+				return;
+			}
+			
+			closed = true;
+			
+			//release everything that is left even if it was never closed
+			while(!pendingSections.isEmpty()) {
+				enqueue(pendingSections.removeFirst().takeLines());
+			}
+			
+			putLine(END);
+		}
+		
+		try {
+			writerThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Release the lines of the sections at the front of the queue that have
+	 * been closed
+	 */
+	private void releaseClosedSections() {
+		synchronized(pendingSections) {
+			while(!pendingSections.isEmpty() && pendingSections.getFirst().isClosed()) {
+				enqueue(pendingSections.removeFirst().takeLines());
+			}
+		}
+	}
+	
+	/**
+	 * Hand the lines to the background thread. Must be called while holding
+	 * the pendingSections lock so that lines stay in order.
+	 * @param lines the lines to write
+	 */
+	private void enqueue(List<LogLine> lines) {
+		for(LogLine line : lines) {
+			putLine(line);
+		}
+	}
+	
+	/**
+	 * Put a line into the queue, waiting for room if the queue is full
+	 * @param line the line to write
+	 */
+	private void putLine(LogLine line) {
+		try {
+			while(!writerStopped) {
+				if(queue.offer(line, 100, TimeUnit.MILLISECONDS)) {
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Shorten an xml dump so a huge step does not flood the log
+	 * @param xml the xml text
+	 * @return the xml text, truncated if it is longer than the maximum
+	 */
+	private String truncateXML(String xml) {
+		if(xml == null || xml.length() <= maxXMLLength) {
+			return xml;
+		}
+		
+		return xml.substring(0, maxXMLLength) + "... [truncated " + (xml.length() - maxXMLLength) + " characters]";
+	}
+	
+	/**
+	 * The background thread loop that writes the lines until it sees the
+	 * end marker. If the log file cannot be written the lines are still
+	 * taken and printed to the console so the conversion never waits on
+	 * a queue that nobody is emptying.
+	 */
+	private void writeLines() {
+		//whether the log file can still be written
+		boolean fileWritable = true;
+		
+		try {
+			while(true) {
+				LogLine line = queue.take();
+				
+				if(line == END) {
+					break;
+				}
+				
+				if(line.level.compareTo(consoleLevel) <= 0) {
+					//output the string to the console
+					console.println(line.text);
+				}
+				
+				if(!fileWritable) {
+					continue;
+				}
+				
+				try {
+					//output the string to the log file
+					fileWriter.write(line.text);
+					fileWriter.write("\n");
+					
+					if(queue.isEmpty()) {
+						//we have caught up so make what we have so far visible in the file
+						fileWriter.flush();
+					}
+				} catch (IOException e) {
+					//keep taking the lines but stop writing them to the file
+					e.printStackTrace();
+					fileWritable = false;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			writerStopped = true;
+			
+			try {
+				fileWriter.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * The lines for one step. The lines are kept until the section is closed
+	 * and every section opened before it has been closed.
+	 */
+	public class Section {
+		//the lines written to this section
+		private List<LogLine> lines = new ArrayList<LogLine>();
+		
+		//whether the step is done writing to this section
+		private boolean sectionClosed = false;
+		
+		/**
+		 * Write a line to the section
+		 * @param level how important the line is
+		 * @param line the text of the line
+		 */
+		public synchronized void write(Level level, String line) {
+			lines.add(new LogLine(level, line));
+		}
+		
+		/**
+		 * Write the xml of a step, truncated to the maximum length
+		 * @param xml the xml text
+		 */
+		public void writeXML(String xml) {
+			write(Level.DETAILS, truncateXML(xml));
+		}
+		
+		/**
+		 * Mark the section as done so its lines can be written
+		 */
+		public void close() {
+			synchronized(this) {
+				sectionClosed = true;
+			}
+			
+			releaseClosedSections();
+		}
+		
+		private synchronized boolean isClosed() {
+			return sectionClosed;
+		}
+		
+		private synchronized List<LogLine> takeLines() {
+			List<LogLine> takenLines = lines;
+			lines = new ArrayList<LogLine>();
+			return takenLines;
+		}
+	}
+	
+	/**
+	 * A line and its level
+	 */
+	private static class LogLine {
+		Level level;
+		String text;
+		
+		LogLine(Level level, String text) {
+			this.level = level;
+			this.text = text;
+		}
+	}
+}
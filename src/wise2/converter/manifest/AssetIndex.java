@@ -0,0 +1,193 @@
+package wise2.converter.manifest;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import wise2.converter.output.OutputSink;
+
+/**
+ * Records the CRC32 and size of every asset a conversion copied out of the
+ * wise 2 export zip. The zip central directory and local headers hold the
+ * same two numbers for every entry, so converting the same export into the
+ * same place again can tell which assets are already there without
+ * inflating them. It is written to asset_index.json in the wise 4 project.
+ * 
+ * An asset is only treated as already there when the file at its path
+ * still has the recorded size. Its contents are not read back, that would
+ * cost as much as copying it again.
+ */
+public class AssetIndex {
+	
+	//the name of the index file in the wise 4 project
+	public static final String INDEX_FILE_NAME = "asset_index.json";
+	
+	//changed when the index layout changes so older indexes are ignored
+	private static final int FORMAT_VERSION = 1;
+	
+	//the CRC32 and size of each asset by its path in the wise 4 project, sorted so the file does not change between runs
+	private Map<String, AssetEntry> assets = new TreeMap<String, AssetEntry>();
+	
+	/**
+	 * Read the index left in the sink by an earlier conversion
+	 * @param outputSink the sink the project is being converted into
+	 * @return the index or null if there is none or it could not be read
+	 */
+	public static AssetIndex read(OutputSink outputSink) {
+		try {
+			byte[] content = outputSink.read(INDEX_FILE_NAME);
+			
+			if(content == null) {
+				return null;
+			}
+			
+			JSONObject indexJSON = new JSONObject(new String(content, OutputSink.UTF_8));
+			
+			if(indexJSON.getInt("formatVersion") != FORMAT_VERSION) {
+				return null;
+			}
+			
+			AssetIndex index = new AssetIndex();
+			JSONObject assetsJSON = indexJSON.getJSONObject("assets");
+			Iterator<?> paths = assetsJSON.keys();
+			
+			while(paths.hasNext()) {
+				String path = (String) paths.next();
+				JSONObject assetJSON = assetsJSON.getJSONObject(path);
+				index.addAsset(path, assetJSON.getLong("crc"), assetJSON.getLong("size"));
+			}
+			
+			return index;
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (JSONException e) {
+			//a damaged index just means every asset is copied again
+			e.printStackTrace();
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Record an asset that is in the wise 4 project
+	 * @param path the path of the asset in the wise 4 project e.g. assets/sunlight.jpg
+	 * @param crc the CRC32 of the asset
+	 * @param size the number of bytes in the asset
+	 */
+	public synchronized void addAsset(String path, long crc, long size) {
+		assets.put(path, new AssetEntry(crc, size));
+	}
+	
+	/**
+	 * Get the recorded CRC32 and size of an asset
+	 * @param path the path of the asset in the wise 4 project
+	 * @return the entry or null if the asset is not in the index
+	 */
+	public AssetEntry getAsset(String path) {
+		return assets.get(path);
+	}
+	
+	/**
+	 * Determine whether an asset with this CRC32 and size was copied to the
+	 * path and the file there still has that size
+	 * @param path the path of the asset in the wise 4 project
+	 * @param crc the CRC32 of the zip entry, -1 if it is not known
+	 * @param size the uncompressed size of the zip entry, -1 if it is not known
+	 * @param outputSink the sink the project is being converted into
+	 * @return whether the asset does not need to be copied again
+	 */
+	public boolean isUnchanged(String path, long crc, long size, OutputSink outputSink) {
+		AssetEntry asset = assets.get(path);
+		
+		if(asset == null || crc == -1 || size == -1 || asset.getCrc() != crc || asset.getSize() != size) {
+			return false;
+		}
+		
+		try {
+			return outputSink.getSize(path) == size;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+	
+	/**
+	 * Get the number of assets in the index
+	 * @return the number of assets
+	 */
+	public int getAssetCount() {
+		return assets.size();
+	}
+	
+	/**
+	 * Get the paths of all the assets in the index
+	 * @return the paths in name order
+	 */
+	public Set<String> getPaths() {
+		return Collections.unmodifiableSet(assets.keySet());
+	}
+	
+	/**
+	 * Get the index as JSON
+	 * @return the JSON that is written to asset_index.json
+	 * @throws JSONException
+	 */
+	public JSONObject toJSON() throws JSONException {
+		JSONObject assetsJSON = new JSONObject();
+		
+		for(Map.Entry<String, AssetEntry> asset : assets.entrySet()) {
+			JSONObject assetJSON = new JSONObject();
+			assetJSON.put("crc", asset.getValue().getCrc());
+			assetJSON.put("size", asset.getValue().getSize());
+			assetsJSON.put(asset.getKey(), assetJSON);
+		}
+		
+		JSONObject indexJSON = new JSONObject();
+		indexJSON.put("formatVersion", FORMAT_VERSION);
+		indexJSON.put("assets", assetsJSON);
+		return indexJSON;
+	}
+	
+	/**
+	 * The CRC32 and size of one asset
+	 */
+	public static class AssetEntry {
+		//the CRC32 of the asset's contents
+		private long crc;
+		
+		//the number of bytes in the asset
+		private long size;
+		
+		/**
+		 * Create the record of an asset
+		 * @param crc the CRC32 of the asset's contents
+		 * @param size the number of bytes in the asset
+		 */
+		public AssetEntry(long crc, long size) {
+			this.crc = crc;
+			this.size = size;
+		}
+		
+		/**
+		 * Get the CRC32 of the asset's contents
+		 * @return the CRC32
+		 */
+		public long getCrc() {
+			return crc;
+		}
+		
+		/**
+		 * Get the number of bytes in the asset
+		 * @return the size in bytes
+		 */
+		public long getSize() {
+			return size;
+		}
+	}
+}
@@ -0,0 +1,372 @@
+package wise2.converter.manifest;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import wise2.converter.output.OutputSink;
+
+/**
+ * Records what each step of a conversion was made from and what it wrote,
+ * so converting the same project into the same folder again can skip the
+ * steps whose source xml and converter have not changed. It is written to
+ * conversion_manifest.json in the wise 4 project.
+ * 
+ * Steps are recorded by their position among the converted steps, which
+ * is also the number in their file name e.g. node_3, so a step that moves
+ * is converted again.
+ */
+public class ConversionManifest {
+	
+	//the name of the manifest file in the wise 4 project
+	public static final String MANIFEST_FILE_NAME = "conversion_manifest.json";
+	
+	//changed when the manifest layout changes so older manifests are ignored
+	private static final int FORMAT_VERSION = 1;
+	
+	//the wise 2 project id
+	private String projectId;
+	
+	//the converted steps in the order they were numbered
+	private List<StepEntry> steps = new ArrayList<StepEntry>();
+	
+	//the hash of wise4.project.json
+	private String projectFileHash = null;
+	
+	/**
+	 * Create an empty manifest
+	 * @param projectId the wise 2 project id
+	 */
+	public ConversionManifest(String projectId) {
+		this.projectId = projectId;
+	}
+	
+	/**
+	 * Read the manifest left in the sink by an earlier conversion
+	 * @param outputSink the sink the project is being converted into
+	 * @param projectId the wise 2 project id
+	 * @return the manifest or null if there is none, it is for another
+	 * project or it could not be read
+	 */
+	public static ConversionManifest read(OutputSink outputSink, String projectId) {
+		try {
+			byte[] content = outputSink.read(MANIFEST_FILE_NAME);
+			
+			if(content == null) {
+				return null;
+			}
+			
+			JSONObject manifestJSON = new JSONObject(new String(content, OutputSink.UTF_8));
+			
+			if(manifestJSON.getInt("formatVersion") != FORMAT_VERSION || !manifestJSON.getString("projectId").equals(projectId)) {
+				return null;
+			}
+			
+			ConversionManifest manifest = new ConversionManifest(projectId);
+			manifest.projectFileHash = manifestJSON.optString("projectFileHash", null);
+			
+			JSONArray stepsJSON = manifestJSON.getJSONArray("steps");
+			
+			for(int x=0; x<stepsJSON.length(); x++) {
+				manifest.steps.add(StepEntry.fromJSON(stepsJSON.getJSONObject(x)));
+			}
+			
+			return manifest;
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (JSONException e) {
+			//a damaged manifest just means everything is converted again
+			e.printStackTrace();
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Get the step recorded at a position
+	 * @param position the number of the step among the converted steps
+	 * @return the step or null if the manifest has no step there
+	 */
+	public StepEntry getStep(int position) {
+		if(position < steps.size()) {
+			return steps.get(position);
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Record the next converted step
+	 * @param step the step
+	 */
+	public void addStep(StepEntry step) {
+		steps.add(step);
+	}
+	
+	/**
+	 * Check that the files a step wrote are still there and unchanged
+	 * @param step the step
+	 * @param outputSink the sink the project is being converted into
+	 * @return whether every file the step wrote can be read back with the recorded hash
+	 */
+	public static boolean outputsUnchanged(StepEntry step, OutputSink outputSink) {
+		try {
+			for(Map.Entry<String, String> output : step.getOutputs().entrySet()) {
+				byte[] content = outputSink.read(output.getKey());
+				
+				if(content == null || !sha256(content).equals(output.getValue())) {
+					return false;
+				}
+			}
+			
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+	
+	/**
+	 * Get the hex SHA-256 hash of some bytes
+	 * @param content the bytes
+	 * @return the hash as 64 lower case hex digits
+	 */
+	public static String sha256(byte[] content) {
+		return toHex(createSha256().digest(content));
+	}
+	
+	/**
+	 * Create a SHA-256 digest for hashing bytes as they go past, e.g. a
+	 * file that is streamed instead of written in one piece
+	 * @return the digest
+	 */
+	public static MessageDigest createSha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			//every java platform has SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Get a digest as hex the way the manifest records it
+	 * @param digest the digest bytes
+	 * @return the digest as lower case hex digits
+	 */
+	public static String toHex(byte[] digest) {
+		StringBuffer hex = new StringBuffer();
+		
+		for(byte b : digest) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		
+		return hex.toString();
+	}
+	
+	/**
+	 * Get the manifest as JSON
+	 * @return the JSON that is written to conversion_manifest.json
+	 * @throws JSONException
+	 */
+	public JSONObject toJSON() throws JSONException {
+		JSONObject manifestJSON = new JSONObject();
+		manifestJSON.put("formatVersion", FORMAT_VERSION);
+		manifestJSON.put("projectId", projectId);
+		
+		if(projectFileHash != null) {
+			manifestJSON.put("projectFileHash", projectFileHash);
+		}
+		
+		JSONArray stepsJSON = new JSONArray();
+		
+		for(StepEntry step : steps) {
+			stepsJSON.put(step.toJSON());
+		}
+		
+		manifestJSON.put("steps", stepsJSON);
+		return manifestJSON;
+	}
+	
+	/**
+	 * Get the hash of wise4.project.json
+	 * @return the hash or null if it has not been recorded
+	 */
+	public String getProjectFileHash() {
+		return projectFileHash;
+	}
+	
+	/**
+	 * Set the hash of wise4.project.json
+	 * @param projectFileHash the hex SHA-256 hash of the project file
+	 */
+	public void setProjectFileHash(String projectFileHash) {
+		this.projectFileHash = projectFileHash;
+	}
+	
+	/**
+	 * Get the number of steps recorded so far
+	 * @return the number of steps
+	 */
+	public int getStepCount() {
+		return steps.size();
+	}
+	
+	/**
+	 * What one step was made from and what it wrote
+	 */
+	public static class StepEntry {
+		//the hash of the step's xml in the wise 2 project
+		private String sourceHash;
+		
+		//the class name of the converter that converted it
+		private String converter;
+		
+		//the version of the converter
+		private String converterVersion;
+		
+		//the step's entry in the nodes array of wise4.project.json
+		private JSONObject projectNode;
+		
+		//the hash of every file the step wrote
+		private Map<String, String> outputs;
+		
+		//the number of images the step failed to download
+		private int downloadFailures = 0;
+		
+		/**
+		 * Create the record of a converted step
+		 * @param sourceHash the hash of the step's xml in the wise 2 project
+		 * @param converter the class name of the converter that converted it
+		 * @param converterVersion the version of the converter
+		 * @param projectNode the step's entry in the nodes array of wise4.project.json
+		 * @param outputs the hash of every file the step wrote by path
+		 */
+		public StepEntry(String sourceHash, String converter, String converterVersion, JSONObject projectNode, Map<String, String> outputs) {
+			this.sourceHash = sourceHash;
+			this.converter = converter;
+			this.converterVersion = converterVersion;
+			this.projectNode = projectNode;
+			this.outputs = outputs;
+		}
+		
+		/**
+		 * Determine whether this step was made from the same xml by the same
+		 * converter. A step that failed to download some of its images never
+		 * matches so the downloads are tried again.
+		 * @param sourceHash the hash of the step's xml
+		 * @param converter the class name of the converter
+		 * @param converterVersion the version of the converter
+		 * @return whether the step would be converted to the same files
+		 */
+		public boolean matches(String sourceHash, String converter, String converterVersion) {
+			return downloadFailures == 0 && this.sourceHash.equals(sourceHash) && this.converter.equals(converter) && this.converterVersion.equals(converterVersion);
+		}
+		
+		/**
+		 * Get the step as JSON
+		 * @return the JSON that is put in the steps array of the manifest
+		 * @throws JSONException
+		 */
+		JSONObject toJSON() throws JSONException {
+			JSONObject stepJSON = new JSONObject();
+			stepJSON.put("sourceHash", sourceHash);
+			stepJSON.put("converter", converter);
+			stepJSON.put("converterVersion", converterVersion);
+			stepJSON.put("projectNode", projectNode);
+			stepJSON.put("outputs", new JSONObject(outputs));
+			
+			if(downloadFailures > 0) {
+				stepJSON.put("downloadFailures", downloadFailures);
+			}
+			
+			return stepJSON;
+		}
+		
+		/**
+		 * Read a step from the manifest
+		 * @param stepJSON the step's object in the steps array of the manifest
+		 * @return the step
+		 * @throws JSONException if a field the step needs is missing
+		 */
+		static StepEntry fromJSON(JSONObject stepJSON) throws JSONException {
+			Map<String, String> outputs = new LinkedHashMap<String, String>();
+			JSONObject outputsJSON = stepJSON.getJSONObject("outputs");
+			Iterator<?> paths = outputsJSON.keys();
+			
+			while(paths.hasNext()) {
+				String path = (String) paths.next();
+				outputs.put(path, outputsJSON.getString(path));
+			}
+			
+			StepEntry step = new StepEntry(stepJSON.getString("sourceHash"), stepJSON.getString("converter"), stepJSON.getString("converterVersion"), stepJSON.getJSONObject("projectNode"), outputs);
+			step.setDownloadFailures(stepJSON.optInt("downloadFailures"));
+			return step;
+		}
+		
+		/**
+		 * Get the hash of the step's xml in the wise 2 project
+		 * @return the hex SHA-256 hash
+		 */
+		public String getSourceHash() {
+			return sourceHash;
+		}
+		
+		/**
+		 * Get the converter that converted the step
+		 * @return the class name of the converter
+		 */
+		public String getConverter() {
+			return converter;
+		}
+		
+		/**
+		 * Get the version of the converter that converted the step
+		 * @return the converter version
+		 */
+		public String getConverterVersion() {
+			return converterVersion;
+		}
+		
+		/**
+		 * Get the step's entry in the nodes array of wise4.project.json
+		 * @return the node JSON
+		 */
+		public JSONObject getProjectNode() {
+			return projectNode;
+		}
+		
+		/**
+		 * Get the files the step wrote
+		 * @return the hash of every file the step wrote by path
+		 */
+		public Map<String, String> getOutputs() {
+			return outputs;
+		}
+		
+		/**
+		 * Get the number of images the step failed to download
+		 * @return the number of failed downloads
+		 */
+		public int getDownloadFailures() {
+			return downloadFailures;
+		}
+		
+		/**
+		 * Set the number of images the step failed to download
+		 * @param downloadFailures the number of failed downloads
+		 */
+		public void setDownloadFailures(int downloadFailures) {
+			this.downloadFailures = downloadFailures;
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package wise2.converter.memory;
+
+/**
+ * Admits conversions while the sum of their estimated working sets fits
+ * in a fixed amount of heap. A conversion that does not fit waits until
+ * running conversions finish and release their share. A conversion that
+ * would not fit even on its own is refused straight away.
+ */
+public class HeapBudget {
+	
+	//the heap that the admitted conversions may hold between them
+	private long budgetBytes;
+	
+	//the heap reserved by the conversions that are running
+	private long reservedBytes = 0;
+	
+	/**
+	 * @param budgetBytes the heap that the admitted conversions may hold between them
+	 */
+	public HeapBudget(long budgetBytes) {
+		this.budgetBytes = budgetBytes;
+	}
+	
+	/**
+	 * Wait until there is room for a conversion and reserve its share
+	 * @param estimate the working set of the conversion
+	 * @throws WorkingSetExceededException if the conversion is larger than the whole budget
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public synchronized void reserve(WorkingSetEstimate estimate) throws WorkingSetExceededException, InterruptedException {
+		long bytes = estimate.getEstimatedBytes();
+		
+		if(bytes > budgetBytes) {
+			throw new WorkingSetExceededException(estimate, budgetBytes);
+		}
+		
+		while(reservedBytes + bytes > budgetBytes) {
+			wait();
+		}
+		
+		reservedBytes += bytes;
+	}
+	
+	/**
+	 * Reserve a share for a conversion if there is room now
+	 * @param estimate the working set of the conversion
+	 * @return whether the share was reserved
+	 */
+	public synchronized boolean tryReserve(WorkingSetEstimate estimate) {
+		if(reservedBytes + estimate.getEstimatedBytes() > budgetBytes) {
+			return false;
+		}
+		
+		reservedBytes += estimate.getEstimatedBytes();
+		return true;
+	}
+	
+	/**
+	 * Give back the share of a conversion that has finished
+	 * @param estimate the working set that was reserved for it
+	 */
+	public synchronized void release(WorkingSetEstimate estimate) {
+		reservedBytes -= estimate.getEstimatedBytes();
+		notifyAll();
+	}
+	
+	/**
+	 * Get the heap that the admitted conversions may hold between them
+	 * @return the number of bytes
+	 */
+	public long getBudgetBytes() {
+		return budgetBytes;
+	}
+	
+	/**
+	 * Get the heap reserved by the conversions that are running
+	 * @return the number of bytes
+	 */
+	public synchronized long getReservedBytes() {
+		return reservedBytes;
+	}
+}
@@ -0,0 +1,160 @@
+package wise2.converter.memory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import wise2.converter.ConversionOptions;
+
+/**
+ * An estimate of the most heap one conversion holds at a time, worked out
+ * from the central directory of the export zip before anything is
+ * converted. A batch scheduler can use it to decide whether there is room
+ * to start another conversion.
+ * 
+ * Most of the heap is the project xml and everything made from it, the
+ * xml bytes, the dom4j tree of the whole project, the nodes JSONArray and
+ * the QTI document and step file text of the step being converted, so
+ * that part grows with the size of wise-project.xml. The other part is
+ * the upload files that have been read from the zip but not yet written,
+ * which is at most one file per output thread plus the output queue.
+ * 
+ * The factors were measured with the MemoryBenchmark in the bench folder
+ * and err on the high side.
+ */
+public class WorkingSetEstimate {
+	
+	//the heap one conversion holds regardless of the project, the log queue, the write queue and the converters
+	public static final long BASE_BYTES = 4L * 1024 * 1024;
+	
+	//the heap held for each byte of wise-project.xml
+	public static final int PROJECT_XML_FACTOR = 8;
+	
+	//the size of wise-project.xml
+	private long projectXMLBytes = 0;
+	
+	//the number of upload files
+	private int assetCount = 0;
+	
+	//the size of the largest upload file
+	private long largestAssetBytes = 0;
+	
+	//the size of the upload files that may be in memory at once
+	private long bufferedAssetBytes = 0;
+	
+	//the estimated working set
+	private long estimatedBytes = 0;
+	
+	/**
+	 * Estimate the working set of converting an export
+	 * @param exportFile the wise 2 export zip file
+	 * @param options the settings the export will be converted with, the
+	 * output threads and queue decide how many upload files are held at once
+	 * @return the estimate
+	 * @throws IOException if the zip file could not be read
+	 */
+	public static WorkingSetEstimate estimate(File exportFile, ConversionOptions options) throws IOException {
+		WorkingSetEstimate estimate = new WorkingSetEstimate();
+		List<Long> assetSizes = new ArrayList<Long>();
+		
+		ZipFile zipFile = new ZipFile(exportFile);
+		
+		try {
+			Enumeration<? extends ZipEntry> entries = zipFile.entries();
+			
+			while(entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+				
+				if(entry.isDirectory()) {
+					continue;
+				}
+				
+				//the size is normally in the central directory, if not assume it did not compress
+				long size = entry.getSize() >= 0 ? entry.getSize() : entry.getCompressedSize();
+				
+				if(entry.getName().equals("wise-project.xml")) {
+					estimate.projectXMLBytes = size;
+				} else {
+					assetSizes.add(size);
+				}
+			}
+		} finally {
+			zipFile.close();
+		}
+		
+		/*
+		 * the conversion thread holds the upload file it is reading, and
+		 * with output threads every thread can be writing one while the
+		 * queue is full
+		 */
+		int bufferedAssets = 1;
+		
+		if(options.getOutputThreads() > 0) {
+			bufferedAssets += options.getOutputThreads() + options.getOutputQueueCapacity();
+		}
+		
+		Collections.sort(assetSizes, Collections.reverseOrder());
+		
+		for(int x=0; x<assetSizes.size() && x<bufferedAssets; x++) {
+			estimate.bufferedAssetBytes += assetSizes.get(x);
+		}
+		
+		estimate.assetCount = assetSizes.size();
+		estimate.largestAssetBytes = assetSizes.isEmpty() ? 0 : assetSizes.get(0);
+		estimate.estimatedBytes = BASE_BYTES + estimate.projectXMLBytes * PROJECT_XML_FACTOR + estimate.bufferedAssetBytes;
+		
+		return estimate;
+	}
+
+	/**
+	 * Get the size of wise-project.xml
+	 * @return the number of bytes
+	 */
+	public long getProjectXMLBytes() {
+		return projectXMLBytes;
+	}
+
+	/**
+	 * Get the number of upload files
+	 * @return the number of files
+	 */
+	public int getAssetCount() {
+		return assetCount;
+	}
+
+	/**
+	 * Get the size of the largest upload file
+	 * @return the number of bytes
+	 */
+	public long getLargestAssetBytes() {
+		return largestAssetBytes;
+	}
+
+	/**
+	 * Get the size of the upload files that may be in memory at once
+	 * @return the number of bytes
+	 */
+	public long getBufferedAssetBytes() {
+		return bufferedAssetBytes;
+	}
+
+	/**
+	 * Get the estimated most heap the conversion holds at a time
+	 * @return the number of bytes
+	 */
+	public long getEstimatedBytes() {
+		return estimatedBytes;
+	}
+	
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	public String toString() {
+		return String.format("%.1f MB (project xml %d bytes, %d upload files, %d bytes buffered)", estimatedBytes / (1024.0 * 1024.0), projectXMLBytes, assetCount, bufferedAssetBytes);
+	}
+}
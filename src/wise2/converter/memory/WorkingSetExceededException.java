@@ -0,0 +1,32 @@
+package wise2.converter.memory;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a project is refused because its estimated working set is
+ * larger than the heap budget for conversions
+ */
+public class WorkingSetExceededException extends IOException {
+	
+	private static final long serialVersionUID = 1L;
+	
+	//the estimate that did not fit
+	private WorkingSetEstimate estimate;
+	
+	/**
+	 * @param estimate the estimate that did not fit
+	 * @param budgetBytes the budget it did not fit in
+	 */
+	public WorkingSetExceededException(WorkingSetEstimate estimate, long budgetBytes) {
+		super("Estimated working set " + estimate + " is larger than the heap budget of " + budgetBytes + " bytes");
+		this.estimate = estimate;
+	}
+	
+	/**
+	 * Get the estimate that did not fit
+	 * @return the estimate
+	 */
+	public WorkingSetEstimate getEstimate() {
+		return estimate;
+	}
+}
@@ -0,0 +1,130 @@
+package wise2.converter.output;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.ProxyOutputStream;
+
+/**
+ * Writes the wise 4 project files into a folder on disk
+ */
+public class FileSystemOutputSink extends OutputSink {
+	
+	//the folder that all the paths are relative to
+	private File rootFolder;
+	
+	//the number of bytes written so far
+	private AtomicLong bytesWritten = new AtomicLong();
+	
+	/**
+	 * @param rootFolder the wise 4 project folder
+	 */
+	public FileSystemOutputSink(File rootFolder) {
+		this.rootFolder = rootFolder;
+	}
+
+	/**
+	 * Write the bytes to the file. Opening the stream creates the file so
+	 * there is no need to call createNewFile() first.
+	 * @see wise2.converter.output.OutputSink#write(java.lang.String, byte[])
+	 */
+	public void write(String path, byte[] content) throws IOException {
+		FileOutputStream out = createFileStream(path);
+		
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+		
+		bytesWritten.addAndGet(content.length);
+	}
+	
+	/**
+	 * Stream the bytes straight into the file
+	 * @see wise2.converter.output.OutputSink#openStream(java.lang.String)
+	 */
+	public OutputStream openStream(String path) throws IOException {
+		return new ProxyOutputStream(createFileStream(path)) {
+			protected void afterWrite(int n) throws IOException {
+				//count the bytes as they reach the file
+				bytesWritten.addAndGet(n);
+			}
+		};
+	}
+	
+	/**
+	 * Open the file for writing, creating its parent folder if needed
+	 * @param path the path relative to the project root
+	 * @return the stream for the file
+	 * @throws IOException
+	 */
+	protected FileOutputStream createFileStream(String path) throws IOException {
+		File file = getFile(path);
+		
+		//make sure the parent folder exists e.g. the assets folder
+		File parentFolder = file.getParentFile();
+		if(parentFolder != null && !parentFolder.isDirectory()) {
+			parentFolder.mkdirs();
+		}
+		
+		return new FileOutputStream(file);
+	}
+	
+	/**
+	 * @see wise2.converter.output.OutputSink#read(java.lang.String)
+	 */
+	public byte[] read(String path) throws IOException {
+		File file = getFile(path);
+		
+		if(!file.isFile()) {
+			return null;
+		}
+		
+		return FileUtils.readFileToByteArray(file);
+	}
+	
+	/**
+	 * Get the size without reading the file
+	 * @see wise2.converter.output.OutputSink#getSize(java.lang.String)
+	 */
+	public long getSize(String path) {
+		File file = getFile(path);
+		return file.isFile() ? file.length() : -1;
+	}
+	
+	/**
+	 * @see wise2.converter.output.OutputSink#createFolder(java.lang.String)
+	 */
+	public void createFolder(String path) throws IOException {
+		getFile(path).mkdirs();
+	}
+	
+	/**
+	 * Get the file handle for a path in the project
+	 * @param path the path relative to the project root
+	 * @return the file handle
+	 */
+	public File getFile(String path) {
+		return new File(rootFolder, path.replace('/', File.separatorChar));
+	}
+	
+	/**
+	 * Get the folder that all the paths are relative to
+	 * @return the root folder
+	 */
+	public File getRootFolder() {
+		return rootFolder;
+	}
+
+	/**
+	 * @see wise2.converter.output.OutputSink#getBytesWritten()
+	 */
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+}
@@ -0,0 +1,179 @@
+package wise2.converter.output;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import wise2.converter.manifest.ConversionManifest;
+
+/**
+ * Passes the files on to another sink and remembers the SHA-256 hash of
+ * every file written through it, so the conversion manifest can record
+ * what a step wrote. Streams are hashed as the bytes go past.
+ * It can also keep the contents of the files so they can be written again.
+ */
+public class HashingOutputSink extends OutputSink {
+	
+	//the sink that the files are passed to
+	private OutputSink delegate;
+	
+	//the hash of each file written, in the order they were first written
+	private Map<String, String> hashes = new LinkedHashMap<String, String>();
+	
+	//the contents of each file written, null if the contents are not kept
+	private Map<String, byte[]> contents = null;
+	
+	/**
+	 * @param delegate the sink that the files are passed to
+	 */
+	public HashingOutputSink(OutputSink delegate) {
+		this(delegate, false);
+	}
+	
+	/**
+	 * @param delegate the sink that the files are passed to
+	 * @param keepContents whether to keep the contents of the files as well as their hashes
+	 */
+	public HashingOutputSink(OutputSink delegate, boolean keepContents) {
+		this.delegate = delegate;
+		
+		if(keepContents) {
+			contents = new LinkedHashMap<String, byte[]>();
+		}
+	}
+
+	/**
+	 * @see wise2.converter.output.OutputSink#write(java.lang.String, byte[])
+	 */
+	public void write(String path, byte[] content) throws IOException {
+		String hash = ConversionManifest.sha256(content);
+		
+		synchronized(hashes) {
+			hashes.put(path, hash);
+			
+			if(contents != null) {
+				contents.put(path, content);
+			}
+		}
+		
+		delegate.write(path, content);
+	}
+	
+	/**
+	 * Hash the bytes as they go past to the delegate's stream. The hash is
+	 * recorded when the stream is closed. The bytes are only kept as well
+	 * if this sink keeps the contents of the files.
+	 * @see wise2.converter.output.OutputSink#openStream(java.lang.String)
+	 */
+	public OutputStream openStream(final String path) throws IOException {
+		final MessageDigest digest = ConversionManifest.createSha256();
+		final ByteArrayOutputStream copy = contents == null ? null : new ByteArrayOutputStream();
+		
+		return new FilterOutputStream(delegate.openStream(path)) {
+			//whether the hash has been recorded
+			private boolean closed = false;
+			
+			public void write(int b) throws IOException {
+				out.write(b);
+				digest.update((byte) b);
+				
+				if(copy != null) {
+					copy.write(b);
+				}
+			}
+			
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				digest.update(b, off, len);
+				
+				if(copy != null) {
+					copy.write(b, off, len);
+				}
+			}
+			
+			public void close() throws IOException {
+				if(closed) {
+					return;
+				}
+				
+				closed = true;
+				super.close();
+				
+				synchronized(hashes) {
+					hashes.put(path, ConversionManifest.toHex(digest.digest()));
+					
+					if(contents != null) {
+						contents.put(path, copy.toByteArray());
+					}
+				}
+			}
+		};
+	}
+	
+	/**
+	 * @see wise2.converter.output.OutputSink#read(java.lang.String)
+	 */
+	public byte[] read(String path) throws IOException {
+		return delegate.read(path);
+	}
+	
+	/**
+	 * @see wise2.converter.output.OutputSink#getSize(java.lang.String)
+	 */
+	public long getSize(String path) throws IOException {
+		return delegate.getSize(path);
+	}
+	
+	/**
+	 * @see wise2.converter.output.OutputSink#createFolder(java.lang.String)
+	 */
+	public void createFolder(String path) throws IOException {
+		delegate.createFolder(path);
+	}
+	
+	/**
+	 * @see wise2.converter.output.OutputSink#flush()
+	 */
+	public void flush() throws IOException {
+		delegate.flush();
+	}
+	
+	/**
+	 * Closing the hashing sink does not close the delegate
+	 * @see wise2.converter.output.OutputSink#close()
+	 */
+	public void close() throws IOException {
+		flush();
+	}
+	
+	/**
+	 * Get the hash of every file written through this sink
+	 * @return a copy of the map from path to hex SHA-256 hash
+	 */
+	public Map<String, String> getHashes() {
+		synchronized(hashes) {
+			return new LinkedHashMap<String, String>(hashes);
+		}
+	}
+
+	/**
+	 * Get the contents of every file written through this sink
+	 * @return a copy of the map from path to contents or null if the contents were not kept
+	 */
+	public Map<String, byte[]> getContents() {
+		synchronized(hashes) {
+			return contents == null ? null : new LinkedHashMap<String, byte[]>(contents);
+		}
+	}
+
+	/**
+	 * @see wise2.converter.output.OutputSink#getBytesWritten()
+	 */
+	public long getBytesWritten() {
+		return delegate.getBytesWritten();
+	}
+}
@@ -0,0 +1,116 @@
+package wise2.converter.output;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the wise 4 project files in memory instead of writing them anywhere.
+ * This is useful for callers that only want the bytes such as tests or a
+ * service that imports the converted project directly.
+ */
+public class InMemoryOutputSink extends OutputSink {
+	
+	//the contents of the files mapped by path in the order they were first written
+	private Map<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+	
+	//the folders that were explicitly created
+	private List<String> folders = new ArrayList<String>();
+	
+	//the number of bytes written so far
+	private AtomicLong bytesWritten = new AtomicLong();
+
+	/**
+	 * @see wise2.converter.output.OutputSink#write(java.lang.String, byte[])
+	 */
+	public void write(String path, byte[] content) {
+		synchronized(files) {
+			files.put(path, content);
+		}
+		
+		bytesWritten.addAndGet(content.length);
+	}
+	
+	/**
+	 * @see wise2.converter.output.OutputSink#read(java.lang.String)
+	 */
+	public byte[] read(String path) {
+		return getContent(path);
+	}
+	
+	/**
+	 * @see wise2.converter.output.OutputSink#createFolder(java.lang.String)
+	 */
+	public void createFolder(String path) {
+		synchronized(files) {
+			if(!folders.contains(path)) {
+				folders.add(path);
+			}
+		}
+	}
+	
+	/**
+	 * Get the contents of a file
+	 * @param path the path relative to the project root
+	 * @return the bytes of the file or null if the file was not written
+	 */
+	public byte[] getContent(String path) {
+		synchronized(files) {
+			return files.get(path);
+		}
+	}
+	
+	/**
+	 * Get the contents of a text file
+	 * @param path the path relative to the project root
+	 * @return the text of the file or null if the file was not written
+	 */
+	public String getText(String path) {
+		byte[] content = getContent(path);
+		
+		if(content == null) {
+			return null;
+		}
+		
+		return new String(content, UTF_8);
+	}
+	
+	/**
+	 * Get the paths of all the files that were written
+	 * @return a list of paths in the order they were first written
+	 */
+	public List<String> getPaths() {
+		synchronized(files) {
+			return new ArrayList<String>(files.keySet());
+		}
+	}
+	
+	/**
+	 * Get all the files that were written
+	 * @return a copy of the map from path to file contents
+	 */
+	public Map<String, byte[]> getFiles() {
+		synchronized(files) {
+			return new LinkedHashMap<String, byte[]>(files);
+		}
+	}
+	
+	/**
+	 * Get the folders that were explicitly created
+	 * @return a list of folder paths
+	 */
+	public List<String> getFolders() {
+		synchronized(files) {
+			return new ArrayList<String>(folders);
+		}
+	}
+
+	/**
+	 * @see wise2.converter.output.OutputSink#getBytesWritten()
+	 */
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+}
@@ -0,0 +1,133 @@
+package wise2.converter.output;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Passes everything through to another sink while counting the files and
+ * bytes handed to it and the time callers spent in write and flush. With a
+ * write-behind sink underneath, the time is how long the caller was held
+ * up rather than how long the disk took.
+ */
+public class MeteredOutputSink extends OutputSink {
+	
+	//the sink that the files are passed to
+	private OutputSink delegate;
+	
+	//the number of files handed to this sink
+	private AtomicInteger filesWritten = new AtomicInteger();
+	
+	//the number of bytes handed to this sink
+	private AtomicLong bytesWritten = new AtomicLong();
+	
+	//the time callers spent in write and flush
+	private AtomicLong writeNanos = new AtomicLong();
+	
+	/**
+	 * @param delegate the sink that the files are passed to
+	 */
+	public MeteredOutputSink(OutputSink delegate) {
+		this.delegate = delegate;
+	}
+
+	/**
+	 * @see wise2.converter.output.OutputSink#write(java.lang.String, byte[])
+	 */
+	public void write(String path, byte[] content) throws IOException {
+		long startTime = System.nanoTime();
+		
+		try {
+			delegate.write(path, content);
+		} finally {
+			writeNanos.addAndGet(System.nanoTime() - startTime);
+		}
+		
+		filesWritten.incrementAndGet();
+		bytesWritten.addAndGet(content.length);
+	}
+	
+	/**
+	 * Streams are not metered
+	 * @see wise2.converter.output.OutputSink#openStream(java.lang.String)
+	 */
+	public OutputStream openStream(String path) throws IOException {
+		return delegate.openStream(path);
+	}
+	
+	/**
+	 * Reads are not metered
+	 * @see wise2.converter.output.OutputSink#read(java.lang.String)
+	 */
+	public byte[] read(String path) throws IOException {
+		return delegate.read(path);
+	}
+	
+	/**
+	 * @see wise2.converter.output.OutputSink#getSize(java.lang.String)
+	 */
+	public long getSize(String path) throws IOException {
+		return delegate.getSize(path);
+	}
+	
+	/**
+	 * @see wise2.converter.output.OutputSink#createFolder(java.lang.String)
+	 */
+	public void createFolder(String path) throws IOException {
+		delegate.createFolder(path);
+	}
+	
+	/**
+	 * @see wise2.converter.output.OutputSink#flush()
+	 */
+	public void flush() throws IOException {
+		long startTime = System.nanoTime();
+		
+		try {
+			delegate.flush();
+		} finally {
+			writeNanos.addAndGet(System.nanoTime() - startTime);
+		}
+	}
+	
+	/**
+	 * Closing the metered sink does not close the delegate
+	 * @see wise2.converter.output.OutputSink#close()
+	 */
+	public void close() throws IOException {
+		flush();
+	}
+
+	/**
+	 * Get the number of bytes handed to this sink
+	 * @see wise2.converter.output.OutputSink#getBytesWritten()
+	 */
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+	
+	/**
+	 * Get the number of files handed to this sink
+	 * @return the number of files
+	 */
+	public int getFilesWritten() {
+		return filesWritten.get();
+	}
+	
+	/**
+	 * Get the time callers spent in write and flush
+	 * @return the time in nanoseconds
+	 */
+	public long getWriteNanos() {
+		return writeNanos.get();
+	}
+	
+	/**
+	 * Get the sink that the files are passed to
+	 * @return the delegate sink
+	 */
+	public OutputSink getDelegate() {
+		return delegate;
+	}
+}
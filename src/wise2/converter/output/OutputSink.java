@@ -0,0 +1,111 @@
+package wise2.converter.output;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * The parent class for the destinations that the wise 4 project files are
+ * written to. Paths are always relative to the root of the wise 4 project
+ * and use '/' as the separator e.g. node_0.html or assets/sunlight.jpg
+ */
+public abstract class OutputSink {
+	
+	//all text files are written as UTF-8 regardless of the platform default
+	public static final Charset UTF_8 = Charset.forName("UTF-8");
+	
+	/**
+	 * Write the bytes to the file at the given path, replacing the file
+	 * if it already exists
+	 * @param path the path relative to the project root
+	 * @param content the bytes to write. the caller must not modify the
+	 * array after passing it in.
+	 * @throws IOException
+	 */
+	public abstract void write(String path, byte[] content) throws IOException;
+	
+	/**
+	 * Write the text to the file at the given path as UTF-8
+	 * @param path the path relative to the project root
+	 * @param text the text to write
+	 * @throws IOException
+	 */
+	public void writeText(String path, String text) throws IOException {
+		write(path, text.getBytes(UTF_8));
+	}
+	
+	/**
+	 * Open a stream that writes the file at the given path piece by piece.
+	 * Sinks that cannot stream keep the bytes in memory and write the
+	 * whole file when the stream is closed. The stream must be closed
+	 * before the sink is flushed for the last time.
+	 * @param path the path relative to the project root
+	 * @return the stream to write the file contents to
+	 * @throws IOException
+	 */
+	public OutputStream openStream(final String path) throws IOException {
+		return new ByteArrayOutputStream() {
+			public void close() throws IOException {
+				OutputSink.this.write(path, toByteArray());
+			}
+		};
+	}
+	
+	/**
+	 * Read back a file that is already at the destination, for example one
+	 * written by an earlier conversion into the same folder. Files that
+	 * have been handed to the sink but not flushed may not be seen.
+	 * @param path the path relative to the project root
+	 * @return the bytes of the file or null if there is no such file or
+	 * the sink cannot read files back
+	 * @throws IOException
+	 */
+	public byte[] read(String path) throws IOException {
+		return null;
+	}
+	
+	/**
+	 * Get the size of a file that is already at the destination
+	 * @param path the path relative to the project root
+	 * @return the number of bytes in the file or -1 if there is no such
+	 * file or the sink cannot read files back
+	 * @throws IOException
+	 */
+	public long getSize(String path) throws IOException {
+		byte[] content = read(path);
+		return content == null ? -1 : content.length;
+	}
+	
+	/**
+	 * Create an empty folder at the given path. Folders are created
+	 * automatically when a file is written into them so this is only
+	 * needed for folders that may stay empty.
+	 * @param path the path relative to the project root
+	 * @throws IOException
+	 */
+	public void createFolder(String path) throws IOException {
+	}
+	
+	/**
+	 * Block until all the writes that have been handed to this sink
+	 * have reached their destination
+	 * @throws IOException if any of the pending writes failed
+	 */
+	public void flush() throws IOException {
+	}
+	
+	/**
+	 * Flush and release any resources held by this sink
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		flush();
+	}
+	
+	/**
+	 * Get the number of bytes that have reached the destination
+	 * @return the number of bytes written so far
+	 */
+	public abstract long getBytesWritten();
+}
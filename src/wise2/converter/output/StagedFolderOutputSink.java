@@ -0,0 +1,524 @@
+package wise2.converter.output;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Writes the wise 4 project files into a private staging folder next to
+ * the project folder and only puts them in place when the conversion is
+ * committed. An interrupted or failed conversion leaves the project folder
+ * exactly as it was, and the staging folder is thrown away by close() or
+ * by the next conversion into the same folder.
+ *
+ * e.g. converting into /converted/31202 writes into
+ * /converted/.31202.<random>.staging and commit() renames that folder to
+ * /converted/31202
+ *
+ * The staging folder starts out with hard links to the files already in the
+ * project folder (or a seed folder if there is no project folder yet) so
+ * an incremental conversion can still read back and keep the unchanged
+ * files without copying them. A file that is written again is deleted
+ * first and created new, which breaks the link, so the files in the live
+ * project folder are never changed in place. If the file system cannot
+ * make hard links the files are copied instead.
+ *
+ * Only one conversion at a time can write into a project folder. The
+ * others wait in the constructor. Other threads are kept out by a lock in
+ * this process and other processes by a lock on the file
+ * /converted/.31202.lock which is left behind on purpose.
+ *
+ * The files are not forced to disk one by one as they are written. commit()
+ * forces all the new files and folders to disk in one go right before the
+ * rename, so the project folder never points at files that could be lost
+ * in a crash.
+ */
+public class StagedFolderOutputSink extends FileSystemOutputSink {
+	
+	//the end of the name of a staging folder
+	public static final String STAGING_EXTENSION = ".staging";
+	
+	//the end of the name of a project folder that is being replaced
+	public static final String OLD_EXTENSION = ".old";
+	
+	//the end of the name of the lock file
+	public static final String LOCK_EXTENSION = ".lock";
+	
+	//the project folders that are being written or waited for by this process, the file lock only keeps out other processes
+	private static final Map<String, FolderLock> folderLocks = new HashMap<String, FolderLock>();
+	
+	//the folder the files are put into when the conversion is committed
+	private File targetFolder;
+	
+	//the lock this process holds on the project folder
+	private FolderLock folderLock;
+	
+	//the key of the lock in folderLocks
+	private String folderLockKey;
+	
+	//the lock file that keeps other processes out of the project folder
+	private RandomAccessFile lockFile;
+	
+	//the lock we hold on the lock file
+	private FileLock fileLock;
+	
+	//the paths of the files that have to be forced to disk when committing
+	private Set<String> unsyncedPaths = Collections.synchronizedSet(new HashSet<String>());
+	
+	//the number of files the staging folder started with as hard links
+	private AtomicInteger filesLinked = new AtomicInteger();
+	
+	//the number of files the staging folder started with as copies
+	private AtomicInteger filesCopied = new AtomicInteger();
+	
+	//whether to force the files to disk when committing
+	private boolean sync = true;
+	
+	//whether commit() or abort() has been called
+	private boolean finished = false;
+	
+	//whether the project folder was put back from a conversion that did not finish
+	private boolean restored = false;
+	
+	/**
+	 * @param targetFolder the wise 4 project folder
+	 * @throws IOException if the staging folder could not be set up
+	 */
+	public StagedFolderOutputSink(File targetFolder) throws IOException {
+		this(targetFolder, null);
+	}
+	
+	/**
+	 * Wait until no one else is writing into the project folder and then
+	 * set up the staging folder
+	 * @param targetFolder the wise 4 project folder
+	 * @param seedFolder a folder to start from if the project folder does not
+	 * exist yet e.g. the folder of an earlier export of the project, null
+	 * to start empty
+	 * @throws IOException if the staging folder could not be set up
+	 */
+	public StagedFolderOutputSink(File targetFolder, File seedFolder) throws IOException {
+		super(getSiblingFile(targetFolder.getAbsoluteFile(), "." + UUID.randomUUID() + STAGING_EXTENSION));
+		this.targetFolder = targetFolder.getAbsoluteFile();
+		this.targetFolder.getParentFile().mkdirs();
+		
+		lock();
+		
+		try {
+			//anything left next to the project folder is from a conversion that did not finish
+			recover();
+			
+			getRootFolder().mkdirs();
+			
+			if(this.targetFolder.isDirectory()) {
+				linkFolder(this.targetFolder, getRootFolder(), "");
+			} else if(seedFolder != null && seedFolder.isDirectory()) {
+				linkFolder(seedFolder, getRootFolder(), "");
+			}
+		} catch (IOException e) {
+			abort();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Wait for the locks on the project folder, first the one for this
+	 * process and then the one for other processes
+	 * @throws IOException
+	 */
+	private void lock() throws IOException {
+		synchronized(folderLocks) {
+			folderLockKey = targetFolder.getCanonicalPath();
+			folderLock = folderLocks.get(folderLockKey);
+			
+			if(folderLock == null) {
+				folderLock = new FolderLock();
+				folderLocks.put(folderLockKey, folderLock);
+			}
+			
+			folderLock.users++;
+		}
+		
+		try {
+			folderLock.semaphore.acquire();
+		} catch (InterruptedException e) {
+			releaseFolderLock();
+			throw new InterruptedIOException("Interrupted waiting to write into " + targetFolder.getPath());
+		}
+		
+		try {
+			lockFile = new RandomAccessFile(getSiblingFile(targetFolder, LOCK_EXTENSION), "rw");
+			fileLock = lockFile.getChannel().lock();
+		} catch (IOException e) {
+			unlock();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Release the locks on the project folder
+	 */
+	private void unlock() {
+		try {
+			if(fileLock != null) {
+				fileLock.release();
+			}
+			
+			if(lockFile != null) {
+				lockFile.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		fileLock = null;
+		lockFile = null;
+		
+		if(folderLock != null) {
+			folderLock.semaphore.release();
+			releaseFolderLock();
+		}
+	}
+	
+	/**
+	 * Stop using the lock for this process and forget it once no one else
+	 * holds it or is waiting for it
+	 */
+	private void releaseFolderLock() {
+		synchronized(folderLocks) {
+			folderLock.users--;
+			
+			if(folderLock.users == 0) {
+				folderLocks.remove(folderLockKey);
+			}
+		}
+		
+		folderLock = null;
+	}
+	
+	/**
+	 * Clean up after conversions into the project folder that did not
+	 * finish. Staging folders are deleted. A project folder that was moved
+	 * out of the way is put back if the new one never made it into place,
+	 * otherwise it is deleted. The caller must hold the locks.
+	 */
+	private void recover() {
+		String prefix = "." + targetFolder.getName() + ".";
+		File[] siblings = targetFolder.getParentFile().listFiles();
+		
+		if(siblings == null) {
+			return;
+		}
+		
+		for(File sibling : siblings) {
+			String name = sibling.getName();
+			
+			//the random part is always 36 characters, so a project folder with a dot in its name is never touched
+			int randomLength = name.length() - prefix.length() - (name.endsWith(OLD_EXTENSION) ? OLD_EXTENSION.length() : STAGING_EXTENSION.length());
+			
+			if(!name.startsWith(prefix) || randomLength != 36 || !sibling.isDirectory()) {
+				continue;
+			}
+			
+			if(name.endsWith(OLD_EXTENSION) && !targetFolder.exists() && sibling.renameTo(targetFolder)) {
+				//the caller can report it with isRestored()
+				restored = true;
+			} else if(name.endsWith(STAGING_EXTENSION) || name.endsWith(OLD_EXTENSION)) {
+				FileUtils.deleteQuietly(sibling);
+			}
+		}
+	}
+	
+	/**
+	 * Fill the staging folder with hard links to the files in another folder
+	 * @param sourceFolder the folder to link to
+	 * @param folder the folder in the staging folder to create the links in
+	 * @param path the path of the folder in the project, empty for the project root
+	 * @throws IOException
+	 */
+	private void linkFolder(File sourceFolder, File folder, String path) throws IOException {
+		File[] files = sourceFolder.listFiles();
+		
+		if(files == null) {
+			return;
+		}
+		
+		for(File file : files) {
+			File link = new File(folder, file.getName());
+			
+			if(file.isDirectory()) {
+				link.mkdirs();
+				linkFolder(file, link, path + file.getName() + "/");
+			} else {
+				try {
+					Files.createLink(link.toPath(), file.toPath());
+					filesLinked.incrementAndGet();
+				} catch (UnsupportedOperationException e) {
+					copySeedFile(file, link, path + file.getName());
+				} catch (IOException e) {
+					//e.g. the seed folder is on another file system
+					copySeedFile(file, link, path + file.getName());
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Copy a file into the staging folder when it cannot be linked
+	 * @param file the file to copy
+	 * @param copy the file in the staging folder
+	 * @param path the path of the file in the project
+	 * @throws IOException
+	 */
+	private void copySeedFile(File file, File copy, String path) throws IOException {
+		FileUtils.copyFile(file, copy);
+		
+		//the copy is a new file so it has to reach the disk before the rename
+		unsyncedPaths.add(path);
+		filesCopied.incrementAndGet();
+	}
+	
+	/**
+	 * Always create the file new so a hard link into the live project
+	 * folder is replaced instead of written through
+	 * @see wise2.converter.output.FileSystemOutputSink#createFileStream(java.lang.String)
+	 */
+	protected FileOutputStream createFileStream(String path) throws IOException {
+		File file = getFile(path);
+		
+		if(file.exists() && !file.delete()) {
+			throw new IOException("Could not replace " + file.getPath());
+		}
+		
+		unsyncedPaths.add(path);
+		
+		return super.createFileStream(path);
+	}
+	
+	/**
+	 * Put the staging folder in place of the project folder. The written
+	 * files are forced to disk first. Renaming a folder over another one is
+	 * not possible so the old project folder is renamed out of the way
+	 * first, and if we crash between the two renames the next conversion
+	 * into the folder puts the old one back. The sink cannot be used after
+	 * committing.
+	 * @throws IOException if the project folder could not be replaced, in
+	 * which case the project folder is left as it was
+	 */
+	public void commit() throws IOException {
+		if(finished) {
+			throw new IOException("The conversion into " + targetFolder.getPath() + " has already finished");
+		}
+		
+		try {
+			flush();
+			
+			if(sync) {
+				syncFiles();
+			}
+			
+			File oldFolder = null;
+			
+			if(targetFolder.exists()) {
+				oldFolder = getSiblingFile(targetFolder, "." + UUID.randomUUID() + OLD_EXTENSION);
+				
+				if(!targetFolder.renameTo(oldFolder)) {
+					throw new IOException("Could not move " + targetFolder.getPath() + " out of the way");
+				}
+			}
+			
+			if(!getRootFolder().renameTo(targetFolder)) {
+				if(oldFolder != null) {
+					oldFolder.renameTo(targetFolder);
+				}
+				
+				throw new IOException("Could not move " + getRootFolder().getPath() + " to " + targetFolder.getPath());
+			}
+			
+			if(sync) {
+				//make the renames themselves last
+				syncFolder(targetFolder.getParentFile());
+			}
+			
+			if(oldFolder != null) {
+				FileUtils.deleteQuietly(oldFolder);
+			}
+		} catch (IOException e) {
+			abort();
+			throw e;
+		}
+		
+		finished = true;
+		unlock();
+	}
+	
+	/**
+	 * Throw the staging folder away and leave the project folder as it was
+	 */
+	public void abort() {
+		if(finished) {
+			return;
+		}
+		
+		finished = true;
+		FileUtils.deleteQuietly(getRootFolder());
+		unlock();
+	}
+	
+	/**
+	 * Throw the staging folder away unless the conversion was committed
+	 * @see wise2.converter.output.OutputSink#close()
+	 */
+	public void close() throws IOException {
+		flush();
+		abort();
+	}
+	
+	/**
+	 * Force the new files and every folder in the staging folder to disk
+	 * @throws IOException
+	 */
+	private void syncFiles() throws IOException {
+		String[] paths = null;
+		
+		synchronized(unsyncedPaths) {
+			paths = unsyncedPaths.toArray(new String[unsyncedPaths.size()]);
+		}
+		
+		for(String path : paths) {
+			File file = getFile(path);
+			
+			if(file.isFile()) {
+				RandomAccessFile handle = new RandomAccessFile(file, "rw");
+				
+				try {
+					handle.getFD().sync();
+				} finally {
+					handle.close();
+				}
+			}
+		}
+		
+		syncFolders(getRootFolder());
+	}
+	
+	/**
+	 * Force a folder and all the folders in it to disk so the files in them can be found after a crash
+	 * @param folder the folder
+	 */
+	private void syncFolders(File folder) {
+		File[] files = folder.listFiles();
+		
+		if(files != null) {
+			for(File file : files) {
+				if(file.isDirectory()) {
+					syncFolders(file);
+				}
+			}
+		}
+		
+		syncFolder(folder);
+	}
+	
+	/**
+	 * Force the list of files in a folder to disk
+	 * @param folder the folder
+	 */
+	private void syncFolder(File folder) {
+		try {
+			FileChannel channel = FileChannel.open(folder.toPath(), StandardOpenOption.READ);
+			
+			try {
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			//some platforms cannot open folders, the files themselves have been forced already
+		}
+	}
+	
+	/**
+	 * Get a file next to the project folder that belongs to it
+	 * @param targetFolder the wise 4 project folder
+	 * @param extension what to put after the name of the project folder
+	 * @return the file e.g. /converted/.31202.lock
+	 */
+	private static File getSiblingFile(File targetFolder, String extension) {
+		return new File(targetFolder.getParentFile(), "." + targetFolder.getName() + extension);
+	}
+	
+	/**
+	 * Set whether to force the files to disk when committing. Without it a
+	 * crash soon after committing can leave files in the project folder
+	 * empty, but an interrupted conversion still never shows up in it.
+	 * @param sync whether to force the files to disk
+	 */
+	public void setSync(boolean sync) {
+		this.sync = sync;
+	}
+	
+	/**
+	 * Get the folder the files are put into when the conversion is committed
+	 * @return the wise 4 project folder
+	 */
+	public File getTargetFolder() {
+		return targetFolder;
+	}
+	
+	/**
+	 * Get the number of files the staging folder started with as hard links
+	 * to the project folder or the seed folder
+	 * @return the number of files
+	 */
+	public int getFilesLinked() {
+		return filesLinked.get();
+	}
+	
+	/**
+	 * Get the number of files the staging folder started with as copies
+	 * because they could not be linked
+	 * @return the number of files
+	 */
+	public int getFilesCopied() {
+		return filesCopied.get();
+	}
+	
+	/**
+	 * Determine whether the project folder had been moved out of the way by
+	 * a conversion that did not finish and was put back when this sink was
+	 * set up, so the caller can report it
+	 * @return whether the project folder was restored
+	 */
+	public boolean isRestored() {
+		return restored;
+	}
+	
+	/**
+	 * The lock this process holds on a project folder while writing it and
+	 * the number of sinks holding or waiting for it
+	 */
+	private static class FolderLock {
+		//lets one sink at a time write the project folder
+		private Semaphore semaphore = new Semaphore(1);
+		
+		//the number of sinks holding or waiting for the lock, guarded by folderLocks
+		private int users = 0;
+	}
+}
@@ -0,0 +1,98 @@
+package wise2.converter.output;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.commons.io.output.TeeOutputStream;
+
+/**
+ * Writes every file to two sinks, for example the caller's folder and a
+ * copy that is kept in the result cache. Reads and sizes come from the
+ * first sink, which is the one the conversion is really for.
+ */
+public class TeeOutputSink extends OutputSink {
+	
+	//the sink the conversion is for
+	private OutputSink primary;
+	
+	//the sink that gets a copy of every file
+	private OutputSink copy;
+	
+	/**
+	 * @param primary the sink the conversion is for
+	 * @param copy the sink that gets a copy of every file
+	 */
+	public TeeOutputSink(OutputSink primary, OutputSink copy) {
+		this.primary = primary;
+		this.copy = copy;
+	}
+
+	/**
+	 * @see wise2.converter.output.OutputSink#write(java.lang.String, byte[])
+	 */
+	public void write(String path, byte[] content) throws IOException {
+		primary.write(path, content);
+		copy.write(path, content);
+	}
+	
+	/**
+	 * Stream the bytes into both sinks as they come
+	 * @see wise2.converter.output.OutputSink#openStream(java.lang.String)
+	 */
+	public OutputStream openStream(String path) throws IOException {
+		OutputStream primaryStream = primary.openStream(path);
+		
+		try {
+			return new TeeOutputStream(primaryStream, copy.openStream(path));
+		} catch (IOException e) {
+			primaryStream.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * @see wise2.converter.output.OutputSink#read(java.lang.String)
+	 */
+	public byte[] read(String path) throws IOException {
+		return primary.read(path);
+	}
+	
+	/**
+	 * @see wise2.converter.output.OutputSink#getSize(java.lang.String)
+	 */
+	public long getSize(String path) throws IOException {
+		return primary.getSize(path);
+	}
+
+	/**
+	 * @see wise2.converter.output.OutputSink#createFolder(java.lang.String)
+	 */
+	public void createFolder(String path) throws IOException {
+		primary.createFolder(path);
+		copy.createFolder(path);
+	}
+	
+	/**
+	 * @see wise2.converter.output.OutputSink#flush()
+	 */
+	public void flush() throws IOException {
+		primary.flush();
+		copy.flush();
+	}
+	
+	/**
+	 * Closing the tee does not close either sink
+	 * @see wise2.converter.output.OutputSink#close()
+	 */
+	public void close() throws IOException {
+		flush();
+	}
+
+	/**
+	 * Get the number of bytes written to the first sink
+	 * @see wise2.converter.output.OutputSink#getBytesWritten()
+	 */
+	public long getBytesWritten() {
+		return primary.getBytesWritten();
+	}
+}
@@ -0,0 +1,306 @@
+package wise2.converter.output;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Queues writes and hands them to a dedicated pool of I/O threads so the
+ * conversion thread does not block on the file system. The queue is
+ * bounded, so when the I/O threads fall behind the conversion thread
+ * waits for room instead of buffering the whole project in memory.
+ * 
+ * Every path is always written by the same I/O thread, so when a file is
+ * written more than once the writes land in the order they were made.
+ */
+public class WriteBehindOutputSink extends OutputSink {
+	
+	//the sink that actually performs the writes
+	private OutputSink delegate;
+	
+	//the I/O threads that drain the queue, each with its own share of the queue
+	private ThreadPoolExecutor[] ioExecutors;
+	
+	//the number of writes that have been queued but not yet completed
+	private int pendingWrites = 0;
+	
+	//the largest number of writes that were waiting in the queue at once
+	private int maxQueueDepth = 0;
+	
+	//the first exception thrown by a queued write, kept so every later flush and close fails too
+	private IOException failure = null;
+	
+	//used to wait for and signal the completion of queued writes
+	private final Object lock = new Object();
+	
+	/**
+	 * @param delegate the sink that will perform the writes
+	 * @param ioThreads the number of I/O threads
+	 * @param queueCapacity the number of writes that may wait in the queue
+	 */
+	public WriteBehindOutputSink(OutputSink delegate, int ioThreads, int queueCapacity) {
+		this.delegate = delegate;
+		
+		//one thread per executor so the writes to a path are never reordered
+		ioExecutors = new ThreadPoolExecutor[ioThreads];
+		int threadQueueCapacity = Math.max(1, queueCapacity / ioThreads);
+		
+		for(int i = 0; i < ioThreads; i++) {
+			ioExecutors[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(threadQueueCapacity), new IOThreadFactory(), new BlockWhenFull());
+		}
+	}
+	
+	/**
+	 * Get the I/O thread that writes a path
+	 * @param path the path relative to the project root
+	 * @return the executor of the thread
+	 */
+	private ThreadPoolExecutor getExecutor(String path) {
+		return ioExecutors[(path.hashCode() & 0x7fffffff) % ioExecutors.length];
+	}
+
+	/**
+	 * Queue the write. The method returns as soon as the write is in the
+	 * queue unless the queue is full. If an earlier write has failed the
+	 * write is still queued and then the failure is thrown.
+	 * @see wise2.converter.output.OutputSink#write(java.lang.String, byte[])
+	 */
+	public void write(final String path, final byte[] content) throws IOException {
+		synchronized(lock) {
+			pendingWrites++;
+		}
+		
+		ThreadPoolExecutor ioExecutor = getExecutor(path);
+		
+		ioExecutor.execute(new Runnable() {
+			public void run() {
+				try {
+					delegate.write(path, content);
+				} catch (IOException e) {
+					setFailure(e);
+				} catch (RuntimeException e) {
+					setFailure(new IOException("Unable to write " + path, e));
+				} finally {
+					writeCompleted();
+				}
+			}
+		});
+		
+		synchronized(lock) {
+			int queueDepth = getQueueDepth();
+			
+			if(queueDepth > maxQueueDepth) {
+				maxQueueDepth = queueDepth;
+			}
+			
+			//report a failed write as soon as possible
+			throwFailure();
+		}
+	}
+	
+	/**
+	 * Streams are not queued, they go straight to the delegate's stream so a
+	 * long file such as the convert log is never held in memory. The writes
+	 * already queued are waited for first so they cannot land after the
+	 * stream's bytes.
+	 * @see wise2.converter.output.OutputSink#openStream(java.lang.String)
+	 */
+	public OutputStream openStream(String path) throws IOException {
+		waitForPendingWrites();
+		return delegate.openStream(path);
+	}
+	
+	/**
+	 * Reads go straight to the delegate so a file that is still queued
+	 * is read as it was before
+	 * @see wise2.converter.output.OutputSink#read(java.lang.String)
+	 */
+	public byte[] read(String path) throws IOException {
+		return delegate.read(path);
+	}
+	
+	/**
+	 * @see wise2.converter.output.OutputSink#getSize(java.lang.String)
+	 */
+	public long getSize(String path) throws IOException {
+		return delegate.getSize(path);
+	}
+	
+	/**
+	 * Folders are cheap to create so this is not queued
+	 * @see wise2.converter.output.OutputSink#createFolder(java.lang.String)
+	 */
+	public void createFolder(String path) throws IOException {
+		delegate.createFolder(path);
+	}
+	
+	/**
+	 * Wait until all the queued writes have completed
+	 * @see wise2.converter.output.OutputSink#flush()
+	 */
+	public void flush() throws IOException {
+		waitForPendingWrites();
+		delegate.flush();
+	}
+	
+	/**
+	 * Wait until all the queued writes have completed without flushing the delegate
+	 * @throws IOException if any of the queued writes failed
+	 */
+	private void waitForPendingWrites() throws IOException {
+		synchronized(lock) {
+			while(pendingWrites > 0) {
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for writes to complete", e);
+				}
+			}
+			
+			throwFailure();
+		}
+	}
+	
+	/**
+	 * Wait for the queued writes and then stop the I/O threads without
+	 * closing the sink that the writes go to
+	 * @throws IOException if any of the queued writes failed
+	 */
+	public void shutdown() throws IOException {
+		try {
+			flush();
+		} finally {
+			for(ThreadPoolExecutor ioExecutor : ioExecutors) {
+				ioExecutor.shutdown();
+			}
+		}
+	}
+	
+	/**
+	 * Wait for the queued writes, stop the I/O threads and close the sink
+	 * that the writes go to
+	 * @see wise2.converter.output.OutputSink#close()
+	 */
+	public void close() throws IOException {
+		try {
+			shutdown();
+		} finally {
+			delegate.close();
+		}
+	}
+
+	/**
+	 * @see wise2.converter.output.OutputSink#getBytesWritten()
+	 */
+	public long getBytesWritten() {
+		return delegate.getBytesWritten();
+	}
+	
+	/**
+	 * Get the number of writes currently waiting for an I/O thread
+	 * @return the queue depth
+	 */
+	public int getQueueDepth() {
+		int queueDepth = 0;
+		
+		for(ThreadPoolExecutor ioExecutor : ioExecutors) {
+			queueDepth += ioExecutor.getQueue().size();
+		}
+		
+		return queueDepth;
+	}
+	
+	/**
+	 * Get the largest number of writes that were waiting at once
+	 * @return the maximum queue depth
+	 */
+	public int getMaxQueueDepth() {
+		synchronized(lock) {
+			return maxQueueDepth;
+		}
+	}
+	
+	/**
+	 * Remember the first failure so it can be thrown to the conversion thread
+	 * @param e the exception thrown by the write
+	 */
+	private void setFailure(IOException e) {
+		synchronized(lock) {
+			if(failure == null) {
+				failure = e;
+			}
+		}
+	}
+	
+	/**
+	 * Decrement the pending count and wake up anyone waiting in flush()
+	 */
+	private void writeCompleted() {
+		synchronized(lock) {
+			pendingWrites--;
+			lock.notifyAll();
+		}
+	}
+	
+	/**
+	 * Throw the failure from a queued write if there was one. The failure
+	 * is never cleared so the sink cannot report success after losing a
+	 * file. Must be called while holding the lock.
+	 * @throws IOException
+	 */
+	private void throwFailure() throws IOException {
+		if(failure != null) {
+			throw failure;
+		}
+	}
+	
+	/**
+	 * Makes the conversion thread wait for room in the queue instead of
+	 * rejecting the write. Once the sink has been shut down there is no
+	 * thread to take the write so it is run on the caller instead.
+	 */
+	private static class BlockWhenFull implements RejectedExecutionHandler {
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+			if(executor.isShutdown()) {
+				//run it on the caller so the pending count stays correct
+				r.run();
+				return;
+			}
+			
+			try {
+				executor.getQueue().put(r);
+				
+				if(executor.isShutdown() && executor.getQueue().remove(r)) {
+					//the sink was shut down while we were waiting for room
+					r.run();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				
+				//run it on the caller so the pending count stays correct
+				r.run();
+			}
+		}
+	}
+	
+	/**
+	 * Creates named daemon threads so a forgotten sink does not keep
+	 * the JVM alive
+	 */
+	private static class IOThreadFactory implements ThreadFactory {
+		private static final AtomicInteger threadCounter = new AtomicInteger();
+		
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "wise-output-io-" + threadCounter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,254 @@
+package wise2.converter.output;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Passes the files on to another sink only when they differ from what is
+ * already there, so converting a project again leaves the files that did
+ * not change untouched along with their modified times. Tools that sync or
+ * back up the output folder then only see the files that really changed.
+ * 
+ * The size of the existing file is checked first and the contents are
+ * only read back and compared when the size matches. Streamed files are
+ * compared with the existing file as the bytes come and are only passed
+ * on to the delegate's stream once they differ.
+ */
+public class WriteIfChangedOutputSink extends OutputSink {
+	
+	//the sink that the changed files are passed to
+	private OutputSink delegate;
+	
+	//the number of files that were already there with the same contents
+	private AtomicInteger filesUnchanged = new AtomicInteger();
+	
+	//the number of bytes in the files that were already there
+	private AtomicLong bytesUnchanged = new AtomicLong();
+	
+	/**
+	 * @param delegate the sink that the changed files are passed to
+	 */
+	public WriteIfChangedOutputSink(OutputSink delegate) {
+		this.delegate = delegate;
+	}
+
+	/**
+	 * Write the file unless the delegate already has the same bytes at the path
+	 * @see wise2.converter.output.OutputSink#write(java.lang.String, byte[])
+	 */
+	public void write(String path, byte[] content) throws IOException {
+		if(delegate.getSize(path) == content.length) {
+			byte[] existing = delegate.read(path);
+			
+			if(existing != null && Arrays.equals(existing, content)) {
+				filesUnchanged.incrementAndGet();
+				bytesUnchanged.addAndGet(content.length);
+				return;
+			}
+		}
+		
+		delegate.write(path, content);
+	}
+	
+	/**
+	 * Stream the file, comparing the bytes with the file the delegate
+	 * already has. Nothing is written while the bytes match. Once they
+	 * differ the delegate's stream is opened, the bytes that matched are
+	 * written to it and the rest go straight through.
+	 * @see wise2.converter.output.OutputSink#openStream(java.lang.String)
+	 */
+	public OutputStream openStream(String path) throws IOException {
+		byte[] existing = delegate.getSize(path) >= 0 ? delegate.read(path) : null;
+		
+		if(existing == null) {
+			//nothing to compare with
+			return delegate.openStream(path);
+		}
+		
+		return new ComparingOutputStream(path, existing);
+	}
+	
+	/**
+	 * @see wise2.converter.output.OutputSink#read(java.lang.String)
+	 */
+	public byte[] read(String path) throws IOException {
+		return delegate.read(path);
+	}
+	
+	/**
+	 * @see wise2.converter.output.OutputSink#getSize(java.lang.String)
+	 */
+	public long getSize(String path) throws IOException {
+		return delegate.getSize(path);
+	}
+	
+	/**
+	 * @see wise2.converter.output.OutputSink#createFolder(java.lang.String)
+	 */
+	public void createFolder(String path) throws IOException {
+		delegate.createFolder(path);
+	}
+	
+	/**
+	 * @see wise2.converter.output.OutputSink#flush()
+	 */
+	public void flush() throws IOException {
+		delegate.flush();
+	}
+	
+	/**
+	 * Closing this sink does not close the delegate
+	 * @see wise2.converter.output.OutputSink#close()
+	 */
+	public void close() throws IOException {
+		flush();
+	}
+
+	/**
+	 * Get the number of bytes that reached the delegate
+	 * @see wise2.converter.output.OutputSink#getBytesWritten()
+	 */
+	public long getBytesWritten() {
+		return delegate.getBytesWritten();
+	}
+	
+	/**
+	 * Get the number of files that were not written because they had not changed
+	 * @return the number of files
+	 */
+	public int getFilesUnchanged() {
+		return filesUnchanged.get();
+	}
+	
+	/**
+	 * Get the size of the files that were not written because they had not changed
+	 * @return the number of bytes
+	 */
+	public long getBytesUnchanged() {
+		return bytesUnchanged.get();
+	}
+	
+	/**
+	 * A stream that compares the bytes written to it with the existing file
+	 * and only opens the delegate's stream once they differ
+	 */
+	private class ComparingOutputStream extends OutputStream {
+		
+		//the path of the file
+		private String path;
+		
+		//the bytes of the file the delegate already has
+		private byte[] existing;
+		
+		//the number of bytes written so far that match the existing file
+		private int matched = 0;
+		
+		//the delegate's stream, opened once the bytes differ
+		private OutputStream out = null;
+		
+		//whether the stream has been closed
+		private boolean closed = false;
+		
+		/**
+		 * @param path the path of the file
+		 * @param existing the bytes of the file the delegate already has
+		 */
+		public ComparingOutputStream(String path, byte[] existing) {
+			this.path = path;
+			this.existing = existing;
+		}
+		
+		/**
+		 * @see java.io.OutputStream#write(int)
+		 */
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+		
+		/**
+		 * @see java.io.OutputStream#write(byte[], int, int)
+		 */
+		public void write(byte[] b, int off, int len) throws IOException {
+			if(out == null && matches(b, off, len)) {
+				matched += len;
+				return;
+			}
+			
+			if(out == null) {
+				//the file has changed, write what matched so far and pass the rest through
+				out = delegate.openStream(path);
+				out.write(existing, 0, matched);
+			}
+			
+			out.write(b, off, len);
+		}
+		
+		/**
+		 * Determine whether the bytes are the next bytes of the existing file
+		 * @param b the bytes
+		 * @param off the offset of the bytes in the array
+		 * @param len the number of bytes
+		 * @return whether the bytes match
+		 */
+		private boolean matches(byte[] b, int off, int len) {
+			if(matched + len > existing.length) {
+				return false;
+			}
+			
+			for(int i = 0; i < len; i++) {
+				if(b[off + i] != existing[matched + i]) {
+					return false;
+				}
+			}
+			
+			return true;
+		}
+		
+		/**
+		 * @see java.io.OutputStream#flush()
+		 */
+		public void flush() throws IOException {
+			if(out != null) {
+				out.flush();
+			}
+		}
+		
+		/**
+		 * Count the file as unchanged if every byte matched, otherwise
+		 * finish writing it
+		 * @see java.io.OutputStream#close()
+		 */
+		public void close() throws IOException {
+			if(closed) {
+				return;
+			}
+			
+			closed = true;
+			
+			if(out == null && matched == existing.length) {
+				filesUnchanged.incrementAndGet();
+				bytesUnchanged.addAndGet(matched);
+				return;
+			}
+			
+			if(out == null) {
+				//the new file is a shorter version of the existing one
+				out = delegate.openStream(path);
+				out.write(existing, 0, matched);
+			}
+			
+			out.close();
+		}
+	}
+	
+	/**
+	 * Get the sink that the changed files are passed to
+	 * @return the delegate sink
+	 */
+	public OutputSink getDelegate() {
+		return delegate;
+	}
+}
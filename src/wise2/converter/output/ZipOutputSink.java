@@ -0,0 +1,497 @@
+package wise2.converter.output;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes the wise 4 project files straight into a zip archive that can be
+ * imported into wise 4 without first being written to a folder.
+ * 
+ * Files that are already compressed such as images are stored as they are
+ * and everything else is deflated. The data is compressed by the thread that
+ * calls write() and only the appending to the archive is serialized, so
+ * several threads writing through this sink deflate in parallel. Entries
+ * larger than the parallel deflate threshold are additionally split into
+ * blocks that are deflated concurrently on the deflate executor.
+ * 
+ * If the same path is written again, for example an image that is both in
+ * the upload folder and referenced from a step, the later write wins just
+ * like in a folder. Its data is appended and the central directory points
+ * at it, so the bytes of the earlier write are left unused in the archive.
+ * 
+ * Archives larger than 4GB or with more than 65535 entries get zip64
+ * records.
+ */
+public class ZipOutputSink extends OutputSink {
+	
+	//the file extensions of files that would not get any smaller if we deflated them
+	private static final String[] STORED_EXTENSIONS = {
+		".jpg", ".jpeg", ".gif", ".png", ".zip", ".jar", ".gz", ".mp3", ".mp4", ".m4a", ".mov", ".swf", ".flv", ".pdf"
+	};
+	
+	//the size of the blocks that large entries are split into for parallel deflate
+	private static final int DEFLATE_BLOCK_SIZE = 128 * 1024;
+	
+	//the amount of previous data each block uses as its dictionary
+	private static final int DICTIONARY_SIZE = 32 * 1024;
+	
+	//the largest size or offset that fits in the zip headers without zip64 extensions
+	private static final long MAX_ENTRY_SIZE = 0xFFFFFFFFL;
+	
+	//the most entries the end of central directory record can count without zip64 extensions
+	private static final int MAX_ENTRIES = 0xFFFF;
+	
+	//the stream the archive is written to
+	private OutputStream out;
+	
+	//the folder inside the archive that all the paths are placed in e.g. 31202/
+	private String rootFolder;
+	
+	//the executor used to deflate the blocks of large entries, may be null
+	private ExecutorService deflateExecutor;
+	
+	//entries at least this large are deflated in parallel blocks
+	private int parallelDeflateThreshold = 1024 * 1024;
+	
+	//the deflate compression level
+	private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+	
+	//the central directory records of the entries written so far
+	private List<ZipEntryRecord> entries = new ArrayList<ZipEntryRecord>();
+	
+	//the position of each path's record in the entries, so a later write of the path replaces it
+	private Map<String, Integer> entryIndexes = new HashMap<String, Integer>();
+	
+	//the number of archive bytes written so far, this is the offset of the next entry
+	private long offset = 0;
+	
+	//the number of uncompressed bytes handed to this sink
+	private AtomicLong bytesWritten = new AtomicLong();
+	
+	//the dos time and date that all the entries are stamped with
+	private int dosTime;
+	private int dosDate;
+	
+	//whether the central directory has been written
+	private boolean closed = false;
+	
+	/**
+	 * @param out the stream to write the archive to
+	 * @param rootFolder the folder inside the archive to place the files in
+	 * or null to place them at the top level of the archive
+	 * @param deflateExecutor the executor used to deflate large entries in
+	 * parallel or null to deflate every entry on the calling thread
+	 */
+	public ZipOutputSink(OutputStream out, String rootFolder, ExecutorService deflateExecutor) {
+		this.out = new BufferedOutputStream(out, 64 * 1024);
+		this.deflateExecutor = deflateExecutor;
+		
+		if(rootFolder == null || rootFolder.equals("")) {
+			this.rootFolder = "";
+		} else if(rootFolder.endsWith("/")) {
+			this.rootFolder = rootFolder;
+		} else {
+			this.rootFolder = rootFolder + "/";
+		}
+		
+		setTimestamp(System.currentTimeMillis());
+	}
+	
+	/**
+	 * Compress the content on the calling thread and then append it to the archive
+	 * @see wise2.converter.output.OutputSink#write(java.lang.String, byte[])
+	 */
+	public void write(String path, byte[] content) throws IOException {
+		String entryName = rootFolder + path;
+		
+		//calculate the checksum of the uncompressed data
+		CRC32 crc = new CRC32();
+		crc.update(content, 0, content.length);
+		
+		ZipEntryRecord entry = new ZipEntryRecord();
+		entry.name = entryName.getBytes(UTF_8);
+		entry.crc = crc.getValue();
+		entry.size = content.length;
+		
+		byte[] data;
+		
+		if(isStored(path)) {
+			//the data is already compressed so we will store it as it is
+			entry.method = 0;
+			data = content;
+		} else {
+			entry.method = 8;
+			data = deflate(content);
+		}
+		
+		entry.compressedSize = data.length;
+		
+		appendEntry(entryName, entry, data);
+		
+		bytesWritten.addAndGet(content.length);
+	}
+	
+	/**
+	 * Add a folder entry to the archive
+	 * @see wise2.converter.output.OutputSink#createFolder(java.lang.String)
+	 */
+	public void createFolder(String path) throws IOException {
+		String entryName = rootFolder + (path.endsWith("/") ? path : path + "/");
+		
+		synchronized(this) {
+			if(entryIndexes.containsKey(entryName)) {
+				//an empty folder is the same however many times it is created
+				return;
+			}
+		}
+		
+		ZipEntryRecord entry = new ZipEntryRecord();
+		entry.name = entryName.getBytes(UTF_8);
+		entry.method = 0;
+		
+		appendEntry(entryName, entry, new byte[0]);
+	}
+	
+	/**
+	 * Write the central directory to finish the archive. The stream is
+	 * closed even if the central directory could not be written.
+	 * @see wise2.converter.output.OutputSink#close()
+	 */
+	public synchronized void close() throws IOException {
+		if(closed) {
+			return;
+		}
+		
+		closed = true;
+		
+		try {
+			writeCentralDirectory();
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * Write the central directory record for each entry and the end of
+	 * central directory record, with zip64 records if the archive needs them
+	 * @throws IOException
+	 */
+	private void writeCentralDirectory() throws IOException {
+		long centralDirectoryOffset = offset;
+		
+		for(ZipEntryRecord entry : entries) {
+			//only the offset can be too large, the sizes of a byte array always fit
+			boolean zip64Offset = entry.offset >= MAX_ENTRY_SIZE;
+			
+			writeInt(0x02014b50);
+			writeShort(zip64Offset ? 45 : 20);
+			writeShort(zip64Offset ? 45 : 20);
+			writeShort(0x0800);
+			writeShort(entry.method);
+			writeShort(dosTime);
+			writeShort(dosDate);
+			writeInt(entry.crc);
+			writeInt(entry.compressedSize);
+			writeInt(entry.size);
+			writeShort(entry.name.length);
+			writeShort(zip64Offset ? 12 : 0);
+			writeShort(0);
+			writeShort(0);
+			writeShort(0);
+			writeInt(0);
+			writeInt(zip64Offset ? MAX_ENTRY_SIZE : entry.offset);
+			writeBytes(entry.name, 0, entry.name.length);
+			
+			if(zip64Offset) {
+				//the zip64 extended information extra field holding the offset
+				writeShort(0x0001);
+				writeShort(8);
+				writeLong(entry.offset);
+			}
+		}
+		
+		long centralDirectorySize = offset - centralDirectoryOffset;
+		
+		if(entries.size() >= MAX_ENTRIES || centralDirectoryOffset >= MAX_ENTRY_SIZE || centralDirectorySize >= MAX_ENTRY_SIZE) {
+			long zip64EndOffset = offset;
+			
+			//write the zip64 end of central directory record
+			writeInt(0x06064b50);
+			writeLong(44);
+			writeShort(45);
+			writeShort(45);
+			writeInt(0);
+			writeInt(0);
+			writeLong(entries.size());
+			writeLong(entries.size());
+			writeLong(centralDirectorySize);
+			writeLong(centralDirectoryOffset);
+			
+			//write the zip64 end of central directory locator
+			writeInt(0x07064b50);
+			writeInt(0);
+			writeLong(zip64EndOffset);
+			writeInt(1);
+		}
+		
+		//write the end of central directory record, the values that do not fit are in the zip64 record
+		writeInt(0x06054b50);
+		writeShort(0);
+		writeShort(0);
+		writeShort(Math.min(entries.size(), MAX_ENTRIES));
+		writeShort(Math.min(entries.size(), MAX_ENTRIES));
+		writeInt(Math.min(centralDirectorySize, MAX_ENTRY_SIZE));
+		writeInt(Math.min(centralDirectoryOffset, MAX_ENTRY_SIZE));
+		writeShort(0);
+	}
+
+	/**
+	 * Get the number of uncompressed bytes written into the archive
+	 * @see wise2.converter.output.OutputSink#getBytesWritten()
+	 */
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+	
+	/**
+	 * Get the number of bytes of the archive written so far
+	 * @return the compressed size of the archive
+	 */
+	public synchronized long getArchiveBytesWritten() {
+		return offset;
+	}
+	
+	/**
+	 * Set the size at which entries are deflated in parallel blocks
+	 * @param parallelDeflateThreshold the size in bytes
+	 */
+	public void setParallelDeflateThreshold(int parallelDeflateThreshold) {
+		this.parallelDeflateThreshold = parallelDeflateThreshold;
+	}
+	
+	/**
+	 * Set the deflate compression level
+	 * @param compressionLevel a level from 0 to 9
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+	}
+	
+	/**
+	 * Set the modification time that the entries are stamped with
+	 * @param timeMillis the time in milliseconds since the epoch
+	 */
+	public void setTimestamp(long timeMillis) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(timeMillis);
+		
+		int year = Math.max(calendar.get(Calendar.YEAR), 1980);
+		
+		dosTime = (calendar.get(Calendar.HOUR_OF_DAY) << 11) | (calendar.get(Calendar.MINUTE) << 5) | (calendar.get(Calendar.SECOND) >> 1);
+		dosDate = ((year - 1980) << 9) | ((calendar.get(Calendar.MONTH) + 1) << 5) | calendar.get(Calendar.DAY_OF_MONTH);
+	}
+	
+	/**
+	 * Determine whether the file is already compressed
+	 * @param path the path of the file
+	 * @return whether the file should be stored without deflating it
+	 */
+	private boolean isStored(String path) {
+		String lowerCasePath = path.toLowerCase();
+		
+		for(String extension : STORED_EXTENSIONS) {
+			if(lowerCasePath.endsWith(extension)) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Deflate the content into a raw deflate stream
+	 * @param content the uncompressed data
+	 * @return the compressed data
+	 * @throws IOException
+	 */
+	private byte[] deflate(byte[] content) throws IOException {
+		if(deflateExecutor == null || content.length < parallelDeflateThreshold) {
+			return deflateBlock(content, 0, content.length, true);
+		}
+		
+		/*
+		 * split the content into blocks and deflate them at the same time.
+		 * every block except the last ends with a sync flush so that the
+		 * compressed blocks can be concatenated into one deflate stream,
+		 * and every block after the first is primed with the data that
+		 * precedes it so the compression ratio barely suffers.
+		 */
+		List<Future<byte[]>> blocks = new ArrayList<Future<byte[]>>();
+		
+		for(int start=0; start<content.length; start+=DEFLATE_BLOCK_SIZE) {
+			final int blockStart = start;
+			final int blockLength = Math.min(DEFLATE_BLOCK_SIZE, content.length - start);
+			final boolean lastBlock = start + blockLength >= content.length;
+			final byte[] input = content;
+			
+			blocks.add(deflateExecutor.submit(new Callable<byte[]>() {
+				public byte[] call() {
+					return deflateBlock(input, blockStart, blockLength, lastBlock);
+				}
+			}));
+		}
+		
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.length / 2);
+		
+		try {
+			for(Future<byte[]> block : blocks) {
+				byte[] blockData = block.get();
+				compressed.write(blockData, 0, blockData.length);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while deflating", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Unable to deflate", e.getCause());
+		}
+		
+		return compressed.toByteArray();
+	}
+	
+	/**
+	 * Deflate one block of the content
+	 * @param content the uncompressed data
+	 * @param start the offset of the block
+	 * @param length the length of the block
+	 * @param lastBlock whether this is the last block of the entry
+	 * @return the compressed block
+	 */
+	private byte[] deflateBlock(byte[] content, int start, int length, boolean lastBlock) {
+		Deflater deflater = new Deflater(compressionLevel, true);
+		
+		try {
+			if(start > 0) {
+				//use the data before this block as the dictionary
+				int dictionaryStart = Math.max(0, start - DICTIONARY_SIZE);
+				deflater.setDictionary(content, dictionaryStart, start - dictionaryStart);
+			}
+			
+			deflater.setInput(content, start, length);
+			
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, length / 2));
+			byte[] buffer = new byte[16 * 1024];
+			
+			if(lastBlock) {
+				deflater.finish();
+				
+				while(!deflater.finished()) {
+					int n = deflater.deflate(buffer);
+					compressed.write(buffer, 0, n);
+				}
+			} else {
+				int n;
+				
+				//keep flushing until the deflater has nothing more to give us
+				do {
+					n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+					compressed.write(buffer, 0, n);
+				} while(n == buffer.length);
+			}
+			
+			return compressed.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+	
+	/**
+	 * Append the local file header and the data for an entry. If the path
+	 * has been written before the new entry takes the place of the old one
+	 * in the central directory.
+	 * @param entryName the path of the entry in the archive
+	 * @param entry the entry to append
+	 * @param data the stored or compressed data
+	 * @throws IOException
+	 */
+	private synchronized void appendEntry(String entryName, ZipEntryRecord entry, byte[] data) throws IOException {
+		if(closed) {
+			throw new IOException("The zip archive has already been closed");
+		}
+		
+		entry.offset = offset;
+		
+		writeInt(0x04034b50);
+		writeShort(20);
+		writeShort(0x0800);
+		writeShort(entry.method);
+		writeShort(dosTime);
+		writeShort(dosDate);
+		writeInt(entry.crc);
+		writeInt(entry.compressedSize);
+		writeInt(entry.size);
+		writeShort(entry.name.length);
+		writeShort(0);
+		writeBytes(entry.name, 0, entry.name.length);
+		writeBytes(data, 0, data.length);
+		
+		Integer index = entryIndexes.get(entryName);
+		
+		if(index == null) {
+			entryIndexes.put(entryName, entries.size());
+			entries.add(entry);
+		} else {
+			//the later write wins
+			entries.set(index, entry);
+		}
+	}
+	
+	private void writeShort(int value) throws IOException {
+		out.write(value & 0xFF);
+		out.write((value >>> 8) & 0xFF);
+		offset += 2;
+	}
+	
+	private void writeInt(long value) throws IOException {
+		out.write((int) (value & 0xFF));
+		out.write((int) ((value >>> 8) & 0xFF));
+		out.write((int) ((value >>> 16) & 0xFF));
+		out.write((int) ((value >>> 24) & 0xFF));
+		offset += 4;
+	}
+	
+	private void writeLong(long value) throws IOException {
+		writeInt(value & 0xFFFFFFFFL);
+		writeInt(value >>> 32);
+	}
+	
+	private void writeBytes(byte[] bytes, int start, int length) throws IOException {
+		out.write(bytes, start, length);
+		offset += length;
+	}
+	
+	/**
+	 * The information about an entry that is repeated in the central directory
+	 */
+	private static class ZipEntryRecord {
+		byte[] name;
+		int method;
+		long crc;
+		long size;
+		long compressedSize;
+		long offset;
+	}
+}
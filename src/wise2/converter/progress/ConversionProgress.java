@@ -0,0 +1,242 @@
+package wise2.converter.progress;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How far along one project conversion is. The conversion updates the
+ * counters and a ProgressReporter reads them from its own thread. The
+ * totals are -1 until they are known; the entry totals come from the
+ * zip central directory when the export is a file and the step total
+ * is known once the project xml has been parsed.
+ */
+public class ConversionProgress {
+	
+	/**
+	 * The stages of a conversion in the order they happen
+	 */
+	public enum Phase {
+		EXTRACTING,
+		PARSING,
+		CONVERTING,
+		FINISHING,
+		DONE
+	}
+	
+	//the wise 2 project id
+	private String projectId;
+	
+	//the current stage
+	private volatile Phase phase = Phase.EXTRACTING;
+	
+	//when the conversion started
+	private long startNanos = System.nanoTime();
+	
+	//when step conversion started
+	private volatile long convertStartNanos = 0;
+	
+	//when any of the counters last moved, used to spot stalls
+	private volatile long lastActivityNanos = startNanos;
+	
+	//the number of entries in the export zip
+	private volatile int totalEntries = -1;
+	
+	//the uncompressed size of the export zip
+	private volatile long totalBytes = -1;
+	
+	//the number of steps in the project
+	private volatile int totalSteps = -1;
+	
+	//the number of zip entries read so far
+	private AtomicInteger entriesExtracted = new AtomicInteger();
+	
+	//the number of uncompressed bytes read from the zip so far
+	private AtomicLong bytesExtracted = new AtomicLong();
+	
+	//the number of steps converted or failed so far
+	private AtomicInteger stepsDone = new AtomicInteger();
+	
+	//the number of image downloads that have started but not finished
+	private AtomicInteger outstandingDownloads = new AtomicInteger();
+	
+	/**
+	 * @param projectId the wise 2 project id
+	 */
+	public ConversionProgress(String projectId) {
+		this.projectId = projectId;
+	}
+	
+	/**
+	 * Set the totals read from the zip central directory
+	 * @param totalEntries the number of entries in the export zip
+	 * @param totalBytes the uncompressed size of all the entries
+	 */
+	public void setZipTotals(int totalEntries, long totalBytes) {
+		this.totalEntries = totalEntries;
+		this.totalBytes = totalBytes;
+	}
+	
+	/**
+	 * Move on to the next stage of the conversion
+	 * @param phase the new stage
+	 */
+	public void setPhase(Phase phase) {
+		if(phase == Phase.CONVERTING) {
+			convertStartNanos = System.nanoTime();
+		}
+		
+		this.phase = phase;
+		touch();
+	}
+	
+	/**
+	 * Record a zip entry that has been read
+	 * @param bytes the uncompressed size of the entry
+	 */
+	public void entryExtracted(long bytes) {
+		entriesExtracted.incrementAndGet();
+		bytesExtracted.addAndGet(bytes);
+		touch();
+	}
+	
+	/**
+	 * Set the number of steps in the project
+	 * @param totalSteps the number of steps
+	 */
+	public void setTotalSteps(int totalSteps) {
+		this.totalSteps = totalSteps;
+	}
+	
+	/**
+	 * Record a step that has been converted or has failed
+	 */
+	public void stepDone() {
+		stepsDone.incrementAndGet();
+		touch();
+	}
+	
+	/**
+	 * Record an image download that is starting
+	 */
+	public void downloadStarted() {
+		outstandingDownloads.incrementAndGet();
+		touch();
+	}
+	
+	/**
+	 * Record an image download that has finished or failed
+	 */
+	public void downloadFinished() {
+		outstandingDownloads.decrementAndGet();
+		touch();
+	}
+	
+	private void touch() {
+		lastActivityNanos = System.nanoTime();
+	}
+	
+	/**
+	 * Get the number of steps converted per second since step conversion started
+	 * @param now the current System.nanoTime()
+	 * @return the rate or 0 if no steps have been converted
+	 */
+	public double getStepsPerSecond(long now) {
+		if(convertStartNanos == 0 || now <= convertStartNanos) {
+			return 0;
+		}
+		
+		return stepsDone.get() / ((now - convertStartNanos) / 1e9);
+	}
+	
+	/**
+	 * Get the number of megabytes read from the zip per second since the
+	 * conversion started
+	 * @param now the current System.nanoTime()
+	 * @return the rate
+	 */
+	public double getMegabytesPerSecond(long now) {
+		if(now <= startNanos) {
+			return 0;
+		}
+		
+		return (bytesExtracted.get() / (1024.0 * 1024.0)) / ((now - startNanos) / 1e9);
+	}
+	
+	/**
+	 * Estimate how long is left. While extracting this is only the rest of the
+	 * extraction because the number of steps is not known yet.
+	 * @param now the current System.nanoTime()
+	 * @return the estimate in seconds or -1 if there is nothing to go on
+	 */
+	public long getSecondsRemaining(long now) {
+		Phase currentPhase = phase;
+		
+		if(currentPhase == Phase.EXTRACTING) {
+			long extracted = bytesExtracted.get();
+			
+			if(totalBytes < 0 || extracted == 0) {
+				return -1;
+			}
+			
+			double secondsSoFar = (now - startNanos) / 1e9;
+			return Math.round(secondsSoFar * (totalBytes - extracted) / extracted);
+		} else if(currentPhase == Phase.CONVERTING) {
+			double stepsPerSecond = getStepsPerSecond(now);
+			
+			if(totalSteps < 0 || stepsPerSecond <= 0) {
+				return -1;
+			}
+			
+			return Math.round((totalSteps - stepsDone.get()) / stepsPerSecond);
+		} else if(currentPhase == Phase.PARSING) {
+			return -1;
+		}
+		
+		return 0;
+	}
+	
+	/**
+	 * Get how long it has been since any of the counters moved
+	 * @param now the current System.nanoTime()
+	 * @return the time in milliseconds
+	 */
+	public long getMillisSinceActivity(long now) {
+		return (now - lastActivityNanos) / 1000000;
+	}
+
+	public String getProjectId() {
+		return projectId;
+	}
+
+	public Phase getPhase() {
+		return phase;
+	}
+
+	public int getTotalEntries() {
+		return totalEntries;
+	}
+
+	public long getTotalBytes() {
+		return totalBytes;
+	}
+
+	public int getTotalSteps() {
+		return totalSteps;
+	}
+
+	public int getEntriesExtracted() {
+		return entriesExtracted.get();
+	}
+
+	public long getBytesExtracted() {
+		return bytesExtracted.get();
+	}
+
+	public int getStepsDone() {
+		return stepsDone.get();
+	}
+
+	public int getOutstandingDownloads() {
+		return outstandingDownloads.get();
+	}
+}
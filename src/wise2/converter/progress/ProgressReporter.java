@@ -0,0 +1,243 @@
+package wise2.converter.progress;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prints the progress of the conversions that are running at a fixed
+ * interval e.g.
+ * 
+ * [123] converting steps 120/400 (30%), 45.2 steps/s, 12.3 MB/s extracted, 2 downloads outstanding, ETA 6s
+ * 
+ * On a terminal with a single conversion running the line is redrawn in
+ * place. Otherwise, e.g. when the output is going to a log file, every
+ * report is a separate line. A conversion whose counters have not moved
+ * for the stall threshold is reported as stalled.
+ * 
+ * One reporter can watch many conversions. Its thread only runs while at
+ * least one conversion is registered.
+ */
+public class ProgressReporter {
+	
+	//where the progress lines are printed
+	private PrintStream out;
+	
+	//how often to print the progress
+	private long intervalMillis;
+	
+	//how long a conversion may go without progress before it is reported as stalled
+	private long stallThresholdMillis;
+	
+	//whether to redraw the line in place
+	private boolean terminal;
+	
+	//the conversions that are running
+	private List<ConversionProgress> conversions = new ArrayList<ConversionProgress>();
+	
+	//runs the reports
+	private ScheduledExecutorService scheduler;
+	
+	//the scheduled reports, null while no conversions are running
+	private ScheduledFuture<?> reportTask;
+	
+	//the length of the last line drawn in place so a shorter line can blank it out
+	private int lastLineLength = 0;
+	
+	/**
+	 * Create a reporter that prints to System.out and redraws the line in
+	 * place when System.out is a terminal
+	 * @param intervalMillis how often to print the progress
+	 * @param stallThresholdMillis how long a conversion may go without progress before it is reported as stalled
+	 */
+	public ProgressReporter(long intervalMillis, long stallThresholdMillis) {
+		this(System.out, System.console() != null, intervalMillis, stallThresholdMillis);
+	}
+	
+	/**
+	 * @param out where to print the progress lines
+	 * @param terminal whether to redraw the line in place
+	 * @param intervalMillis how often to print the progress
+	 * @param stallThresholdMillis how long a conversion may go without progress before it is reported as stalled
+	 */
+	public ProgressReporter(PrintStream out, boolean terminal, long intervalMillis, long stallThresholdMillis) {
+		this.out = out;
+		this.terminal = terminal;
+		this.intervalMillis = intervalMillis;
+		this.stallThresholdMillis = stallThresholdMillis;
+		
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "wise-progress");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	/**
+	 * Start reporting on a conversion
+	 * @param progress the progress of the conversion
+	 */
+	public synchronized void register(ConversionProgress progress) {
+		conversions.add(progress);
+		
+		if(reportTask == null) {
+			reportTask = scheduler.scheduleAtFixedRate(new Runnable() {
+				public void run() {
+					report();
+				}
+			}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * Stop reporting on a conversion
+	 * @param progress the progress of the conversion
+	 */
+	public synchronized void unregister(ConversionProgress progress) {
+		conversions.remove(progress);
+		
+		if(conversions.isEmpty() && reportTask != null) {
+			reportTask.cancel(false);
+			reportTask = null;
+			
+			if(lastLineLength > 0) {
+				//move off the line we were redrawing
+				out.println();
+				lastLineLength = 0;
+			}
+		}
+	}
+	
+	/**
+	 * Stop the reporting thread
+	 */
+	public void shutdown() {
+		scheduler.shutdown();
+	}
+	
+	/**
+	 * Print the progress of all the running conversions
+	 */
+	synchronized void report() {
+		long now = System.nanoTime();
+		
+		for(ConversionProgress progress : conversions) {
+			String line = formatProgress(progress, now);
+			long millisSinceActivity = progress.getMillisSinceActivity(now);
+			
+			if(millisSinceActivity >= stallThresholdMillis) {
+				//always give a stall its own line so it stays visible
+				printLine(line + " - STALLED, no progress for " + (millisSinceActivity / 1000) + "s");
+			} else if(terminal && conversions.size() == 1) {
+				redrawLine(line);
+			} else {
+				printLine(line);
+			}
+		}
+		
+		out.flush();
+	}
+	
+	/**
+	 * Print a line on its own
+	 * @param line the text to print
+	 */
+	private void printLine(String line) {
+		if(lastLineLength > 0) {
+			out.println();
+			lastLineLength = 0;
+		}
+		
+		out.println(line);
+	}
+	
+	/**
+	 * Draw a line over the last line that was drawn in place
+	 * @param line the text to draw
+	 */
+	private void redrawLine(String line) {
+		StringBuffer text = new StringBuffer("\r").append(line);
+		
+		//blank out the rest of a longer previous line
+		for(int x=line.length(); x<lastLineLength; x++) {
+			text.append(' ');
+		}
+		
+		out.print(text);
+		lastLineLength = line.length();
+	}
+	
+	/**
+	 * Describe the progress of a conversion in one line
+	 * @param progress the progress of the conversion
+	 * @param now the current System.nanoTime()
+	 * @return the progress line
+	 */
+	static String formatProgress(ConversionProgress progress, long now) {
+		StringBuffer line = new StringBuffer();
+		line.append("[").append(progress.getProjectId()).append("] ");
+		
+		ConversionProgress.Phase phase = progress.getPhase();
+		
+		if(phase == ConversionProgress.Phase.EXTRACTING) {
+			line.append("extracting entries ").append(formatCount(progress.getEntriesExtracted(), progress.getTotalEntries()));
+		} else if(phase == ConversionProgress.Phase.PARSING) {
+			line.append("parsing project xml");
+		} else {
+			line.append(phase.name().toLowerCase(Locale.ENGLISH)).append(" steps ").append(formatCount(progress.getStepsDone(), progress.getTotalSteps()));
+		}
+		
+		line.append(String.format(Locale.ENGLISH, ", %.1f steps/s", progress.getStepsPerSecond(now)));
+		line.append(String.format(Locale.ENGLISH, ", %.1f MB/s extracted", progress.getMegabytesPerSecond(now)));
+		line.append(", ").append(progress.getOutstandingDownloads()).append(" downloads outstanding");
+		
+		long secondsRemaining = progress.getSecondsRemaining(now);
+		
+		if(secondsRemaining < 0) {
+			line.append(", ETA unknown");
+		} else if(phase == ConversionProgress.Phase.EXTRACTING) {
+			line.append(", extraction ETA ").append(formatDuration(secondsRemaining));
+		} else {
+			line.append(", ETA ").append(formatDuration(secondsRemaining));
+		}
+		
+		return line.toString();
+	}
+	
+	/**
+	 * Format a count with its total and percentage when the total is known
+	 * @param done the count so far
+	 * @param total the total or -1 if it is not known
+	 * @return e.g. 120/400 (30%) or 120
+	 */
+	private static String formatCount(int done, int total) {
+		if(total <= 0) {
+			return String.valueOf(done);
+		}
+		
+		return done + "/" + total + " (" + (done * 100 / total) + "%)";
+	}
+	
+	/**
+	 * Format a number of seconds e.g. 75 becomes 1m15s
+	 * @param seconds the number of seconds
+	 * @return the formatted duration
+	 */
+	private static String formatDuration(long seconds) {
+		if(seconds < 60) {
+			return seconds + "s";
+		} else if(seconds < 3600) {
+			return (seconds / 60) + "m" + (seconds % 60) + "s";
+		}
+		
+		return (seconds / 3600) + "h" + ((seconds % 3600) / 60) + "m";
+	}
+}
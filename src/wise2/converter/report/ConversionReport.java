@@ -0,0 +1,342 @@
+package wise2.converter.report;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The timings and counters for converting one project. The conversion
+ * only takes a System.nanoTime() reading around each stage, step, image
+ * fetch and write so the report is cheap enough to always be collected.
+ * It is written to conversion_report.json next to wise4.project.json.
+ * 
+ * The stages are measured on the conversion thread. Image fetches and
+ * writes happen inside the steps so their time is also part of the
+ * step conversion stage.
+ */
+public class ConversionReport {
+	
+	//the name of the report file in the wise 4 project
+	public static final String REPORT_FILE_NAME = "conversion_report.json";
+	
+	//the wise 2 project id
+	private String projectId = "";
+	
+	//the title of the project
+	private String projectTitle = "";
+	
+	//the time spent on the whole conversion up to writing the report
+	private long totalNanos = 0;
+	
+	//the time spent reading the first entry of the export zip
+	private long zipOpenNanos = 0;
+	
+	//the time spent copying the upload files into the assets folder
+	private long assetExtractionNanos = 0;
+	
+	//the time spent parsing the project xml
+	private long xmlParseNanos = 0;
+	
+	//the time spent converting all the steps
+	private long stepConversionNanos = 0;
+	
+	//the time the conversion thread spent handing files to the output sink and waiting for them
+	private long writeNanos = 0;
+	
+	//the number of upload files copied into the assets folder
+	private int assetsCopied = 0;
+	
+	//the number of bytes copied into the assets folder
+	private long assetBytesCopied = 0;
+	
+	//whether the project xml tree was loaded from the parsed project cache instead of being parsed
+	private boolean parsedFromCache = false;
+	
+	//the number of assets that were already in the assets folder from the last conversion
+	private int assetsKept = 0;
+	
+	//the number of bytes in the assets that were already there
+	private long assetBytesKept = 0;
+	
+	//the most files waiting for the output threads at once, -1 if the files were written on the conversion thread
+	private int maxWriteQueueDepth = -1;
+	
+	//the steps in the order they appear in the project
+	private List<StepReport> steps = new ArrayList<StepReport>();
+	
+	/**
+	 * Add the measurements for a step
+	 * @param step the step report
+	 */
+	public synchronized void addStep(StepReport step) {
+		steps.add(step);
+	}
+	
+	/**
+	 * Get the steps in the order they appear in the project
+	 * @return the step reports
+	 */
+	public synchronized List<StepReport> getSteps() {
+		return Collections.unmodifiableList(new ArrayList<StepReport>(steps));
+	}
+	
+	/**
+	 * Record an upload file that was copied into the assets folder
+	 * @param bytes the size of the file
+	 */
+	public void recordAssetCopied(long bytes) {
+		assetsCopied++;
+		assetBytesCopied += bytes;
+	}
+	
+	/**
+	 * Count an asset that was already in the assets folder and was not copied
+	 * @param bytes the size of the asset
+	 */
+	public void recordAssetKept(long bytes) {
+		assetsKept++;
+		assetBytesKept += bytes;
+	}
+	
+	/**
+	 * Get the total time spent fetching images in all the steps
+	 * @return the time in nanoseconds
+	 */
+	public synchronized long getImageFetchNanos() {
+		long imageFetchNanos = 0;
+		
+		for(StepReport step : steps) {
+			imageFetchNanos += step.getImageFetchNanos();
+		}
+		
+		return imageFetchNanos;
+	}
+	
+	/**
+	 * Get the report as a JSONObject
+	 * @return the JSONObject for the report
+	 */
+	public synchronized JSONObject toJSON() {
+		JSONObject reportJSON = new JSONObject();
+		
+		try {
+			reportJSON.put("projectId", projectId);
+			reportJSON.put("projectTitle", projectTitle);
+			reportJSON.put("totalMillis", toMillis(totalNanos));
+			
+			//the wall time of each stage
+			JSONObject stagesJSON = new JSONObject();
+			stagesJSON.put("zipOpenMillis", toMillis(zipOpenNanos));
+			stagesJSON.put("assetExtractionMillis", toMillis(assetExtractionNanos));
+			stagesJSON.put("xmlParseMillis", toMillis(xmlParseNanos));
+			stagesJSON.put("xmlParsedFromCache", parsedFromCache);
+			stagesJSON.put("stepConversionMillis", toMillis(stepConversionNanos));
+			stagesJSON.put("imageDownloadMillis", toMillis(getImageFetchNanos()));
+			stagesJSON.put("writeMillis", toMillis(writeNanos));
+			reportJSON.put("stages", stagesJSON);
+			
+			JSONObject assetsJSON = new JSONObject();
+			assetsJSON.put("filesCopied", assetsCopied);
+			assetsJSON.put("bytesCopied", assetBytesCopied);
+			assetsJSON.put("filesKept", assetsKept);
+			assetsJSON.put("bytesKept", assetBytesKept);
+			reportJSON.put("assets", assetsJSON);
+			
+			if(maxWriteQueueDepth >= 0) {
+				//how far the output threads fell behind
+				JSONObject outputJSON = new JSONObject();
+				outputJSON.put("maxWriteQueueDepth", maxWriteQueueDepth);
+				reportJSON.put("output", outputJSON);
+			}
+			
+			//the steps in project order and the totals for each step type
+			JSONArray stepsJSON = new JSONArray();
+			Map<String, StepTypeTotals> stepTypeTotals = new TreeMap<String, StepTypeTotals>();
+			
+			for(StepReport step : steps) {
+				stepsJSON.put(step.toJSON());
+				
+				StepTypeTotals totals = stepTypeTotals.get(step.getStepType());
+				
+				if(totals == null) {
+					totals = new StepTypeTotals();
+					stepTypeTotals.put(step.getStepType(), totals);
+				}
+				
+				totals.add(step);
+			}
+			
+			JSONObject stepTypesJSON = new JSONObject();
+			
+			for(Map.Entry<String, StepTypeTotals> entry : stepTypeTotals.entrySet()) {
+				stepTypesJSON.put(entry.getKey(), entry.getValue().toJSON());
+			}
+			
+			reportJSON.put("steps", stepsJSON);
+			reportJSON.put("stepTypes", stepTypesJSON);
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+		
+		return reportJSON;
+	}
+	
+	/**
+	 * Convert nanoseconds to milliseconds rounded to the microsecond
+	 * @param nanos the time in nanoseconds
+	 * @return the time in milliseconds
+	 */
+	static double toMillis(long nanos) {
+		return Math.round(nanos / 1000.0) / 1000.0;
+	}
+
+	public String getProjectId() {
+		return projectId;
+	}
+
+	public void setProjectId(String projectId) {
+		this.projectId = projectId;
+	}
+
+	public String getProjectTitle() {
+		return projectTitle;
+	}
+
+	public void setProjectTitle(String projectTitle) {
+		this.projectTitle = projectTitle;
+	}
+
+	public long getTotalNanos() {
+		return totalNanos;
+	}
+
+	public void setTotalNanos(long totalNanos) {
+		this.totalNanos = totalNanos;
+	}
+
+	public long getZipOpenNanos() {
+		return zipOpenNanos;
+	}
+
+	public void setZipOpenNanos(long zipOpenNanos) {
+		this.zipOpenNanos = zipOpenNanos;
+	}
+
+	public long getAssetExtractionNanos() {
+		return assetExtractionNanos;
+	}
+
+	public void setAssetExtractionNanos(long assetExtractionNanos) {
+		this.assetExtractionNanos = assetExtractionNanos;
+	}
+
+	public long getXmlParseNanos() {
+		return xmlParseNanos;
+	}
+
+	public void setXmlParseNanos(long xmlParseNanos) {
+		this.xmlParseNanos = xmlParseNanos;
+	}
+
+	public long getStepConversionNanos() {
+		return stepConversionNanos;
+	}
+
+	public void setStepConversionNanos(long stepConversionNanos) {
+		this.stepConversionNanos = stepConversionNanos;
+	}
+
+	public long getWriteNanos() {
+		return writeNanos;
+	}
+
+	public void setWriteNanos(long writeNanos) {
+		this.writeNanos = writeNanos;
+	}
+
+	public int getAssetsCopied() {
+		return assetsCopied;
+	}
+
+	public long getAssetBytesCopied() {
+		return assetBytesCopied;
+	}
+
+	public boolean isParsedFromCache() {
+		return parsedFromCache;
+	}
+
+	public void setParsedFromCache(boolean parsedFromCache) {
+		this.parsedFromCache = parsedFromCache;
+	}
+
+	public int getAssetsKept() {
+		return assetsKept;
+	}
+
+	public long getAssetBytesKept() {
+		return assetBytesKept;
+	}
+
+	public int getMaxWriteQueueDepth() {
+		return maxWriteQueueDepth;
+	}
+
+	public void setMaxWriteQueueDepth(int maxWriteQueueDepth) {
+		this.maxWriteQueueDepth = maxWriteQueueDepth;
+	}
+
+	/**
+	 * The totals for all the steps of one step type
+	 */
+	private static class StepTypeTotals {
+		int count = 0;
+		int failed = 0;
+		String converterName = "";
+		long timeNanos = 0;
+		long maxTimeNanos = 0;
+		long bytesWritten = 0;
+		int imageFetches = 0;
+		int imageFetchFailures = 0;
+		long imageFetchNanos = 0;
+		long maxImageFetchNanos = 0;
+		
+		void add(StepReport step) {
+			count++;
+			
+			if(!step.isConverted()) {
+				failed++;
+			}
+			
+			converterName = step.getConverterName();
+			timeNanos += step.getTimeNanos();
+			maxTimeNanos = Math.max(maxTimeNanos, step.getTimeNanos());
+			bytesWritten += step.getBytesWritten();
+			imageFetches += step.getImageFetches();
+			imageFetchFailures += step.getImageFetchFailures();
+			imageFetchNanos += step.getImageFetchNanos();
+			maxImageFetchNanos = Math.max(maxImageFetchNanos, step.getMaxImageFetchNanos());
+		}
+		
+		JSONObject toJSON() throws JSONException {
+			JSONObject stepTypeJSON = new JSONObject();
+			stepTypeJSON.put("count", count);
+			stepTypeJSON.put("failed", failed);
+			stepTypeJSON.put("converter", converterName);
+			stepTypeJSON.put("timeMillis", toMillis(timeNanos));
+			stepTypeJSON.put("maxTimeMillis", toMillis(maxTimeNanos));
+			stepTypeJSON.put("bytesWritten", bytesWritten);
+			stepTypeJSON.put("imageFetches", imageFetches);
+			stepTypeJSON.put("imageFetchFailures", imageFetchFailures);
+			stepTypeJSON.put("imageFetchMillis", toMillis(imageFetchNanos));
+			stepTypeJSON.put("maxImageFetchMillis", toMillis(maxImageFetchNanos));
+			return stepTypeJSON;
+		}
+	}
+}
@@ -0,0 +1,210 @@
+package wise2.converter.report;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The measurements for converting one step. A converter only works on one
+ * step at a time so the image fetch counters are not synchronized.
+ */
+public class StepReport {
+	
+	//the type of the step e.g. DisplayPage
+	private String stepType;
+	
+	//the title of the step
+	private String title = "";
+	
+	//the wise 4 node identifier e.g. node_0.ht, empty if the step failed
+	private String identifier = "";
+	
+	//the simple class name of the converter, empty if there is no converter for the step type
+	private String converterName = "";
+	
+	//whether the step was converted
+	private boolean converted = false;
+	
+	//whether the files from an earlier conversion were kept instead of converting the step
+	private boolean reused = false;
+	
+	//the identifier of the identical step whose files were copied instead of converting this one, empty if it was converted
+	private String copiedFrom = "";
+	
+	//the time spent converting the step including image fetches and writes
+	private long timeNanos = 0;
+	
+	//the bytes the step handed to the output sink
+	private long bytesWritten = 0;
+	
+	//the number of files the step handed to the output sink
+	private int filesWritten = 0;
+	
+	//the number of images fetched from a url
+	private int imageFetches = 0;
+	
+	//the number of image fetches that failed
+	private int imageFetchFailures = 0;
+	
+	//the number of bytes fetched from urls
+	private long imageBytesFetched = 0;
+	
+	//the time spent fetching images
+	private long imageFetchNanos = 0;
+	
+	//the time spent on the slowest image fetch
+	private long maxImageFetchNanos = 0;
+	
+	/**
+	 * @param stepType the type of the step e.g. DisplayPage
+	 */
+	public StepReport(String stepType) {
+		this.stepType = stepType;
+	}
+	
+	/**
+	 * Record one image fetch
+	 * @param nanos how long the fetch took
+	 * @param bytes the number of bytes fetched, ignored if the fetch failed
+	 * @param succeeded whether the fetch succeeded
+	 */
+	public void recordImageFetch(long nanos, long bytes, boolean succeeded) {
+		imageFetches++;
+		imageFetchNanos += nanos;
+		
+		if(nanos > maxImageFetchNanos) {
+			maxImageFetchNanos = nanos;
+		}
+		
+		if(succeeded) {
+			imageBytesFetched += bytes;
+		} else {
+			imageFetchFailures++;
+		}
+	}
+	
+	/**
+	 * Get the step as a JSONObject for the conversion report
+	 * @return the JSONObject for the step
+	 */
+	public JSONObject toJSON() {
+		JSONObject stepJSON = new JSONObject();
+		
+		try {
+			stepJSON.put("stepType", stepType);
+			stepJSON.put("title", title);
+			stepJSON.put("identifier", identifier);
+			stepJSON.put("converter", converterName);
+			stepJSON.put("converted", converted);
+			stepJSON.put("reused", reused);
+			stepJSON.put("copiedFrom", copiedFrom);
+			stepJSON.put("timeMillis", ConversionReport.toMillis(timeNanos));
+			stepJSON.put("bytesWritten", bytesWritten);
+			stepJSON.put("filesWritten", filesWritten);
+			stepJSON.put("imageFetches", imageFetches);
+			stepJSON.put("imageFetchFailures", imageFetchFailures);
+			stepJSON.put("imageBytesFetched", imageBytesFetched);
+			stepJSON.put("imageFetchMillis", ConversionReport.toMillis(imageFetchNanos));
+			stepJSON.put("maxImageFetchMillis", ConversionReport.toMillis(maxImageFetchNanos));
+		} catch (JSONException e) {
+			e.printStackTrace();
+		}
+		
+		return stepJSON;
+	}
+
+	public String getStepType() {
+		return stepType;
+	}
+
+	public String getTitle() {
+		return title;
+	}
+
+	public void setTitle(String title) {
+		this.title = title;
+	}
+
+	public String getIdentifier() {
+		return identifier;
+	}
+
+	public void setIdentifier(String identifier) {
+		this.identifier = identifier;
+	}
+
+	public String getConverterName() {
+		return converterName;
+	}
+
+	public void setConverterName(String converterName) {
+		this.converterName = converterName;
+	}
+
+	public boolean isConverted() {
+		return converted;
+	}
+
+	public void setConverted(boolean converted) {
+		this.converted = converted;
+	}
+
+	public boolean isReused() {
+		return reused;
+	}
+
+	public void setReused(boolean reused) {
+		this.reused = reused;
+	}
+
+	public String getCopiedFrom() {
+		return copiedFrom;
+	}
+
+	public void setCopiedFrom(String copiedFrom) {
+		this.copiedFrom = copiedFrom;
+	}
+
+	public long getTimeNanos() {
+		return timeNanos;
+	}
+
+	public void setTimeNanos(long timeNanos) {
+		this.timeNanos = timeNanos;
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	public void setBytesWritten(long bytesWritten) {
+		this.bytesWritten = bytesWritten;
+	}
+
+	public int getFilesWritten() {
+		return filesWritten;
+	}
+
+	public void setFilesWritten(int filesWritten) {
+		this.filesWritten = filesWritten;
+	}
+
+	public int getImageFetches() {
+		return imageFetches;
+	}
+
+	public int getImageFetchFailures() {
+		return imageFetchFailures;
+	}
+
+	public long getImageBytesFetched() {
+		return imageBytesFetched;
+	}
+
+	public long getImageFetchNanos() {
+		return imageFetchNanos;
+	}
+
+	public long getMaxImageFetchNanos() {
+		return maxImageFetchNanos;
+	}
+}